@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.client.jaxrs;
+
+import com.intel.mtwilson.trustagent.model.TpmQuoteRequest;
+import com.intel.mtwilson.trustagent.model.TpmQuoteResponse;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the last event log and TCB measurement received from each trust
+ * agent, so quote requests can send their digests and the agent only
+ * returns the content again when it has changed.
+ *
+ * The cache is shared by all TrustAgentClient instances, since a client is
+ * often created for each request to a host. Only the most recently used
+ * hosts are kept.
+ */
+class QuoteContentCache {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(QuoteContentCache.class);
+    private static final int MAX_HOSTS = 1024;
+    private static final QuoteContentCache instance = new QuoteContentCache(MAX_HOSTS);
+    private final Map<String, Content> hosts;
+
+    private static class Content {
+        private final String eventLog;
+        private final String eventLogDigest;
+        private final String tcbMeasurement;
+        private final String tcbMeasurementDigest;
+
+        private Content(String eventLog, String tcbMeasurement) {
+            this.eventLog = eventLog;
+            this.eventLogDigest = TpmQuoteResponse.digestOf(eventLog);
+            this.tcbMeasurement = tcbMeasurement;
+            this.tcbMeasurementDigest = TpmQuoteResponse.digestOf(tcbMeasurement);
+        }
+    }
+
+    QuoteContentCache(final int maxHosts) {
+        hosts = new LinkedHashMap<String, Content>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Content> eldest) {
+                return size() > maxHosts;
+            }
+        };
+    }
+
+    static QuoteContentCache getInstance() {
+        return instance;
+    }
+
+    private synchronized Content get(String host) {
+        return hosts.get(host);
+    }
+
+    private synchronized void put(String host, Content content) {
+        hosts.put(host, content);
+    }
+
+    private synchronized void remove(String host) {
+        hosts.remove(host);
+    }
+
+    /**
+     * Adds the digests of the content already received from the host.
+     */
+    void prepare(String host, TpmQuoteRequest request) {
+        Content content = get(host);
+        if (content != null) {
+            request.setEventLogDigest(content.eventLogDigest);
+            request.setTcbMeasurementDigest(content.tcbMeasurementDigest);
+        }
+    }
+
+    /**
+     * Fills in content the agent left out because the request had its
+     * digest, and remembers new content for the next request.
+     * 
+     * @return false if content was left out that is not in the cache, in which case the request should be sent again without digests
+     */
+    boolean complete(String host, TpmQuoteResponse response) {
+        if (response == null) {
+            return true;
+        }
+        Content content = get(host);
+        String eventLog = response.eventLog;
+        String tcbMeasurement = response.tcbMeasurement;
+        if (eventLog == null && response.eventLogDigest != null) {
+            if (content == null || !response.eventLogDigest.equalsIgnoreCase(content.eventLogDigest)) {
+                log.warn("Event log from {} was omitted but does not match the cached digest", host);
+                remove(host);
+                return false;
+            }
+            eventLog = content.eventLog;
+        }
+        if (tcbMeasurement == null && response.tcbMeasurementDigest != null) {
+            if (content == null || !response.tcbMeasurementDigest.equalsIgnoreCase(content.tcbMeasurementDigest)) {
+                log.warn("TCB measurement from {} was omitted but does not match the cached digest", host);
+                remove(host);
+                return false;
+            }
+            tcbMeasurement = content.tcbMeasurement;
+        }
+        response.eventLog = eventLog;
+        response.tcbMeasurement = tcbMeasurement;
+        if (response.eventLogDigest == null && response.tcbMeasurementDigest == null) {
+            // the agent does not support digests, so there is no point sending them
+            return true;
+        }
+        if (content == null || content.eventLog != eventLog || content.tcbMeasurement != tcbMeasurement) {
+            put(host, new Content(eventLog, tcbMeasurement));
+        }
+        return true;
+    }
+}
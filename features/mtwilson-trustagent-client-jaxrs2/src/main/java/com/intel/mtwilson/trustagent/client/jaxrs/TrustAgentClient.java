@@ -12,6 +12,7 @@ import com.intel.mtwilson.trustagent.model.VMAttestationRequest;
 import com.intel.mtwilson.trustagent.model.VMAttestationResponse;
 import com.intel.mtwilson.trustagent.model.*;
 import java.security.cert.X509Certificate;
+import java.util.List;
 import java.util.Properties;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.MediaType;
@@ -24,8 +25,13 @@ import org.apache.commons.lang.StringUtils;
 public class TrustAgentClient extends MtWilsonClient {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TrustAgentClient.class);
     
+    // agents that support it send the binary representation, older agents send xml or json
+    private static final String[] ACCEPT_CBOR_OR_XML = new String[] { TrustagentCbor.APPLICATION_CBOR, MediaType.APPLICATION_XML + ";q=0.9" };
+    private static final String[] ACCEPT_CBOR_OR_JSON = new String[] { TrustagentCbor.APPLICATION_CBOR, MediaType.APPLICATION_JSON + ";q=0.9" };
+    
     public TrustAgentClient(Properties properties, TlsConnection tlsConnection) throws Exception {
         super(properties, tlsConnection);
+        getTarget().register(CborMessageBodyReader.class);
     }
     
      /**
@@ -172,7 +178,7 @@ public class TrustAgentClient extends MtWilsonClient {
         HostInfo hostInfo = getTarget()
                 .path("/host")
                 .request()
-                .accept(MediaType.APPLICATION_JSON)
+                .accept(ACCEPT_CBOR_OR_JSON)
                 .get(HostInfo.class);
         return hostInfo;
     }
@@ -310,13 +316,7 @@ public class TrustAgentClient extends MtWilsonClient {
         TpmQuoteRequest tpmQuoteRequest = new TpmQuoteRequest();
         tpmQuoteRequest.setNonce(nonce);
         tpmQuoteRequest.setPcrs(pcrs);
-        log.debug("target: {}", getTarget().getUri().toString());
-        TpmQuoteResponse tpmQuoteResponse = getTarget()
-                .path("/tpm/quote")
-                .request()
-                .accept(MediaType.APPLICATION_XML)
-                .post(Entity.json(tpmQuoteRequest), TpmQuoteResponse.class);
-        return tpmQuoteResponse;
+        return getTpmQuote(tpmQuoteRequest);
     }
     
     /**
@@ -362,13 +362,7 @@ public class TrustAgentClient extends MtWilsonClient {
         tpmQuoteRequest.setNonce(nonce);
         tpmQuoteRequest.setPcrs(pcrs);
         tpmQuoteRequest.setPcrbanks(pcrBank);
-        log.debug("target: {}", getTarget().getUri().toString());
-        TpmQuoteResponse tpmQuoteResponse = getTarget()
-                .path("/tpm/quote")
-                .request()
-                .accept(MediaType.APPLICATION_XML)
-                .post(Entity.json(tpmQuoteRequest), TpmQuoteResponse.class);
-        return tpmQuoteResponse;
+        return getTpmQuote(tpmQuoteRequest);
     }
     
     /**
@@ -415,14 +409,153 @@ public class TrustAgentClient extends MtWilsonClient {
         tpmQuoteRequest.setPcrs(pcrs);
                 
         tpmQuoteRequest.setPcrbanks(StringUtils.join(pcrBanks, " "));
-        log.debug("target: {}", getTarget().getUri().toString());
-        TpmQuoteResponse tpmQuoteResponse = getTarget()
-                .path("/tpm/quote")
+        return getTpmQuote(tpmQuoteRequest);
+    }
+
+    /**
+     * Retrieves several AIK signed quotes from the TPM in one request, for
+     * example one for each PCR bank or for each nonce. The trust agent reads
+     * the AIK certificate, event log and TCB measurement once for the batch
+     * and generates the quotes back to back.
+     * @param tpmQuoteRequests - quote requests, each with the same content as for getTpmQuote
+     * @return TpmQuoteResponse objects in the same order as the requests
+     * @since Mt.Wilson 3.0
+     * @mtwContentTypeReturned JSON/XML
+     * @mtwMethodType POST
+     * @mtwSampleRestCall
+     * <pre><xmp>
+     * https://server.com:1443/v2/tpm/quotes
+     * 
+     * Headers:
+     * Content-Type: application/json
+     * Accept: application/json
+     * 
+     * Input:
+     * {"quotes":[{"nonce":"tHgfRQED1+pYgEZpq3dZC9ONmBCZKdx10LErTZs=","pcrs":[0,17,18,19],"pcrbanks":"SHA1"},
+     *            {"nonce":"tHgfRQED1+pYgEZpq3dZC9ONmBCZKdx10LErTZs=","pcrs":[0,17,18,19],"pcrbanks":"SHA256"}]}
+     * 
+     * Output:
+     * {"quotes":[ ... same as output of getTpmQuote for each request ... ]}
+     * </xmp></pre>
+     * @mtwSampleApiCall
+     * <div style="word-wrap: break-word; width: 1024px"><pre><xmp>
+     *   TrustAgentClient client = new TrustAgentClient(properties, new TlsConnection(url, tlsPolicy));
+     *   TpmQuoteRequest sha1 = new TpmQuoteRequest(nonce, pcrs);
+     *   sha1.setPcrbanks("SHA1");
+     *   TpmQuoteRequest sha256 = new TpmQuoteRequest(nonce, pcrs);
+     *   sha256.setPcrbanks("SHA256");
+     *   List<TpmQuoteResponse> quotes = client.getTpmQuotes(Arrays.asList(sha1, sha256));
+     * </xmp></pre></div>
+     */
+    public List<TpmQuoteResponse> getTpmQuotes(List<TpmQuoteRequest> tpmQuoteRequests) {
+        String host = getTarget().getUri().toString();
+        log.debug("target: {}", host);
+        QuoteContentCache cache = QuoteContentCache.getInstance();
+        TpmQuoteRequestCollection requests = new TpmQuoteRequestCollection();
+        for (TpmQuoteRequest tpmQuoteRequest : tpmQuoteRequests) {
+            cache.prepare(host, tpmQuoteRequest);
+            requests.getQuotes().add(tpmQuoteRequest);
+        }
+        List<TpmQuoteResponse> responses = postTpmQuotes(requests);
+        if (!complete(cache, host, responses)) {
+            for (TpmQuoteRequest tpmQuoteRequest : requests.getQuotes()) {
+                tpmQuoteRequest.setEventLogDigest(null);
+                tpmQuoteRequest.setTcbMeasurementDigest(null);
+            }
+            responses = postTpmQuotes(requests);
+            complete(cache, host, responses);
+        }
+        return responses;
+    }
+    
+    private List<TpmQuoteResponse> postTpmQuotes(TpmQuoteRequestCollection requests) {
+        TpmQuoteResponseCollection responses = getTarget()
+                .path("/tpm/quotes")
                 .request()
                 .accept(MediaType.APPLICATION_XML)
-                .post(Entity.json(tpmQuoteRequest), TpmQuoteResponse.class);
+                .post(Entity.json(requests), TpmQuoteResponseCollection.class);
+        return responses.getQuotes();
+    }
+    
+    private boolean complete(QuoteContentCache cache, String host, List<TpmQuoteResponse> responses) {
+        boolean complete = true;
+        for (TpmQuoteResponse response : responses) {
+            complete = cache.complete(host, response) && complete;
+        }
+        return complete;
+    }
+    
+    /**
+     * Sends the quote request with the digests of the event log and TCB
+     * measurement previously received from this host, and fills them back
+     * into the response when the trust agent reports they did not change.
+     */
+    private TpmQuoteResponse getTpmQuote(TpmQuoteRequest tpmQuoteRequest) {
+        String host = getTarget().getUri().toString();
+        log.debug("target: {}", host);
+        QuoteContentCache cache = QuoteContentCache.getInstance();
+        cache.prepare(host, tpmQuoteRequest);
+        TpmQuoteResponse tpmQuoteResponse = postTpmQuote(tpmQuoteRequest);
+        if (!cache.complete(host, tpmQuoteResponse)) {
+            tpmQuoteRequest.setEventLogDigest(null);
+            tpmQuoteRequest.setTcbMeasurementDigest(null);
+            tpmQuoteResponse = postTpmQuote(tpmQuoteRequest);
+            cache.complete(host, tpmQuoteResponse);
+        }
         return tpmQuoteResponse;
     }
+    
+    private TpmQuoteResponse postTpmQuote(TpmQuoteRequest tpmQuoteRequest) {
+        return getTarget()
+                .path("/tpm/quote")
+                .request()
+                .accept(ACCEPT_CBOR_OR_XML)
+                .post(Entity.json(tpmQuoteRequest), TpmQuoteResponse.class);
+    }
+    
+    /**
+     * Retrieves the entries of the TCG binary event log from a sequence
+     * number to the end. A verifier that keeps the entries it already has
+     * asks for the next ones with the next value of the previous response,
+     * and checks that previous_pcrs matches the running PCR digests it
+     * computed from its entries.
+     * @param from sequence number of the first entry, 0 for the whole log
+     * @return TpmEventLogResponse with the entries, the running PCR digests before and after them, and the next sequence number and offset
+     * @since Mt.Wilson 3.0
+     * @mtwContentTypeReturned JSON
+     * @mtwMethodType GET
+     * @mtwSampleRestCall
+     * <div style="word-wrap: break-word; width: 1024px"><pre><xmp>
+     * https://server.com:1443/v2/tpm/event-log?from=42
+     * 
+     * Headers:
+     * Accept: application/json
+     * 
+     * Output:
+     * {"from":42,"next":43,"next_offset":5873,
+     *  "entries":[{"sequence":42,"offset":5781,"pcr_index":19,"event_type":1281,
+     *              "digests":[{"pcr_bank":"SHA1","value":"2a0a5e4dde8fd4ec2a7aed4d2b8a8d8f2e4e2f44"}],"event_data":""}],
+     *  "previous_pcrs":[{"pcr_bank":"SHA1","pcr_index":17,"value":"c7e4bb3e1ba62c2fcf12bdb6e1df0ee5e13e5e84"}],
+     *  "pcrs":[{"pcr_bank":"SHA1","pcr_index":17,"value":"c7e4bb3e1ba62c2fcf12bdb6e1df0ee5e13e5e84"},
+     *          {"pcr_bank":"SHA1","pcr_index":19,"value":"7a2bc03fb2d0dda4f4b4a0d6e9bb8b8fe6a3f3b5"}]}
+     * </xmp></pre></div>
+     * @mtwSampleApiCall
+     * <div style="word-wrap: break-word; width: 1024px"><pre><xmp>
+     *   TrustAgentClient client = new TrustAgentClient(properties, new TlsConnection(url, tlsPolicy));
+     *   TpmEventLogResponse eventLog = client.getTpmEventLog(0);
+     *   TpmEventLogResponse appended = client.getTpmEventLog(eventLog.getNext());
+     * </xmp></pre></div>
+     */
+    public TpmEventLogResponse getTpmEventLog(int from) {
+        log.debug("target: {}", getTarget().getUri().toString());
+        TpmEventLogResponse response = getTarget()
+                .path("/tpm/event-log")
+                .queryParam("from", from)
+                .request()
+                .accept(MediaType.APPLICATION_JSON)
+                .get(TpmEventLogResponse.class);
+        return response;
+    }
 
     /**
      * Retrieves the TPM binding key certificate.
@@ -524,6 +657,51 @@ public class TrustAgentClient extends MtWilsonClient {
         return vmAttestationResponse;
     }
     
+    /**
+     * Retrieves the trust status of several VMs in one request. A VM whose
+     * status cannot be determined has trust status false and an error
+     * message, and does not affect the other VMs.
+     * @param vmInstanceIds - at most vrtm.batch.max VM instance ids, default 1000
+     * @return VMAttestationResponse objects in the same order as the VM instance ids
+     * @since Mt.Wilson 3.0
+     * @mtwContentTypeReturned JSON
+     * @mtwMethodType POST
+     * @mtwSampleRestCall
+     * <div style="word-wrap: break-word; width: 1024px"><pre><xmp>
+     * https://server.com:1443/v2/vrtm/statuses
+     * 
+     * Headers:
+     * Content-Type: application/json
+     * Accept: application/json
+     * 
+     * Input:
+     * {"vms":[{"vm_instance_id":"a222c422-714f-42bd-89c6-7042870c5784"},{"vm_instance_id":"dcc4a894-869b-479a-a24a-659eef7a54bd"}]}
+     * 
+     * Output:
+     * {"vms":[{"vm_instance_id":"a222c422-714f-42bd-89c6-7042870c5784","trust_status":true},
+     *         {"vm_instance_id":"dcc4a894-869b-479a-a24a-659eef7a54bd","trust_status":false,"error_message":"Timed out waiting for rpcore at /127.0.0.1:16005"}]}
+     * </xmp></pre></div>
+     * @mtwSampleApiCall
+     * <div style="word-wrap: break-word; width: 1024px"><pre><xmp>
+     *   TrustAgentClient client = new TrustAgentClient(properties, new TlsConnection(url, tlsPolicy));
+     *   List<VMAttestationResponse> statuses = client.getVMAttestationStatuses(Arrays.asList(vmInstanceId1, vmInstanceId2));
+     * </xmp></pre></div>
+    */
+    public List<VMAttestationResponse> getVMAttestationStatuses(List<String> vmInstanceIds) {
+        VMAttestationRequestCollection requests = new VMAttestationRequestCollection();
+        for (String vmInstanceId : vmInstanceIds) {
+            requests.getVms().add(new VMAttestationRequest(vmInstanceId));
+        }
+        log.debug("target: {}", getTarget().getUri().toString());
+
+        VMAttestationResponseCollection responses = getTarget()
+                .path("/vrtm/statuses")
+                .request()
+                .accept(MediaType.APPLICATION_JSON)
+                .post(Entity.json(requests), VMAttestationResponseCollection.class);
+        return responses.getVms();
+    }
+    
     /**
      * Retrieves the complete VM attestation report.
      * @param obj - VMAttestationRequest object containing the 
@@ -697,9 +875,58 @@ public class TrustAgentClient extends MtWilsonClient {
         VMQuoteResponse vmQuoteResponse = getTarget()
                 .path("/vrtm/report")
                 .request()
-                .accept(MediaType.APPLICATION_JSON)
+                .accept(ACCEPT_CBOR_OR_JSON)
                 .post(Entity.json(obj), VMQuoteResponse.class);
                 
         return vmQuoteResponse;
     }
+    
+    /**
+     * Retrieves the complete VM attestation reports of several VMs in one
+     * request. The trust agent sends each report as soon as it is ready, so
+     * the reports are in completion order and each has its VM instance id.
+     * A VM whose report cannot be read has an error message instead of the
+     * report, and does not affect the other VMs.
+     * @param vmAttestationRequests - at most vrtm.batch.max requests, default 1000, each with a VM instance id and a nonce
+     * @return VMQuoteResponse objects with the VM instance id set, in completion order
+     * @since Mt.Wilson 3.0
+     * @mtwContentTypeReturned JSON
+     * @mtwMethodType POST
+     * @mtwSampleRestCall
+     * <div style="word-wrap: break-word; width: 1024px"><pre><xmp>
+     * https://server.com:1443/v2/vrtm/reports
+     * 
+     * Headers:
+     * Content-Type: application/json
+     * Accept: application/json
+     * 
+     * Input:
+     * {"vms":[{"vm_instance_id":"a222c422-714f-42bd-89c6-7042870c5784", "nonce":"tHgfRQED1+pYgEZpq3dZC9ONmBCZKdx10LErTZs1k/k="},
+     *         {"vm_instance_id":"dcc4a894-869b-479a-a24a-659eef7a54bd", "nonce":"OW5Qs0dKOpFGgVtGBlNKrIJ8jWRGbvIYtOjsh0CTU0o="}]}
+     * 
+     * Output:
+     * {"vms":[{"vm_instance_id":"dcc4a894-869b-479a-a24a-659eef7a54bd", ... same as output of getVMAttestationReport ...},
+     *         {"vm_instance_id":"a222c422-714f-42bd-89c6-7042870c5784","error_message":"Cannot read /var/lib/nova/instances/a222c422-714f-42bd-89c6-7042870c5784/measurement.xml"}]}
+     * </xmp></pre></div>
+     * @mtwSampleApiCall
+     * <div style="word-wrap: break-word; width: 1024px"><pre><xmp>
+     *   TrustAgentClient client = new TrustAgentClient(properties, new TlsConnection(url, tlsPolicy));
+     *   VMAttestationRequest request1 = new VMAttestationRequest("a222c422-714f-42bd-89c6-7042870c5784");
+     *   request1.setNonce("tHgfRQED1+pYgEZpq3dZC9ONmBCZKdx10LErTZs1k/k=");  //Should be randomly generated
+     *   VMAttestationRequest request2 = new VMAttestationRequest("dcc4a894-869b-479a-a24a-659eef7a54bd");
+     *   request2.setNonce("OW5Qs0dKOpFGgVtGBlNKrIJ8jWRGbvIYtOjsh0CTU0o=");  //Should be randomly generated
+     *   List<VMQuoteResponse> reports = client.getVMAttestationReports(Arrays.asList(request1, request2));
+     * </xmp></pre></div>
+    */
+    public List<VMQuoteResponse> getVMAttestationReports(List<VMAttestationRequest> vmAttestationRequests) {
+        VMAttestationRequestCollection requests = new VMAttestationRequestCollection();
+        requests.getVms().addAll(vmAttestationRequests);
+        log.debug("target: {}", getTarget().getUri().toString());
+        VMQuoteResponseCollection responses = getTarget()
+                .path("/vrtm/reports")
+                .request()
+                .accept(MediaType.APPLICATION_JSON)
+                .post(Entity.json(requests), VMQuoteResponseCollection.class);
+        return responses.getVms();
+    }
 }
@@ -19,6 +19,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -71,6 +74,42 @@ public class TrustagentConfiguration {
     public static final String TRUSTAGENT_ADMIN_USERNAME = "trustagent.admin.username";
     public final static String JETTY_THREAD_MIN = "jetty.thread.min";
     public final static String JETTY_THREAD_MAX = "jetty.thread.max";
+    public final static String TPM_QUEUE_MAX = "tpm.queue.max"; // default 32, maximum number of TPM operations waiting for the TPM
+    public final static String TPM_QUEUE_WAIT_MAX = "tpm.queue.wait.max"; // default 30000 milliseconds
+    public final static String TPM_RUN_MAX = "tpm.run.max"; // default 120000 milliseconds, how long a caller waits for a started TPM operation
+    public final static String TPM_QUOTE_BATCH_MAX = "tpm.quote.batch.max"; // default 16, maximum number of quotes in one /tpm/quotes request
+    public final static String TPM_ASSET_TAG_CACHE_TTL = "tpm.asset.tag.cache.ttl"; // default 300 seconds, 0 to cache until the tag is written
+    public final static String TPM_TRANSPORT = "tpm.transport"; // TPM 2.0 only: tools (default) runs tpm2-tools, device or simulator sends commands directly
+    public final static String TPM_DEVICE = "tpm.device"; // default /dev/tpmrm0
+    public final static String TPM_SIMULATOR_HOST = "tpm.simulator.host"; // default localhost
+    public final static String TPM_SIMULATOR_PORT = "tpm.simulator.port"; // default 2321, the platform port is one above
+    public final static String PROCESS_TIMEOUT = "process.timeout"; // default 120000 milliseconds, then the command and its child processes are killed
+    public final static String PROCESS_MAX = "process.max"; // default 16, maximum number of commands running at the same time
+    public final static String PROCESS_MAX_PER_COMMAND = "process.max.per.command"; // default 4, maximum number of instances of one executable running at the same time
+    public final static String PROCESS_OUTPUT_MAX = "process.output.max"; // default 16777216 bytes kept from each of stdout and stderr
+    public final static String HOST_INFO_REFRESH = "host.info.refresh"; // default 300 seconds between background refreshes of the host information
+    public final static String VRTM_CONNECT_TIMEOUT = "vrtm.connect.timeout"; // default 5000 milliseconds
+    public final static String VRTM_READ_TIMEOUT = "vrtm.read.timeout"; // default 30000 milliseconds to wait for an rpcore response
+    public final static String VRTM_POOL_MAX = "vrtm.pool.max"; // default 8, maximum number of connections to rpcore
+    public final static String VRTM_POOL_IDLE_TIMEOUT = "vrtm.pool.idle.timeout"; // default 60000 milliseconds, then an idle rpcore connection is closed
+    public final static String VRTM_PIPELINE_DEPTH = "vrtm.pipeline.depth"; // default 1, maximum number of calls in flight on one rpcore connection; more than 1 requires rpcore to answer in order
+    public final static String VRTM_QUEUE_MAX = "vrtm.queue.max"; // default 1000, maximum number of rpcore calls waiting for a connection; more are rejected
+    public final static String VRTM_QUEUE_TIMEOUT = "vrtm.queue.timeout"; // default 30000 milliseconds an rpcore call may wait for a connection
+    public final static String VRTM_BATCH_MAX = "vrtm.batch.max"; // default 1000, maximum number of VMs in one /vrtm/statuses or /vrtm/reports request
+    public final static String VRTM_BATCH_PARALLELISM = "vrtm.batch.parallelism"; // default 4, maximum number of rpcore calls in flight for one batch request
+    public final static String VRTM_STATUS_CACHE_TTL = "vrtm.status.cache.ttl"; // default 60 seconds a trusted VM status is answered from memory, 0 to always ask rpcore
+    public final static String VRTM_STATUS_CACHE_NEGATIVE_TTL = "vrtm.status.cache.negative.ttl"; // default 5 seconds an untrusted or unknown VM status is answered from memory
+    public final static String VRTM_INSTANCES_DIRECTORY = "vrtm.instances.directory"; // default /var/lib/nova/instances, watched to clear the cached status of a VM when its files change
+    public final static String MEASURE_LOG_EVENT_LOG = "measure.log.event.log"; // default /sys/kernel/security/tpm0/binary_bios_measurements, TCG event log read to write measureLog.xml
+    public final static String MEASURE_LOG_SCRIPT_FALLBACK = "measure.log.script.fallback"; // default true, run module_analysis.sh when the event log has no TXT events
+    public final static String MEASURE_LOG_TCB_MEASUREMENT_BIN = "measure.log.tcb.measurement.bin"; // default /var/log/trustagent/measurement.bin, its SHA1 is the tbootxm module of a TPM 1.2 measure log
+    public final static String MEASURE_LOG_TCB_MEASUREMENT_SHA256 = "measure.log.tcb.measurement.sha256"; // default /var/log/trustagent/measurement.sha256, the tbootxm module of a TPM 2.0 measure log
+    public final static String IMA_MEASUREMENT_LIST = "ima.measurement.list"; // default /sys/kernel/security/ima/binary_runtime_measurements
+    public final static String IMA_REFRESH = "ima.refresh"; // seconds between reads of new IMA entries in the background, default 5, 0 to read them only when a quote asks for them
+    public final static String TCB_MEASUREMENT_MANIFEST = "tcb.measurement.manifest"; // default configuration/tcb-manifest.xml, files and directories the agent measures itself instead of reading measurement.xml
+    public final static String TCB_MEASUREMENT_PARALLELISM = "tcb.measurement.parallelism"; // default number of processors, threads that hash files for the tcb measurement
+    public final static String TCB_MEASUREMENT_WATCH = "tcb.measurement.watch"; // default true, keep the tcb measurement current with file system watches instead of measuring the manifest for every quote
+    public final static String HOST_INFO_PROBE_TIMEOUT = "host.info.probe.timeout"; // default 10000 milliseconds for docker and virsh when their output is not cached
                
     private Configuration conf;
 
@@ -139,6 +178,105 @@ public class TrustagentConfiguration {
     public String getJettyThreadMax() {
         return conf.get(JETTY_THREAD_MAX, "0");
     }     
+    public int getTpmQueueMax() {
+        return Integer.valueOf(conf.get(TPM_QUEUE_MAX, "32"));
+    }
+    public long getTpmQueueWaitMax() {
+        return Long.valueOf(conf.get(TPM_QUEUE_WAIT_MAX, "30000"));
+    }
+    public long getTpmRunMax() {
+        return Long.valueOf(conf.get(TPM_RUN_MAX, "120000"));
+    }
+    public int getTpmQuoteBatchMax() {
+        return Integer.valueOf(conf.get(TPM_QUOTE_BATCH_MAX, "16"));
+    }
+    public long getAssetTagCacheTtl() {
+        return Long.valueOf(conf.get(TPM_ASSET_TAG_CACHE_TTL, "300"));
+    }
+    public String getTpmTransport() {
+        return conf.get(TPM_TRANSPORT, "tools");
+    }
+    public String getTpmDevice() {
+        return conf.get(TPM_DEVICE, "/dev/tpmrm0");
+    }
+    public String getTpmSimulatorHost() {
+        return conf.get(TPM_SIMULATOR_HOST, "localhost");
+    }
+    public int getTpmSimulatorPort() {
+        return Integer.valueOf(conf.get(TPM_SIMULATOR_PORT, "2321"));
+    }
+    public long getProcessTimeout() {
+        return Long.valueOf(conf.get(PROCESS_TIMEOUT, "120000"));
+    }
+    public int getProcessMax() {
+        return Integer.valueOf(conf.get(PROCESS_MAX, "16"));
+    }
+    public int getProcessMaxPerCommand() {
+        return Integer.valueOf(conf.get(PROCESS_MAX_PER_COMMAND, "4"));
+    }
+    public int getProcessOutputMax() {
+        return Integer.valueOf(conf.get(PROCESS_OUTPUT_MAX, "16777216"));
+    }
+    public int getVrtmConnectTimeout() {
+        return Integer.valueOf(conf.get(VRTM_CONNECT_TIMEOUT, "5000"));
+    }
+    public int getVrtmReadTimeout() {
+        return Integer.valueOf(conf.get(VRTM_READ_TIMEOUT, "30000"));
+    }
+    public int getVrtmPoolMax() {
+        return Integer.valueOf(conf.get(VRTM_POOL_MAX, "8"));
+    }
+    public long getVrtmPoolIdleTimeout() {
+        return Long.valueOf(conf.get(VRTM_POOL_IDLE_TIMEOUT, "60000"));
+    }
+    public int getVrtmPipelineDepth() {
+        return Integer.valueOf(conf.get(VRTM_PIPELINE_DEPTH, "1"));
+    }
+    public int getVrtmQueueMax() {
+        return Integer.valueOf(conf.get(VRTM_QUEUE_MAX, "1000"));
+    }
+    public long getVrtmQueueTimeout() {
+        return Long.valueOf(conf.get(VRTM_QUEUE_TIMEOUT, "30000"));
+    }
+    public int getVrtmBatchMax() {
+        return Integer.valueOf(conf.get(VRTM_BATCH_MAX, "1000"));
+    }
+    public int getVrtmBatchParallelism() {
+        return Integer.valueOf(conf.get(VRTM_BATCH_PARALLELISM, "4"));
+    }
+    public long getVrtmStatusCacheTtl() {
+        return Long.valueOf(conf.get(VRTM_STATUS_CACHE_TTL, "60"));
+    }
+    public long getVrtmStatusCacheNegativeTtl() {
+        return Long.valueOf(conf.get(VRTM_STATUS_CACHE_NEGATIVE_TTL, "5"));
+    }
+    public String getVrtmInstancesDirectory() {
+        return conf.get(VRTM_INSTANCES_DIRECTORY, "/var/lib/nova/instances");
+    }
+    public String getMeasureLogEventLog() {
+        return conf.get(MEASURE_LOG_EVENT_LOG, "/sys/kernel/security/tpm0/binary_bios_measurements");
+    }
+    public boolean isMeasureLogScriptFallback() {
+        return Boolean.valueOf(conf.get(MEASURE_LOG_SCRIPT_FALLBACK, "true"));
+    }
+    public String getMeasureLogTcbMeasurementBin() {
+        return conf.get(MEASURE_LOG_TCB_MEASUREMENT_BIN, "/var/log/trustagent/measurement.bin");
+    }
+    public String getMeasureLogTcbMeasurementSha256() {
+        return conf.get(MEASURE_LOG_TCB_MEASUREMENT_SHA256, "/var/log/trustagent/measurement.sha256");
+    }
+    public String getImaMeasurementList() {
+        return conf.get(IMA_MEASUREMENT_LIST, "/sys/kernel/security/ima/binary_runtime_measurements");
+    }
+    public long getImaRefresh() {
+        return Long.valueOf(conf.get(IMA_REFRESH, "5"));
+    }
+    public long getHostInfoRefresh() {
+        return Long.valueOf(conf.get(HOST_INFO_REFRESH, "300"));
+    }
+    public long getHostInfoProbeTimeout() {
+        return Long.valueOf(conf.get(HOST_INFO_PROBE_TIMEOUT, "10000"));
+    }
     public byte[] getTpmOwnerSecret() {
         try {
             return Hex.decodeHex(getTpmOwnerSecretHex().toCharArray());
@@ -341,6 +479,19 @@ public class TrustagentConfiguration {
     public File getTcbMeasurementXmlFile() {
         return new File(Folders.log() + File.separator + "measurement.xml");
     }
+    
+    public File getTcbMeasurementManifestFile() {
+        return new File(conf.get(TCB_MEASUREMENT_MANIFEST, Folders.configuration() + File.separator + "tcb-manifest.xml"));
+    }
+    public int getTcbMeasurementParallelism() {
+        return Integer.valueOf(conf.get(TCB_MEASUREMENT_PARALLELISM, String.valueOf(Runtime.getRuntime().availableProcessors())));
+    }
+    public boolean isTcbMeasurementWatch() {
+        return Boolean.valueOf(conf.get(TCB_MEASUREMENT_WATCH, "true"));
+    }
+    public File getTcbMeasurementCacheFile() {
+        return new File(Folders.application() + File.separator + "var" + File.separator + "tcb-measurement.cache");
+    }
 
     public String getMtwilsonTlsPolicyCertificateSha256() {
         return conf.get("mtwilson.tls.cert.sha256", null);
@@ -359,29 +510,101 @@ public class TrustagentConfiguration {
     }
     
     
+    /**
+     * Returns the current configuration snapshot. The file is parsed (and
+     * decrypted, if it is encrypted) only when its modification time, size,
+     * or inode differ from the snapshot that was loaded previously, so this
+     * is cheap enough to call on every request. The returned instance is
+     * shared and must not be modified.
+     *
+     * @return
+     * @throws IOException 
+     */
     public static TrustagentConfiguration loadConfiguration() throws IOException {
-        File file = new File(Folders.configuration() + File.separator + "trustagent.properties");
-        if( file.exists() ) {
-            try(FileInputStream in = new FileInputStream(file)) {
-                String content = IOUtils.toString(in);
-                if (Pem.isPem(content)) {
-                    String password = Environment.get(PASSWORD);
-                    Configuration configuration = new EncryptedConfigurationProvider(new FileResource(file), password).load();
-                    return new TrustagentConfiguration(configuration);
-                }
-                Properties properties = new Properties();
-                //should not use properties.load(in) here since the line String content = IOUtils.toString(in) above already move the inputstream to the end of stream
-                properties.load(new StringReader(content));
-                TrustagentConfiguration configuration = new TrustagentConfiguration(new PropertiesConfiguration(properties));
-                return configuration;
+        return loadConfiguration(new File(Folders.configuration() + File.separator + "trustagent.properties"));
+    }
+    
+    static TrustagentConfiguration loadConfiguration(File file) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        }
+        catch(NoSuchFileException e) {
+            attributes = null; // an empty configuration is used until the file is created
+        }
+        Snapshot current = snapshot;
+        if( current != null && current.matches(file, attributes) ) {
+            return current.configuration;
+        }
+        synchronized(Snapshot.class) {
+            current = snapshot;
+            if( current != null && current.matches(file, attributes) ) {
+                return current.configuration;
             }
+            log.debug("Loading configuration from {}", file.getAbsolutePath());
+            if( attributes == null ) {
+                current = new Snapshot(file, null, new TrustagentConfiguration(new PropertiesConfiguration()));
+            }
+            else {
+                current = new Snapshot(file, attributes, readConfiguration(file));
+            }
+            snapshot = current;
+            return current.configuration;
         }
-        else {
-            TrustagentConfiguration configuration = new TrustagentConfiguration(new PropertiesConfiguration());
+    }
+    
+    private static TrustagentConfiguration readConfiguration(File file) throws IOException {
+        try(FileInputStream in = new FileInputStream(file)) {
+            String content = IOUtils.toString(in);
+            if (Pem.isPem(content)) {
+                String password = Environment.get(PASSWORD);
+                Configuration configuration = new EncryptedConfigurationProvider(new FileResource(file), password).load();
+                return new TrustagentConfiguration(configuration);
+            }
+            Properties properties = new Properties();
+            //should not use properties.load(in) here since the line String content = IOUtils.toString(in) above already move the inputstream to the end of stream
+            properties.load(new StringReader(content));
+            TrustagentConfiguration configuration = new TrustagentConfiguration(new PropertiesConfiguration(properties));
             return configuration;
         }
     }
     
+    private static volatile Snapshot snapshot;
+    
+    /**
+     * The file key is the device and inode on Linux, so replacing the file
+     * with a rename is detected even if the size and time are the same.
+     */
+    private static class Snapshot {
+        private final String path;
+        private final boolean exists;
+        private final Object fileKey;
+        private final long lastModified;
+        private final long size;
+        private final TrustagentConfiguration configuration;
+
+        private Snapshot(File file, BasicFileAttributes attributes, TrustagentConfiguration configuration) {
+            this.path = file.getAbsolutePath();
+            this.exists = attributes != null;
+            this.fileKey = exists ? attributes.fileKey() : null;
+            this.lastModified = exists ? attributes.lastModifiedTime().toMillis() : 0;
+            this.size = exists ? attributes.size() : 0;
+            this.configuration = configuration;
+        }
+        
+        private boolean matches(File file, BasicFileAttributes attributes) {
+            if( !path.equals(file.getAbsolutePath()) || exists != (attributes != null) ) {
+                return false;
+            }
+            if( !exists ) {
+                return true;
+            }
+            return lastModified == attributes.lastModifiedTime().toMillis()
+                    && size == attributes.size()
+                    && (fileKey == null ? attributes.fileKey() == null : fileKey.equals(attributes.fileKey()));
+        }
+    }
+    
     // Helper methods for the Binding key
     public String getBindingKeySecretHex() {
         return conf.get(BINDING_KEY_SECRET); // intentionally no default - this must be generated during setup
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares loading a trustagent.properties with 100 properties:
+ * - reloadEveryTime changes the modification time before each call, so
+ *   every call parses the file, which is what each quote request used to
+ *   do several times
+ * - cachedSnapshot returns the shared snapshot after checking the file
+ *   attributes
+ *
+ * Run after mvn test-compile with:
+ * java -cp target/test-classes:target/classes:(test classpath) com.intel.mtwilson.trustagent.TrustagentConfigurationBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrustagentConfigurationBenchmark {
+    private File file;
+    private boolean toggle;
+
+    @Setup(Level.Trial)
+    public void createPropertiesFile() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append("property.").append(i).append("=").append("value").append(i).append("\n");
+        }
+        file = File.createTempFile("trustagent", ".properties");
+        FileUtils.writeStringToFile(file, content.toString());
+        TrustagentConfiguration.loadConfiguration(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void deletePropertiesFile() {
+        file.delete();
+    }
+
+    @Benchmark
+    public TrustagentConfiguration reloadEveryTime() throws IOException {
+        toggle = !toggle;
+        file.setLastModified(toggle ? 1000L : 2000L);
+        return TrustagentConfiguration.loadConfiguration(file);
+    }
+
+    @Benchmark
+    public TrustagentConfiguration cachedSnapshot() throws IOException {
+        return TrustagentConfiguration.loadConfiguration(file);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(TrustagentConfigurationBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
@@ -4,9 +4,13 @@
  */
 package com.intel.mtwilson.trustagent;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.SocketException;
 import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 /**
  *
@@ -33,4 +37,24 @@ public class TrustagentConfigurationTest {
         long end = System.currentTimeMillis();
         log.debug("time={}ms",(end-start));
     }
+
+    private File createPropertiesFile(String content) throws IOException {
+        File file = File.createTempFile("trustagent", ".properties");
+        file.deleteOnExit();
+        FileUtils.writeStringToFile(file, content);
+        return file;
+    }
+    
+    @Test
+    public void testLoadConfigurationReloadsWhenFileChanges() throws IOException {
+        File file = createPropertiesFile("tpm.quote.ipv4=false\n");
+        TrustagentConfiguration first = TrustagentConfiguration.loadConfiguration(file);
+        assertFalse(first.isTpmQuoteWithIpAddress());
+        assertSame(first, TrustagentConfiguration.loadConfiguration(file));
+        FileUtils.writeStringToFile(file, "tpm.quote.ipv4=true\naik.index=2\n");
+        TrustagentConfiguration second = TrustagentConfiguration.loadConfiguration(file);
+        assertNotSame(first, second);
+        assertTrue(second.isTpmQuoteWithIpAddress());
+        assertEquals(2, second.getAikIndex());
+    }
 }
@@ -7,6 +7,8 @@ package com.intel.mtwilson.trustagent.cmd;
 import com.intel.dcsg.cpg.console.Command;
 import com.intel.mtwilson.Folders;
 import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.metrics.Gauge;
+import com.intel.mtwilson.trustagent.metrics.MetricRegistry;
 import java.io.File;
 import java.security.Security;
 import org.apache.commons.configuration.Configuration;
@@ -76,6 +78,7 @@ public class StartHttpServer implements Command {
         }
  
         QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, minThreads);
+        registerThreadPoolMetrics(threadPool);
         Server server = new Server(threadPool);
         ServerConnector https = createTlsConnector(server);
         server.setConnectors(new Connector[] { https });
@@ -85,6 +88,46 @@ public class StartHttpServer implements Command {
         return server;
     }
     
+    private void registerThreadPoolMetrics(final QueuedThreadPool threadPool) {
+        MetricRegistry registry = MetricRegistry.getInstance();
+        registry.gauge("trustagent_jetty_threads", "Threads in the web server pool", new Gauge() {
+            @Override
+            public long getValue() {
+                return threadPool.getThreads();
+            }
+        });
+        registry.gauge("trustagent_jetty_threads_idle", "Idle threads in the web server pool", new Gauge() {
+            @Override
+            public long getValue() {
+                return threadPool.getIdleThreads();
+            }
+        });
+        registry.gauge("trustagent_jetty_threads_busy", "Threads in the web server pool that are handling requests", new Gauge() {
+            @Override
+            public long getValue() {
+                return Math.max(0, threadPool.getThreads() - threadPool.getIdleThreads());
+            }
+        });
+        registry.gauge("trustagent_jetty_threads_max", "Most threads the web server pool may start", new Gauge() {
+            @Override
+            public long getValue() {
+                return threadPool.getMaxThreads();
+            }
+        });
+        registry.gauge("trustagent_jetty_queue_size", "Jobs waiting for a web server thread", new Gauge() {
+            @Override
+            public long getValue() {
+                return threadPool.getQueueSize();
+            }
+        });
+        registry.gauge("trustagent_jetty_low_on_threads", "1 if the web server pool is low on threads, otherwise 0", new Gauge() {
+            @Override
+            public long getValue() {
+                return threadPool.isLowOnThreads() ? 1 : 0;
+            }
+        });
+    }
+    
     protected ServerConnector createTlsConnector(Server server) {
         HttpConfiguration httpsConfig = new HttpConfiguration();
 //        httpConfig.setSecurePort(configuration.getTrustagentHttpTlsPort()); // only need on an http connection to inform client where to connect with https
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the subset of CBOR written by CborWriter. Indefinite lengths,
+ * tags and floating point values are not supported.
+ */
+public class CborReader {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long MAX_LENGTH = 64 * 1024 * 1024; // reject corrupt lengths before allocating
+    private final InputStream in;
+
+    public CborReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     *
+     * @return a String, byte[], Long, Boolean, List, Map with String keys, or null
+     * @throws IOException if the input is truncated or uses unsupported CBOR features
+     */
+    public Object read() throws IOException {
+        int initial = readByte();
+        int majorType = initial >>> 5;
+        int info = initial & 0x1f;
+        if (majorType == CborWriter.SIMPLE) {
+            switch (info) {
+                case CborWriter.FALSE:
+                    return Boolean.FALSE;
+                case CborWriter.TRUE:
+                    return Boolean.TRUE;
+                case CborWriter.NULL:
+                    return null;
+                default:
+                    throw new IOException("Unsupported CBOR simple value " + info);
+            }
+        }
+        long length = readLength(info);
+        switch (majorType) {
+            case CborWriter.UNSIGNED:
+                return length;
+            case CborWriter.NEGATIVE:
+                return -1 - length;
+            case CborWriter.BYTES:
+                return readFully(length);
+            case CborWriter.TEXT:
+                return new String(readFully(length), UTF8);
+            case CborWriter.ARRAY:
+                checkLength(length);
+                List<Object> list = new ArrayList<>();
+                for (long i = 0; i < length; i++) {
+                    list.add(read());
+                }
+                return list;
+            case CborWriter.MAP:
+                checkLength(length);
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (long i = 0; i < length; i++) {
+                    Object key = read();
+                    if (!(key instanceof String)) {
+                        throw new IOException("CBOR map key is not text");
+                    }
+                    map.put((String) key, read());
+                }
+                return map;
+            default:
+                throw new IOException("Unsupported CBOR major type " + majorType);
+        }
+    }
+
+    private long readLength(int info) throws IOException {
+        if (info < 24) {
+            return info;
+        }
+        int size;
+        switch (info) {
+            case 24:
+                size = 1;
+                break;
+            case 25:
+                size = 2;
+                break;
+            case 26:
+                size = 4;
+                break;
+            case 27:
+                size = 8;
+                break;
+            default:
+                throw new IOException("Unsupported CBOR length " + info);
+        }
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | readByte();
+        }
+        return value;
+    }
+
+    private void checkLength(long length) throws IOException {
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("CBOR length out of range: " + length);
+        }
+    }
+
+    private byte[] readFully(long length) throws IOException {
+        checkLength(length);
+        byte[] bytes = new byte[(int) length];
+        int offset = 0;
+        while (offset < bytes.length) {
+            int count = in.read(bytes, offset, bytes.length - offset);
+            if (count < 0) {
+                throw new EOFException("Truncated CBOR input");
+            }
+            offset += count;
+        }
+        return bytes;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Truncated CBOR input");
+        }
+        return b;
+    }
+}
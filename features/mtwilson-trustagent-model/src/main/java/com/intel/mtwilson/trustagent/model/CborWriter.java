@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the subset of CBOR (RFC 7049) used by TrustagentCbor: integers,
+ * byte strings, text strings, arrays, maps with text keys, booleans and
+ * null, all with definite lengths.
+ */
+public class CborWriter {
+    static final int UNSIGNED = 0;
+    static final int NEGATIVE = 1;
+    static final int BYTES = 2;
+    static final int TEXT = 3;
+    static final int ARRAY = 4;
+    static final int MAP = 5;
+    static final int SIMPLE = 7;
+    static final int FALSE = 20;
+    static final int TRUE = 21;
+    static final int NULL = 22;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final OutputStream out;
+
+    public CborWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     *
+     * @param value a String, byte[], Integer, Long, Boolean, List, Map with String keys, or null
+     * @throws IOException
+     */
+    public void write(Object value) throws IOException {
+        if (value == null) {
+            out.write((SIMPLE << 5) | NULL);
+        } else if (value instanceof String) {
+            byte[] text = ((String) value).getBytes(UTF8);
+            writeHeader(TEXT, text.length);
+            out.write(text);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            writeHeader(BYTES, bytes.length);
+            out.write(bytes);
+        } else if (value instanceof Integer || value instanceof Long) {
+            long number = ((Number) value).longValue();
+            if (number >= 0) {
+                writeHeader(UNSIGNED, number);
+            } else {
+                writeHeader(NEGATIVE, -1 - number);
+            }
+        } else if (value instanceof Boolean) {
+            out.write((SIMPLE << 5) | (((Boolean) value) ? TRUE : FALSE));
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            writeHeader(ARRAY, list.size());
+            for (Object item : list) {
+                write(item);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            writeHeader(MAP, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                write((String) entry.getKey());
+                write(entry.getValue());
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot write " + value.getClass().getName() + " as CBOR");
+        }
+    }
+
+    /**
+     * Starts a map of the given number of entries; the caller writes each
+     * key and value with write.
+     */
+    public void writeMapHeader(int size) throws IOException {
+        writeHeader(MAP, size);
+    }
+
+    /**
+     * Starts a byte string of the given length; the caller writes exactly
+     * that many bytes to the output stream. This allows large content to be
+     * copied from a file without loading it.
+     */
+    public void writeByteStringHeader(long length) throws IOException {
+        writeHeader(BYTES, length);
+    }
+
+    private void writeHeader(int majorType, long length) throws IOException {
+        int type = majorType << 5;
+        if (length < 24) {
+            out.write(type | (int) length);
+        } else if (length < 0x100) {
+            out.write(type | 24);
+            out.write((int) length);
+        } else if (length < 0x10000) {
+            out.write(type | 25);
+            writeBigEndian(length, 2);
+        } else if (length < 0x100000000L) {
+            out.write(type | 26);
+            writeBigEndian(length, 4);
+        } else {
+            out.write(type | 27);
+            writeBigEndian(length, 8);
+        }
+    }
+
+    private void writeBigEndian(long value, int size) throws IOException {
+        for (int i = size - 1; i >= 0; i--) {
+            out.write((int) (value >>> (i * 8)) & 0xff);
+        }
+    }
+}
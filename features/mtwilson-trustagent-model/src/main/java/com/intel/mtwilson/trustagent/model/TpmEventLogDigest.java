@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+
+/**
+ * A digest in one PCR bank: the digest an event extended, or the running
+ * digest of a PCR.
+ */
+@JacksonXmlRootElement(localName="tpm_event_log_digest")
+public class TpmEventLogDigest {
+    private String pcrBank;
+    private Integer pcrIndex;
+    private String value;
+
+    public TpmEventLogDigest() {
+    }
+
+    public TpmEventLogDigest(String pcrBank, Integer pcrIndex, String value) {
+        this.pcrBank = pcrBank;
+        this.pcrIndex = pcrIndex;
+        this.value = value;
+    }
+
+    /**
+     *
+     * @return SHA1, SHA256, SHA384 or SHA512
+     */
+    public String getPcrBank() {
+        return pcrBank;
+    }
+
+    public void setPcrBank(String pcrBank) {
+        this.pcrBank = pcrBank;
+    }
+
+    /**
+     *
+     * @return the PCR of a running digest, not set for the digest of an event
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Integer getPcrIndex() {
+        return pcrIndex;
+    }
+
+    public void setPcrIndex(Integer pcrIndex) {
+        this.pcrIndex = pcrIndex;
+    }
+
+    /**
+     *
+     * @return hex digest
+     */
+    public String getValue() {
+        return value;
+    }
+
+    public void setValue(String value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlElementWrapper;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One event of the TCG binary event log.
+ */
+@JacksonXmlRootElement(localName="tpm_event_log_entry")
+public class TpmEventLogEntry {
+    private int sequence;
+    private long offset;
+    private int pcrIndex;
+    private int eventType;
+    private final ArrayList<TpmEventLogDigest> digests = new ArrayList<>();
+    private byte[] eventData;
+
+    /**
+     *
+     * @return position of the event in the log, starting at 0
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     *
+     * @return byte offset of the event in the log
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public int getPcrIndex() {
+        return pcrIndex;
+    }
+
+    public void setPcrIndex(int pcrIndex) {
+        this.pcrIndex = pcrIndex;
+    }
+
+    public int getEventType() {
+        return eventType;
+    }
+
+    public void setEventType(int eventType) {
+        this.eventType = eventType;
+    }
+
+    /**
+     *
+     * @return the digest of the event in each PCR bank of the log
+     */
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    @JacksonXmlElementWrapper(localName="digests")
+    @JacksonXmlProperty(localName="digest")
+    public List<TpmEventLogDigest> getDigests() {
+        return digests;
+    }
+
+    public byte[] getEventData() {
+        return eventData;
+    }
+
+    public void setEventData(byte[] eventData) {
+        this.eventData = eventData;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlElementWrapper;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The entries of the TCG event log from a sequence number to the end, from
+ * the /tpm/event-log resource.
+ * 
+ * The running digests are the value each PCR would have after extending
+ * the digests of its events in log order. A client that keeps the entries
+ * it already has checks that the previous digests match the ones it
+ * computed, and asks for the whole log again when they do not.
+ */
+@JacksonXmlRootElement(localName="tpm_event_log_response")
+public class TpmEventLogResponse {
+    private int from;
+    private int next;
+    private long nextOffset;
+    private final ArrayList<TpmEventLogEntry> entries = new ArrayList<>();
+    private final ArrayList<TpmEventLogDigest> previousPcrs = new ArrayList<>();
+    private final ArrayList<TpmEventLogDigest> pcrs = new ArrayList<>();
+
+    /**
+     *
+     * @return sequence number of the first entry
+     */
+    public int getFrom() {
+        return from;
+    }
+
+    public void setFrom(int from) {
+        this.from = from;
+    }
+
+    /**
+     *
+     * @return sequence number to ask for next time, which is the number of events in the log
+     */
+    public int getNext() {
+        return next;
+    }
+
+    public void setNext(int next) {
+        this.next = next;
+    }
+
+    /**
+     *
+     * @return byte offset to ask for next time, which is the length of the log
+     */
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    public void setNextOffset(long nextOffset) {
+        this.nextOffset = nextOffset;
+    }
+
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    @JacksonXmlElementWrapper(localName="entries")
+    @JacksonXmlProperty(localName="entry")
+    public List<TpmEventLogEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     *
+     * @return running digest of each PCR before the first entry
+     */
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    @JacksonXmlElementWrapper(localName="previous_pcrs")
+    @JacksonXmlProperty(localName="pcr")
+    public List<TpmEventLogDigest> getPreviousPcrs() {
+        return previousPcrs;
+    }
+
+    /**
+     *
+     * @return running digest of each PCR after the last entry
+     */
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    @JacksonXmlElementWrapper(localName="pcrs")
+    @JacksonXmlProperty(localName="pcr")
+    public List<TpmEventLogDigest> getPcrs() {
+        return pcrs;
+    }
+}
@@ -11,6 +11,15 @@ import org.apache.commons.lang.StringUtils;
 
 /**
  * Sample input:   { "nonce":"base64string", "pcrs": [0,1,2,3,18,19,22] }
+ * 
+ * A client that already has the event log or TCB measurement from a previous
+ * quote can send their digests (see TpmQuoteResponse.digestOf); when they
+ * still match, the response omits that content and only returns the digest.
+ * 
+ * A client that follows the IMA runtime measurement list sends the number
+ * of entries it already has as imaSince, and the response includes the
+ * entries after those.
+ * 
  * @author jbuhacoff
  */
 @JacksonXmlRootElement(localName="tpm_quote_request")
@@ -18,6 +27,9 @@ public class TpmQuoteRequest {
     private byte[] nonce; // must be 20 bytes
     private int[] pcrs; // variable-length array of pcr index numbers, each one 0-23 
     private String pcrbanks; //the selected PCR banks (SHA1, SHA256, or both) for TPM 2.0
+    private String eventLogDigest; // hex sha256 of the event log the client already has, optional
+    private String tcbMeasurementDigest; // hex sha256 of the tcb measurement the client already has, optional
+    private Integer imaSince; // number of IMA entries the client already has, optional; without it the response has no IMA entries
 
     public String getPcrbanks() {
         return pcrbanks;
@@ -52,5 +64,29 @@ public class TpmQuoteRequest {
     public int[] getPcrs() {
         return pcrs;
     }
+
+    public String getEventLogDigest() {
+        return eventLogDigest;
+    }
+
+    public void setEventLogDigest(String eventLogDigest) {
+        this.eventLogDigest = eventLogDigest;
+    }
+
+    public String getTcbMeasurementDigest() {
+        return tcbMeasurementDigest;
+    }
+
+    public void setTcbMeasurementDigest(String tcbMeasurementDigest) {
+        this.tcbMeasurementDigest = tcbMeasurementDigest;
+    }
+
+    public Integer getImaSince() {
+        return imaSince;
+    }
+
+    public void setImaSince(Integer imaSince) {
+        this.imaSince = imaSince;
+    }
     
 }
@@ -7,7 +7,9 @@ package com.intel.mtwilson.trustagent.model;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+import com.intel.dcsg.cpg.crypto.Sha256Digest;
 import com.intel.mtwilson.jackson.X509CertificateDeserializer;
+import java.nio.charset.Charset;
 import java.security.cert.X509Certificate;
 import com.intel.mtwilson.jackson.X509CertificateSerializer;
 
@@ -27,12 +29,35 @@ public class TpmQuoteResponse {
     public byte[] quote;
     public String eventLog; // base64-encoded xml ....
     public String tcbMeasurement;
+    // digests of the current event log and tcb measurement; the content is null when the request had the same digest
+    public String eventLogDigest;
+    public String tcbMeasurementDigest;
     public String selectedPcrBanks;
+    // IMA runtime measurement list entries from imaFrom to imaNext in the kernel binary format, only when the request had imaSince;
+    // imaFrom is 0 when imaSince was beyond the end of the list, for example after a reboot
+    public Integer imaFrom;
+    public Integer imaNext;
+    public byte[] imaLog;
+    // hex sha1 PCR 10 aggregate of the entries before imaFrom and before imaNext
+    public String imaPreviousAggregate;
+    public String imaAggregate;
     
     // added for assetTag attestation based on sha1(nonce | assetTag
     public boolean isTagProvisioned;
     public byte[] assetTag;
     
+    /**
+     * 
+     * @param content event log or tcb measurement as it appears in the response
+     * @return hex sha256 of the UTF-8 content, or null if content is null
+     */
+    public static String digestOf(String content) {
+        if (content == null) {
+            return null;
+        }
+        return Sha256Digest.digestOf(content.getBytes(Charset.forName("UTF-8"))).toHexString();
+    }
+    
     /**
         String responseXML =
                 "<client_request> "
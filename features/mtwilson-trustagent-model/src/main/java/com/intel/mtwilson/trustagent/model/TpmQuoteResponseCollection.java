@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlElementWrapper;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Quote responses for the /tpm/quotes batch resource, in request order.
+ */
+@JacksonXmlRootElement(localName="tpm_quote_response_collection")
+public class TpmQuoteResponseCollection {
+    private final ArrayList<TpmQuoteResponse> quotes = new ArrayList<>();
+    
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    @JacksonXmlElementWrapper(localName="quotes")
+    @JacksonXmlProperty(localName="tpm_quote_response")
+    public List<TpmQuoteResponse> getQuotes() { return quotes; }
+    
+}
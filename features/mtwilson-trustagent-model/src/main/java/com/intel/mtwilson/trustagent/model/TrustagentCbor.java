@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Binary representation of TpmQuoteResponse, HostInfo and VMQuoteResponse
+ * for the application/cbor media type.
+ *
+ * Each object is a CBOR map with the same snake_case keys as the JSON
+ * representation. Byte arrays are CBOR byte strings instead of base64 text,
+ * the AIK certificate is its DER encoding, and the event log, which is
+ * base64 xml in the object, is sent as the xml bytes. Null fields are
+ * omitted.
+ */
+public class TrustagentCbor {
+    public static final String APPLICATION_CBOR = "application/cbor";
+
+    public static boolean isSupported(Class<?> type) {
+        return type == TpmQuoteResponse.class || type == HostInfo.class || type == VMQuoteResponse.class;
+    }
+
+    public static void write(Object value, OutputStream out) throws IOException {
+        Map<String, Object> map;
+        if (value instanceof TpmQuoteResponse) {
+            map = toMap((TpmQuoteResponse) value);
+        } else if (value instanceof HostInfo) {
+            map = toMap((HostInfo) value);
+        } else if (value instanceof VMQuoteResponse) {
+            map = toMap((VMQuoteResponse) value);
+        } else {
+            throw new IllegalArgumentException("No CBOR representation for " + value.getClass().getName());
+        }
+        new CborWriter(out).write(map);
+    }
+
+    public static <T> T read(Class<T> type, InputStream in) throws IOException {
+        Object value = new CborReader(in).read();
+        if (!(value instanceof Map)) {
+            throw new IOException("CBOR input is not a map");
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map = (Map<String, Object>) value;
+        if (type == TpmQuoteResponse.class) {
+            return type.cast(toTpmQuoteResponse(map));
+        }
+        if (type == HostInfo.class) {
+            return type.cast(toHostInfo(map));
+        }
+        if (type == VMQuoteResponse.class) {
+            return type.cast(toVMQuoteResponse(map));
+        }
+        throw new IllegalArgumentException("No CBOR representation for " + type.getName());
+    }
+
+    private static Map<String, Object> toMap(TpmQuoteResponse response) throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("timestamp", response.timestamp);
+        put(map, "client_ip", response.clientIp);
+        put(map, "error_code", response.errorCode);
+        put(map, "error_message", response.errorMessage);
+        if (response.aik != null) {
+            try {
+                map.put("aik", response.aik.getEncoded());
+            } catch (CertificateEncodingException e) {
+                throw new IOException("Cannot encode AIK certificate", e);
+            }
+        }
+        put(map, "quote", response.quote);
+        if (response.eventLog != null) {
+            map.put("event_log", DatatypeConverter.parseBase64Binary(response.eventLog));
+        }
+        put(map, "event_log_digest", response.eventLogDigest);
+        put(map, "tcb_measurement", response.tcbMeasurement);
+        put(map, "tcb_measurement_digest", response.tcbMeasurementDigest);
+        put(map, "selected_pcr_banks", response.selectedPcrBanks);
+        put(map, "ima_from", response.imaFrom);
+        put(map, "ima_next", response.imaNext);
+        put(map, "ima_log", response.imaLog);
+        put(map, "ima_previous_aggregate", response.imaPreviousAggregate);
+        put(map, "ima_aggregate", response.imaAggregate);
+        map.put("is_tag_provisioned", response.isTagProvisioned);
+        put(map, "asset_tag", response.assetTag);
+        return map;
+    }
+
+    private static TpmQuoteResponse toTpmQuoteResponse(Map<String, Object> map) throws IOException {
+        TpmQuoteResponse response = new TpmQuoteResponse();
+        response.timestamp = getLong(map, "timestamp");
+        response.clientIp = get(map, "client_ip", String.class);
+        response.errorCode = get(map, "error_code", String.class);
+        response.errorMessage = get(map, "error_message", String.class);
+        byte[] aik = get(map, "aik", byte[].class);
+        if (aik != null) {
+            try {
+                response.aik = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(aik));
+            } catch (CertificateException e) {
+                throw new IOException("Cannot decode AIK certificate", e);
+            }
+        }
+        response.quote = get(map, "quote", byte[].class);
+        byte[] eventLog = get(map, "event_log", byte[].class);
+        if (eventLog != null) {
+            response.eventLog = DatatypeConverter.printBase64Binary(eventLog);
+        }
+        response.eventLogDigest = get(map, "event_log_digest", String.class);
+        response.tcbMeasurement = get(map, "tcb_measurement", String.class);
+        response.tcbMeasurementDigest = get(map, "tcb_measurement_digest", String.class);
+        response.selectedPcrBanks = get(map, "selected_pcr_banks", String.class);
+        response.imaFrom = getInteger(map, "ima_from");
+        response.imaNext = getInteger(map, "ima_next");
+        response.imaLog = get(map, "ima_log", byte[].class);
+        response.imaPreviousAggregate = get(map, "ima_previous_aggregate", String.class);
+        response.imaAggregate = get(map, "ima_aggregate", String.class);
+        Boolean isTagProvisioned = get(map, "is_tag_provisioned", Boolean.class);
+        response.isTagProvisioned = isTagProvisioned != null && isTagProvisioned;
+        response.assetTag = get(map, "asset_tag", byte[].class);
+        return response;
+    }
+
+    private static Map<String, Object> toMap(HostInfo hostInfo) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("timestamp", hostInfo.timestamp);
+        put(map, "error_code", hostInfo.errorCode);
+        put(map, "error_message", hostInfo.errorMessage);
+        put(map, "os_name", hostInfo.osName);
+        put(map, "os_version", hostInfo.osVersion);
+        put(map, "bios_oem", hostInfo.biosOem);
+        put(map, "bios_version", hostInfo.biosVersion);
+        put(map, "vmm_name", hostInfo.vmmName);
+        put(map, "vmm_version", hostInfo.vmmVersion);
+        put(map, "processor_info", hostInfo.processorInfo);
+        put(map, "hardware_uuid", hostInfo.hardwareUuid);
+        put(map, "tpm_version", hostInfo.tpmVersion);
+        put(map, "pcr_banks", hostInfo.pcrBanks);
+        return map;
+    }
+
+    private static HostInfo toHostInfo(Map<String, Object> map) throws IOException {
+        HostInfo hostInfo = new HostInfo();
+        hostInfo.timestamp = getLong(map, "timestamp");
+        hostInfo.errorCode = get(map, "error_code", String.class);
+        hostInfo.errorMessage = get(map, "error_message", String.class);
+        hostInfo.osName = get(map, "os_name", String.class);
+        hostInfo.osVersion = get(map, "os_version", String.class);
+        hostInfo.biosOem = get(map, "bios_oem", String.class);
+        hostInfo.biosVersion = get(map, "bios_version", String.class);
+        hostInfo.vmmName = get(map, "vmm_name", String.class);
+        hostInfo.vmmVersion = get(map, "vmm_version", String.class);
+        hostInfo.processorInfo = get(map, "processor_info", String.class);
+        hostInfo.hardwareUuid = get(map, "hardware_uuid", String.class);
+        hostInfo.tpmVersion = get(map, "tpm_version", String.class);
+        hostInfo.pcrBanks = get(map, "pcr_banks", String.class);
+        return hostInfo;
+    }
+
+    private static Map<String, Object> toMap(VMQuoteResponse response) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        put(map, "vm_quote", response.getVmQuote());
+        put(map, "vm_trust_policy", response.getVmTrustPolicy());
+        put(map, "vm_measurements", response.getVmMeasurements());
+        if (response.getVmQuoteType() != null) {
+            map.put("vm_quote_type", response.getVmQuoteType().name());
+        }
+        return map;
+    }
+
+    private static VMQuoteResponse toVMQuoteResponse(Map<String, Object> map) throws IOException {
+        VMQuoteResponse response = new VMQuoteResponse();
+        response.setVmQuote(get(map, "vm_quote", byte[].class));
+        response.setVmTrustPolicy(get(map, "vm_trust_policy", byte[].class));
+        response.setVmMeasurements(get(map, "vm_measurements", byte[].class));
+        String quoteType = get(map, "vm_quote_type", String.class);
+        if (quoteType != null) {
+            try {
+                response.setVmQuoteType(VMQuoteResponse.QuoteType.valueOf(quoteType));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unknown vm_quote_type: " + quoteType, e);
+            }
+        }
+        return response;
+    }
+
+    private static void put(Map<String, Object> map, String key, Object value) {
+        if (value != null) {
+            map.put(key, value);
+        }
+    }
+
+    private static <T> T get(Map<String, Object> map, String key, Class<T> type) throws IOException {
+        Object value = map.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (!type.isInstance(value)) {
+            throw new IOException("CBOR field " + key + " is not " + type.getSimpleName());
+        }
+        return type.cast(value);
+    }
+
+    private static long getLong(Map<String, Object> map, String key) throws IOException {
+        Long value = get(map, key, Long.class);
+        return value == null ? 0 : value;
+    }
+
+    private static Integer getInteger(Map<String, Object> map, String key) throws IOException {
+        Long value = get(map, key, Long.class);
+        return value == null ? null : value.intValue();
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlElementWrapper;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * VM attestation requests for the /vrtm/statuses and /vrtm/reports batch
+ * resources.
+ */
+@JacksonXmlRootElement(localName="vm_attestation_request_collection")
+public class VMAttestationRequestCollection {
+    private final ArrayList<VMAttestationRequest> vms = new ArrayList<>();
+    
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    @JacksonXmlElementWrapper(localName="vms")
+    @JacksonXmlProperty(localName="vm_attestation_request")
+    public List<VMAttestationRequest> getVms() { return vms; }
+    
+}
@@ -4,6 +4,7 @@
  */
 package com.intel.mtwilson.trustagent.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
 
 /**
@@ -16,6 +17,7 @@ public class VMAttestationResponse {
     private String hostName;
     private String vmInstanceId;
     private boolean trustStatus;
+    private String errorMessage;
 
     public String getHostName() {
         return hostName;
@@ -40,4 +42,17 @@ public class VMAttestationResponse {
     public void setTrustStatus(boolean trustStatus) {
         this.trustStatus = trustStatus;
     }
+
+    /**
+     * 
+     * @return why the trust status could not be determined, only set in a batch response
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
 }
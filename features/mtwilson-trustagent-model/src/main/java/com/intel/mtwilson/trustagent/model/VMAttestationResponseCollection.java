@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlElementWrapper;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * VM trust status responses for the /vrtm/statuses batch resource, in
+ * request order.
+ */
+@JacksonXmlRootElement(localName="vm_attestation_response_collection")
+public class VMAttestationResponseCollection {
+    private final ArrayList<VMAttestationResponse> vms = new ArrayList<>();
+    
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    @JacksonXmlElementWrapper(localName="vms")
+    @JacksonXmlProperty(localName="vm_attestation_report")
+    public List<VMAttestationResponse> getVms() { return vms; }
+    
+}
@@ -4,6 +4,7 @@
  */
 package com.intel.mtwilson.trustagent.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
 
 /**
@@ -17,6 +18,8 @@ public class VMQuoteResponse {
     private byte[] vmTrustPolicy;
     private byte[] vmMeasurements;
     private QuoteType vmQuoteType;
+    private String vmInstanceId;
+    private String errorMessage;
     
     public enum QuoteType { X509_ATTR_CERT, XML_DSIG, SPRINT7}
     
@@ -51,5 +54,31 @@ public class VMQuoteResponse {
     public void setVmQuoteType(QuoteType vmQuoteType) {
         this.vmQuoteType = vmQuoteType;
     }
+
+    /**
+     * 
+     * @return the VM this report is for, only set in a batch response
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getVmInstanceId() {
+        return vmInstanceId;
+    }
+
+    public void setVmInstanceId(String vmInstanceId) {
+        this.vmInstanceId = vmInstanceId;
+    }
+
+    /**
+     * 
+     * @return why the report could not be read, only set in a batch response
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
         
 }
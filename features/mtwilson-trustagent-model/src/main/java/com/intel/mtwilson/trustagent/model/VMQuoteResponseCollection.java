@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlElementWrapper;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * VM attestation reports from the /vrtm/reports batch resource. The server
+ * sends them in the order they complete, each with its vm_instance_id.
+ */
+@JacksonXmlRootElement(localName="vm_quote_response_collection")
+public class VMQuoteResponseCollection {
+    private final ArrayList<VMQuoteResponse> vms = new ArrayList<>();
+    
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    @JacksonXmlElementWrapper(localName="vms")
+    @JacksonXmlProperty(localName="vm_quote_response")
+    public List<VMQuoteResponse> getVms() { return vms; }
+    
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares encoding and then decoding a quote response as CBOR, JSON and
+ * XML, with a typical event log of 50 modules and a large one of 5000.
+ *
+ * Run after mvn test-compile with:
+ * java -cp target/test-classes:target/classes:(test classpath) com.intel.mtwilson.trustagent.model.TrustagentCborBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrustagentCborBenchmark {
+    @Param({"50", "5000"})
+    public int moduleCount;
+    private TpmQuoteResponse response;
+    private ObjectMapper json;
+    private XmlMapper xml;
+
+    @Setup(Level.Trial)
+    public void createResponse() throws Exception {
+        response = TrustagentCborTest.createTpmQuoteResponse(moduleCount);
+        json = new ObjectMapper();
+        json.setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
+        xml = new XmlMapper();
+        xml.setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
+    }
+
+    @Benchmark
+    public TpmQuoteResponse cbor() throws IOException {
+        return TrustagentCbor.read(TpmQuoteResponse.class, new ByteArrayInputStream(TrustagentCborTest.encode(response)));
+    }
+
+    @Benchmark
+    public TpmQuoteResponse json() throws IOException {
+        return json.readValue(json.writeValueAsBytes(response), TpmQuoteResponse.class);
+    }
+
+    @Benchmark
+    public TpmQuoteResponse xml() throws IOException {
+        return xml.readValue(xml.writeValueAsBytes(response), TpmQuoteResponse.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(TrustagentCborBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
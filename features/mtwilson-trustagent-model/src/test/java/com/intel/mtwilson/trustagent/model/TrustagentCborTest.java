@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Random;
+import javax.xml.bind.DatatypeConverter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TrustagentCborTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TrustagentCborTest.class);
+    private static final String AIK_BASE64 = ""
+            + "MIICvTCCAaWgAwIBAgIGAU+KI+kQMA0GCSqGSIb3DQEBBQUAMBsxGTAXBgNVBAMTEG10d2lsc29u"
+            + "LXBjYS1haWswHhcNMTUwOTAxMTgyMDUzWhcNMjUwODMxMTgyMDUzWjAAMIIBIjANBgkqhkiG9w0B"
+            + "AQEFAAOCAQ8AMIIBCgKCAQEAqnT+nx5W0c3Hm5yFIfXYbaYi86wC1LDqqVCHRzeFlO07moZw1oV/"
+            + "ucwF/LOmepouxWRI7RVRdTZD6KV52O+Iu2kIHZ1UXWNmL+9BrGWufvByZy1f3u08TGl7WSuKVWFK"
+            + "UPsQ+5XITMaknZlK+ldog2VbyNNwvty8yo/mFx2fnVrMmDz03E+pE1zUyIgqKSomlyS+rGlAl8ZD"
+            + "1cKKiZc8ZCRh38lLGjTalRXPGCnOTi3uK/P7wut3yynJM1ZEr9Vc6QYxcX8O3vd/RIkF0GqPJrh+"
+            + "Xu0hWUPy1Eviz85NsHnQ2nZ79VC0VS0nqLIPKg5uqIyohGgppK41KWvC545nAQIDAQABoyIwIDAe"
+            + "BgNVHREBAf8EFDASgRBISVMgSWRlbnRpdHkgS2V5MA0GCSqGSIb3DQEBBQUAA4IBAQA6qJLucSWy"
+            + "dFb0BPvlsyYYFSdjPaGAFWFwh/lbHYI1Ouy3jw34gmZIR0xTSI/96NA5KO17bzhzvKg9+nsPIS5I"
+            + "81GBiIaPc4HPAuqi21jBCI/LZQIC61P1R6/Tmzosm8NrRX+VVn+NmBVp2rXFtBb6BmBmyx7D7cNZ"
+            + "b6+C6DQ+gg2PlU8qAjAzF0iQUqzELL8LIzIMtVDJYSdHe4kgyFom3mnBwfhpUmsnv0U2YAsdgcH5"
+            + "+uZPD/+j3en5u8O5rNY15onq+2pFIxA/F29DwWCuOlF4orc9ejPv5hdVqsHjUR0zPPj87gLeHUbj"
+            + "vDTmD6JzA3PbuypM/bFZrELA7oT0";
+
+    static TpmQuoteResponse createTpmQuoteResponse(int moduleCount) throws Exception {
+        Random random = new Random(1);
+        TpmQuoteResponse response = new TpmQuoteResponse();
+        response.timestamp = System.currentTimeMillis();
+        response.clientIp = "10.1.2.3";
+        response.errorCode = "0";
+        response.errorMessage = "OK";
+        response.aik = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(DatatypeConverter.parseBase64Binary(AIK_BASE64)));
+        response.quote = new byte[1500];
+        random.nextBytes(response.quote);
+        StringBuilder modules = new StringBuilder("<modules>");
+        StringBuilder measurements = new StringBuilder("<Measurements>");
+        for (int i = 0; i < moduleCount; i++) {
+            modules.append("<module><pcrBank>SHA256</pcrBank><pcrNumber>17</pcrNumber><name>module").append(i).append("</name><value>").append(String.format("%064x", i)).append("</value></module>");
+            measurements.append("<File Path=\"/usr/lib/module").append(i).append(".so\">").append(String.format("%040x", i)).append("</File>");
+        }
+        response.eventLog = DatatypeConverter.printBase64Binary(modules.append("</modules>").toString().getBytes(Charset.forName("UTF-8")));
+        response.tcbMeasurement = measurements.append("</Measurements>").toString();
+        response.selectedPcrBanks = "SHA256";
+        response.isTagProvisioned = true;
+        response.assetTag = new byte[32];
+        random.nextBytes(response.assetTag);
+        return response;
+    }
+
+    static byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TrustagentCbor.write(value, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testTpmQuoteResponse() throws Exception {
+        TpmQuoteResponse expected = createTpmQuoteResponse(10);
+        TpmQuoteResponse actual = TrustagentCbor.read(TpmQuoteResponse.class, new ByteArrayInputStream(encode(expected)));
+        assertEquals(expected.timestamp, actual.timestamp);
+        assertEquals(expected.clientIp, actual.clientIp);
+        assertEquals(expected.aik, actual.aik);
+        assertArrayEquals(expected.quote, actual.quote);
+        assertEquals(expected.eventLog, actual.eventLog);
+        assertEquals(expected.tcbMeasurement, actual.tcbMeasurement);
+        assertTrue(actual.isTagProvisioned);
+        assertArrayEquals(expected.assetTag, actual.assetTag);
+        assertNull(actual.eventLogDigest);
+        assertNull(actual.imaNext);
+    }
+
+    @Test
+    public void testTpmQuoteResponseWithImaEntries() throws Exception {
+        TpmQuoteResponse expected = createTpmQuoteResponse(1);
+        expected.imaFrom = 1000;
+        expected.imaNext = 1002;
+        expected.imaLog = new byte[200];
+        expected.imaPreviousAggregate = String.format("%040x", 1);
+        expected.imaAggregate = String.format("%040x", 2);
+        TpmQuoteResponse actual = TrustagentCbor.read(TpmQuoteResponse.class, new ByteArrayInputStream(encode(expected)));
+        assertEquals(expected.imaFrom, actual.imaFrom);
+        assertEquals(expected.imaNext, actual.imaNext);
+        assertArrayEquals(expected.imaLog, actual.imaLog);
+        assertEquals(expected.imaPreviousAggregate, actual.imaPreviousAggregate);
+        assertEquals(expected.imaAggregate, actual.imaAggregate);
+    }
+
+    @Test
+    public void testHostInfoAndVMQuoteResponse() throws Exception {
+        HostInfo hostInfo = new HostInfo();
+        hostInfo.timestamp = -1;
+        hostInfo.osName = "RedHatEnterpriseServer";
+        hostInfo.tpmVersion = "2.0";
+        HostInfo hostInfoCopy = TrustagentCbor.read(HostInfo.class, new ByteArrayInputStream(encode(hostInfo)));
+        assertEquals(-1, hostInfoCopy.timestamp);
+        assertEquals("RedHatEnterpriseServer", hostInfoCopy.osName);
+        assertEquals("2.0", hostInfoCopy.tpmVersion);
+        assertNull(hostInfoCopy.biosOem);
+
+        VMQuoteResponse vmQuote = new VMQuoteResponse();
+        vmQuote.setVmQuote(new byte[70000]);
+        vmQuote.setVmTrustPolicy("<TrustPolicy/>".getBytes("UTF-8"));
+        vmQuote.setVmQuoteType(VMQuoteResponse.QuoteType.XML_DSIG);
+        VMQuoteResponse vmQuoteCopy = TrustagentCbor.read(VMQuoteResponse.class, new ByteArrayInputStream(encode(vmQuote)));
+        assertEquals(70000, vmQuoteCopy.getVmQuote().length);
+        assertArrayEquals(vmQuote.getVmTrustPolicy(), vmQuoteCopy.getVmTrustPolicy());
+        assertNull(vmQuoteCopy.getVmMeasurements());
+        assertEquals(VMQuoteResponse.QuoteType.XML_DSIG, vmQuoteCopy.getVmQuoteType());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedInput() throws Exception {
+        byte[] cbor = encode(createTpmQuoteResponse(1));
+        TrustagentCbor.read(TpmQuoteResponse.class, new ByteArrayInputStream(cbor, 0, cbor.length - 10));
+    }
+
+    /**
+     * Compares the size of the CBOR encoding with the JSON and XML
+     * representations of a quote response with a typical and a large event
+     * log. TrustagentCborBenchmark compares the encoding and decoding time.
+     */
+    @Test
+    public void testEncodedSize() throws Exception {
+        ObjectMapper json = new ObjectMapper();
+        json.setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
+        XmlMapper xml = new XmlMapper();
+        xml.setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
+        for (int moduleCount : new int[]{50, 5000}) {
+            TpmQuoteResponse response = createTpmQuoteResponse(moduleCount);
+            byte[] cbor = encode(response);
+            byte[] jsonBytes = json.writeValueAsBytes(response);
+            byte[] xmlBytes = xml.writeValueAsBytes(response);
+            log.debug("{} modules, size: cbor {} json {} xml {} bytes", moduleCount, cbor.length, jsonBytes.length, xmlBytes.length);
+            assertTrue(cbor.length < jsonBytes.length);
+            assertTrue(cbor.length < xmlBytes.length);
+        }
+    }
+}
@@ -18,6 +18,7 @@ import com.intel.mtwilson.privacyca.v2.model.IdentityChallenge;
 import com.intel.mtwilson.privacyca.v2.model.IdentityChallengeRequest;
 import com.intel.mtwilson.privacyca.v2.model.IdentityChallengeResponse;
 import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
 import static com.intel.mtwilson.trustagent.niarl.Util.fixMakeCredentialBlobForWindows;
 import com.intel.mtwilson.trustagent.tpmmodules.Tpm;
 import gov.niarl.his.privacyca.IdentityOS;
@@ -34,6 +35,8 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Properties;
 import org.apache.commons.codec.binary.Base64;
@@ -192,7 +195,7 @@ public class CreateIdentity implements Configurable, Runnable {
 
                 writecert(aikcertfilepath, decrypted2);
                 writeblob(aikblobfilepath, aikblob);
-                Runtime.getRuntime().exec("chmod 600 " + aikblobfilepath);
+                ProcessExecutor.getInstance().execute(Arrays.asList("chmod", "600", aikblobfilepath), Collections.<String, String>emptyMap());
 
             } else {
                 // Windows
@@ -6,13 +6,14 @@
 package com.intel.mtwilson.trustagent.shell;
 
 import com.intel.mtwilson.Folders;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
+import com.intel.mtwilson.trustagent.exec.ProcessResult;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.StringTokenizer;
 
@@ -42,37 +43,22 @@ abstract class GenericShellExecutor implements ShellExecutor {
             log.debug(tmp);
         }
         
-        ProcessBuilder pb = new ProcessBuilder(cmd);                
-        Process p = pb.start();
+        // stderr is drained too, so a command that writes a lot of errors cannot block
+        ProcessResult result = ProcessExecutor.getInstance().execute(cmd, Collections.<String, String>emptyMap());
+        returnCode = result.getExitCode();
         
         String line = "";
         if (returnCount != 0) {
-            BufferedReader input = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            BufferedReader input = new BufferedReader(new StringReader(result.getStdout()));
             String newLine;
-            try {
-                while ((newLine = input.readLine()) != null) {
-                    line = newLine;
-                    log.debug("executeTPM output line: {}", line);
-                }
-                log.debug("executeTPM last line: {}", line);
-
-                input.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                if (input != null) {
-                    input.close();
-                }
+            while ((newLine = input.readLine()) != null) {
+                line = newLine;
+                log.debug("executeTPM output line: {}", line);
             }
+            log.debug("executeTPM last line: {}", line);
         }
-
-        //do a loop to wait for an exit value
-        try {
-            returnCode = p.waitFor();            
-        } catch (InterruptedException e) {
-            log.error("Interrupted while waiting for return value");
-            log.debug("Interrupted while waiting for return value", e);
-            returnCode = -1;
+        if (!result.getStderr().isEmpty()) {
+            log.debug("executeTPM error output: {}", result.getStderr());
         }
 
         log.debug("Return code: " + returnCode);
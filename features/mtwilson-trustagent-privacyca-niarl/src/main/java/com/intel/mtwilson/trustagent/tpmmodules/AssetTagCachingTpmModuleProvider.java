@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import com.intel.mtwilson.trustagent.metrics.Counter;
+import com.intel.mtwilson.trustagent.metrics.MetricRegistry;
+import gov.niarl.his.privacyca.TpmModule;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the result of readAssetTag so each quote does not have to check
+ * and read the NV index again. Both definite outcomes are cached: the tag
+ * value, and the AssetTagNotProvisionedException that means the NV index
+ * does not exist. Any other TpmModuleException, for example a failed
+ * nvRead, is passed to the caller without being cached so the next quote
+ * tries again.
+ *
+ * The cache is cleared by any method that can change NV storage, such as
+ * setAssetTag or nvWrite, so writes through the trust agent are seen
+ * immediately. Changes made by another process, for example the tagent
+ * command line, are seen when the cached entry expires.
+ */
+public class AssetTagCachingTpmModuleProvider implements InvocationHandler {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(AssetTagCachingTpmModuleProvider.class);
+    private static final Set<String> INVALIDATING_METHODS = new HashSet<>(Arrays.asList(
+            "setAssetTag", "nvDefine", "nvRelease", "nvWrite", "takeOwnership"));
+    private static final Counter hits = MetricRegistry.getInstance().counter("trustagent_cache_requests_total", "Cache lookups by cache and result", "cache", "asset_tag", "result", "hit");
+    private static final Counter misses = MetricRegistry.getInstance().counter("trustagent_cache_requests_total", "Cache lookups by cache and result", "cache", "asset_tag", "result", "miss");
+    private final TpmModuleProvider delegate;
+    private final long ttlMillis;
+    private final AtomicLong generation = new AtomicLong();
+    private volatile Entry entry;
+
+    /**
+     *
+     * @param delegate
+     * @param ttlMillis how long a cached result is used, or 0 to keep it until a write through this provider
+     */
+    private AssetTagCachingTpmModuleProvider(TpmModuleProvider delegate, long ttlMillis) {
+        this.delegate = delegate;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public static TpmModuleProvider wrap(TpmModuleProvider delegate, long ttlMillis) {
+        return (TpmModuleProvider) Proxy.newProxyInstance(TpmModuleProvider.class.getClassLoader(),
+                new Class<?>[]{TpmModuleProvider.class}, new AssetTagCachingTpmModuleProvider(delegate, ttlMillis));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("readAssetTag".equals(method.getName())) {
+            return readAssetTag((byte[]) args[0]);
+        }
+        if (INVALIDATING_METHODS.contains(method.getName())) {
+            invalidate();
+            try {
+                return call(method, args);
+            } finally {
+                invalidate();
+                log.debug("Asset tag cache cleared after {}", method.getName());
+            }
+        }
+        return call(method, args);
+    }
+
+    private void invalidate() {
+        generation.incrementAndGet();
+        entry = null;
+    }
+
+    private byte[] readAssetTag(byte[] ownerAuth) throws Exception {
+        Entry current = entry;
+        if (current != null && current.isValid(ownerAuth)) {
+            log.debug("Asset tag cache hit");
+            hits.inc();
+            return current.getAssetTag();
+        }
+        misses.inc();
+        // a write that happens while we are reading makes this result stale, so it is not kept
+        long readGeneration = generation.get();
+        try {
+            byte[] assetTag = delegate.readAssetTag(ownerAuth);
+            store(readGeneration, new Entry(ownerAuth, assetTag, null));
+            return assetTag == null ? null : assetTag.clone();
+        } catch (AssetTagNotProvisionedException e) {
+            store(readGeneration, new Entry(ownerAuth, null, e));
+            throw e;
+        }
+    }
+
+    private synchronized void store(long readGeneration, Entry newEntry) {
+        if (generation.get() == readGeneration) {
+            entry = newEntry;
+        }
+    }
+
+    private Object call(Method method, Object[] args) throws Exception {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        }
+    }
+
+    private class Entry {
+        private final byte[] ownerAuth;
+        private final byte[] assetTag;
+        private final AssetTagNotProvisionedException notProvisioned;
+        private final long created = System.currentTimeMillis();
+
+        private Entry(byte[] ownerAuth, byte[] assetTag, AssetTagNotProvisionedException notProvisioned) {
+            this.ownerAuth = ownerAuth == null ? null : ownerAuth.clone();
+            this.assetTag = assetTag == null ? null : assetTag.clone();
+            this.notProvisioned = notProvisioned;
+        }
+
+        private boolean isValid(byte[] ownerAuth) {
+            if (ttlMillis > 0 && System.currentTimeMillis() - created > ttlMillis) {
+                return false;
+            }
+            return Arrays.equals(this.ownerAuth, ownerAuth);
+        }
+
+        private byte[] getAssetTag() throws TpmModule.TpmModuleException {
+            if (notProvisioned != null) {
+                throw new AssetTagNotProvisionedException(notProvisioned.getMessage());
+            }
+            return assetTag == null ? null : assetTag.clone();
+        }
+    }
+}
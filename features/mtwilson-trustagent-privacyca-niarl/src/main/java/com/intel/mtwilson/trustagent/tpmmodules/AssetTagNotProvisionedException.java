@@ -0,0 +1,21 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import gov.niarl.his.privacyca.TpmModule;
+
+/**
+ * Thrown by readAssetTag when the asset tag NV index does not exist. It
+ * extends TpmModuleException so existing callers handle it as before, and
+ * lets the asset tag cache tell this definite answer apart from a TPM
+ * command that failed.
+ */
+public class AssetTagNotProvisionedException extends TpmModule.TpmModuleException {
+    private static final long serialVersionUID = 0;
+
+    public AssetTagNotProvisionedException(String msg) {
+        super(msg);
+    }
+}
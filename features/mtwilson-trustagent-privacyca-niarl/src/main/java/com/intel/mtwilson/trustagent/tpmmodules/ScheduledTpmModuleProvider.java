@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import com.intel.mtwilson.trustagent.metrics.Counter;
+import com.intel.mtwilson.trustagent.metrics.LatencyHistogram;
+import com.intel.mtwilson.trustagent.metrics.MetricFamily;
+import com.intel.mtwilson.trustagent.metrics.MetricRegistry;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Routes every TpmModuleProvider method that talks to the TPM through the
+ * TpmScheduler, so all TPM modules share the same queue and priorities.
+ * The time each method spends on the TPM, not counting the time it waited
+ * in the queue, is recorded in trustagent_tpm_command_duration_seconds.
+ */
+public class ScheduledTpmModuleProvider implements InvocationHandler {
+    private static final Set<String> READ_METHODS = new HashSet<>(Arrays.asList(
+            "readAssetTag", "nvRead", "nvIndexExists", "getPcrBanks", "getAssetTagIndex", "getCredential", "getEndorsementKeyModulus"));
+    private static final Set<String> UNSCHEDULED_METHODS = new HashSet<>(Arrays.asList(
+            "getShellExecutor", "toString", "hashCode", "equals"));
+    private final TpmModuleProvider delegate;
+    private final TpmScheduler scheduler;
+    private final MetricFamily<LatencyHistogram> durations;
+    private final MetricFamily<Counter> errors;
+
+    private ScheduledTpmModuleProvider(TpmModuleProvider delegate, TpmScheduler scheduler) {
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+        String version = Tpm.getTpmVersion() == null ? "unknown" : Tpm.getTpmVersion();
+        MetricRegistry registry = MetricRegistry.getInstance();
+        this.durations = registry.histograms("trustagent_tpm_command_duration_seconds", "Time TPM operations spent on the TPM", "operation", "version", version);
+        this.errors = registry.counters("trustagent_tpm_command_errors_total", "TPM operations that failed", "operation", "version", version);
+    }
+
+    public static TpmModuleProvider wrap(TpmModuleProvider delegate, TpmScheduler scheduler) {
+        return (TpmModuleProvider) Proxy.newProxyInstance(TpmModuleProvider.class.getClassLoader(),
+                new Class<?>[]{TpmModuleProvider.class}, new ScheduledTpmModuleProvider(delegate, scheduler));
+    }
+
+    @Override
+    public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (UNSCHEDULED_METHODS.contains(method.getName())) {
+            return call(method, args);
+        }
+        TpmScheduler.Priority priority = READ_METHODS.contains(method.getName()) ? TpmScheduler.Priority.READ : TpmScheduler.Priority.PROVISION;
+        return scheduler.execute(priority, new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                long start = System.nanoTime();
+                try {
+                    return ScheduledTpmModuleProvider.this.call(method, args);
+                } catch (Exception e) {
+                    errors.get(method.getName()).inc();
+                    throw e;
+                } finally {
+                    durations.get(method.getName()).record(System.nanoTime() - start);
+                }
+            }
+        });
+    }
+
+    private Object call(Method method, Object[] args) throws Exception {
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        }
+    }
+}
@@ -22,6 +22,8 @@ public class Tpm {
     public static TpmModuleProvider tpmModule = null;
     public static String tpmVersion=null;
     public static String pcrBanks=null;  // initialized to SHA1 to accomodate tpm1.2. this value is updated if tpm version is 2.0 
+    private static Tpm2Client tpm2Client = null;
+    private static boolean tpm2ClientConfigured = false;
 
     public static String getTpmVersion() {
         if (tpmVersion==null) {
@@ -65,19 +67,69 @@ public class Tpm {
         return pcrBanks;
     }
     
+    private static long getAssetTagCacheTtl() {
+        try {
+            return TrustagentConfiguration.loadConfiguration().getAssetTagCacheTtl() * 1000L;
+        } catch (IOException ex) {
+            log.warn("Cannot load configuration, using default asset tag cache ttl: {}", ex.getMessage());
+            return 300000L;
+        }
+    }
+    
+    /**
+     * 
+     * @return the client that sends TPM 2.0 commands directly to the TPM when tpm.transport is device or simulator, or null when they run through tpm2-tools
+     */
+    public static synchronized Tpm2Client getTpm2Client() {
+        if (!tpm2ClientConfigured) {
+            tpm2Client = createTpm2Client();
+            tpm2ClientConfigured = true;
+        }
+        return tpm2Client;
+    }
+    
+    private static Tpm2Client createTpm2Client() {
+        String os = System.getProperty("os.name").toLowerCase();
+        if (os.indexOf("win") >= 0 || !"2.0".equals(getTpmVersion())) {
+            return null;
+        }
+        TrustagentConfiguration config;
+        try {
+            config = TrustagentConfiguration.loadConfiguration();
+        } catch (IOException ex) {
+            log.warn("Cannot load configuration, using tpm2-tools: {}", ex.getMessage());
+            return null;
+        }
+        switch (config.getTpmTransport()) {
+            case "device":
+                log.debug("Sending TPM 2.0 commands to {}", config.getTpmDevice());
+                return new Tpm2Client(new Tpm2DeviceTransport(new File(config.getTpmDevice())));
+            case "simulator":
+                log.debug("Sending TPM 2.0 commands to simulator at {}:{}", config.getTpmSimulatorHost(), config.getTpmSimulatorPort());
+                return new Tpm2Client(new Tpm2SimulatorTransport(config.getTpmSimulatorHost(), config.getTpmSimulatorPort()));
+            default:
+                return null;
+        }
+    }
+    
     private static void findModule() {
         String os = System.getProperty("os.name").toLowerCase();
+        TpmModuleProvider provider;
 	if  (os.indexOf( "win" ) >= 0) { //Windows
-            tpmModule = new TpmModuleWindows();
+            provider = new TpmModuleWindows();
         } 
         else { // should distinguish if it is TPM 1.2 or TPM 2.0.
             getTpmVersion();
             if (tpmVersion.equals("1.2")) {
-                tpmModule = new TpmModule12();
+                provider = new TpmModule12();
             }
             else { /* tpm 2.0 */
-                tpmModule = new TpmModule20();
+                Tpm2Client client = getTpm2Client();
+                provider = client == null ? new TpmModule20() : new TpmModule20Native(client);
             }
         }
+        // all TPM access goes through the scheduler so concurrent requests take turns
+        provider = ScheduledTpmModuleProvider.wrap(provider, TpmScheduler.getInstance());
+        tpmModule = AssetTagCachingTpmModuleProvider.wrap(provider, getAssetTagCacheTtl());
     }
 }
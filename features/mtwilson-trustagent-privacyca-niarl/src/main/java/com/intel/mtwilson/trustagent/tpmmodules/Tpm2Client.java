@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import gov.niarl.his.privacyca.TpmModule;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Marshals the TPM 2.0 commands the trust agent uses most often and sends
+ * them through a Tpm2Transport, instead of starting a tpm2-tools process
+ * for each one. Authorization uses password sessions (TPM_RS_PW) like the
+ * tools do.
+ *
+ * PCR selections use the tpm2-tools -L syntax, for example
+ * "0x0B:17,18+0x04:17,18". The output of readPcrs and quote has the same
+ * layout as the files written by tpm2_listpcrs -o and tpm2_quote -o, which
+ * is what the attestation service parses. tpm2_listpcrs writes the selected
+ * PCR digests in selection order. tpm2_quote writes the TPM2B_ATTEST and
+ * the TPMT_SIGNATURE as the structures are in memory on x86, so the sizes
+ * and algorithm identifiers are little-endian, unlike in the TPM response.
+ *
+ * A command that the TPM answers with TPM_RC_RETRY or TPM_RC_YIELDED is
+ * sent again, a few times with a short pause, as the TSS does for the
+ * tools.
+ */
+public class Tpm2Client implements Closeable {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm2Client.class);
+    private static final int TPM_ST_NO_SESSIONS = 0x8001;
+    private static final int TPM_ST_SESSIONS = 0x8002;
+    private static final int TPM_CC_STARTUP = 0x144;
+    private static final int TPM_CC_NV_READ = 0x14E;
+    private static final int TPM_CC_QUOTE = 0x158;
+    private static final int TPM_CC_NV_READ_PUBLIC = 0x169;
+    private static final int TPM_CC_GET_CAPABILITY = 0x17A;
+    private static final int TPM_CC_PCR_READ = 0x17E;
+    private static final int TPM_RS_PW = 0x40000009;
+    private static final int TPM_ALG_NULL = 0x0010;
+    private static final int TPM_CAP_PCRS = 5;
+    private static final int TPM_SU_CLEAR = 0;
+    private static final int TPM_RC_INITIALIZE = 0x100;
+    private static final int TPM_RC_FMT1 = 0x080;
+    private static final int TPM_RC_HANDLE = 0x00B; // format-one error number, the handle number is in bits 8-10
+    private static final int TPM_RC_YIELDED = 0x908;
+    private static final int TPM_RC_RETRY = 0x922;
+    private static final int TPM_ALG_RSASSA = 0x0014;
+    private static final int TPM_ALG_RSAPSS = 0x0016;
+    private static final int RETRY_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MILLIS = 20;
+    private static final int PCR_COUNT = 24;
+    private static final int NV_READ_CHUNK = 512; // below TPM2B_MAX_NV_BUFFER on all TPMs we support
+    private static final int PCR_READ_ATTEMPTS = 3;
+    private static final Map<Integer, String> PCR_BANK_NAMES = new HashMap<>();
+
+    static {
+        PCR_BANK_NAMES.put(0x04, "SHA1");
+        PCR_BANK_NAMES.put(0x0B, "SHA256");
+        PCR_BANK_NAMES.put(0x0C, "SHA384");
+        PCR_BANK_NAMES.put(0x0D, "SHA512");
+        PCR_BANK_NAMES.put(0x12, "SM3_256");
+    }
+
+    private final Tpm2Transport transport;
+
+    public Tpm2Client(Tpm2Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Sends TPM2_Startup(CLEAR). Only needed for a simulator that was just
+     * powered on; on a real platform the firmware has already done this.
+     */
+    public synchronized void startup() throws IOException, TpmModule.TpmModuleException {
+        Command command = new Command(TPM_ST_NO_SESSIONS, TPM_CC_STARTUP);
+        command.writeShort(TPM_SU_CLEAR);
+        try {
+            execute(command);
+        } catch (TpmModule.TpmModuleException e) {
+            if (e.getErrorCode() == null || e.getErrorCode() != TPM_RC_INITIALIZE) {
+                throw e;
+            }
+            log.debug("TPM is already started");
+        }
+    }
+
+    /**
+     * Reads the selected PCRs with as many TPM2_PCR_Read commands as needed,
+     * since the TPM returns at most 8 digests per command. If a PCR is
+     * extended in between, the values would not be from the same moment, so
+     * the read starts over.
+     *
+     * @param quoteAlgWithPcrs for example "0x0B:17,18+0x04:17,18"
+     * @return the digests of the selected PCRs, bank by bank in selection order and by ascending PCR index within a bank
+     */
+    public synchronized byte[] readPcrs(String quoteAlgWithPcrs) throws IOException, TpmModule.TpmModuleException {
+        Map<Integer, SortedSet<Integer>> selection = parseSelection(quoteAlgWithPcrs);
+        try {
+            for (int attempt = 0; attempt < PCR_READ_ATTEMPTS; attempt++) {
+                Map<Integer, Map<Integer, byte[]>> values = readPcrValues(selection);
+                if (values != null) {
+                    ByteArrayOutputStream pcrs = new ByteArrayOutputStream();
+                    for (Map.Entry<Integer, SortedSet<Integer>> bank : selection.entrySet()) {
+                        for (Integer pcr : bank.getValue()) {
+                            pcrs.write(values.get(bank.getKey()).get(pcr));
+                        }
+                    }
+                    return pcrs.toByteArray();
+                }
+                log.debug("PCRs changed while reading {}, reading again", quoteAlgWithPcrs);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated TPM2_PCR_Read response", e);
+        }
+        throw new TpmModule.TpmModuleException("PCRs changed during every attempt to read " + quoteAlgWithPcrs);
+    }
+
+    /**
+     *
+     * @return the digests by bank and PCR index, or null if the PCR update counter changed between commands
+     */
+    private Map<Integer, Map<Integer, byte[]>> readPcrValues(Map<Integer, SortedSet<Integer>> selection) throws IOException, TpmModule.TpmModuleException {
+        Map<Integer, SortedSet<Integer>> remaining = new LinkedHashMap<>();
+        Map<Integer, Map<Integer, byte[]>> values = new HashMap<>();
+        for (Map.Entry<Integer, SortedSet<Integer>> bank : selection.entrySet()) {
+            remaining.put(bank.getKey(), new TreeSet<>(bank.getValue()));
+            values.put(bank.getKey(), new HashMap<Integer, byte[]>());
+        }
+        Integer updateCounter = null;
+        while (!isEmpty(remaining)) {
+            Command command = new Command(TPM_ST_NO_SESSIONS, TPM_CC_PCR_READ);
+            command.writePcrSelection(remaining);
+            ByteBuffer response = execute(command);
+            int counter = response.getInt();
+            if (updateCounter != null && counter != updateCounter) {
+                return null;
+            }
+            updateCounter = counter;
+            Map<Integer, SortedSet<Integer>> read = readPcrSelection(response);
+            int digestCount = response.getInt();
+            int count = 0;
+            // the digests are in the order of the returned selection
+            for (Map.Entry<Integer, SortedSet<Integer>> bank : read.entrySet()) {
+                for (Integer pcr : bank.getValue()) {
+                    if (count++ == digestCount || !remaining.containsKey(bank.getKey())) {
+                        throw new IOException("TPM2_PCR_Read response does not match its PCR selection");
+                    }
+                    values.get(bank.getKey()).put(pcr, readSized(response));
+                    remaining.get(bank.getKey()).remove(pcr);
+                }
+            }
+            if (count == 0) {
+                throw new TpmModule.TpmModuleException("TPM did not return PCR values for selection " + remaining);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Sends TPM2_Quote with the signing scheme of the key.
+     *
+     * @param akHandle persistent handle of the AIK
+     * @param akAuth AIK password
+     * @param qualifyingData the nonce
+     * @param quoteAlgWithPcrs for example "0x0B:17,18+0x04:17,18"
+     * @return the TPM2B_ATTEST followed by the TPMT_SIGNATURE, in the tpm2_quote -o layout
+     */
+    public synchronized byte[] quote(int akHandle, byte[] akAuth, byte[] qualifyingData, String quoteAlgWithPcrs) throws IOException, TpmModule.TpmModuleException {
+        Command command = new Command(TPM_ST_SESSIONS, TPM_CC_QUOTE);
+        command.writeInt(akHandle);
+        command.writePasswordSession(akAuth);
+        command.writeSized(qualifyingData);
+        command.writeShort(TPM_ALG_NULL);
+        command.writePcrSelection(parseSelection(quoteAlgWithPcrs));
+        ByteBuffer response = execute(command);
+        try {
+            response.getInt(); // parameter size
+            return toQuoteFileLayout(response);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated TPM2_Quote response", e);
+        }
+    }
+
+    /**
+     * Converts the quote response parameters to the tpm2_quote -o layout.
+     * Only RSA signatures are supported, since the AIK is an RSA key.
+     */
+    static byte[] toQuoteFileLayout(ByteBuffer response) throws IOException {
+        byte[] attest = readSized(response);
+        int signatureAlgorithm = response.getShort() & 0xFFFF;
+        if (signatureAlgorithm != TPM_ALG_RSASSA && signatureAlgorithm != TPM_ALG_RSAPSS) {
+            throw new IOException(String.format("Unsupported quote signature algorithm 0x%04X", signatureAlgorithm));
+        }
+        int hashAlgorithm = response.getShort() & 0xFFFF;
+        byte[] signature = readSized(response);
+        ByteBuffer quote = ByteBuffer.allocate(2 + attest.length + 6 + signature.length).order(ByteOrder.LITTLE_ENDIAN);
+        quote.putShort((short) attest.length).put(attest);
+        quote.putShort((short) signatureAlgorithm).putShort((short) hashAlgorithm);
+        quote.putShort((short) signature.length).put(signature);
+        return quote.array();
+    }
+
+    /**
+     * Uses TPM2_NV_ReadPublic, which needs no authorization.
+     */
+    public synchronized boolean nvIndexExists(int nvIndex) throws IOException, TpmModule.TpmModuleException {
+        Command command = new Command(TPM_ST_NO_SESSIONS, TPM_CC_NV_READ_PUBLIC);
+        command.writeInt(nvIndex);
+        try {
+            execute(command);
+            return true;
+        } catch (TpmModule.TpmModuleException e) {
+            Integer rc = e.getErrorCode();
+            if (rc != null && (rc & TPM_RC_FMT1) != 0 && (rc & 0x3F) == TPM_RC_HANDLE) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reads with the index's own authorization, like tpm2-nvread.sh.
+     */
+    public synchronized byte[] nvRead(int nvIndex, byte[] auth, int size) throws IOException, TpmModule.TpmModuleException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(size);
+        try {
+            for (int offset = 0; offset < size; offset += NV_READ_CHUNK) {
+                Command command = new Command(TPM_ST_SESSIONS, TPM_CC_NV_READ);
+                command.writeInt(nvIndex); // authorization handle
+                command.writeInt(nvIndex);
+                command.writePasswordSession(auth);
+                command.writeShort(Math.min(NV_READ_CHUNK, size - offset));
+                command.writeShort(offset);
+                ByteBuffer response = execute(command);
+                response.getInt(); // parameter size
+                data.write(readSized(response));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated TPM2_NV_Read response", e);
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Uses TPM2_GetCapability(TPM_CAP_PCRS). This is what the TPM has
+     * allocated, which can include banks that tboot does not extend; see
+     * TpmModule20.getPcrBanks for the banks to quote.
+     *
+     * @return names of the PCR banks that have PCRs allocated, such as SHA1 and SHA256
+     */
+    public synchronized List<String> getAllocatedPcrBanks() throws IOException, TpmModule.TpmModuleException {
+        Command command = new Command(TPM_ST_NO_SESSIONS, TPM_CC_GET_CAPABILITY);
+        command.writeInt(TPM_CAP_PCRS);
+        command.writeInt(0); // property
+        command.writeInt(1); // property count
+        ByteBuffer response = execute(command);
+        List<String> banks = new ArrayList<>();
+        try {
+            response.get(); // more data
+            response.getInt(); // capability
+            for (Map.Entry<Integer, SortedSet<Integer>> bank : readPcrSelection(response).entrySet()) {
+                if (!bank.getValue().isEmpty()) {
+                    String name = PCR_BANK_NAMES.get(bank.getKey());
+                    banks.add(name == null ? String.format("0x%02X", bank.getKey()) : name);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated TPM2_GetCapability response", e);
+        }
+        return banks;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        transport.close();
+    }
+
+    /**
+     * Handles are configured in hex with or without 0x, for example
+     * "0x1c10110" or "81018000".
+     */
+    public static int parseHandle(String handle) {
+        String hex = handle.trim();
+        if (hex.startsWith("0x") || hex.startsWith("0X")) {
+            hex = hex.substring(2);
+        }
+        return (int) Long.parseLong(hex, 16);
+    }
+
+    static Map<Integer, SortedSet<Integer>> parseSelection(String quoteAlgWithPcrs) {
+        Map<Integer, SortedSet<Integer>> selection = new LinkedHashMap<>();
+        for (String bank : quoteAlgWithPcrs.split("\\+")) {
+            String[] algorithmAndPcrs = bank.split(":");
+            if (algorithmAndPcrs.length != 2) {
+                throw new IllegalArgumentException("Invalid PCR selection: " + quoteAlgWithPcrs);
+            }
+            SortedSet<Integer> pcrs = new TreeSet<>();
+            for (String pcr : algorithmAndPcrs[1].split(",")) {
+                int index = Integer.parseInt(pcr.trim());
+                if (index < 0 || index >= PCR_COUNT) {
+                    throw new IllegalArgumentException("Invalid PCR index in selection: " + quoteAlgWithPcrs);
+                }
+                pcrs.add(index);
+            }
+            selection.put(parseHandle(algorithmAndPcrs[0]), pcrs);
+        }
+        return selection;
+    }
+
+    private static boolean isEmpty(Map<Integer, SortedSet<Integer>> selection) {
+        for (SortedSet<Integer> pcrs : selection.values()) {
+            if (!pcrs.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<Integer, SortedSet<Integer>> readPcrSelection(ByteBuffer buffer) {
+        Map<Integer, SortedSet<Integer>> selection = new LinkedHashMap<>();
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            int algorithm = buffer.getShort() & 0xFFFF;
+            byte[] select = new byte[buffer.get() & 0xFF];
+            buffer.get(select);
+            SortedSet<Integer> pcrs = new TreeSet<>();
+            for (int pcr = 0; pcr < select.length * 8; pcr++) {
+                if ((select[pcr / 8] & (1 << (pcr % 8))) != 0) {
+                    pcrs.add(pcr);
+                }
+            }
+            selection.put(algorithm, pcrs);
+        }
+        return selection;
+    }
+
+    private static byte[] readSized(ByteBuffer buffer) {
+        byte[] value = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(value);
+        return value;
+    }
+
+    /**
+     *
+     * @return the response positioned after the 10 byte header
+     * @throws TpmModule.TpmModuleException with the TPM response code if it is not TPM_RC_SUCCESS
+     */
+    private ByteBuffer execute(Command command) throws IOException, TpmModule.TpmModuleException {
+        byte[] bytes = command.toByteArray();
+        for (int attempt = 1; ; attempt++) {
+            byte[] response = transport.transmit(bytes);
+            if (response.length < 10) {
+                throw new IOException("Truncated TPM response: " + response.length + " bytes");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(response);
+            buffer.getShort(); // tag
+            int size = buffer.getInt();
+            int rc = buffer.getInt();
+            if (size != response.length) {
+                throw new IOException("TPM response size " + size + " does not match " + response.length + " bytes received");
+            }
+            if (rc == 0) {
+                return buffer;
+            }
+            if ((rc == TPM_RC_RETRY || rc == TPM_RC_YIELDED) && attempt < RETRY_ATTEMPTS) {
+                log.debug("TPM2 command 0x{} returned 0x{}, sending it again", Integer.toHexString(command.commandCode), Integer.toHexString(rc));
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting to send TPM2 command again", e);
+                }
+                continue;
+            }
+            throw new TpmModule.TpmModuleException(String.format("TPM2 command 0x%X returned error 0x%X", command.commandCode, rc), rc);
+        }
+    }
+
+    /**
+     * Big-endian command buffer; the size in the header is filled in by
+     * toByteArray.
+     */
+    private static class Command {
+        private final int commandCode;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        private Command(int tag, int commandCode) throws IOException {
+            this.commandCode = commandCode;
+            out.writeShort(tag);
+            out.writeInt(0);
+            out.writeInt(commandCode);
+        }
+
+        private void writeShort(int value) throws IOException {
+            out.writeShort(value);
+        }
+
+        private void writeInt(int value) throws IOException {
+            out.writeInt(value);
+        }
+
+        private void writeSized(byte[] value) throws IOException {
+            byte[] content = value == null ? new byte[0] : value;
+            out.writeShort(content.length);
+            out.write(content);
+        }
+
+        private void writePasswordSession(byte[] password) throws IOException {
+            int passwordLength = password == null ? 0 : password.length;
+            out.writeInt(9 + passwordLength); // handle, empty nonce, attributes, password
+            out.writeInt(TPM_RS_PW);
+            out.writeShort(0);
+            out.writeByte(0);
+            writeSized(password);
+        }
+
+        private void writePcrSelection(Map<Integer, SortedSet<Integer>> selection) throws IOException {
+            out.writeInt(selection.size());
+            for (Map.Entry<Integer, SortedSet<Integer>> bank : selection.entrySet()) {
+                byte[] select = new byte[PCR_COUNT / 8];
+                for (Integer pcr : bank.getValue()) {
+                    select[pcr / 8] |= 1 << (pcr % 8);
+                }
+                out.writeShort(bank.getKey());
+                out.writeByte(select.length);
+                out.write(select);
+            }
+        }
+
+        private byte[] toByteArray() {
+            byte[] command = bytes.toByteArray();
+            ByteBuffer.wrap(command).putInt(2, command.length);
+            return command;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Talks to the TPM through the kernel device, normally the resource
+ * manager /dev/tpmrm0 so that transient objects and sessions of other TPM
+ * users are swapped out around our commands. Each command is one write and
+ * the response is one read.
+ */
+public class Tpm2DeviceTransport implements Tpm2Transport {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm2DeviceTransport.class);
+    private static final int MAX_RESPONSE_SIZE = 4096; // TPM_BUFFER_MAX in the linux driver
+    private final File device;
+    private RandomAccessFile file;
+
+    public Tpm2DeviceTransport(File device) {
+        this.device = device;
+    }
+
+    @Override
+    public byte[] transmit(byte[] command) throws IOException {
+        if (file == null) {
+            log.debug("Opening TPM device {}", device.getAbsolutePath());
+            file = new RandomAccessFile(device, "rw");
+        }
+        try {
+            file.write(command);
+            byte[] buffer = new byte[MAX_RESPONSE_SIZE];
+            int length = file.read(buffer);
+            if (length < 0) {
+                throw new IOException("No response from TPM device " + device.getAbsolutePath());
+            }
+            return Arrays.copyOf(buffer, length);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            try {
+                file.close();
+            } finally {
+                file = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Talks to a TPM 2.0 software simulator over TCP using the simulator's
+ * command protocol: the command port takes TPM_SEND_COMMAND, locality,
+ * length and command, and answers with length, response and a zero
+ * acknowledgement. The platform port, one above the command port, is used
+ * to power on the simulated TPM.
+ */
+public class Tpm2SimulatorTransport implements Tpm2Transport {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm2SimulatorTransport.class);
+    private static final int TPM_SIGNAL_POWER_ON = 1;
+    private static final int TPM_SEND_COMMAND = 8;
+    private static final int TPM_SIGNAL_NV_ON = 11;
+    private static final int MAX_RESPONSE_SIZE = 4096;
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    public Tpm2SimulatorTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Turns on the simulated TPM and its NV memory. A freshly started
+     * simulator needs this and then TPM2_Startup before it accepts commands.
+     */
+    public void powerOn() throws IOException {
+        try (Socket platform = new Socket(host, port + 1)) {
+            DataOutputStream platformOut = new DataOutputStream(platform.getOutputStream());
+            DataInputStream platformIn = new DataInputStream(platform.getInputStream());
+            for (int signal : new int[]{TPM_SIGNAL_POWER_ON, TPM_SIGNAL_NV_ON}) {
+                platformOut.writeInt(signal);
+                platformOut.flush();
+                int ack = platformIn.readInt();
+                if (ack != 0) {
+                    throw new IOException("TPM simulator rejected platform signal " + signal + ": " + ack);
+                }
+            }
+        }
+    }
+
+    @Override
+    public byte[] transmit(byte[] command) throws IOException {
+        if (socket == null) {
+            log.debug("Connecting to TPM simulator at {}:{}", host, port);
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+        try {
+            out.writeInt(TPM_SEND_COMMAND);
+            out.writeByte(0); // locality
+            out.writeInt(command.length);
+            out.write(command);
+            out.flush();
+            int length = in.readInt();
+            if (length < 0 || length > MAX_RESPONSE_SIZE) {
+                throw new IOException("Invalid response length from TPM simulator: " + length);
+            }
+            byte[] response = new byte[length];
+            in.readFully(response);
+            int ack = in.readInt();
+            if (ack != 0) {
+                throw new IOException("TPM simulator returned " + ack);
+            }
+            return response;
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (socket != null) {
+            try {
+                socket.close();
+            } finally {
+                socket = null;
+                in = null;
+                out = null;
+            }
+        }
+    }
+}
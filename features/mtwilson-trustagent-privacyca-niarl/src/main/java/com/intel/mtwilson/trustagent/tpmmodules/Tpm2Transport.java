@@ -0,0 +1,24 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sends a marshalled TPM 2.0 command to the TPM and returns the marshalled
+ * response. Implementations are not thread-safe; Tpm2Client sends one
+ * command at a time.
+ */
+public interface Tpm2Transport extends Closeable {
+
+    /**
+     *
+     * @param command complete command including the 10 byte header
+     * @return complete response including the 10 byte header
+     * @throws IOException if the TPM cannot be reached; the next call reconnects
+     */
+    byte[] transmit(byte[] command) throws IOException;
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+/**
+ * Thrown by the TpmScheduler when a TPM operation cannot be accepted because
+ * the queue is full, or when it did not start before its deadline. This is
+ * an unchecked exception so callers that handle TpmModuleException, for
+ * example to detect an asset tag that is not provisioned, do not mistake
+ * it for a TPM error.
+ */
+public class TpmBusyException extends RuntimeException {
+    private static final long serialVersionUID = 0;
+    private final int retryAfterSeconds;
+
+    public TpmBusyException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * 
+     * @return suggested delay before the client tries again, for the Retry-After header
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -11,8 +11,8 @@ import com.intel.mtwilson.trustagent.shell.CommandLineResult;
 import com.intel.mtwilson.trustagent.shell.ShellExecutor;
 import com.intel.mtwilson.trustagent.shell.ShellExecutorFactory;
 import com.intel.mtwilson.util.exec.EscapeUtil;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
+import com.intel.mtwilson.trustagent.exec.ProcessResult;
 import gov.niarl.his.privacyca.TpmIdentity;
 import gov.niarl.his.privacyca.TpmModule;
 import gov.niarl.his.privacyca.TpmUtils;
@@ -105,7 +105,7 @@ public class TpmModule12 implements TpmModuleProvider {
             log.debug("Asset Tag Index {} exists", index);
             return nvRead(ownerAuth, index, 32);
         } else {
-            throw new TpmModule.TpmModuleException("Asset Tag has not been provisoined on this TPM");
+            throw new AssetTagNotProvisionedException("Asset Tag has not been provisoined on this TPM");
         }
     }
 
@@ -129,7 +129,7 @@ public class TpmModule12 implements TpmModuleProvider {
         command.addArgument("--permissions=" + attributes);
         command.addArgument(String.format("-s 0x%s", Integer.toHexString(size)), false);
         command.addArgument(String.format("-i %s", index), false);
-        Result result = ExecUtil.execute(command, environmentVariables);
+        ProcessResult result = ProcessExecutor.getInstance().execute(command, environmentVariables);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TpmModule.TpmModuleException(result.getStderr());
@@ -149,7 +149,7 @@ public class TpmModule12 implements TpmModuleProvider {
         command.addArgument("-t");
         command.addArgument("-otpmOwnerPass");
         command.addArgument(String.format("-i %s", index), false);
-        Result result = ExecUtil.execute(command, environmentVariables);
+        ProcessResult result = ProcessExecutor.getInstance().execute(command, environmentVariables);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TpmModule.TpmModuleException(result.getStderr());
@@ -181,7 +181,7 @@ public class TpmModule12 implements TpmModuleProvider {
             command.addArgument(String.format("-i %s", index), false);
             command.addArgument("-f");
             command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(tmpFile.getPath()));
-            Result result = ExecUtil.execute(command, environmentVariables);
+            ProcessResult result = ProcessExecutor.getInstance().execute(command, environmentVariables);
             if (result.getExitCode() != 0) {
                 log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
                 throw new TpmModule.TpmModuleException(result.getStderr());
@@ -197,7 +197,7 @@ public class TpmModule12 implements TpmModuleProvider {
     public boolean nvIndexExists(String index) throws IOException, TpmModule.TpmModuleException {
         CommandLine command = new CommandLine("/opt/trustagent/bin/tpm_nvinfo");
         command.addArgument(String.format("-i %s", index), false);        
-        Result result = ExecUtil.execute(command);
+        ProcessResult result = ProcessExecutor.getInstance().execute(command);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TpmModule.TpmModuleException(result.getStderr());
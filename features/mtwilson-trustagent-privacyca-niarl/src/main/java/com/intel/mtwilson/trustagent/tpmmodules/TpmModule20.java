@@ -85,7 +85,7 @@ public class TpmModule20 implements TpmModuleProvider {
             log.debug("Asset Tag Index {} exists", index);
             return nvRead(ownerAuth, index, 32);
         } else {
-            throw new TpmModule.TpmModuleException("Asset Tag has not been provisioned on this TPM");
+            throw new AssetTagNotProvisionedException("Asset Tag has not been provisioned on this TPM");
         }
     }
 
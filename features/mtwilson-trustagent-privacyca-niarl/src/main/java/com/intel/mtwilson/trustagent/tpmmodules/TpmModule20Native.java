@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import gov.niarl.his.privacyca.TpmModule;
+import java.io.IOException;
+
+/**
+ * TPM 2.0 module that sends the frequent read commands (NV index lookup
+ * and NV read, used for every asset tag read) directly to the TPM with
+ * Tpm2Client. Provisioning commands such as taking ownership and creating
+ * the AIK still run through the tpm2 scripts of TpmModule20.
+ */
+public class TpmModule20Native extends TpmModule20 {
+    private final Tpm2Client client;
+
+    public TpmModule20Native(Tpm2Client client) {
+        this.client = client;
+    }
+
+    @Override
+    public boolean nvIndexExists(String index) throws IOException, TpmModule.TpmModuleException {
+        return client.nvIndexExists(Tpm2Client.parseHandle(index));
+    }
+
+    @Override
+    public byte[] nvRead(byte[] authPassword, String index, int size) throws IOException, TpmModule.TpmModuleException {
+        return client.nvRead(Tpm2Client.parseHandle(index), authPassword, size);
+    }
+}
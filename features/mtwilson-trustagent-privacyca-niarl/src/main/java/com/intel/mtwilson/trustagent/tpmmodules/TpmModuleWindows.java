@@ -85,7 +85,7 @@ public class TpmModuleWindows implements TpmModuleProvider {
             log.debug("Asset Tag Index {} exists", index);
             return nvRead(ownerAuth, index, 32); //change the size to 32 bytes since we are using sha256 of asset tag
         } else {
-            throw new TpmModule.TpmModuleException("Asset Tag has not been provisioned on this TPM");
+            throw new AssetTagNotProvisionedException("Asset Tag has not been provisioned on this TPM");
         }
     }
 
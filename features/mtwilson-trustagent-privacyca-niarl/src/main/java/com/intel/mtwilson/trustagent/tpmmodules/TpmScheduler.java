@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
+import com.intel.mtwilson.trustagent.metrics.Collector;
+import com.intel.mtwilson.trustagent.metrics.MetricRegistry;
+import com.intel.mtwilson.trustagent.metrics.PrometheusWriter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serializes access to the TPM. The TPM can only process one command at a
+ * time, so instead of letting every request thread start its own TPM tool
+ * process, requests are queued here and run one at a time by a single
+ * worker thread.
+ *
+ * Queued operations are ordered by priority (quotes first, then reads, then
+ * provisioning) and then by arrival. The queue is bounded: when it is full,
+ * or when an operation waits longer than its deadline before it starts,
+ * a TpmBusyException is thrown so the caller can tell the client to retry
+ * later instead of holding a request thread. An operation that started but
+ * does not finish before its run deadline is abandoned: the TPM tool
+ * commands it is running are killed through the ProcessExecutor, the
+ * operation is interrupted, and the caller gets a TpmBusyException as well.
+ * A hung TPM tool therefore holds neither request threads nor the worker,
+ * which moves on to the next operation.
+ *
+ * Operations submitted from the worker thread itself, for example a provider
+ * method that calls other TPM commands, run immediately.
+ *
+ * Configuration: tpm.queue.max (default 32), tpm.queue.wait.max in
+ * milliseconds (default 30000) and tpm.run.max in milliseconds (default
+ * 120000) in trustagent.properties.
+ */
+public class TpmScheduler implements Collector {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmScheduler.class);
+    private static TpmScheduler instance;
+
+    public static enum Priority {
+        QUOTE, READ, PROVISION
+    }
+
+    private final int capacity;
+    private final long maxWaitMillis;
+    private final long maxRunMillis;
+    private final PriorityBlockingQueue<Task<?>> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Thread worker;
+    // metrics
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private final AtomicLong killed = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong maxWaitMillisObserved = new AtomicLong();
+    private final AtomicLong totalRunMillis = new AtomicLong();
+    private volatile int maxDepthObserved = 0;
+
+    public TpmScheduler(int capacity, long maxWaitMillis) {
+        this(capacity, maxWaitMillis, 120000);
+    }
+
+    public TpmScheduler(int capacity, long maxWaitMillis, long maxRunMillis) {
+        this.capacity = capacity;
+        this.maxWaitMillis = maxWaitMillis;
+        this.maxRunMillis = maxRunMillis;
+        this.worker = new Thread(new Worker(), "tpm-scheduler");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public static synchronized TpmScheduler getInstance() {
+        if (instance == null) {
+            int capacity = 32;
+            long maxWait = 30000;
+            long maxRun = 120000;
+            try {
+                TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+                capacity = configuration.getTpmQueueMax();
+                maxWait = configuration.getTpmQueueWaitMax();
+                maxRun = configuration.getTpmRunMax();
+            } catch (IOException e) {
+                log.warn("Cannot load configuration, using default TPM queue settings: {}", e.getMessage());
+            }
+            log.debug("TPM scheduler queue max {} wait max {} ms run max {} ms", capacity, maxWait, maxRun);
+            instance = new TpmScheduler(capacity, maxWait, maxRun);
+            MetricRegistry.getInstance().register(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Runs the operation on the TPM worker thread and waits for its result.
+     *
+     * @param priority
+     * @param operation
+     * @return the result of the operation
+     * @throws TpmBusyException if the queue is full, the operation did not start before the wait deadline, or did not finish before the run deadline
+     * @throws Exception any exception thrown by the operation
+     */
+    public <T> T execute(Priority priority, Callable<T> operation) throws Exception {
+        if (Thread.currentThread() == worker) {
+            return operation.call();
+        }
+        Task<T> task = new Task<>(priority, sequence.incrementAndGet(), operation);
+        synchronized (queue) {
+            if (queue.size() >= capacity) {
+                rejected.incrementAndGet();
+                log.debug("TPM queue full ({}), rejecting {} operation", capacity, priority);
+                throw new TpmBusyException("TPM queue is full", getRetryAfterSeconds());
+            }
+            queue.add(task);
+            submitted.incrementAndGet();
+            int depth = queue.size();
+            if (depth > maxDepthObserved) {
+                maxDepthObserved = depth;
+            }
+        }
+        // if the worker has not taken the task by the wait deadline it never will
+        if (!task.taken.await(maxWaitMillis, TimeUnit.MILLISECONDS) && queue.remove(task)) {
+            expired.incrementAndGet();
+            log.debug("{} operation waited more than {} ms for the TPM", priority, maxWaitMillis);
+            throw new TpmBusyException("Timeout waiting for TPM", getRetryAfterSeconds());
+        }
+        return awaitRunning(task);
+    }
+
+    /**
+     * Waits for a task the worker has already started. The run deadline is
+     * counted from when the worker took the task.
+     */
+    private <T> T awaitRunning(Task<T> task) throws Exception {
+        task.taken.await();
+        long remaining = task.started + maxRunMillis - System.currentTimeMillis();
+        try {
+            try {
+                return task.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (abandon(task)) {
+                    throw new TpmBusyException("Timeout waiting for TPM operation to finish", getRetryAfterSeconds());
+                }
+                return task.get(); // finished while we were cancelling
+            }
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Cancels the task, kills the commands the worker is running for it and
+     * interrupts the worker. The worker cannot take the next task while this
+     * holds the lock on the task, so only commands of this task are killed.
+     *
+     * @return true if the task was abandoned, false if it finished first
+     */
+    private boolean abandon(Task<?> task) {
+        synchronized (task) {
+            if (!task.cancel(false)) {
+                return false;
+            }
+            int commands = ProcessExecutor.getInstance().kill(worker);
+            worker.interrupt();
+            abandoned.incrementAndGet();
+            killed.addAndGet(commands);
+            log.warn("{} operation did not finish within {} ms; killed {} TPM commands and interrupted it", task.priority, maxRunMillis, commands);
+            return true;
+        }
+    }
+
+    private Exception rethrow(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return (Exception) cause;
+    }
+
+    /**
+     * Estimates how long the current queue will take to drain, based on the
+     * average time of completed operations.
+     *
+     * @return seconds, at least 1
+     */
+    public int getRetryAfterSeconds() {
+        long count = completed.get();
+        long average = count == 0 ? 1000 : totalRunMillis.get() / count;
+        long seconds = (average * (queue.size() + 1)) / 1000;
+        return (int) Math.max(1, Math.min(seconds, 300));
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     *
+     * @return current counters, suitable for logging or reporting
+     */
+    public Map<String, Long> getMetrics() {
+        LinkedHashMap<String, Long> metrics = new LinkedHashMap<>();
+        long count = completed.get();
+        metrics.put("queue_depth", (long) queue.size());
+        metrics.put("queue_depth_max", (long) maxDepthObserved);
+        metrics.put("queue_capacity", (long) capacity);
+        metrics.put("submitted", submitted.get());
+        metrics.put("completed", count);
+        metrics.put("rejected", rejected.get());
+        metrics.put("expired", expired.get());
+        metrics.put("abandoned", abandoned.get());
+        metrics.put("killed", killed.get());
+        metrics.put("wait_ms_total", totalWaitMillis.get());
+        metrics.put("wait_ms_max", maxWaitMillisObserved.get());
+        metrics.put("wait_ms_avg", count == 0 ? 0 : totalWaitMillis.get() / count);
+        metrics.put("run_ms_total", totalRunMillis.get());
+        return metrics;
+    }
+
+    @Override
+    public void collect(PrometheusWriter out) throws IOException {
+        out.header("trustagent_tpm_queue_depth", "TPM operations waiting for the TPM", "gauge");
+        out.sample("trustagent_tpm_queue_depth", "", queue.size());
+        out.header("trustagent_tpm_queue_depth_max", "Most TPM operations waiting at the same time", "gauge");
+        out.sample("trustagent_tpm_queue_depth_max", "", maxDepthObserved);
+        out.header("trustagent_tpm_queue_capacity", "Most TPM operations that may wait, from tpm.queue.max", "gauge");
+        out.sample("trustagent_tpm_queue_capacity", "", capacity);
+        out.header("trustagent_tpm_operations_total", "TPM operations by outcome: completed, rejected because the queue was full, expired waiting, or abandoned after the run deadline", "counter");
+        out.sample("trustagent_tpm_operations_total", PrometheusWriter.labels("outcome", "completed"), completed.get());
+        out.sample("trustagent_tpm_operations_total", PrometheusWriter.labels("outcome", "rejected"), rejected.get());
+        out.sample("trustagent_tpm_operations_total", PrometheusWriter.labels("outcome", "expired"), expired.get());
+        out.sample("trustagent_tpm_operations_total", PrometheusWriter.labels("outcome", "abandoned"), abandoned.get());
+        out.header("trustagent_tpm_commands_killed_total", "TPM tool commands killed because their operation did not finish within tpm.run.max", "counter");
+        out.sample("trustagent_tpm_commands_killed_total", "", killed.get());
+        out.header("trustagent_tpm_queue_wait_seconds_total", "Time completed TPM operations waited for the TPM", "counter");
+        out.sample("trustagent_tpm_queue_wait_seconds_total", "", totalWaitMillis.get() / 1e3);
+        out.header("trustagent_tpm_queue_wait_seconds_max", "Longest time a TPM operation waited for the TPM", "gauge");
+        out.sample("trustagent_tpm_queue_wait_seconds_max", "", maxWaitMillisObserved.get() / 1e3);
+        out.header("trustagent_tpm_busy_seconds_total", "Time the TPM worker spent running operations", "counter");
+        out.sample("trustagent_tpm_busy_seconds_total", "", totalRunMillis.get() / 1e3);
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Task<?> task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    log.debug("TPM scheduler interrupted");
+                    return;
+                }
+                long start = System.currentTimeMillis();
+                task.started = start;
+                task.taken.countDown();
+                long wait = start - task.created;
+                totalWaitMillis.addAndGet(wait);
+                if (wait > maxWaitMillisObserved.get()) {
+                    maxWaitMillisObserved.set(wait);
+                }
+                task.run(); // FutureTask captures any exception for the caller
+                synchronized (task) {
+                    // wait for a caller that is killing the commands of this task at its run deadline
+                }
+                Thread.interrupted(); // clear an interrupt from a caller that cancelled the task at its run deadline
+                totalRunMillis.addAndGet(System.currentTimeMillis() - start);
+                completed.incrementAndGet();
+            }
+        }
+    }
+
+    private static class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+        private final Priority priority;
+        private final long sequence;
+        private final long created = System.currentTimeMillis();
+        private final CountDownLatch taken = new CountDownLatch(1);
+        private volatile long started;
+
+        private Task(Priority priority, long sequence, Callable<T> operation) {
+            super(operation);
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task<?> other) {
+            int result = priority.compareTo(other.priority);
+            if (result != 0) {
+                return result;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
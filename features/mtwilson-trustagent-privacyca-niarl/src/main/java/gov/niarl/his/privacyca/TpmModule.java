@@ -14,11 +14,15 @@
 package gov.niarl.his.privacyca;
 
 import com.intel.mtwilson.Folders;
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
+import com.intel.mtwilson.trustagent.exec.ProcessResult;
+import com.intel.mtwilson.trustagent.tpmmodules.TpmScheduler;
 import gov.niarl.his.privacyca.TpmUtils.TpmBytestreamResouceException;
 import gov.niarl.his.privacyca.TpmUtils.TpmUnsignedConversionException;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 import java.security.cert.*;
 import org.apache.commons.lang.StringUtils;
@@ -131,49 +135,73 @@ public class TpmModule {
      * @return
      * @throws IOException
      */
-    private static commandLineResult executeVer2Command(int mode, String args, int returnCount, boolean useTrousersMode)
+    private static commandLineResult executeVer2Command(final int mode, final String args, final int returnCount, final boolean useTrousersMode)
                     throws IOException {
+        // the quote mode is given priority over the other modes which are used for provisioning
+        TpmScheduler.Priority priority = (mode == 5 ? TpmScheduler.Priority.QUOTE : TpmScheduler.Priority.PROVISION);
+        try {
+            return TpmScheduler.getInstance().execute(priority, new Callable<commandLineResult>() {
+                @Override
+                public commandLineResult call() throws IOException {
+                    return runVer2Command(mode, args, returnCount, useTrousersMode);
+                }
+            });
+        }
+        catch(IOException | RuntimeException e) {
+            throw e;
+        }
+        catch(Exception e) {
+            throw new IOException(e);
+        }
+    }
+    
+    private static final String TPM_MODULE_PROPERTIES = "TPMModule.properties";
+    private static Properties tpmModuleProperties = null;
+    private static long tpmModulePropertiesLastModified = 0;
 
-        int returnCode;
-//		final String new_TPM_MODULE_EXE_PATH = "TpmModuleExePath";
-//		final String new_EXE_NAME = "ExeName";
-        final String new_TROUSERS_MODE = "TrousersMode";
-        final String DEBUG_MODE = "DebugMode";
-        FileInputStream PropertyFile = null;
-        final String newTpmModuleExePath = Folders.application() + File.separator + "bin" ; // "./exe";
-        final String newExeName = "NIARL_TPM_Module";
-        String newTrousersMode = "False";
-        String debugMode = "False";
-        String propertiesFileName = ResourceFinder.getLocation("TPMModule.properties");
-        Logger.getAnonymousLogger().info("Reading properties file" + propertiesFileName);
+    /**
+     * The properties are read again only when the file has changed, instead
+     * of for every command.
+     * 
+     * @return the TPM Module properties, or empty properties if the file is missing or cannot be read
+     */
+    private static synchronized Properties getTpmModuleProperties() {
+        File propertiesFile;
         try {
-                PropertyFile = new FileInputStream(ResourceFinder.getFile("TPMModule.properties"));
-                Properties TpmModuleProperties = new Properties();
-                TpmModuleProperties.load(PropertyFile);
-//			newTpmModuleExePath = TpmModuleProperties.getProperty(new_TPM_MODULE_EXE_PATH, ".\\exe");
-//			newExeName = TpmModuleProperties.getProperty(new_EXE_NAME, "NIARL_TPM_Module");
-                newTrousersMode = TpmModuleProperties.getProperty(new_TROUSERS_MODE, "False");
-                debugMode = TpmModuleProperties.getProperty(DEBUG_MODE, "False");
+            propertiesFile = ResourceFinder.getFile(TPM_MODULE_PROPERTIES);
         } catch (FileNotFoundException e) {
+            if (tpmModuleProperties == null) {
                 log.debug("Error finding TPM Module properties file; using defaults.");
-        } catch (IOException e) {
-                log.warn("Error loading TPM Module properties file; using defaults.");
+            }
+            tpmModuleProperties = new Properties();
+            tpmModulePropertiesLastModified = 0;
+            return tpmModuleProperties;
         }
-        finally{
-                if (PropertyFile != null){
-                        try {
-                                PropertyFile.close();
-                        } catch (IOException e) {
-                                e.printStackTrace();
-                        }
-                }
+        if (tpmModuleProperties == null || propertiesFile.lastModified() != tpmModulePropertiesLastModified) {
+            Logger.getAnonymousLogger().info("Reading properties file" + propertiesFile.getAbsolutePath());
+            Properties properties = new Properties();
+            try (FileInputStream in = new FileInputStream(propertiesFile)) {
+                properties.load(in);
+            } catch (IOException e) {
+                log.warn("Error loading TPM Module properties file; using defaults.");
+            }
+            tpmModuleProperties = properties;
+            tpmModulePropertiesLastModified = propertiesFile.lastModified();
         }
-        boolean TrousersMode = false;
-        if (newTrousersMode.toLowerCase().equals("true"))
-                TrousersMode = true;
-        boolean DebugMode = false;
-        if (debugMode.toLowerCase().equals("true"))
-                DebugMode = true;
+        return tpmModuleProperties;
+    }
+
+    private static commandLineResult runVer2Command(int mode, String args, int returnCount, boolean useTrousersMode)
+                    throws IOException {
+
+        int returnCode;
+        final String new_TROUSERS_MODE = "TrousersMode";
+        final String DEBUG_MODE = "DebugMode";
+        final String newTpmModuleExePath = Folders.application() + File.separator + "bin" ; // "./exe";
+        final String newExeName = "NIARL_TPM_Module";
+        Properties TpmModuleProperties = getTpmModuleProperties();
+        boolean TrousersMode = TpmModuleProperties.getProperty(new_TROUSERS_MODE, "False").toLowerCase().equals("true");
+        boolean DebugMode = TpmModuleProperties.getProperty(DEBUG_MODE, "False").toLowerCase().equals("true");
 
         // Parse the args parameter to populate the environment variables array
         String[] params = args.split(" ");
@@ -203,44 +231,18 @@ public class TpmModule {
             cmd.add("-trousers");
         }
 
-        /*String commandLine = newTpmModuleExePath + File.separator + newExeName + " " + args;
-        if (TrousersMode && useTrousersMode)
-                commandLine += " -trousers";*/
         if (DebugMode) log.debug("Command line: {}", StringUtils.join(cmd, " "));
 
-        ProcessBuilder pb = new ProcessBuilder(cmd);
-        pb.environment().putAll(environmentVars);
-        Process p = pb.start();
-        //Process p = Runtime.getRuntime().exec(commandLine);
+        ProcessResult result = ProcessExecutor.getInstance().execute(cmd, environmentVars);
+        returnCode = result.getExitCode();
         String line = "";
-        if (returnCount != 0){
-            BufferedReader input = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            String newLine;
-            try {
-                    while ((newLine = input.readLine()) != null) {
-                            line = newLine;
-                    }
-                    input.close();
-            } catch (Exception e) {
-                    e.printStackTrace();
-            }
-            finally{
-                    if (input != null)
-                            input.close();
-            }
+        BufferedReader input = new BufferedReader(new StringReader(result.getStdout()));
+        String newLine;
+        while ((newLine = input.readLine()) != null) {
+            line = newLine;
         }
         if (DebugMode) log.debug("Output: '{}'", line);
 
-        //do a loop to wait for an exit value
-        try {
-            returnCode = p.waitFor();
-        }
-        catch(InterruptedException e) {
-            log.error("Interrupted while waiting for return value");
-            log.debug("Interrupted while waiting for return value", e);
-            returnCode = -1;
-        }
-
         commandLineResult toReturn = new commandLineResult(returnCode, returnCount);
         if ((returnCode == 0)&&(returnCount != 0)) {
                 StringTokenizer st = new StringTokenizer(line);
@@ -253,7 +255,7 @@ public class TpmModule {
         }
         return toReturn;
     }
-    
+
     /**
      * 
      * @param ownerAuth
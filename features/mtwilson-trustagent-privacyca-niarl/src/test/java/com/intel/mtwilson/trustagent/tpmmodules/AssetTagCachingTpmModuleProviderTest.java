@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import gov.niarl.his.privacyca.TpmModule;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AssetTagCachingTpmModuleProviderTest {
+    private static final byte[] OWNER = new byte[20];
+
+    /**
+     * Stands in for a TPM module: counts readAssetTag calls and returns the
+     * last tag written with setAssetTag, or "not provisioned" if none. While
+     * failing is set, reads fail like a TPM command that exits with an error.
+     */
+    private static class StubTpm implements InvocationHandler {
+        private final AtomicInteger reads = new AtomicInteger();
+        private byte[] tag;
+        private boolean failing;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "readAssetTag":
+                    reads.incrementAndGet();
+                    if (failing) {
+                        throw new TpmModule.TpmModuleException("nvread failed", 1);
+                    }
+                    if (tag == null) {
+                        throw new AssetTagNotProvisionedException("Asset tag has not been provisioned on this TPM");
+                    }
+                    return tag;
+                case "setAssetTag":
+                    tag = (byte[]) args[1];
+                    return null;
+                default:
+                    return null;
+            }
+        }
+
+        private TpmModuleProvider create() {
+            return (TpmModuleProvider) Proxy.newProxyInstance(TpmModuleProvider.class.getClassLoader(),
+                    new Class<?>[]{TpmModuleProvider.class}, this);
+        }
+    }
+
+    @Test
+    public void testReadIsCachedUntilTagIsWritten() throws Exception {
+        StubTpm stub = new StubTpm();
+        TpmModuleProvider tpm = AssetTagCachingTpmModuleProvider.wrap(stub.create(), 0);
+        for (int i = 0; i < 3; i++) {
+            try {
+                tpm.readAssetTag(OWNER);
+                fail("expected not provisioned");
+            } catch (TpmModule.TpmModuleException e) {
+                assertTrue(e.getMessage().contains("not been provisioned"));
+            }
+        }
+        assertEquals(1, stub.reads.get());
+        byte[] tag = new byte[]{1, 2, 3};
+        tpm.setAssetTag(OWNER, tag);
+        assertArrayEquals(tag, tpm.readAssetTag(OWNER));
+        assertArrayEquals(tag, tpm.readAssetTag(OWNER));
+        assertEquals(2, stub.reads.get());
+    }
+
+    @Test
+    public void testFailedReadIsNotCached() throws Exception {
+        StubTpm stub = new StubTpm();
+        stub.tag = new byte[]{1};
+        stub.failing = true;
+        TpmModuleProvider tpm = AssetTagCachingTpmModuleProvider.wrap(stub.create(), 0);
+        try {
+            tpm.readAssetTag(OWNER);
+            fail("expected nvread failure");
+        } catch (TpmModule.TpmModuleException e) {
+            assertFalse(e instanceof AssetTagNotProvisionedException);
+        }
+        stub.failing = false;
+        assertArrayEquals(stub.tag, tpm.readAssetTag(OWNER));
+        assertArrayEquals(stub.tag, tpm.readAssetTag(OWNER));
+        assertEquals(2, stub.reads.get());
+    }
+
+    @Test
+    public void testEntryExpires() throws Exception {
+        StubTpm stub = new StubTpm();
+        stub.tag = new byte[]{1};
+        TpmModuleProvider tpm = AssetTagCachingTpmModuleProvider.wrap(stub.create(), 50);
+        tpm.readAssetTag(OWNER);
+        tpm.readAssetTag(OWNER);
+        assertEquals(1, stub.reads.get());
+        Thread.sleep(100);
+        tpm.readAssetTag(OWNER);
+        assertEquals(2, stub.reads.get());
+    }
+
+    @Test
+    public void testDifferentOwnerSecretIsNotCached() throws Exception {
+        StubTpm stub = new StubTpm();
+        stub.tag = new byte[]{1};
+        TpmModuleProvider tpm = AssetTagCachingTpmModuleProvider.wrap(stub.create(), 0);
+        tpm.readAssetTag(OWNER);
+        tpm.readAssetTag(new byte[]{9});
+        assertEquals(2, stub.reads.get());
+    }
+}
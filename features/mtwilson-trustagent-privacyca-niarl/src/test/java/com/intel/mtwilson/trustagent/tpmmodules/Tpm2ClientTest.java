@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class Tpm2ClientTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm2ClientTest.class);
+    private static final int NV_INDEX = 0x1c10110;
+    /**
+     * TPMS_ATTEST of a quote of SHA256 PCRs 17 and 18 with a 20 byte nonce.
+     */
+    private static final String ATTEST = "ff54434780180022000b0102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f20"
+            + "00147a7b7c7d7e7f808182838485868788898a8b8c8d0000000001234567000000050000000001000201000200000000000001"
+            + "000b030000060020a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3a3";
+    private static final String SIGNATURE = repeat("5a", 256); // RSASSA with a 2048 bit key
+    /**
+     * TPM2_Quote response parameters as the TPM sends them: big-endian
+     * TPM2B_ATTEST size, then TPMT_SIGNATURE with RSASSA (0x0014), SHA256
+     * (0x000B) and the 256 byte signature.
+     */
+    private static final String QUOTE_RESPONSE_PARAMETERS = "0085" + ATTEST + "0014" + "000b" + "0100" + SIGNATURE;
+    /**
+     * The same quote as written by tpm2_quote -o: the TSS structures as they
+     * are in memory, with little-endian sizes and algorithm identifiers.
+     */
+    private static final String QUOTE_FILE = "8500" + ATTEST + "1400" + "0b00" + "0001" + SIGNATURE;
+
+    private static String repeat(String hex, int count) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            repeated.append(hex);
+        }
+        return repeated.toString();
+    }
+
+    /**
+     * Answers PCR_Read with at most 8 digests per command like a real TPM,
+     * where each digest is filled with its PCR index, and records the
+     * command codes it receives.
+     */
+    private static class FakeTpm implements Tpm2Transport {
+        private final List<Integer> commands = new ArrayList<>();
+        private byte[] lastCommand;
+        private int busyResponses; // answered with busyCode before the command runs
+        private int busyCode;
+
+        @Override
+        public byte[] transmit(byte[] command) throws IOException {
+            lastCommand = command;
+            ByteBuffer in = ByteBuffer.wrap(command);
+            in.getShort();
+            assertEquals(command.length, in.getInt());
+            int commandCode = in.getInt();
+            commands.add(commandCode);
+            if (busyResponses > 0) {
+                busyResponses--;
+                return response(busyCode, new byte[0]);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            switch (commandCode) {
+                case 0x17E: // PCR_Read
+                    out.writeInt(7);
+                    Map<Integer, List<Integer>> selection = new LinkedHashMap<>();
+                    int banks = in.getInt();
+                    int remaining = 8;
+                    for (int i = 0; i < banks; i++) {
+                        int algorithm = in.getShort();
+                        byte[] select = new byte[in.get()];
+                        in.get(select);
+                        List<Integer> pcrs = new ArrayList<>();
+                        for (int pcr = 0; pcr < select.length * 8; pcr++) {
+                            if ((select[pcr / 8] & (1 << (pcr % 8))) != 0 && remaining > 0) {
+                                pcrs.add(pcr);
+                                remaining--;
+                            }
+                        }
+                        selection.put(algorithm, pcrs);
+                    }
+                    out.writeInt(selection.size());
+                    int count = 0;
+                    for (Map.Entry<Integer, List<Integer>> bank : selection.entrySet()) {
+                        byte[] select = new byte[3];
+                        for (Integer pcr : bank.getValue()) {
+                            select[pcr / 8] |= 1 << (pcr % 8);
+                            count++;
+                        }
+                        out.writeShort(bank.getKey());
+                        out.writeByte(3);
+                        out.write(select);
+                    }
+                    out.writeInt(count);
+                    for (Map.Entry<Integer, List<Integer>> bank : selection.entrySet()) {
+                        for (Integer pcr : bank.getValue()) {
+                            byte[] digest = new byte[bank.getKey() == 0x04 ? 20 : 32];
+                            Arrays.fill(digest, pcr.byteValue());
+                            out.writeShort(digest.length);
+                            out.write(digest);
+                        }
+                    }
+                    return response(0, bytes.toByteArray());
+                case 0x158: // Quote
+                    byte[] parameters = hex(QUOTE_RESPONSE_PARAMETERS);
+                    out.writeInt(parameters.length);
+                    out.write(parameters);
+                    return response(0, bytes.toByteArray());
+                case 0x169: // NV_ReadPublic
+                    return in.getInt() == NV_INDEX ? response(0, new byte[0]) : response(0x18B, new byte[0]);
+                case 0x14E: // NV_Read
+                    in.getInt();
+                    in.getInt();
+                    int authorizationSize = in.getInt();
+                    in.position(in.position() + authorizationSize);
+                    int size = in.getShort();
+                    out.writeInt(2 + size);
+                    out.writeShort(size);
+                    out.write(new byte[size]);
+                    return response(0, bytes.toByteArray());
+                default:
+                    return response(0x143, new byte[0]); // TPM_RC_COMMAND_CODE
+            }
+        }
+
+        private byte[] response(int rc, byte[] body) {
+            ByteBuffer response = ByteBuffer.allocate(10 + body.length);
+            response.putShort((short) 0x8001);
+            response.putInt(10 + body.length);
+            response.putInt(rc);
+            response.put(body);
+            return response.array();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void testParseSelection() {
+        assertEquals("{11=[17, 18], 4=[0, 23]}", Tpm2Client.parseSelection("0x0B:18,17+0x04:0,23").toString());
+        assertEquals(0x81018000, Tpm2Client.parseHandle("81018000"));
+        assertEquals(NV_INDEX, Tpm2Client.parseHandle("0x1c10110"));
+    }
+
+    @Test
+    public void testReadPcrsInSelectionOrder() throws Exception {
+        FakeTpm tpm = new FakeTpm();
+        Tpm2Client client = new Tpm2Client(tpm);
+        byte[] pcrs = client.readPcrs("0x0B:0,1,2,3,4,5,6,7,17,18+0x04:17,18");
+        // 10 SHA256 digests then 2 SHA1 digests, in two commands since the TPM returns at most 8
+        assertEquals(10 * 32 + 2 * 20, pcrs.length);
+        assertEquals(2, tpm.commands.size());
+        assertEquals(0, pcrs[0]);
+        assertEquals(7, pcrs[7 * 32]);
+        assertEquals(17, pcrs[8 * 32]);
+        assertEquals(18, pcrs[9 * 32]);
+        assertEquals(17, pcrs[10 * 32]);
+        assertEquals(18, pcrs[10 * 32 + 20]);
+    }
+
+    private static byte[] hex(String hex) {
+        try {
+            return Hex.decodeHex(hex.toCharArray());
+        } catch (org.apache.commons.codec.DecoderException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * tpm2_listpcrs -L 0x0B:17,18+0x04:17 -o writes the digests one after
+     * another, bank by bank in selection order and by ascending PCR index.
+     */
+    @Test
+    public void testPcrsMatchListPcrsFile() throws Exception {
+        byte[] pcrs = new Tpm2Client(new FakeTpm()).readPcrs("0x0B:18,17+0x04:17");
+        assertEquals(repeat("11", 32) + repeat("12", 32) + repeat("11", 20), Hex.encodeHexString(pcrs));
+    }
+
+    @Test
+    public void testQuoteMatchesQuoteFile() throws Exception {
+        FakeTpm tpm = new FakeTpm();
+        Tpm2Client client = new Tpm2Client(tpm);
+        byte[] quote = client.quote(0x81018000, new byte[20], new byte[]{1, 2, 3}, "0x0B:17,18");
+        assertEquals(QUOTE_FILE, Hex.encodeHexString(quote));
+        ByteBuffer command = ByteBuffer.wrap(tpm.lastCommand);
+        assertEquals((short) 0x8002, command.getShort(0));
+        assertEquals(0x81018000, command.getInt(10));
+        assertEquals(9 + 20, command.getInt(14)); // password session with a 20 byte password
+        assertEquals(0x40000009, command.getInt(18));
+    }
+
+    @Test
+    public void testRetryAndYieldedAreSentAgain() throws Exception {
+        FakeTpm tpm = new FakeTpm();
+        Tpm2Client client = new Tpm2Client(tpm);
+        tpm.busyResponses = 2;
+        tpm.busyCode = 0x922; // TPM_RC_RETRY
+        assertEquals(32, client.readPcrs("0x0B:17").length);
+        assertEquals(3, tpm.commands.size());
+        tpm.busyResponses = 1;
+        tpm.busyCode = 0x908; // TPM_RC_YIELDED
+        assertEquals(QUOTE_FILE, Hex.encodeHexString(client.quote(0x81018000, new byte[20], new byte[]{1}, "0x0B:17,18")));
+        assertEquals(5, tpm.commands.size());
+    }
+
+    @Test
+    public void testRetryGivesUp() throws Exception {
+        FakeTpm tpm = new FakeTpm();
+        tpm.busyResponses = 100;
+        tpm.busyCode = 0x922;
+        try {
+            new Tpm2Client(tpm).readPcrs("0x0B:17");
+            fail("expected TPM_RC_RETRY");
+        } catch (gov.niarl.his.privacyca.TpmModule.TpmModuleException e) {
+            assertEquals(Integer.valueOf(0x922), e.getErrorCode());
+        }
+        assertEquals(5, tpm.commands.size());
+    }
+
+    @Test
+    public void testNvIndex() throws Exception {
+        Tpm2Client client = new Tpm2Client(new FakeTpm());
+        assertTrue(client.nvIndexExists(NV_INDEX));
+        assertFalse(client.nvIndexExists(NV_INDEX + 1));
+        assertEquals(32, client.nvRead(NV_INDEX, new byte[20], 32).length);
+        try {
+            client.getAllocatedPcrBanks();
+            fail("expected the fake TPM to reject GetCapability");
+        } catch (gov.niarl.his.privacyca.TpmModule.TpmModuleException e) {
+            assertEquals(Integer.valueOf(0x143), e.getErrorCode());
+        }
+    }
+
+    /**
+     * Runs against a TPM 2.0 simulator when -Dtpm.simulator.port is set,
+     * for example the IBM or Microsoft reference simulator on port 2321.
+     */
+    @Test
+    public void testSimulator() throws Exception {
+        String port = System.getProperty("tpm.simulator.port");
+        Assume.assumeTrue(port != null);
+        Tpm2SimulatorTransport transport = new Tpm2SimulatorTransport(System.getProperty("tpm.simulator.host", "localhost"), Integer.valueOf(port));
+        transport.powerOn();
+        try (Tpm2Client client = new Tpm2Client(transport)) {
+            client.startup();
+            List<String> banks = client.getAllocatedPcrBanks();
+            log.debug("Allocated PCR banks: {}", banks);
+            assertTrue(banks.contains("SHA256"));
+            int iterations = 100;
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < iterations; i++) {
+                assertEquals(24 * 32, client.readPcrs("0x0B:0,1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20,21,22,23").length);
+            }
+            log.debug("Read 24 PCRs {} times in {} ms", iterations, System.currentTimeMillis() - start);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TpmSchedulerTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmSchedulerTest.class);
+
+    private Callable<String> blockUntil(final CountDownLatch started, final CountDownLatch release) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return "blocker";
+            }
+        };
+    }
+
+    private Callable<String> record(final String name, final List<String> order) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                order.add(name);
+                return name;
+            }
+        };
+    }
+
+    @Test
+    public void testQuotesRunBeforeProvisioning() throws Exception {
+        final TpmScheduler scheduler = new TpmScheduler(10, 5000);
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService clients = Executors.newCachedThreadPool();
+        try {
+            clients.submit(call(scheduler, TpmScheduler.Priority.PROVISION, blockUntil(started, release)));
+            started.await();
+            Future<String> provision = clients.submit(call(scheduler, TpmScheduler.Priority.PROVISION, record("provision", order)));
+            waitForDepth(scheduler, 1);
+            Future<String> read = clients.submit(call(scheduler, TpmScheduler.Priority.READ, record("read", order)));
+            waitForDepth(scheduler, 2);
+            Future<String> quote = clients.submit(call(scheduler, TpmScheduler.Priority.QUOTE, record("quote", order)));
+            waitForDepth(scheduler, 3);
+            release.countDown();
+            assertEquals("quote", quote.get());
+            assertEquals("read", read.get());
+            assertEquals("provision", provision.get());
+            assertEquals("quote", order.get(0));
+            assertEquals("read", order.get(1));
+            assertEquals("provision", order.get(2));
+            log.debug("metrics: {}", scheduler.getMetrics());
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFullQueueIsRejected() throws Exception {
+        final TpmScheduler scheduler = new TpmScheduler(1, 5000);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService clients = Executors.newCachedThreadPool();
+        try {
+            clients.submit(call(scheduler, TpmScheduler.Priority.QUOTE, blockUntil(started, release)));
+            started.await();
+            clients.submit(call(scheduler, TpmScheduler.Priority.QUOTE, record("queued", new CopyOnWriteArrayList<String>())));
+            waitForDepth(scheduler, 1);
+            try {
+                scheduler.execute(TpmScheduler.Priority.QUOTE, record("rejected", new CopyOnWriteArrayList<String>()));
+                fail("expected TpmBusyException");
+            } catch (TpmBusyException e) {
+                assertTrue(e.getRetryAfterSeconds() >= 1);
+            }
+            assertEquals(Long.valueOf(1), scheduler.getMetrics().get("rejected"));
+            release.countDown();
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testQueueWaitDeadline() throws Exception {
+        final TpmScheduler scheduler = new TpmScheduler(10, 100);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService clients = Executors.newCachedThreadPool();
+        try {
+            clients.submit(call(scheduler, TpmScheduler.Priority.QUOTE, blockUntil(started, release)));
+            started.await();
+            try {
+                scheduler.execute(TpmScheduler.Priority.QUOTE, record("late", new CopyOnWriteArrayList<String>()));
+                fail("expected TpmBusyException");
+            } catch (TpmBusyException e) {
+                log.debug("expired: {}", e.getMessage());
+            }
+            assertEquals(Long.valueOf(1), scheduler.getMetrics().get("expired"));
+            release.countDown();
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRunDeadline() throws Exception {
+        final TpmScheduler scheduler = new TpmScheduler(10, 5000, 100);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            scheduler.execute(TpmScheduler.Priority.QUOTE, blockUntil(started, release));
+            fail("expected TpmBusyException");
+        } catch (TpmBusyException e) {
+            log.debug("abandoned: {}", e.getMessage());
+        }
+        assertEquals(Long.valueOf(1), scheduler.getMetrics().get("abandoned"));
+        // the hung operation was interrupted and the worker is free for the next one
+        assertEquals("next", scheduler.execute(TpmScheduler.Priority.QUOTE, record("next", new CopyOnWriteArrayList<String>())));
+    }
+
+    @Test
+    public void testRunDeadlineKillsCommands() throws Exception {
+        Assume.assumeTrue(new File("/bin/sleep").canExecute());
+        final TpmScheduler scheduler = new TpmScheduler(10, 5000, 500);
+        long start = System.currentTimeMillis();
+        try {
+            scheduler.execute(TpmScheduler.Priority.QUOTE, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return ProcessExecutor.getInstance().execute(Arrays.asList("/bin/sleep", "30"), Collections.<String, String>emptyMap()).getExitCode();
+                }
+            });
+            fail("expected TpmBusyException");
+        } catch (TpmBusyException e) {
+            log.debug("abandoned: {}", e.getMessage());
+        }
+        assertEquals(Long.valueOf(1), scheduler.getMetrics().get("abandoned"));
+        assertEquals(Long.valueOf(1), scheduler.getMetrics().get("killed"));
+        // the worker is free as soon as the command is killed, not when it would have finished
+        assertEquals("next", scheduler.execute(TpmScheduler.Priority.QUOTE, record("next", new CopyOnWriteArrayList<String>())));
+        assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+
+    @Test
+    public void testNestedOperationRunsInline() throws Exception {
+        final TpmScheduler scheduler = new TpmScheduler(1, 1000);
+        String result = scheduler.execute(TpmScheduler.Priority.READ, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return scheduler.execute(TpmScheduler.Priority.READ, record("nested", new CopyOnWriteArrayList<String>()));
+            }
+        });
+        assertEquals("nested", result);
+    }
+
+    private <T> Callable<T> call(final TpmScheduler scheduler, final TpmScheduler.Priority priority, final Callable<T> operation) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return scheduler.execute(priority, operation);
+            }
+        };
+    }
+
+    private void waitForDepth(TpmScheduler scheduler, int depth) throws InterruptedException {
+        for (int i = 0; i < 500 && scheduler.getQueueDepth() < depth; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(depth, scheduler.getQueueDepth());
+    }
+}
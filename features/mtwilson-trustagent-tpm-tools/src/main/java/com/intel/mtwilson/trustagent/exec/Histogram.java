@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.exec;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts observations in fixed buckets. Each bucket counts the observations
+ * less than or equal to its upper bound and greater than the previous
+ * bound; the last bucket counts everything above the largest bound.
+ */
+public class Histogram {
+    /**
+     * Bucket bounds in milliseconds for process timings, from a quick
+     * tpm_nvread to a command that reaches the default timeout.
+     */
+    public static final long[] MILLISECONDS = new long[] { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000 };
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+    private final AtomicLong sum = new AtomicLong();
+
+    public Histogram(long[] bounds) {
+        this.bounds = bounds.clone();
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        counts.incrementAndGet(i);
+        sum.addAndGet(value);
+    }
+
+    public long[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     *
+     * @return the count in each bucket, with one more element than the bounds for the observations above the largest bound
+     */
+    public long[] getCounts() {
+        long[] result = new long[counts.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.exec;
+
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.metrics.Collector;
+import com.intel.mtwilson.trustagent.metrics.MetricRegistry;
+import com.intel.mtwilson.trustagent.metrics.PrometheusWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.exec.CommandLine;
+
+/**
+ * Runs external commands for the trust agent. All commands should go
+ * through here instead of Runtime.exec, ProcessBuilder or ExecUtil so that:
+ * <ul>
+ * <li>stdout and stderr are always drained, by a shared pool of threads
+ * instead of new threads for every command, and only the first
+ * process.output.max bytes of each are kept</li>
+ * <li>a command that does not finish within its timeout is killed together
+ * with every process it started, so a hung tool cannot hold a request
+ * thread</li>
+ * <li>at most process.max commands run at the same time, and at most
+ * process.max.per.command instances of the same executable</li>
+ * <li>start, run time and exit code statistics are kept for each
+ * executable</li>
+ * </ul>
+ *
+ * The timeout includes the time spent waiting for a slot under the
+ * concurrency limits. Environment variables given to a command are added to
+ * the environment of the trust agent, which is how secrets are passed
+ * without putting them on the command line.
+ */
+public class ProcessExecutor implements Collector {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ProcessExecutor.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] COUNTER_NAMES = new String[] { "trustagent_process_started_total", "trustagent_process_start_failures_total", "trustagent_process_timeouts_total", "trustagent_process_failures_total", "trustagent_process_rejected_total", "trustagent_process_truncated_total", "trustagent_process_running" };
+    private static final String[] COUNTER_HELP = new String[] { "Processes started", "Processes that could not be started", "Processes killed after their timeout", "Processes killed because their output could not be read or the caller was interrupted", "Processes that did not get a slot under the concurrency limits before their timeout", "Processes with output longer than process.output.max", "Processes running now" };
+    private static final String SETSID = findSetsid();
+    private static ProcessExecutor instance;
+    private final long defaultTimeoutMillis;
+    private final int maxPerCommand;
+    private final int maxOutput;
+    private final Semaphore slots;
+    private final ConcurrentHashMap<String, Semaphore> commandSlots = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ProcessMetrics> metrics = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Process, Thread> running = new ConcurrentHashMap<>();
+    private final ExecutorService readers = Executors.newCachedThreadPool(new ReaderThreadFactory());
+
+    public ProcessExecutor(long defaultTimeoutMillis, int max, int maxPerCommand, int maxOutput) {
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+        this.maxPerCommand = maxPerCommand;
+        this.maxOutput = maxOutput;
+        this.slots = new Semaphore(max, true);
+    }
+
+    public static synchronized ProcessExecutor getInstance() {
+        if (instance == null) {
+            long timeout = 120000;
+            int max = 16;
+            int maxPerCommand = 4;
+            int maxOutput = 16777216;
+            try {
+                TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+                timeout = configuration.getProcessTimeout();
+                max = configuration.getProcessMax();
+                maxPerCommand = configuration.getProcessMaxPerCommand();
+                maxOutput = configuration.getProcessOutputMax();
+            } catch (IOException e) {
+                log.warn("Cannot load configuration, using default process settings: {}", e.getMessage());
+            }
+            log.debug("Process timeout {} ms max {} max per command {} output max {} bytes", timeout, max, maxPerCommand, maxOutput);
+            instance = new ProcessExecutor(timeout, max, maxPerCommand, maxOutput);
+            MetricRegistry.getInstance().register(instance);
+        }
+        return instance;
+    }
+
+    public ProcessResult execute(CommandLine command) throws IOException {
+        return execute(command, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Replaces ExecUtil.execute(command, variables). The arguments are
+     * passed the same way commons-exec passes them.
+     *
+     * @param command
+     * @param environment variables to add to the environment of the command
+     * @return the exit code and output of the command
+     * @throws IOException if the command cannot be started or does not finish within the default timeout
+     */
+    public ProcessResult execute(CommandLine command, Map<String, String> environment) throws IOException {
+        return execute(Arrays.asList(command.toStrings()), environment, defaultTimeoutMillis);
+    }
+
+    public ProcessResult execute(List<String> command, Map<String, String> environment) throws IOException {
+        return execute(command, environment, defaultTimeoutMillis);
+    }
+
+    /**
+     *
+     * @param command the executable followed by its arguments
+     * @param environment variables to add to the environment of the command
+     * @param timeoutMillis how long to wait for a slot and for the command to finish
+     * @return the exit code and output of the command
+     * @throws ProcessTimeoutException if the command did not finish within the timeout
+     * @throws IOException if the command cannot be started
+     */
+    public ProcessResult execute(List<String> command, Map<String, String> environment, long timeoutMillis) throws IOException {
+        String name = new File(command.get(0)).getName();
+        ProcessMetrics commandMetrics = getMetrics(name);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Semaphore commandSlot = getCommandSlots(name);
+        acquire(commandSlot, name, deadline, commandMetrics);
+        try {
+            acquire(slots, name, deadline, commandMetrics);
+            try {
+                return run(name, command, environment, deadline, commandMetrics);
+            } finally {
+                slots.release();
+            }
+        } finally {
+            commandSlot.release();
+        }
+    }
+
+    private void acquire(Semaphore semaphore, String name, long deadline, ProcessMetrics commandMetrics) throws IOException {
+        long start = System.currentTimeMillis();
+        boolean acquired;
+        try {
+            acquired = semaphore.tryAcquire(Math.max(0, deadline - start), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to run " + name);
+        }
+        commandMetrics.recordQueue(System.currentTimeMillis() - start);
+        if (!acquired) {
+            commandMetrics.recordRejected();
+            throw new ProcessTimeoutException("Timeout waiting to run " + name + "; too many commands are running");
+        }
+    }
+
+    private ProcessResult run(String name, List<String> command, Map<String, String> environment, long deadline, ProcessMetrics commandMetrics) throws IOException {
+        ProcessBuilder builder;
+        if (SETSID != null) {
+            // the command leads its own session, so processes it started can be found after they are reparented
+            List<String> sessionCommand = new ArrayList<>();
+            sessionCommand.add(SETSID);
+            sessionCommand.addAll(command);
+            builder = new ProcessBuilder(sessionCommand);
+        } else {
+            builder = new ProcessBuilder(command);
+        }
+        builder.environment().putAll(environment);
+        long start = System.currentTimeMillis();
+        final Process process;
+        try {
+            process = builder.start();
+        } catch (IOException e) {
+            commandMetrics.recordStartFailure();
+            throw e;
+        }
+        running.put(process, Thread.currentThread());
+        long started = System.currentTimeMillis();
+        commandMetrics.recordStart(started - start);
+        try {
+            process.getOutputStream().close();
+            final OutputReader stdout = new OutputReader(process.getInputStream(), maxOutput);
+            final OutputReader stderr = new OutputReader(process.getErrorStream(), maxOutput);
+            Future<Integer> exit = readers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException, InterruptedException {
+                    stdout.call();
+                    return process.waitFor();
+                }
+            });
+            Future<Void> errors = readers.submit(stderr);
+            int exitCode;
+            try {
+                exitCode = exit.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                errors.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                killTree(process);
+                commandMetrics.recordTimeout(System.currentTimeMillis() - started);
+                log.error("Killed {} after timeout", name);
+                throw new ProcessTimeoutException("Timeout waiting for " + name + " to finish");
+            } catch (InterruptedException e) {
+                killTree(process);
+                commandMetrics.recordFailure(System.currentTimeMillis() - started);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + name + " to finish");
+            } catch (ExecutionException e) {
+                killTree(process);
+                commandMetrics.recordFailure(System.currentTimeMillis() - started);
+                throw new IOException("Cannot read output of " + name, e.getCause());
+            }
+            boolean truncated = stdout.isTruncated() || stderr.isTruncated();
+            commandMetrics.recordExit(exitCode, System.currentTimeMillis() - started, truncated);
+            if (truncated) {
+                log.warn("Output of {} is longer than {} bytes and was truncated", name, maxOutput);
+            }
+            return new ProcessResult(exitCode, stdout.toString(), stderr.toString(), truncated);
+        } finally {
+            running.remove(process);
+        }
+    }
+
+    /**
+     * Kills the commands the given thread is running, together with every
+     * process they started. The thread gets the exit code of the killed
+     * command, or an InterruptedIOException if it is also interrupted.
+     *
+     * @param thread
+     * @return the number of commands that were killed
+     */
+    public int kill(Thread thread) {
+        int count = 0;
+        for (Map.Entry<Process, Thread> entry : running.entrySet()) {
+            if (entry.getValue() == thread) {
+                killTree(entry.getKey());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Semaphore getCommandSlots(String name) {
+        Semaphore semaphore = commandSlots.get(name);
+        if (semaphore == null) {
+            Semaphore created = new Semaphore(maxPerCommand, true);
+            semaphore = commandSlots.putIfAbsent(name, created);
+            if (semaphore == null) {
+                semaphore = created;
+            }
+        }
+        return semaphore;
+    }
+
+    private ProcessMetrics getMetrics(String name) {
+        ProcessMetrics commandMetrics = metrics.get(name);
+        if (commandMetrics == null) {
+            ProcessMetrics created = new ProcessMetrics();
+            commandMetrics = metrics.putIfAbsent(name, created);
+            if (commandMetrics == null) {
+                commandMetrics = created;
+            }
+        }
+        return commandMetrics;
+    }
+
+    /**
+     *
+     * @return statistics for each executable that was run, by file name
+     */
+    public Map<String, ProcessMetrics> getMetrics() {
+        return new TreeMap<>(metrics);
+    }
+
+    /**
+     * Reports the statistics of each executable, labeled with its file name.
+     */
+    @Override
+    public void collect(PrometheusWriter out) throws IOException {
+        Map<String, ProcessMetrics> all = getMetrics();
+        for (int i = 0; i < COUNTER_NAMES.length; i++) {
+            out.header(COUNTER_NAMES[i], COUNTER_HELP[i], i == COUNTER_NAMES.length - 1 ? "gauge" : "counter");
+            for (Map.Entry<String, ProcessMetrics> entry : all.entrySet()) {
+                out.sample(COUNTER_NAMES[i], PrometheusWriter.labels("executable", entry.getKey()), counters(entry.getValue())[i]);
+            }
+        }
+        out.header("trustagent_process_exits_total", "Processes that exited, by exit code", "counter");
+        for (Map.Entry<String, ProcessMetrics> entry : all.entrySet()) {
+            for (Map.Entry<Integer, Long> exitCode : entry.getValue().getExitCodes().entrySet()) {
+                out.sample("trustagent_process_exits_total", PrometheusWriter.labels("executable", entry.getKey(), "code", exitCode.getKey().toString()), exitCode.getValue());
+            }
+        }
+        out.header("trustagent_process_queue_seconds", "Time waiting for a slot under the concurrency limits", "histogram");
+        for (Map.Entry<String, ProcessMetrics> entry : all.entrySet()) {
+            out.histogram("trustagent_process_queue_seconds", PrometheusWriter.labels("executable", entry.getKey()), entry.getValue().getQueueMillis());
+        }
+        out.header("trustagent_process_spawn_seconds", "Time to start a process", "histogram");
+        for (Map.Entry<String, ProcessMetrics> entry : all.entrySet()) {
+            out.histogram("trustagent_process_spawn_seconds", PrometheusWriter.labels("executable", entry.getKey()), entry.getValue().getSpawnMillis());
+        }
+        out.header("trustagent_process_wait_seconds", "Time from start until the process exited or was killed", "histogram");
+        for (Map.Entry<String, ProcessMetrics> entry : all.entrySet()) {
+            out.histogram("trustagent_process_wait_seconds", PrometheusWriter.labels("executable", entry.getKey()), entry.getValue().getWaitMillis());
+        }
+    }
+
+    /**
+     *
+     * @return the counters in the order of COUNTER_NAMES
+     */
+    private static long[] counters(ProcessMetrics commandMetrics) {
+        return new long[] { commandMetrics.getStarted(), commandMetrics.getStartFailures(), commandMetrics.getTimeouts(), commandMetrics.getFailures(), commandMetrics.getRejected(), commandMetrics.getTruncated(), commandMetrics.getRunning() };
+    }
+
+    /**
+     *
+     * @return the setsid command on Linux, or null if it is not available
+     */
+    private static String findSetsid() {
+        if (!new File("/proc").isDirectory()) {
+            return null;
+        }
+        for (String path : new String[] { "/usr/bin/setsid", "/bin/setsid" }) {
+            if (new File(path).canExecute()) {
+                return path;
+            }
+        }
+        log.warn("setsid is not available; processes started by a command that is killed may survive it");
+        return null;
+    }
+
+    /**
+     * Kills the process and everything it started. On Linux every process
+     * in its session or process group is killed, which includes processes
+     * that were reparented when their parent exited, together with its
+     * current descendants in case a command was started without setsid. On
+     * Windows taskkill /T is used, and otherwise only the process itself is
+     * killed.
+     */
+    static void killTree(Process process) {
+        Long pid = getPid(process);
+        if (pid != null) {
+            List<String> kill = new ArrayList<>();
+            if (System.getProperty("os.name", "").toLowerCase().contains("windows")) {
+                kill.addAll(Arrays.asList("taskkill", "/F", "/T", "/PID", pid.toString()));
+            } else if (new File("/proc").isDirectory()) {
+                kill.addAll(Arrays.asList("kill", "-KILL", "--", pid.toString()));
+                if (SETSID != null) {
+                    // the whole process group at once, so a process forked while /proc is read is killed too
+                    kill.add("-" + pid);
+                }
+                for (Long child : getSessionAndDescendants(pid)) {
+                    kill.add(child.toString());
+                }
+            }
+            if (!kill.isEmpty()) {
+                try {
+                    Process killer = new ProcessBuilder(kill).redirectErrorStream(true).start();
+                    killer.getOutputStream().close();
+                    killer.getInputStream().close();
+                    killer.waitFor();
+                } catch (IOException e) {
+                    log.warn("Cannot kill process {}: {}", pid, e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        process.destroy();
+    }
+
+    private static Long getPid(Process process) {
+        try {
+            // java 9 and later
+            return (Long) Process.class.getMethod("pid").invoke(process);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.trace("Process.pid() not available", e);
+        }
+        try {
+            // java 7 and 8 on unix
+            java.lang.reflect.Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return ((Number) field.get(process)).longValue();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.trace("Process pid field not available", e);
+            return null;
+        }
+    }
+
+    /**
+     *
+     * @param pid
+     * @return the other processes in the session or process group led by pid, and the descendants of pid
+     */
+    private static Set<Long> getSessionAndDescendants(long pid) {
+        Set<Long> found = new LinkedHashSet<>();
+        HashMap<Long, List<Long>> children = new HashMap<>();
+        File[] processes = new File("/proc").listFiles();
+        if (processes != null) {
+            for (File directory : processes) {
+                if (!directory.getName().matches("\\d+")) {
+                    continue;
+                }
+                try {
+                    // the parent pid, process group and session are the second to fourth fields after the executable name, which is in parentheses and may contain spaces
+                    String stat = new String(Files.readAllBytes(new File(directory, "stat").toPath()), UTF8);
+                    String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                    Long child = Long.valueOf(directory.getName());
+                    Long parent = Long.valueOf(fields[1]);
+                    if ((Long.parseLong(fields[2]) == pid || Long.parseLong(fields[3]) == pid) && child != pid) {
+                        found.add(child);
+                    }
+                    List<Long> list = children.get(parent);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        children.put(parent, list);
+                    }
+                    list.add(child);
+                } catch (IOException | RuntimeException e) {
+                    log.trace("Cannot read {}", directory, e); // the process exited
+                }
+            }
+        }
+        List<Long> next = new ArrayList<>();
+        next.add(pid);
+        while (!next.isEmpty()) {
+            List<Long> list = children.get(next.remove(next.size() - 1));
+            if (list != null) {
+                found.addAll(list);
+                next.addAll(list);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads a stream to the end, keeping at most the given number of bytes
+     * so that a command with unexpectedly large output cannot exhaust
+     * memory, and discarding the rest so that the command does not block.
+     */
+    private static class OutputReader implements Callable<Void> {
+        private final InputStream in;
+        private final int max;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private volatile boolean truncated = false;
+
+        private OutputReader(InputStream in, int max) {
+            this.in = in;
+            this.max = max;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            byte[] chunk = new byte[8192];
+            try {
+                int length;
+                while ((length = in.read(chunk)) != -1) {
+                    int keep = Math.min(length, max - buffer.size());
+                    if (keep > 0) {
+                        buffer.write(chunk, 0, keep);
+                    }
+                    if (keep < length) {
+                        truncated = true;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            return null;
+        }
+
+        private boolean isTruncated() {
+            return truncated;
+        }
+
+        @Override
+        public String toString() {
+            return new String(buffer.toByteArray(), UTF8);
+        }
+    }
+
+    private static class ReaderThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "process-output-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.exec;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timings for one executable run by ProcessExecutor.
+ *
+ * The spawn histogram is the time to start the process, the wait histogram
+ * is the time from start until it exited and its output was read, and the
+ * queue histogram is the time spent waiting for a free slot under the
+ * concurrency limits.
+ */
+public class ProcessMetrics {
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong startFailures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong truncated = new AtomicLong();
+    private final AtomicLong running = new AtomicLong();
+    private final ConcurrentHashMap<Integer, AtomicLong> exitCodes = new ConcurrentHashMap<>();
+    private final Histogram queue = new Histogram(Histogram.MILLISECONDS);
+    private final Histogram spawn = new Histogram(Histogram.MILLISECONDS);
+    private final Histogram wait = new Histogram(Histogram.MILLISECONDS);
+
+    void recordQueue(long millis) {
+        queue.record(millis);
+    }
+
+    void recordRejected() {
+        rejected.incrementAndGet();
+    }
+
+    void recordStartFailure() {
+        startFailures.incrementAndGet();
+    }
+
+    void recordStart(long spawnMillis) {
+        started.incrementAndGet();
+        running.incrementAndGet();
+        spawn.record(spawnMillis);
+    }
+
+    void recordExit(int exitCode, long waitMillis, boolean outputTruncated) {
+        running.decrementAndGet();
+        wait.record(waitMillis);
+        AtomicLong count = exitCodes.get(exitCode);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = exitCodes.putIfAbsent(exitCode, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+        if (outputTruncated) {
+            truncated.incrementAndGet();
+        }
+    }
+
+    void recordTimeout(long waitMillis) {
+        running.decrementAndGet();
+        wait.record(waitMillis);
+        timeouts.incrementAndGet();
+    }
+
+    void recordFailure(long waitMillis) {
+        running.decrementAndGet();
+        wait.record(waitMillis);
+        failures.incrementAndGet();
+    }
+
+    public long getStarted() {
+        return started.get();
+    }
+
+    public long getStartFailures() {
+        return startFailures.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     *
+     * @return number of times the command was killed because its output could not be read or the caller was interrupted
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     *
+     * @return number of times the command could not get a slot under the concurrency limits before its timeout
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getTruncated() {
+        return truncated.get();
+    }
+
+    public long getRunning() {
+        return running.get();
+    }
+
+    /**
+     *
+     * @return number of times each exit code was returned, ordered by exit code
+     */
+    public Map<Integer, Long> getExitCodes() {
+        TreeMap<Integer, Long> result = new TreeMap<>();
+        for (Map.Entry<Integer, AtomicLong> entry : exitCodes.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    public Histogram getQueueMillis() {
+        return queue;
+    }
+
+    public Histogram getSpawnMillis() {
+        return spawn;
+    }
+
+    public Histogram getWaitMillis() {
+        return wait;
+    }
+}
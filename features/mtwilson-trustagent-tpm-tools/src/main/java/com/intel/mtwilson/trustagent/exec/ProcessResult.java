@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.exec;
+
+/**
+ * Exit code and output of a command run by ProcessExecutor.
+ */
+public class ProcessResult {
+    private final int exitCode;
+    private final String stdout;
+    private final String stderr;
+    private final boolean truncated;
+
+    public ProcessResult(int exitCode, String stdout, String stderr, boolean truncated) {
+        this.exitCode = exitCode;
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.truncated = truncated;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public String getStdout() {
+        return stdout;
+    }
+
+    public String getStderr() {
+        return stderr;
+    }
+
+    /**
+     *
+     * @return true if stdout or stderr was longer than process.output.max and only the beginning was kept
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.exec;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a command did not finish, or could not start because too
+ * many commands were already running, before its timeout. A command that
+ * started is killed together with its child processes before this is
+ * thrown.
+ */
+public class ProcessTimeoutException extends IOException {
+    private static final long serialVersionUID = 0;
+
+    public ProcessTimeoutException(String msg) {
+        super(msg);
+    }
+}
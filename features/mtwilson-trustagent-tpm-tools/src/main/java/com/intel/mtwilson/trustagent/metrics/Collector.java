@@ -0,0 +1,15 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.metrics;
+
+import java.io.IOException;
+
+/**
+ * Reports metrics that are kept somewhere else, such as the TPM scheduler
+ * counters, when metrics are written.
+ */
+public interface Collector {
+    void collect(PrometheusWriter out) throws IOException;
+}
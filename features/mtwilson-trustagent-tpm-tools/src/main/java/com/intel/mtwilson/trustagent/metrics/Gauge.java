@@ -0,0 +1,13 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.metrics;
+
+/**
+ * A value that is read when metrics are reported, such as the number of
+ * busy threads in a pool.
+ */
+public interface Gauge {
+    long getValue();
+}
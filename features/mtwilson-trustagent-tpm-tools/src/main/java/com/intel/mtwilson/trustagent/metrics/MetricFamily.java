@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metrics of one name that differ in the value of one label, such as the
+ * latency of each quote stage. Looking up a label value that was seen
+ * before does not allocate.
+ */
+public class MetricFamily<T> {
+    private final MetricRegistry registry;
+    private final MetricRegistry.Type type;
+    private final String name;
+    private final String help;
+    private final String labelName;
+    private final String[] constantLabels;
+    private final ConcurrentHashMap<String, T> metrics = new ConcurrentHashMap<>();
+
+    MetricFamily(MetricRegistry registry, MetricRegistry.Type type, String name, String help, String labelName, String[] constantLabels) {
+        this.registry = registry;
+        this.type = type;
+        this.name = name;
+        this.help = help;
+        this.labelName = labelName;
+        this.constantLabels = constantLabels.clone();
+    }
+
+    public T get(String labelValue) {
+        T metric = metrics.get(labelValue);
+        if (metric == null) {
+            String[] labels = new String[constantLabels.length + 2];
+            System.arraycopy(constantLabels, 0, labels, 0, constantLabels.length);
+            labels[constantLabels.length] = labelName;
+            labels[constantLabels.length + 1] = labelValue;
+            @SuppressWarnings("unchecked")
+            T created = (T) registry.getOrCreate(type, name, help, labels);
+            metric = metrics.putIfAbsent(labelValue, created);
+            if (metric == null) {
+                metric = created;
+            }
+        }
+        return metric;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds the metrics of the trust agent and writes them for the /metrics
+ * resource.
+ *
+ * Looking up a metric formats its labels, so code that records often
+ * should look it up once and keep it in a field, or use a MetricFamily
+ * when one label varies. Recording on a Counter or LatencyHistogram is
+ * allocation-free, so metrics are always on.
+ *
+ * Metric names follow the Prometheus conventions: a trustagent_ prefix,
+ * _total for counters, and _seconds for durations.
+ */
+public class MetricRegistry {
+    private static final MetricRegistry instance = new MetricRegistry();
+
+    static enum Type {
+        COUNTER("counter"), GAUGE("gauge"), HISTOGRAM("histogram");
+        private final String text;
+
+        private Type(String text) {
+            this.text = text;
+        }
+    }
+
+    private static class Family {
+        private final Type type;
+        private final String help;
+        private final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+        private Family(Type type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<>();
+    private final CopyOnWriteArrayList<Collector> collectors = new CopyOnWriteArrayList<>();
+
+    public static MetricRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     *
+     * @param name
+     * @param help
+     * @param labels label names and values, alternating
+     * @return the counter with these labels, created if it does not exist
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) getOrCreate(Type.COUNTER, name, help, labels);
+    }
+
+    public LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) getOrCreate(Type.HISTOGRAM, name, help, labels);
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge with the same name and labels.
+     */
+    public void gauge(String name, String help, Gauge gauge, String... labels) {
+        family(Type.GAUGE, name, help).metrics.put(PrometheusWriter.labels(labels), gauge);
+    }
+
+    public MetricFamily<Counter> counters(String name, String help, String labelName, String... constantLabels) {
+        return new MetricFamily<>(this, Type.COUNTER, name, help, labelName, constantLabels);
+    }
+
+    public MetricFamily<LatencyHistogram> histograms(String name, String help, String labelName, String... constantLabels) {
+        return new MetricFamily<>(this, Type.HISTOGRAM, name, help, labelName, constantLabels);
+    }
+
+    public void register(Collector collector) {
+        collectors.addIfAbsent(collector);
+    }
+
+    Object getOrCreate(Type type, String name, String help, String[] labels) {
+        Family family = family(type, name, help);
+        String key = PrometheusWriter.labels(labels);
+        Object metric = family.metrics.get(key);
+        if (metric == null) {
+            Object created = type == Type.COUNTER ? new Counter() : new LatencyHistogram();
+            metric = family.metrics.putIfAbsent(key, created);
+            if (metric == null) {
+                metric = created;
+            }
+        }
+        return metric;
+    }
+
+    private Family family(Type type, String name, String help) {
+        Family family = families.get(name);
+        if (family == null) {
+            Family created = new Family(type, help);
+            family = families.putIfAbsent(name, created);
+            if (family == null) {
+                family = created;
+            }
+        }
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type.text);
+        }
+        return family;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format, ordered by name and
+     * labels, followed by the metrics of the registered collectors.
+     */
+    public void write(Writer out) throws IOException {
+        PrometheusWriter prometheus = new PrometheusWriter(out);
+        for (Map.Entry<String, Family> family : families.entrySet()) {
+            String name = family.getKey();
+            Family value = family.getValue();
+            prometheus.header(name, value.help, value.type.text);
+            for (Map.Entry<String, Object> metric : value.metrics.entrySet()) {
+                switch (value.type) {
+                    case COUNTER:
+                        prometheus.sample(name, metric.getKey(), ((Counter) metric.getValue()).get());
+                        break;
+                    case GAUGE:
+                        prometheus.sample(name, metric.getKey(), ((Gauge) metric.getValue()).getValue());
+                        break;
+                    case HISTOGRAM:
+                        prometheus.histogram(name, metric.getKey(), (LatencyHistogram) metric.getValue());
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        for (Collector collector : collectors) {
+            collector.collect(prometheus);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.metrics;
+
+import com.intel.mtwilson.trustagent.exec.Histogram;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes metrics in the Prometheus text exposition format, version 0.0.4.
+ *
+ * Durations are reported in seconds. Latency histograms are reported with
+ * a bucket at every power of two microseconds from 128 microseconds to
+ * about 134 seconds, which are exact bucket boundaries of
+ * LatencyHistogram.
+ */
+public class PrometheusWriter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final int FIRST_BUCKET_EXPONENT = 7;
+    private static final int LAST_BUCKET_EXPONENT = 27;
+    private final Writer out;
+
+    public PrometheusWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     *
+     * @param name
+     * @param help
+     * @param type counter, gauge, histogram or untyped
+     * @throws IOException
+     */
+    public void header(String name, String help, String type) throws IOException {
+        out.write("# HELP ");
+        out.write(name);
+        out.write(' ');
+        out.write(help.replace("\\", "\\\\").replace("\n", "\\n"));
+        out.write("\n# TYPE ");
+        out.write(name);
+        out.write(' ');
+        out.write(type);
+        out.write('\n');
+    }
+
+    /**
+     *
+     * @param name
+     * @param labels formatted with labels(), may be empty
+     * @param value
+     * @throws IOException
+     */
+    public void sample(String name, String labels, long value) throws IOException {
+        sample(name, labels, Long.toString(value));
+    }
+
+    public void sample(String name, String labels, double value) throws IOException {
+        sample(name, labels, Double.isInfinite(value) ? (value > 0 ? "+Inf" : "-Inf") : Double.toString(value));
+    }
+
+    private void sample(String name, String labels, String value) throws IOException {
+        out.write(name);
+        if (!labels.isEmpty()) {
+            out.write('{');
+            out.write(labels);
+            out.write('}');
+        }
+        out.write(' ');
+        out.write(value);
+        out.write('\n');
+    }
+
+    public void histogram(String name, String labels, LatencyHistogram histogram) throws IOException {
+        // the count is read first so the buckets are never less than it suggests
+        long count = histogram.getCount();
+        long sumNanos = histogram.getSumNanos();
+        for (int exponent = FIRST_BUCKET_EXPONENT; exponent <= LAST_BUCKET_EXPONENT; exponent++) {
+            long micros = 1L << exponent;
+            sample(name + "_bucket", join(labels, "le=\"" + (micros / 1e6) + "\""), Math.min(count, histogram.getCountBelow(micros)));
+        }
+        sample(name + "_bucket", join(labels, "le=\"+Inf\""), count);
+        sample(name + "_sum", labels, sumNanos / 1e9);
+        sample(name + "_count", labels, count);
+    }
+
+    /**
+     * Writes a histogram of milliseconds, such as the process timings, in
+     * seconds.
+     */
+    public void histogram(String name, String labels, Histogram histogram) throws IOException {
+        long[] bounds = histogram.getBounds();
+        long[] counts = histogram.getCounts();
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += counts[i];
+            sample(name + "_bucket", join(labels, "le=\"" + (bounds[i] / 1e3) + "\""), cumulative);
+        }
+        cumulative += counts[bounds.length];
+        sample(name + "_bucket", join(labels, "le=\"+Inf\""), cumulative);
+        sample(name + "_sum", labels, histogram.getSum() / 1e3);
+        sample(name + "_count", labels, cumulative);
+    }
+
+    /**
+     *
+     * @param nameValuePairs label names and values, alternating
+     * @return the labels in the exposition format without the braces, for example: stage="GenerateQuoteCmd"
+     */
+    public static String labels(String... nameValuePairs) {
+        if (nameValuePairs.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i < nameValuePairs.length; i += 2) {
+            if (labels.length() > 0) {
+                labels.append(',');
+            }
+            labels.append(nameValuePairs[i]).append("=\"");
+            labels.append(nameValuePairs[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"));
+            labels.append('"');
+        }
+        return labels.toString();
+    }
+
+    private static String join(String labels, String label) {
+        return labels.isEmpty() ? label : labels + "," + label;
+    }
+}
@@ -7,8 +7,8 @@ package com.intel.mtwilson.trustagent.tpm.tools;
 
 import com.intel.mtwilson.codec.HexUtil;
 import com.intel.mtwilson.common.TAException;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
+import com.intel.mtwilson.trustagent.exec.ProcessResult;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
@@ -36,7 +36,7 @@ public class TpmCommands {
             command.addArgument(String.format("-i %s", index), false);
             command.addArgument(String.format("-s %s", size), false);
             command.addArgument("-pOWNER_PASSWORD");
-            Result result = ExecUtil.execute(command, variables);
+            ProcessResult result = ProcessExecutor.getInstance().execute(command, variables);
             if (result.getExitCode() == 0) {
                 return result.getStdout();
             } else {
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.exec;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * These tests use sh, so they only run where /bin/sh is available.
+ */
+public class ProcessExecutorTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ProcessExecutorTest.class);
+    private static final Map<String, String> NONE = Collections.emptyMap();
+
+    private ProcessResult sh(ProcessExecutor executor, String script, long timeout) throws Exception {
+        Assume.assumeTrue(new File("/bin/sh").canExecute());
+        return executor.execute(Arrays.asList("/bin/sh", "-c", script), Collections.singletonMap("SECRET", "s3cret"), timeout);
+    }
+
+    @Test
+    public void testOutputAndEnvironment() throws Exception {
+        ProcessExecutor executor = new ProcessExecutor(10000, 4, 2, 1024);
+        ProcessResult result = sh(executor, "echo $SECRET; echo error >&2; exit 3", 10000);
+        assertEquals(3, result.getExitCode());
+        assertEquals("s3cret\n", result.getStdout());
+        assertEquals("error\n", result.getStderr());
+        assertFalse(result.isTruncated());
+        ProcessMetrics metrics = executor.getMetrics().get("sh");
+        assertEquals(1, metrics.getStarted());
+        assertEquals(Long.valueOf(1), metrics.getExitCodes().get(3));
+        assertEquals(1, metrics.getWaitMillis().getCount());
+    }
+
+    @Test
+    public void testLargeOutputIsDrainedAndTruncated() throws Exception {
+        ProcessExecutor executor = new ProcessExecutor(10000, 4, 2, 1024);
+        // more than a pipe buffer on both streams, which blocks a command when one of them is not read
+        ProcessResult result = sh(executor, "i=0; while [ $i -lt 2000 ]; do echo 0123456789012345678901234567890123456789012345678901234567890123; echo 0123456789012345678901234567890123456789012345678901234567890123 >&2; i=$((i+1)); done", 10000);
+        assertEquals(0, result.getExitCode());
+        assertEquals(1024, result.getStdout().length());
+        assertEquals(1024, result.getStderr().length());
+        assertTrue(result.isTruncated());
+    }
+
+    @Test
+    public void testTimeoutKillsChildProcesses() throws Exception {
+        Assume.assumeTrue(new File("/proc").isDirectory());
+        ProcessExecutor executor = new ProcessExecutor(10000, 4, 2, 1024);
+        File marker = File.createTempFile("process", ".marker");
+        marker.delete();
+        long start = System.currentTimeMillis();
+        try {
+            // the child would create the marker file after 2 seconds if it was not killed with its parent
+            sh(executor, "(sleep 2; touch " + marker.getAbsolutePath() + ") & wait", 500);
+            fail("expected timeout");
+        } catch (ProcessTimeoutException e) {
+            log.debug("Timeout after {} ms: {}", System.currentTimeMillis() - start, e.getMessage());
+        }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        Thread.sleep(2500);
+        assertFalse(marker.exists());
+        assertEquals(1, executor.getMetrics().get("sh").getTimeouts());
+        assertEquals(0, executor.getMetrics().get("sh").getRunning());
+    }
+
+    @Test
+    public void testKillCommandsOfThread() throws Exception {
+        Assume.assumeTrue(new File("/proc").isDirectory());
+        final ProcessExecutor executor = new ProcessExecutor(10000, 4, 2, 1024);
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            final Thread[] thread = new Thread[1];
+            Future<ProcessResult> result = caller.submit(new Callable<ProcessResult>() {
+                @Override
+                public ProcessResult call() throws Exception {
+                    thread[0] = Thread.currentThread();
+                    return sh(executor, "sleep 30", 60000);
+                }
+            });
+            while (executor.getMetrics().get("sh") == null || executor.getMetrics().get("sh").getRunning() == 0) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, executor.kill(Thread.currentThread()));
+            assertEquals(1, executor.kill(thread[0]));
+            assertTrue(result.get(5, TimeUnit.SECONDS).getExitCode() != 0);
+            assertEquals(0, executor.kill(thread[0]));
+        } finally {
+            caller.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTimeoutKillsReparentedProcesses() throws Exception {
+        Assume.assumeTrue(new File("/proc").isDirectory() && (new File("/usr/bin/setsid").canExecute() || new File("/bin/setsid").canExecute()));
+        ProcessExecutor executor = new ProcessExecutor(10000, 4, 2, 1024);
+        File marker = File.createTempFile("process", ".marker");
+        marker.delete();
+        try {
+            // the subshell exits at once, so the sleeping grandchild is no longer a descendant of sh when it is killed
+            sh(executor, "(sh -c 'sleep 2; touch " + marker.getAbsolutePath() + "' > /dev/null 2>&1 &); sleep 10", 500);
+            fail("expected timeout");
+        } catch (ProcessTimeoutException e) {
+            log.debug("Timeout: {}", e.getMessage());
+        }
+        Thread.sleep(2500);
+        assertFalse(marker.exists());
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        final ProcessExecutor executor = new ProcessExecutor(10000, 4, 1, 1024);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            Future<ProcessResult> first = threads.submit(new Callable<ProcessResult>() {
+                @Override
+                public ProcessResult call() throws Exception {
+                    return sh(executor, "sleep 1", 5000);
+                }
+            });
+            Thread.sleep(200);
+            try {
+                sh(executor, "true", 200);
+                fail("expected the second sh to wait for the first");
+            } catch (ProcessTimeoutException e) {
+                log.debug("Rejected: {}", e.getMessage());
+            }
+            assertEquals(0, first.get().getExitCode());
+            assertEquals(1, executor.getMetrics().get("sh").getRejected());
+            assertEquals(0, sh(executor, "true", 1000).getExitCode());
+        } finally {
+            threads.shutdown();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MetricRegistryTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(MetricRegistryTest.class);
+
+    @Test
+    public void testLatencyHistogramBuckets() {
+        for (long micros = 0; micros < 1000000; micros += 7) {
+            int index = LatencyHistogram.indexOf(micros);
+            assertTrue(micros < LatencyHistogram.upperBoundOf(index));
+            assertTrue(index == 0 || micros >= LatencyHistogram.upperBoundOf(index - 1));
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, TimeUnit.NANOSECONDS.toMillis(histogram.getSumNanos()));
+        assertEquals(65, histogram.getCountBelow(65536)); // 1 to 65 ms are below 65.536 ms
+        long median = histogram.getValueAtPercentile(50);
+        assertTrue(median >= 50000 && median <= 50000 * 1.125);
+    }
+
+    @Test
+    public void testPrometheusFormat() throws IOException {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("test_requests_total", "Requests", "cache", "a\"b").add(3);
+        registry.histograms("test_duration_seconds", "Durations", "stage").get("quote").record(1, TimeUnit.MILLISECONDS);
+        registry.gauge("test_threads", "Threads", new Gauge() {
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        });
+        StringWriter out = new StringWriter();
+        registry.write(out);
+        String text = out.toString();
+        log.debug("Metrics:\n{}", text);
+        assertTrue(text.contains("# TYPE test_requests_total counter\ntest_requests_total{cache=\"a\\\"b\"} 3\n"));
+        assertTrue(text.contains("test_duration_seconds_bucket{stage=\"quote\",le=\"5.12E-4\"} 0\n"));
+        assertTrue(text.contains("test_duration_seconds_bucket{stage=\"quote\",le=\"0.001024\"} 1\n"));
+        assertTrue(text.contains("test_duration_seconds_count{stage=\"quote\"} 1\n"));
+        assertTrue(text.contains("test_threads 7\n"));
+        assertTrue(text.indexOf("test_duration_seconds") < text.indexOf("test_requests_total"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNameUsedForAnotherType() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("test_metric", "A counter");
+        registry.histogram("test_metric", "A histogram");
+    }
+}
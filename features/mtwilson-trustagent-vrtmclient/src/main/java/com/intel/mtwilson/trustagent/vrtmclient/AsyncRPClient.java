@@ -0,0 +1,777 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.vrtmclient;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends rpcore calls without blocking the calling thread. Calls are queued
+ * and written to a few persistent connections, and the result is delivered
+ * to a CompletionHandler or a Future when rpcore responds, so a request
+ * thread does not wait while rpcore works.
+ *
+ * A connection can have up to pipelineDepth calls in flight. rpcore
+ * responses carry no request id, so they are matched to the calls in the
+ * order the calls were written; a depth greater than 1 requires an rpcore
+ * that answers the calls on a connection in order. New calls go to the
+ * least busy connection, and another connection is opened before calls
+ * are pipelined on a busy one.
+ *
+ * The read timeout applies while a connection waits for a response. A call
+ * that times out fails with a SocketTimeoutException and is not sent again.
+ * When a connection fails or is closed by rpcore, its other calls are sent
+ * once more on a new connection, which is safe because the rpcore calls
+ * only read the VM status. After a connect failure no connection is opened
+ * for a backoff time that doubles with each failure, from 100 ms up to 30
+ * seconds, and calls that arrive while no connection is open fail at once.
+ *
+ * At most maxWaiting calls wait for room on a connection, and each waits at
+ * most waitTimeoutMillis; a call beyond the limit fails at once, and a call
+ * that waits too long fails with a SocketTimeoutException, so a slow rpcore
+ * cannot make the queue grow without bound. Calls that are sent again after
+ * a connection failed are not counted against the limit.
+ */
+public class AsyncRPClient implements Closeable {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(AsyncRPClient.class);
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    private static final int MAX_ATTEMPTS = 2;
+    private static final AtomicInteger clientCount = new AtomicInteger();
+    private final InetSocketAddress endpoint;
+    private final long connectTimeoutMillis;
+    private final long readTimeoutMillis;
+    private final int maxConnections;
+    private final int pipelineDepth;
+    private final long idleTimeoutMillis;
+    private final int maxWaiting;
+    private final long waitTimeoutMillis;
+    private final ExecutorService executor;
+    private final AsynchronousChannelGroup group;
+    private final ScheduledThreadPoolExecutor timer;
+    private final ByteBufferPool buffers = new ByteBufferPool(8192, 64);
+    private final AtomicLong connects = new AtomicLong();
+    private final Object lock = new Object();
+    // the fields below are guarded by lock
+    private final ArrayDeque<Call> waiting = new ArrayDeque<>();
+    private final List<Connection> connections = new ArrayList<>();
+    private long backoffMillis = 0;
+    private long nextConnectAttempt = 0;
+    private boolean closed = false;
+
+    /**
+     *
+     * @param hostName of rpcore, usually 127.0.0.1
+     * @param port of rpcore, usually 16005
+     * @param connectTimeoutMillis
+     * @param readTimeoutMillis how long to wait for a response
+     * @param maxConnections most connections open at the same time
+     * @param pipelineDepth most calls in flight on one connection
+     * @param idleTimeoutMillis connections idle longer than this are closed instead of reused
+     * @param maxWaiting most calls waiting for room on a connection
+     * @param waitTimeoutMillis how long a call may wait for room on a connection
+     * @throws IOException if the channel group cannot be created
+     */
+    public AsyncRPClient(String hostName, int port, int connectTimeoutMillis, int readTimeoutMillis, int maxConnections, int pipelineDepth, long idleTimeoutMillis, int maxWaiting, long waitTimeoutMillis) throws IOException {
+        this.endpoint = new InetSocketAddress(hostName, port);
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.pipelineDepth = Math.max(1, pipelineDepth);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxWaiting = Math.max(1, maxWaiting);
+        this.waitTimeoutMillis = waitTimeoutMillis;
+        final int id = clientCount.incrementAndGet();
+        // completion handlers may resume http responses, so the group threads are not a fixed pool
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "vrtm-client-" + id + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.group = AsynchronousChannelGroup.withCachedThreadPool(executor, 1);
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "vrtm-timer-" + id);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // most waiting calls get a connection before they time out
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    public InetSocketAddress getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     *
+     * @return number of connections opened since the client was created
+     */
+    public long getConnects() {
+        return connects.get();
+    }
+
+    public int getOpenConnections() {
+        synchronized (lock) {
+            return connections.size();
+        }
+    }
+
+    /**
+     *
+     * @return number of calls waiting for a connection
+     */
+    public int getWaitingCalls() {
+        synchronized (lock) {
+            return waiting.size();
+        }
+    }
+
+    public Future<TCBuffer> send(TCBuffer request) {
+        ResponseFuture<TCBuffer> future = new ResponseFuture<>();
+        send(request, future);
+        return future;
+    }
+
+    /**
+     * Queues the call and returns immediately. The handler is called once,
+     * on a client thread, even when the call is rejected right away, so a
+     * handler that sends another call does not recurse. Only when the
+     * client is closed is the handler called on the calling thread.
+     */
+    public void send(TCBuffer request, CompletionHandler<TCBuffer, Void> handler) {
+        final Call call = new Call(request, handler);
+        IOException rejected = null;
+        synchronized (lock) {
+            if (closed) {
+                rejected = new IOException("Client for " + endpoint + " is closed");
+            } else if (waiting.size() >= maxWaiting) {
+                rejected = new IOException("Too many calls waiting for rpcore at " + endpoint);
+            } else {
+                waiting.addLast(call);
+                call.expiry = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        expire(call);
+                    }
+                }, waitTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (rejected != null) {
+            failLater(Collections.singletonList(call), rejected);
+            return;
+        }
+        dispatch();
+    }
+
+    public Future<Boolean> getVmStatus(String vmInstanceId) {
+        ResponseFuture<Boolean> future = new ResponseFuture<>();
+        getVmStatus(vmInstanceId, future);
+        return future;
+    }
+
+    public void getVmStatus(String vmInstanceId, final CompletionHandler<Boolean, Void> handler) {
+        send(RPClient.vmStatusRequest(vmInstanceId), new CompletionHandler<TCBuffer, Void>() {
+            @Override
+            public void completed(TCBuffer response, Void attachment) {
+                boolean status;
+                try {
+                    status = RPClient.parseVmStatus(response);
+                } catch (IOException | RuntimeException e) {
+                    handler.failed(e, null);
+                    return;
+                }
+                handler.completed(status, null);
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                handler.failed(exc, null);
+            }
+        });
+    }
+
+    public Future<String> getVMAttestationReportPath(String vmInstanceId, String nonce) {
+        ResponseFuture<String> future = new ResponseFuture<>();
+        getVMAttestationReportPath(vmInstanceId, nonce, future);
+        return future;
+    }
+
+    public void getVMAttestationReportPath(String vmInstanceId, String nonce, final CompletionHandler<String, Void> handler) {
+        send(RPClient.reportPathRequest(vmInstanceId, nonce), new CompletionHandler<TCBuffer, Void>() {
+            @Override
+            public void completed(TCBuffer response, Void attachment) {
+                String path;
+                try {
+                    path = RPClient.parseReportPath(response);
+                } catch (IOException | RuntimeException e) {
+                    handler.failed(e, null);
+                    return;
+                }
+                handler.completed(path, null);
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                handler.failed(exc, null);
+            }
+        });
+    }
+
+    /**
+     * Assigns waiting calls to connections that have room for them, opening
+     * connections as needed. The I/O is started after the lock is released.
+     */
+    private void dispatch() {
+        List<Connection> idle = new ArrayList<>();
+        List<Connection> toConnect = new ArrayList<>();
+        List<Connection> toWrite = new ArrayList<>();
+        List<Call> rejected = new ArrayList<>();
+        long wait = 0;
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            Iterator<Connection> iterator = connections.iterator();
+            while (iterator.hasNext()) {
+                Connection connection = iterator.next();
+                if (connection.state == State.OPEN && connection.inFlight() == 0 && now - connection.lastUsed > idleTimeoutMillis) {
+                    connection.state = State.CLOSED;
+                    iterator.remove();
+                    idle.add(connection);
+                }
+            }
+            while (!waiting.isEmpty()) {
+                Connection connection = leastBusy();
+                if ((connection == null || connection.inFlight() > 0) && connections.size() < maxConnections && now >= nextConnectAttempt) {
+                    connection = new Connection();
+                    connections.add(connection);
+                    toConnect.add(connection);
+                }
+                if (connection == null) {
+                    // no connection is open and rpcore is in backoff
+                    wait = nextConnectAttempt - now;
+                    rejected.addAll(waiting);
+                    waiting.clear();
+                    break;
+                }
+                if (connection.inFlight() >= pipelineDepth) {
+                    break;
+                }
+                Call call = waiting.pollFirst();
+                if (call.expiry != null) {
+                    call.expiry.cancel(false);
+                    call.expiry = null;
+                }
+                call.attempts++;
+                connection.pending.addLast(call);
+                if (connection.state == State.OPEN && !connection.writing) {
+                    connection.writing = true;
+                    toWrite.add(connection);
+                }
+            }
+        }
+        for (Connection connection : idle) {
+            log.debug("Closing connection to {} after idle timeout", endpoint);
+            connection.close();
+        }
+        if (!rejected.isEmpty()) {
+            failLater(rejected, new IOException("rpcore at " + endpoint + " is unavailable, next connect in " + wait + " ms"));
+        }
+        for (Connection connection : toConnect) {
+            connect(connection);
+        }
+        for (Connection connection : toWrite) {
+            writeNext(connection);
+        }
+    }
+
+    /**
+     * Fails a call that is still waiting for room on a connection after
+     * waitTimeoutMillis.
+     */
+    private void expire(Call call) {
+        boolean expired;
+        synchronized (lock) {
+            expired = waiting.remove(call);
+        }
+        if (expired) {
+            failLater(Collections.singletonList(call), new SocketTimeoutException("Timed out waiting for a connection to rpcore at " + endpoint));
+        }
+    }
+
+    /**
+     * Fails the calls on a client thread, or on the calling thread if the
+     * client is closed.
+     */
+    private void failLater(final List<Call> calls, final IOException error) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Call call : calls) {
+                        call.failed(error);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            for (Call call : calls) {
+                call.failed(error);
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the lock.
+     *
+     * @return the connection with the fewest calls in flight, or null if there are no connections
+     */
+    private Connection leastBusy() {
+        Connection best = null;
+        for (Connection connection : connections) {
+            if (best == null || connection.inFlight() < best.inFlight()) {
+                best = connection;
+            }
+        }
+        return best;
+    }
+
+    private void connect(final Connection connection) {
+        final AsynchronousSocketChannel channel;
+        try {
+            channel = AsynchronousSocketChannel.open(group);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        } catch (IOException e) {
+            connectFailed(connection, e);
+            return;
+        }
+        connection.channel = channel;
+        final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connection.connectTimedOut = true;
+                connection.close();
+            }
+        }, connectTimeoutMillis, TimeUnit.MILLISECONDS);
+        channel.connect(endpoint, connection, new CompletionHandler<Void, Connection>() {
+            @Override
+            public void completed(Void result, Connection attachment) {
+                timeout.cancel(false);
+                connected(connection);
+            }
+
+            @Override
+            public void failed(Throwable exc, Connection attachment) {
+                timeout.cancel(false);
+                if (connection.connectTimedOut) {
+                    exc = new SocketTimeoutException("Timed out connecting to rpcore at " + endpoint);
+                }
+                connectFailed(connection, exc);
+            }
+        });
+    }
+
+    private void connected(Connection connection) {
+        boolean write = false;
+        synchronized (lock) {
+            backoffMillis = 0;
+            nextConnectAttempt = 0;
+            if (connection.state == State.CONNECTING) {
+                connection.state = State.OPEN;
+                connection.lastUsed = System.currentTimeMillis();
+                if (!connection.pending.isEmpty() && !connection.writing) {
+                    connection.writing = true;
+                    write = true;
+                }
+            }
+        }
+        connects.incrementAndGet();
+        log.debug("Connected to rpcore at {}", endpoint);
+        if (write) {
+            writeNext(connection);
+        }
+    }
+
+    private void connectFailed(Connection connection, Throwable exc) {
+        long backoff;
+        synchronized (lock) {
+            backoffMillis = backoffMillis == 0 ? MIN_BACKOFF_MILLIS : Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+            nextConnectAttempt = System.currentTimeMillis() + backoffMillis;
+            backoff = backoffMillis;
+        }
+        log.warn("Cannot connect to rpcore at {}, retry in {} ms: {}", endpoint, backoff, exc.getMessage());
+        connection.connectFailed = true;
+        connectionFailed(connection, exc);
+    }
+
+    /**
+     * Writes the next pending call, if any. Only one write is outstanding
+     * on a connection; the writing flag is set by the caller and cleared
+     * here when there is nothing left to write.
+     */
+    private void writeNext(final Connection connection) {
+        final Call call;
+        boolean read = false;
+        synchronized (lock) {
+            call = connection.state == State.OPEN ? connection.pending.pollFirst() : null;
+            if (call == null) {
+                connection.writing = false;
+                return;
+            }
+            connection.awaiting.addLast(call);
+            if (!connection.reading) {
+                connection.reading = true;
+                read = true;
+            }
+        }
+        final ByteBuffer buffer = buffers.acquire(call.request.getSerializedSize());
+        call.request.encode(buffer);
+        buffer.flip();
+        connection.channel.write(buffer, connection, new CompletionHandler<Integer, Connection>() {
+            @Override
+            public void completed(Integer result, Connection attachment) {
+                if (buffer.hasRemaining()) {
+                    connection.channel.write(buffer, connection, this);
+                    return;
+                }
+                buffers.release(buffer);
+                writeNext(connection);
+            }
+
+            @Override
+            public void failed(Throwable exc, Connection attachment) {
+                buffers.release(buffer);
+                connectionFailed(connection, exc);
+            }
+        });
+        if (read) {
+            readHeader(connection);
+        }
+    }
+
+    private void readHeader(final Connection connection) {
+        connection.header.clear();
+        connection.channel.read(connection.header, readTimeoutMillis, TimeUnit.MILLISECONDS, connection, new CompletionHandler<Integer, Connection>() {
+            @Override
+            public void completed(Integer result, Connection attachment) {
+                if (result < 0) {
+                    connectionFailed(connection, new EOFException("rpcore at " + endpoint + " closed the connection"));
+                    return;
+                }
+                if (connection.header.hasRemaining()) {
+                    connection.channel.read(connection.header, readTimeoutMillis, TimeUnit.MILLISECONDS, connection, this);
+                    return;
+                }
+                connection.header.flip();
+                TCBuffer response = new TCBuffer();
+                try {
+                    response.decodeHeader(connection.header);
+                } catch (IOException e) {
+                    connectionFailed(connection, e);
+                    return;
+                }
+                readPayload(connection, response);
+            }
+
+            @Override
+            public void failed(Throwable exc, Connection attachment) {
+                connectionFailed(connection, exc);
+            }
+        });
+    }
+
+    private void readPayload(final Connection connection, final TCBuffer response) {
+        if (response.getRPCPayloadSize() == 0) {
+            response.setRPCPayload(new byte[0]);
+            responseReceived(connection, response);
+            return;
+        }
+        final ByteBuffer buffer = buffers.acquire(response.getRPCPayloadSize());
+        connection.channel.read(buffer, readTimeoutMillis, TimeUnit.MILLISECONDS, connection, new CompletionHandler<Integer, Connection>() {
+            @Override
+            public void completed(Integer result, Connection attachment) {
+                if (result < 0) {
+                    buffers.release(buffer);
+                    connectionFailed(connection, new EOFException("rpcore at " + endpoint + " closed the connection"));
+                    return;
+                }
+                if (buffer.hasRemaining()) {
+                    connection.channel.read(buffer, readTimeoutMillis, TimeUnit.MILLISECONDS, connection, this);
+                    return;
+                }
+                buffer.flip();
+                byte[] payload = new byte[buffer.remaining()];
+                buffer.get(payload);
+                buffers.release(buffer);
+                response.setRPCPayload(payload);
+                responseReceived(connection, response);
+            }
+
+            @Override
+            public void failed(Throwable exc, Connection attachment) {
+                buffers.release(buffer);
+                connectionFailed(connection, exc);
+            }
+        });
+    }
+
+    private void responseReceived(Connection connection, TCBuffer response) {
+        Call call;
+        boolean more;
+        synchronized (lock) {
+            call = connection.awaiting.pollFirst();
+            connection.lastUsed = System.currentTimeMillis();
+            more = !connection.awaiting.isEmpty();
+            if (!more) {
+                connection.reading = false;
+            }
+        }
+        if (call == null) {
+            connectionFailed(connection, new IOException("Unexpected response from rpcore at " + endpoint));
+            return;
+        }
+        call.completed(response);
+        if (more) {
+            readHeader(connection);
+        }
+        dispatch();
+    }
+
+    /**
+     * Closes the connection and settles its calls: a call that timed out
+     * fails, and the others are sent again if they have attempts left and
+     * the connection had been open.
+     */
+    private void connectionFailed(Connection connection, Throwable exc) {
+        List<Call> failed = new ArrayList<>();
+        List<Call> retry = new ArrayList<>();
+        boolean timeout = exc instanceof InterruptedByTimeoutException;
+        synchronized (lock) {
+            if (connection.state == State.CLOSED) {
+                return;
+            }
+            connection.state = State.CLOSED;
+            connections.remove(connection);
+            Call timedOut = timeout ? connection.awaiting.peekFirst() : null;
+            List<Call> calls = new ArrayList<>(connection.awaiting);
+            calls.addAll(connection.pending);
+            connection.awaiting.clear();
+            connection.pending.clear();
+            for (Call call : calls) {
+                if (closed || connection.connectFailed || call == timedOut || call.attempts >= MAX_ATTEMPTS) {
+                    failed.add(call);
+                } else {
+                    retry.add(call);
+                }
+            }
+            for (int i = retry.size() - 1; i >= 0; i--) {
+                waiting.addFirst(retry.get(i));
+            }
+        }
+        connection.close();
+        IOException error;
+        if (timeout) {
+            error = new SocketTimeoutException("Timed out waiting for rpcore at " + endpoint);
+        } else if (exc instanceof IOException) {
+            error = (IOException) exc;
+        } else {
+            error = new IOException(exc);
+        }
+        if (!retry.isEmpty()) {
+            log.debug("Connection to {} failed, sending {} calls again on a new connection: {}", endpoint, retry.size(), error.getMessage());
+        }
+        for (Call call : failed) {
+            call.failed(error);
+        }
+        if (!retry.isEmpty()) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Closes the connections and fails the calls that have not completed.
+     */
+    @Override
+    public void close() {
+        List<Call> rejected;
+        List<Connection> open;
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            rejected = new ArrayList<>(waiting);
+            waiting.clear();
+            open = new ArrayList<>(connections);
+        }
+        IOException error = new IOException("Client for " + endpoint + " is closed");
+        for (Connection connection : open) {
+            connectionFailed(connection, error);
+        }
+        for (Call call : rejected) {
+            call.failed(error);
+        }
+        timer.shutdownNow();
+        try {
+            group.shutdownNow();
+        } catch (IOException e) {
+            log.debug("Error closing channel group: {}", e.getMessage());
+        }
+    }
+
+    private static enum State {
+        CONNECTING, OPEN, CLOSED
+    }
+
+    private class Connection {
+        private final ArrayDeque<Call> pending = new ArrayDeque<>(); // assigned, not written yet
+        private final ArrayDeque<Call> awaiting = new ArrayDeque<>(); // written, in the order the responses will arrive
+        private final ByteBuffer header = ByteBuffer.allocate(TCBuffer.HEADER_SIZE);
+        private volatile AsynchronousSocketChannel channel;
+        private volatile boolean connectTimedOut = false;
+        private volatile boolean connectFailed = false;
+        private State state = State.CONNECTING;
+        private boolean writing = false;
+        private boolean reading = false;
+        private long lastUsed = System.currentTimeMillis();
+
+        private int inFlight() {
+            return pending.size() + awaiting.size();
+        }
+
+        private void close() {
+            AsynchronousSocketChannel c = channel;
+            if (c == null) {
+                return;
+            }
+            try {
+                c.close();
+            } catch (IOException e) {
+                log.debug("Error closing connection: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static class Call {
+        private final TCBuffer request;
+        private final CompletionHandler<TCBuffer, Void> handler;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private int attempts = 0; // guarded by the client lock
+        private ScheduledFuture<?> expiry = null; // guarded by the client lock, set while the call waits for the first time
+
+        private Call(TCBuffer request, CompletionHandler<TCBuffer, Void> handler) {
+            this.request = request;
+            this.handler = handler;
+        }
+
+        private void completed(TCBuffer response) {
+            if (done.compareAndSet(false, true)) {
+                try {
+                    handler.completed(response, null);
+                } catch (RuntimeException e) {
+                    log.error("Error in rpcore response handler", e);
+                }
+            }
+        }
+
+        private void failed(Throwable exc) {
+            if (done.compareAndSet(false, true)) {
+                try {
+                    handler.failed(exc, null);
+                } catch (RuntimeException e) {
+                    log.error("Error in rpcore failure handler", e);
+                }
+            }
+        }
+    }
+
+    private static class ResponseFuture<T> implements Future<T>, CompletionHandler<T, Void> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile T result;
+        private volatile Throwable error;
+
+        @Override
+        public void completed(T result, Void attachment) {
+            this.result = result;
+            done.countDown();
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            this.error = exc;
+            done.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            done.await();
+            return value();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return value();
+        }
+
+        private T value() throws ExecutionException {
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return result;
+        }
+    }
+}
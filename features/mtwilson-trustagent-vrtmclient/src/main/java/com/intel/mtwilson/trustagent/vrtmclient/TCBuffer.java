@@ -1,5 +1,7 @@
 package com.intel.mtwilson.trustagent.vrtmclient;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -8,36 +10,23 @@ import java.nio.ByteOrder;
 
 public class TCBuffer {
 	public static final int SIZE = 20;
+	/** call index, payload size and call status, each a 4 byte little endian int */
+	public static final int HEADER_SIZE = 12;
+	public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
 	private static final String EMPTY = "EMPTY"; 
-	//private ByteBuffer brpId;
-	private ByteBuffer brpcCallIndex;
-	private ByteBuffer brpcPayloadSize;
-	private ByteBuffer brpcCallStatus;
-	//private ByteBuffer boriginalRpId;
+	private int rpcCallIndex;
+	private int rpcPayloadSize;
+	private int rpcCallStatus;
 	private byte[]     rpcPayload;
 	
 	public TCBuffer(){
-		//brpId 		  = ByteBuffer.allocate(4);
-		brpcCallIndex = ByteBuffer.allocate(4);
-		brpcPayloadSize  = ByteBuffer.allocate(4);
-		brpcCallStatus   = ByteBuffer.allocate(4);
-		//boriginalRpId = ByteBuffer.allocate(4);
-		rpcPayload    =  "EMPTY".getBytes();
-		// set buffer to little endian format
-		//brpId.order(ByteOrder.LITTLE_ENDIAN);
-		brpcCallIndex.order(ByteOrder.LITTLE_ENDIAN);
-		brpcPayloadSize.order(ByteOrder.LITTLE_ENDIAN);
-		brpcCallStatus.order(ByteOrder.LITTLE_ENDIAN);
-		//boriginalRpId.order(ByteOrder.LITTLE_ENDIAN);
+		setRPCPayload(EMPTY.getBytes());
 	}
 
 	public TCBuffer(int rpcCallIndex, int rpcCallStatus, String rpcPayload){
 		this();
-		//setRpId(rpId);
 		setRPCCallIndex(rpcCallIndex);
-		setRPCPayloadSize(rpcPayload.length());
 		setRPCCallStatus(rpcCallStatus);
-		//setOriginalRpId(originalRpId);
 		setRPCPayload(rpcPayload.getBytes());
 	}
 
@@ -49,120 +38,112 @@ public class TCBuffer {
 		return new String(rpcPayload);
 	}
 
+	public byte[] getRPCPayloadBytes() {
+		return rpcPayload;
+	}
+
 	public void setRPCPayload(byte[] rpcPayload) {
 		this.rpcPayload = rpcPayload;
 		setRPCPayloadSize(this.rpcPayload.length);
 	}
 
-/*	public int getRpId() {
-		if(null != brpId) {
-			brpId.rewind();
-			return brpId.getInt();
-		}
-		return -1;
-	}
-	public void setRpId(int rpId) {
-		brpId.clear();
-		brpId.putInt(rpId);
-	}
-*/	
 	public int getRPCCallIndex() {
-		if(null != brpcCallIndex){
-			brpcCallIndex.rewind();
-			return brpcCallIndex.getInt();
-		}
-		return -1;
+		return rpcCallIndex;
 	}
 	public void setRPCCallIndex(int rpcCallIndex) {
-		brpcCallIndex.clear();
-		brpcCallIndex.putInt(rpcCallIndex);
+		this.rpcCallIndex = rpcCallIndex;
 	}
 	
 	public int getRPCCallStatus() {
-		if( null != brpcCallStatus) {
-			brpcCallStatus.rewind();
-			return brpcCallStatus.getInt();
-		}
-		return -1;
+		return rpcCallStatus;
 	}
 	public void setRPCCallStatus(int callStatus) {
-		brpcCallStatus.clear();
-		brpcCallStatus.putInt(callStatus);
+		this.rpcCallStatus = callStatus;
 	}
 	
-	/*public int getOriginalRpId() {
-		if(null != boriginalRpId){
-			boriginalRpId.rewind();
-			return boriginalRpId.getInt();
-		}
-		return -1;
+	public void setRPCPayloadSize(int payloadSize){
+		this.rpcPayloadSize = payloadSize;
+	}
+	public int getRPCPayloadSize(){
+		return rpcPayloadSize;
 	}
-	public void setOriginalRpId(int originalRpId) {
-		boriginalRpId.clear();
-		boriginalRpId.putInt(originalRpId);
-	}*/
 	
+	/**
+	 * 
+	 * @return number of bytes written by encode and serializeTCBuffer
+	 */
+	public int getSerializedSize() {
+		return HEADER_SIZE + rpcPayload.length;
+	}
 	
-	public void setRPCPayloadSize(int payloadSize){
-		brpcPayloadSize.clear();
-		brpcPayloadSize.putInt(payloadSize);
+	/**
+	 * Writes the header and the payload into the buffer at its current
+	 * position. The buffer must have getSerializedSize() bytes remaining.
+	 * The byte order of the buffer is not changed.
+	 * @param buffer
+	 */
+	public void encode(ByteBuffer buffer) {
+		ByteOrder order = buffer.order();
+		encodeHeader(buffer);
+		buffer.order(order);
+		buffer.put(rpcPayload);
 	}
-	public int getRPCPayloadSize(){
-		if(null != brpcPayloadSize){
-			brpcPayloadSize.rewind();
-			return brpcPayloadSize.getInt();
+	
+	/**
+	 * Reads the 12 byte header from the buffer at its current position.
+	 * The payload that follows is set separately with setRPCPayload after
+	 * getRPCPayloadSize bytes were read.
+	 * @param buffer with at least HEADER_SIZE bytes remaining
+	 * @throws IOException if the payload size is negative or larger than MAX_PAYLOAD_SIZE
+	 */
+	public void decodeHeader(ByteBuffer buffer) throws IOException {
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		rpcCallIndex = buffer.getInt();
+		rpcPayloadSize = buffer.getInt();
+		rpcCallStatus = buffer.getInt();
+		buffer.order(order);
+		if (rpcPayloadSize < 0 || rpcPayloadSize > MAX_PAYLOAD_SIZE) {
+			throw new IOException("Invalid RPC payload size " + rpcPayloadSize);
 		}
-		return -1;
 	}
 	
-	
 	public void serializeTCBuffer(OutputStream out) throws IOException{
-		//out.write(brpId.array());
-		out.write(brpcCallIndex.array());
-		out.write(brpcPayloadSize.array());
-		out.write(brpcCallStatus.array());
-		//out.write(boriginalRpId.array());
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		encodeHeader(header);
+		out.write(header.array());
 		out.write(rpcPayload);
 		out.flush();
 	}
-	private void setInternalValues(ByteBuffer buffer, byte[] b) {
-		buffer.clear();
-		buffer.put(b);
+	
+	private void encodeHeader(ByteBuffer buffer) {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(rpcCallIndex);
+		buffer.putInt(rpcPayload.length);
+		buffer.putInt(rpcCallStatus);
 	}
+	
 	/**
-	 * This function only set first 20 byte of TCBuffer
-	 * @param tcBufferByteStream
-	 * @throws IOException
+	 * Reads one complete TCBuffer: the 12 byte header and then the payload.
+	 * Each part is read fully, so the stream is positioned at the next
+	 * TCBuffer and a connection can be used for more than one call.
+	 * @param in
+	 * @throws IOException if the stream ends before the whole TCBuffer was read
 	 */
 	public void deSerializeTCBuffer(InputStream in) throws IOException{
-		byte[] bigBytes = new byte[4];
-		//in.read(bigBytes);
-		//setInternalValues(brpId, bigBytes);
-		int brpcCallIndexreturnValue = in.read(bigBytes);
-                if (brpcCallIndexreturnValue != 4) {
-                    throw new IOException("Error reading BRPC call index");
-                }
-                setInternalValues(brpcCallIndex, bigBytes);
-		
-		int brpcPayloadSizeReturnValue = in.read(bigBytes);
-                if (brpcPayloadSizeReturnValue != 4) {
-                    throw new IOException("Error reading BRPC payload size");
-                }
-		setInternalValues(brpcPayloadSize, bigBytes);
-                
-		int brpcCallStatusReturnValue = in.read(bigBytes);
-                if (brpcCallStatusReturnValue != 4) {
-                    throw new IOException("Error reading BRPC call status");
-                }
-		setInternalValues(brpcCallStatus, bigBytes);
-                
-		//in.read(bigBytes);
-		//setInternalValues(boriginalRpId, bigBytes);
-		
-                rpcPayload = new byte[getRPCPayloadSize()];
-		int rpcPayloadReturnValue = in.read(rpcPayload);
-                if (rpcPayloadReturnValue != rpcPayload.length && rpcPayloadReturnValue != -1) {
-                    throw new IOException("Error reading RPC payload");
-                }
+		DataInputStream data = new DataInputStream(in);
+		byte[] header = new byte[HEADER_SIZE];
+		readFully(data, header, "Error reading BRPC header");
+		decodeHeader(ByteBuffer.wrap(header));
+		rpcPayload = new byte[rpcPayloadSize];
+		readFully(data, rpcPayload, "Error reading RPC payload");
+	}
+	
+	private static void readFully(DataInputStream in, byte[] b, String message) throws IOException {
+		try {
+			in.readFully(b);
+		} catch (EOFException e) {
+			throw new EOFException(message);
+		}
 	}
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.vrtmclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Encodes the XML-RPC method calls sent to rpcore and decodes its method
+ * responses. rpcore expects every parameter as a base64 string and answers
+ * with a base64 string, for example:
+ *
+ * <pre>
+ * &lt;?xml version='1.0'?&gt;&lt;methodCall&gt;&lt;methodName&gt;get_verification_status&lt;/methodName&gt;&lt;params&gt;&lt;param&gt;&lt;value&gt;&lt;string&gt;base64&lt;/string&gt;&lt;/value&gt;&lt;/param&gt;&lt;/params&gt;&lt;/methodCall&gt;
+ * &lt;?xml version='1.0'?&gt;&lt;methodResponse&gt;&lt;params&gt;&lt;param&gt;&lt;value&gt;&lt;string&gt;MQ==&lt;/string&gt;&lt;/value&gt;&lt;/param&gt;&lt;/params&gt;&lt;/methodResponse&gt;
+ * </pre>
+ *
+ * A call is written straight into the payload array of its TCBuffer, and a
+ * response is read with one StAX pass over the payload bytes without
+ * binding it to objects. The methods are static and thread-safe; the
+ * XMLInputFactory is configured once and shared.
+ */
+public final class XmlRpcCodec {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(XmlRpcCodec.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(ASCII);
+    private static final byte[] CALL_START = "<?xml version='1.0'?><methodCall><methodName>".getBytes(ASCII);
+    private static final byte[] PARAMS_START = "</methodName><params>".getBytes(ASCII);
+    private static final byte[] PARAM_START = "<param><value><string>".getBytes(ASCII);
+    private static final byte[] PARAM_END = "</string></value></param>".getBytes(ASCII);
+    private static final byte[] CALL_END = "</params></methodCall>".getBytes(ASCII);
+    private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+
+    private XmlRpcCodec() {
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     *
+     * @param rpcCall
+     * @param methodName plain ascii method name, it is not escaped
+     * @param params each one is sent as the base64 of its UTF-8 bytes
+     * @return a TCBuffer with the method call as its payload
+     */
+    public static TCBuffer encodeCall(RPCCall rpcCall, String methodName, String... params) {
+        byte[] method = methodName.getBytes(ASCII);
+        byte[][] values = new byte[params.length][];
+        int size = CALL_START.length + method.length + PARAMS_START.length + CALL_END.length;
+        for (int i = 0; i < params.length; i++) {
+            values[i] = params[i].getBytes(UTF8);
+            size += PARAM_START.length + base64Length(values[i].length) + PARAM_END.length;
+        }
+        byte[] payload = new byte[size];
+        int offset = put(CALL_START, payload, 0);
+        offset = put(method, payload, offset);
+        offset = put(PARAMS_START, payload, offset);
+        for (byte[] value : values) {
+            offset = put(PARAM_START, payload, offset);
+            offset = putBase64(value, payload, offset);
+            offset = put(PARAM_END, payload, offset);
+        }
+        put(CALL_END, payload, offset);
+        if (log.isDebugEnabled()) {
+            log.debug("Sending {}", new String(payload, UTF8));
+        }
+        TCBuffer tcBuffer = Factory.newTCBuffer(rpcCall);
+        tcBuffer.setRPCPayload(payload);
+        return tcBuffer;
+    }
+
+    /**
+     *
+     * @param response from rpcore
+     * @return the decoded first parameter of the method response, or null if the response is empty
+     * @throws IOException if the response is a fault or is not a method response with a parameter
+     */
+    public static String decodeResponse(TCBuffer response) throws IOException {
+        if (response.getRPCPayloadSize() == 0) {
+            return null;
+        }
+        byte[] payload = response.getRPCPayloadBytes();
+        if (log.isDebugEnabled()) {
+            log.debug("Method response: {}", new String(payload, UTF8));
+        }
+        String value = readFirstValue(payload);
+        String decoded = new String(DatatypeConverter.parseBase64Binary(value.trim()), UTF8);
+        log.debug("vrtm return value: {}", decoded);
+        return decoded;
+    }
+
+    private static String readFirstValue(byte[] payload) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = xmlInputFactory.createXMLStreamReader(new ByteArrayInputStream(payload));
+            boolean inParam = false;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+                if ("fault".equals(name)) {
+                    throw new IOException("rpcore returned a fault");
+                }
+                if ("param".equals(name)) {
+                    inParam = true;
+                } else if (inParam && "value".equals(name)) {
+                    return readValue(reader);
+                }
+            }
+            throw new IOException("rpcore response has no return value");
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot parse rpcore response: " + e.getMessage(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    log.debug("Cannot close XML reader: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a value that is either typed, like &lt;value&gt;&lt;string&gt;x&lt;/string&gt;&lt;/value&gt;,
+     * or untyped, like &lt;value&gt;x&lt;/value&gt;, which XML-RPC defines as a string.
+     */
+    private static String readValue(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    return reader.getElementText();
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    text.append(reader.getText());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    return text.toString();
+                default:
+                    break;
+            }
+        }
+        return text.toString();
+    }
+
+    private static int put(byte[] source, byte[] target, int offset) {
+        System.arraycopy(source, 0, target, offset, source.length);
+        return offset + source.length;
+    }
+
+    private static int base64Length(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    private static int putBase64(byte[] source, byte[] target, int offset) {
+        int i = 0;
+        for (; i + 2 < source.length; i += 3) {
+            int bits = (source[i] & 0xff) << 16 | (source[i + 1] & 0xff) << 8 | (source[i + 2] & 0xff);
+            target[offset++] = BASE64[bits >>> 18];
+            target[offset++] = BASE64[(bits >>> 12) & 0x3f];
+            target[offset++] = BASE64[(bits >>> 6) & 0x3f];
+            target[offset++] = BASE64[bits & 0x3f];
+        }
+        int remaining = source.length - i;
+        if (remaining > 0) {
+            int bits = (source[i] & 0xff) << 16 | (remaining == 2 ? (source[i + 1] & 0xff) << 8 : 0);
+            target[offset++] = BASE64[bits >>> 18];
+            target[offset++] = BASE64[(bits >>> 12) & 0x3f];
+            target[offset++] = remaining == 2 ? BASE64[(bits >>> 6) & 0x3f] : (byte) '=';
+            target[offset++] = '=';
+        }
+        return offset;
+    }
+}
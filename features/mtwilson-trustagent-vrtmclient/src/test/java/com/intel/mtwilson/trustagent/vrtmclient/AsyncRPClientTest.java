@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.vrtmclient;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.xml.bind.DatatypeConverter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs AsyncRPClient against a fake rpcore on a local port that answers the
+ * calls on each connection in order. AsyncRPClient replaced the blocking
+ * RPClientPool, so these also cover the connection failures the pool was
+ * tested with: a server that closes connections, a slow or stalled server,
+ * a dropped connection, and reconnecting after the backoff.
+ */
+public class AsyncRPClientTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(AsyncRPClientTest.class);
+
+    private static enum Behavior {
+        /** answers with the base64 of "1", the status of a trusted VM */
+        TRUSTED,
+        /** answers with the request payload */
+        ECHO,
+        /** waits longer than the read timeout before answering */
+        SLOW,
+        /** reads the calls but never answers, and keeps the connection open */
+        STALLED,
+        /** closes the connection after each response */
+        CLOSE_AFTER_RESPONSE,
+        /** answers the first call on each connection, then closes it when the next call arrives */
+        DROP_SECOND_CALL
+    }
+
+    private static class FakeRpcore implements Closeable, Runnable {
+        private final ServerSocket server;
+        private final Behavior behavior;
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private FakeRpcore(Behavior behavior) throws IOException {
+            this(behavior, 0);
+        }
+
+        private FakeRpcore(Behavior behavior, int port) throws IOException {
+            this.server = new ServerSocket(port);
+            this.behavior = behavior;
+            Thread thread = new Thread(this, "fake-rpcore");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private int getPort() {
+            return server.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!server.isClosed()) {
+                try {
+                    final Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    Thread connection = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+                    connection.setDaemon(true);
+                    connection.start();
+                } catch (IOException e) {
+                    log.debug("Fake rpcore stopped: {}", e.getMessage());
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (Socket s = socket) {
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                OutputStream out = s.getOutputStream();
+                int callsOnConnection = 0;
+                while (true) {
+                    TCBuffer request = new TCBuffer();
+                    request.deSerializeTCBuffer(in);
+                    calls.incrementAndGet();
+                    callsOnConnection++;
+                    if (behavior == Behavior.DROP_SECOND_CALL && callsOnConnection == 2) {
+                        return;
+                    }
+                    if (behavior == Behavior.SLOW) {
+                        Thread.sleep(2000);
+                    }
+                    if (behavior == Behavior.STALLED) {
+                        continue;
+                    }
+                    if (behavior == Behavior.ECHO) {
+                        new TCBuffer(RPAPIIndex.RP2VM_ISVMVERIFIED, 0, request.getRPCPayload()).serializeTCBuffer(out);
+                        continue;
+                    }
+                    String xml = "<?xml version='1.0'?><methodResponse><params><param><value><string>"
+                            + DatatypeConverter.printBase64Binary("1".getBytes("UTF-8"))
+                            + "</string></value></param></params></methodResponse>";
+                    new TCBuffer(RPAPIIndex.RP2VM_ISVMVERIFIED, 0, xml).serializeTCBuffer(out);
+                    if (behavior == Behavior.CLOSE_AFTER_RESPONSE) {
+                        return;
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                log.debug("Fake rpcore connection ended: {}", e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+
+    private TCBuffer request(String payload) throws IOException {
+        TCBuffer request = Factory.newTCBuffer(RPCCall.IS_VM_VERIFIED);
+        request.setRPCPayload(payload.getBytes("UTF-8"));
+        return request;
+    }
+
+    @Test
+    public void testEncodeDecode() throws Exception {
+        TCBuffer request = request("<methodCall/>");
+        ByteBuffer buffer = ByteBuffer.allocate(request.getSerializedSize());
+        request.encode(buffer);
+        buffer.flip();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.serializeTCBuffer(out);
+        assertArrayEquals(out.toByteArray(), Arrays.copyOf(buffer.array(), buffer.limit()));
+        TCBuffer decoded = new TCBuffer();
+        decoded.decodeHeader(buffer);
+        assertEquals(RPAPIIndex.VM2RP_ISVMVERIFIED, decoded.getRPCCallIndex());
+        assertEquals(13, decoded.getRPCPayloadSize());
+        assertEquals(0, decoded.getRPCCallStatus());
+    }
+
+    @Test
+    public void testManyCallsOnFewConnections() throws Exception {
+        try (FakeRpcore rpcore = new FakeRpcore(Behavior.TRUSTED);
+                AsyncRPClient client = new AsyncRPClient("127.0.0.1", rpcore.getPort(), 1000, 1000, 2, 4, 60000, 100, 5000)) {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                results.add(client.getVmStatus("425d20e9-0132-48d7-a3d6-563775968efe"));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get(5, TimeUnit.SECONDS));
+            }
+            assertTrue(rpcore.connections.get() <= 2);
+            assertEquals(50, rpcore.calls.get());
+        }
+    }
+
+    @Test
+    public void testPipelinedResponsesMatchCalls() throws Exception {
+        try (FakeRpcore rpcore = new FakeRpcore(Behavior.ECHO);
+                AsyncRPClient client = new AsyncRPClient("127.0.0.1", rpcore.getPort(), 1000, 1000, 1, 8, 60000, 100, 5000)) {
+            List<Future<TCBuffer>> results = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                results.add(client.send(request("call " + i)));
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals("call " + i, results.get(i).get(5, TimeUnit.SECONDS).getRPCPayload());
+            }
+            assertEquals(1, rpcore.connections.get());
+            assertEquals(1, client.getConnects());
+        }
+    }
+
+    @Test
+    public void testServerClosesConnectionAfterEachResponse() throws Exception {
+        try (FakeRpcore rpcore = new FakeRpcore(Behavior.CLOSE_AFTER_RESPONSE);
+                AsyncRPClient client = new AsyncRPClient("127.0.0.1", rpcore.getPort(), 1000, 1000, 1, 1, 60000, 100, 5000)) {
+            for (int i = 0; i < 5; i++) {
+                assertTrue(client.getVmStatus("425d20e9-0132-48d7-a3d6-563775968efe").get(5, TimeUnit.SECONDS));
+            }
+            assertTrue(rpcore.connections.get() >= 5);
+            assertEquals(0, client.getWaitingCalls());
+        }
+    }
+
+    @Test
+    public void testDroppedConnectionIsRetriedOnNewConnection() throws Exception {
+        try (FakeRpcore rpcore = new FakeRpcore(Behavior.DROP_SECOND_CALL);
+                AsyncRPClient client = new AsyncRPClient("127.0.0.1", rpcore.getPort(), 1000, 1000, 1, 1, 60000, 100, 5000)) {
+            assertTrue(client.getVmStatus("425d20e9-0132-48d7-a3d6-563775968efe").get(5, TimeUnit.SECONDS));
+            // the open connection is dropped when the call arrives
+            assertTrue(client.getVmStatus("425d20e9-0132-48d7-a3d6-563775968efe").get(5, TimeUnit.SECONDS));
+            assertEquals(2, rpcore.connections.get());
+            assertEquals(3, rpcore.calls.get());
+        }
+    }
+
+    @Test
+    public void testSlowServerTimesOut() throws Exception {
+        try (FakeRpcore rpcore = new FakeRpcore(Behavior.SLOW);
+                AsyncRPClient client = new AsyncRPClient("127.0.0.1", rpcore.getPort(), 1000, 300, 1, 1, 60000, 100, 5000)) {
+            long start = System.currentTimeMillis();
+            try {
+                client.getVmStatus("425d20e9-0132-48d7-a3d6-563775968efe").get(5, TimeUnit.SECONDS);
+                fail("Expected a read timeout");
+            } catch (ExecutionException e) {
+                long elapsed = System.currentTimeMillis() - start;
+                log.debug("Timed out after {} ms", elapsed);
+                assertTrue(e.getCause() instanceof SocketTimeoutException);
+                assertTrue(elapsed < 1500);
+            }
+            assertEquals(0, client.getOpenConnections());
+            assertEquals(1, rpcore.calls.get()); // a timed out call is not sent again
+        }
+    }
+
+    @Test
+    public void testStalledConnectionIsNotReused() throws Exception {
+        try (FakeRpcore rpcore = new FakeRpcore(Behavior.STALLED);
+                AsyncRPClient client = new AsyncRPClient("127.0.0.1", rpcore.getPort(), 1000, 300, 1, 1, 60000, 100, 5000)) {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    client.getVmStatus("425d20e9-0132-48d7-a3d6-563775968efe").get(5, TimeUnit.SECONDS);
+                    fail("Expected a read timeout");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof SocketTimeoutException);
+                }
+            }
+            // the connection that timed out is closed, so the second call waited on a new one
+            assertEquals(2, rpcore.connections.get());
+            assertEquals(2, rpcore.calls.get());
+            assertEquals(0, client.getOpenConnections());
+        }
+    }
+
+    @Test
+    public void testWaitingCallsAreLimited() throws Exception {
+        try (FakeRpcore rpcore = new FakeRpcore(Behavior.SLOW);
+                AsyncRPClient client = new AsyncRPClient("127.0.0.1", rpcore.getPort(), 1000, 5000, 1, 1, 60000, 1, 300)) {
+            long start = System.currentTimeMillis();
+            Future<Boolean> sent = client.getVmStatus("425d20e9-0132-48d7-a3d6-563775968efe");
+            Future<Boolean> waiting = client.getVmStatus("425d20e9-0132-48d7-a3d6-563775968efe");
+            Future<Boolean> rejected = client.getVmStatus("425d20e9-0132-48d7-a3d6-563775968efe");
+            try {
+                rejected.get(5, TimeUnit.SECONDS);
+                fail("Expected the call to be rejected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage().contains("Too many calls"));
+            }
+            try {
+                waiting.get(5, TimeUnit.SECONDS);
+                fail("Expected the waiting call to time out");
+            } catch (ExecutionException e) {
+                long elapsed = System.currentTimeMillis() - start;
+                log.debug("Waiting call timed out after {} ms", elapsed);
+                assertTrue(e.getCause() instanceof SocketTimeoutException);
+                assertTrue(elapsed < 1500);
+            }
+            assertEquals(0, client.getWaitingCalls());
+            assertTrue(sent.get(5, TimeUnit.SECONDS));
+            assertEquals(1, rpcore.calls.get());
+        }
+    }
+
+    @Test
+    public void testReconnectBackoff() throws Exception {
+        int port;
+        try (ServerSocket unused = new ServerSocket(0)) {
+            port = unused.getLocalPort();
+        }
+        try (AsyncRPClient client = new AsyncRPClient("127.0.0.1", port, 1000, 1000, 4, 1, 60000, 100, 5000)) {
+            try {
+                client.send(request("<methodCall/>")).get(5, TimeUnit.SECONDS);
+                fail("Expected connection refused");
+            } catch (ExecutionException e) {
+                log.debug("First call: {}", e.getCause().getMessage());
+            }
+            // the handler is not called on this thread, so a handler that sends the next call does not recurse
+            final AtomicReference<Thread> handlerThread = new AtomicReference<>();
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            final CountDownLatch done = new CountDownLatch(1);
+            client.send(request("<methodCall/>"), new CompletionHandler<TCBuffer, Void>() {
+                @Override
+                public void completed(TCBuffer result, Void attachment) {
+                    done.countDown();
+                }
+
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+                    handlerThread.set(Thread.currentThread());
+                    error.set(exc);
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertTrue(error.get().getMessage().contains("unavailable"));
+            assertNotSame(Thread.currentThread(), handlerThread.get());
+            assertEquals(0, client.getConnects());
+        }
+    }
+
+    @Test
+    public void testReconnectAfterBackoff() throws Exception {
+        int port;
+        try (ServerSocket unused = new ServerSocket(0)) {
+            port = unused.getLocalPort();
+        }
+        try (AsyncRPClient client = new AsyncRPClient("127.0.0.1", port, 1000, 1000, 1, 1, 60000, 100, 5000)) {
+            try {
+                client.getVmStatus("425d20e9-0132-48d7-a3d6-563775968efe").get(5, TimeUnit.SECONDS);
+                fail("Expected connection refused");
+            } catch (ExecutionException e) {
+                log.debug("First call: {}", e.getCause().getMessage());
+            }
+            try (FakeRpcore rpcore = new FakeRpcore(Behavior.TRUSTED, port)) {
+                // the first backoff is 100 ms
+                Thread.sleep(300);
+                assertTrue(client.getVmStatus("425d20e9-0132-48d7-a3d6-563775968efe").get(5, TimeUnit.SECONDS));
+                assertEquals(1, client.getConnects());
+                assertEquals(1, rpcore.connections.get());
+            }
+        }
+    }
+}
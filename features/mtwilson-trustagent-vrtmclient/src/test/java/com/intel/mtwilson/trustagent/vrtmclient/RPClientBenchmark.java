@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.vrtmclient;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.intel.mtwilson.trustagent.vrtmclient.xml.MethodResponse;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.xml.bind.DatatypeConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the XML-RPC encoding and decoding done for each call of
+ * RPClient.getVmStatus and RPClient.getVMAttestationReportPath, without
+ * the socket. The decodeWithXmlMapper benchmark is the previous decoder,
+ * which created an XmlMapper for every response, for comparison.
+ *
+ * Run after mvn test-compile with:
+ * java -cp target/test-classes:target/classes:(test classpath) com.intel.mtwilson.trustagent.vrtmclient.RPClientBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RPClientBenchmark {
+    private static final String VM_INSTANCE_ID = "39cd2294-f6da-4ffe-b83e-d4f975e83adf";
+    private static final String NONCE = "tHgfRQED1+pYgEZpq3dZC9ONmBCZKdx10LErTZs1k/k=";
+    private final TCBuffer vmStatusResponse = response("1");
+    private final TCBuffer reportPathResponse = response("/var/lib/nova/instances/" + VM_INSTANCE_ID + "/");
+
+    private static TCBuffer response(String value) {
+        return new TCBuffer(RPAPIIndex.RP2VM_ISVMVERIFIED, 0, "<?xml version='1.0'?><methodResponse><params><param><value><string>"
+                + DatatypeConverter.printBase64Binary(value.getBytes()) + "</string></value></param></params></methodResponse>");
+    }
+
+    @Benchmark
+    public TCBuffer encodeVmStatus() {
+        return RPClient.vmStatusRequest(VM_INSTANCE_ID);
+    }
+
+    @Benchmark
+    public boolean decodeVmStatus() throws IOException {
+        return RPClient.parseVmStatus(vmStatusResponse);
+    }
+
+    @Benchmark
+    public TCBuffer encodeReportPath() {
+        return RPClient.reportPathRequest(VM_INSTANCE_ID, NONCE);
+    }
+
+    @Benchmark
+    public String decodeReportPath() throws IOException {
+        return RPClient.parseReportPath(reportPathResponse);
+    }
+
+    @Benchmark
+    public String decodeWithXmlMapper() throws IOException {
+        MethodResponse response = new XmlMapper().readValue(reportPathResponse.getRPCPayload(), MethodResponse.class);
+        return new String(DatatypeConverter.parseBase64Binary(response.getParams()[0].getValue().getString()), "UTF-8");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(RPClientBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.vrtmclient;
+
+import java.io.IOException;
+import javax.xml.bind.DatatypeConverter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class XmlRpcCodecTest {
+
+    private static String base64(String value) throws IOException {
+        return DatatypeConverter.printBase64Binary(value.getBytes("UTF-8"));
+    }
+
+    private static TCBuffer response(String xml) {
+        return new TCBuffer(RPAPIIndex.RP2VM_ISVMVERIFIED, 0, xml);
+    }
+
+    @Test
+    public void testEncodeCall() throws Exception {
+        // lengths 34, 35 and 36 cover each base64 padding
+        String[] vmInstanceIds = { "425d20e9-0132-48d7-a3d6-563775968ef", "425d20e9-0132-48d7-a3d6-563775968efe", "425d20e9-0132-48d7-a3d6-563775968efe0", "" };
+        for (String vmInstanceId : vmInstanceIds) {
+            TCBuffer request = RPClient.vmStatusRequest(vmInstanceId);
+            String expected = "<?xml version='1.0'?><methodCall><methodName>get_verification_status</methodName><params>"
+                    + "<param><value><string>" + base64(vmInstanceId) + "</string></value></param>"
+                    + "</params></methodCall>";
+            assertEquals(expected, request.getRPCPayload());
+            assertEquals(expected.length(), request.getRPCPayloadSize());
+            assertEquals(RPAPIIndex.VM2RP_ISVMVERIFIED, request.getRPCCallIndex());
+        }
+        TCBuffer request = RPClient.reportPathRequest("39cd2294-f6da-4ffe-b83e-d4f975e83adf", "2629d276-d7c7-4cd4-bc7d-c43628770020");
+        assertEquals("<?xml version='1.0'?><methodCall><methodName>get_verification_status</methodName><params>"
+                + "<param><value><string>" + base64("39cd2294-f6da-4ffe-b83e-d4f975e83adf") + "</string></value></param>"
+                + "<param><value><string>" + base64("2629d276-d7c7-4cd4-bc7d-c43628770020") + "</string></value></param>"
+                + "</params></methodCall>", request.getRPCPayload());
+        assertEquals(RPAPIIndex.VM2RP_GET_VM_ATTESTATION_REPORT_PATH, request.getRPCCallIndex());
+    }
+
+    @Test
+    public void testDecodeResponse() throws Exception {
+        assertTrue(RPClient.parseVmStatus(response("<?xml version='1.0'?><methodResponse><params><param><value><string>MQ==</string></value></param></params></methodResponse>")));
+        assertFalse(RPClient.parseVmStatus(response("<?xml version='1.0'?><methodResponse><params><param><value><string>MA==</string></value></param></params></methodResponse>")));
+        String path = "/var/lib/nova/instances/39cd2294-f6da-4ffe-b83e-d4f975e83adf/";
+        assertEquals(path, RPClient.parseReportPath(response("<?xml version='1.0'?>\n<methodResponse>\n  <params>\n    <param>\n      <value><string>" + base64(path) + "</string></value>\n    </param>\n  </params>\n</methodResponse>\n")));
+        // a value without a type is a string
+        assertEquals(path, RPClient.parseReportPath(response("<methodResponse><params><param><value>" + base64(path) + "</value></param></params></methodResponse>")));
+        TCBuffer empty = response("");
+        assertNull(RPClient.parseReportPath(empty));
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeFault() throws Exception {
+        RPClient.parseVmStatus(response("<methodResponse><fault><value><struct><member><name>faultCode</name><value><int>4</int></value></member></struct></value></fault></methodResponse>"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeMalformed() throws Exception {
+        RPClient.parseVmStatus(response("<methodResponse><params><param>"));
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.common;
+
+import com.intel.mtwilson.trustagent.metrics.LatencyHistogram;
+import com.intel.mtwilson.trustagent.metrics.MetricFamily;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Executes a set of commands that share a TADataContext, running each command
+ * as soon as all of the commands it depends on have completed. Commands
+ * without a dependency between them run concurrently on a bounded pool that
+ * is shared by all requests. Commands added with addTpm run on a separate
+ * shared pool, because they spend most of their time waiting for the TPM
+ * scheduler and would otherwise hold the threads the other commands need.
+ *
+ * Commands must be added after the commands they depend on, which also
+ * guarantees the graph is acyclic. If a command fails, commands that have
+ * not yet started are skipped and the first failure is thrown from
+ * execute() after all running commands have finished, so the caller can
+ * safely clean up any files the commands were using. The same holds when
+ * the calling thread is interrupted: commands that have not started are
+ * skipped, running commands are interrupted, and execute() waits for them
+ * before it throws.
+ *
+ * The elapsed time of each command is available from getTimings() after
+ * execute() returns, and is also recorded in the stage duration metrics if
+ * they were set with setStageDurations().
+ */
+public class CommandGraph {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CommandGraph.class);
+    private static final ExecutorService sharedExecutor = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()), new StageThreadFactory("trustagent-command-"));
+    private static final ExecutorService sharedTpmExecutor = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()), new StageThreadFactory("trustagent-tpm-command-"));
+    private final ExecutorService executor;
+    private final ExecutorService tpmExecutor;
+    private final LinkedHashMap<String, Stage> stages = new LinkedHashMap<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private CountDownLatch remaining;
+    private MetricFamily<LatencyHistogram> stageDurations;
+
+    public CommandGraph() {
+        this(sharedExecutor, sharedTpmExecutor);
+    }
+
+    public CommandGraph(ExecutorService executor) {
+        this(executor, executor);
+    }
+
+    /**
+     *
+     * @param executor runs the commands added with add
+     * @param tpmExecutor runs the commands added with addTpm
+     */
+    public CommandGraph(ExecutorService executor, ExecutorService tpmExecutor) {
+        this.executor = executor;
+        this.tpmExecutor = tpmExecutor;
+    }
+
+    /**
+     *
+     * @param name unique name of the stage, used for timings and logging
+     * @param command the command to run
+     * @param dependsOn names of previously added stages that must complete before this one starts
+     * @return this graph, for chaining
+     */
+    public CommandGraph add(String name, ICommand command, String... dependsOn) {
+        return add(name, command, executor, dependsOn);
+    }
+
+    /**
+     * Adds a command that uses the TPM, which runs on the TPM executor.
+     *
+     * @param name unique name of the stage, used for timings and logging
+     * @param command the command to run
+     * @param dependsOn names of previously added stages that must complete before this one starts
+     * @return this graph, for chaining
+     */
+    public CommandGraph addTpm(String name, ICommand command, String... dependsOn) {
+        return add(name, command, tpmExecutor, dependsOn);
+    }
+
+    private CommandGraph add(String name, ICommand command, ExecutorService stageExecutor, String... dependsOn) {
+        if (stages.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate stage: " + name);
+        }
+        Stage stage = new Stage(name, command, stageExecutor, dependsOn.length);
+        for (String dependency : dependsOn) {
+            Stage prerequisite = stages.get(dependency);
+            if (prerequisite == null) {
+                throw new IllegalArgumentException("Stage " + name + " depends on unknown stage " + dependency);
+            }
+            prerequisite.dependents.add(stage);
+        }
+        stages.put(name, stage);
+        return this;
+    }
+
+    /**
+     *
+     * @param stageDurations histograms labeled with the stage name, or null to record nothing
+     * @return this graph, for chaining
+     */
+    public CommandGraph setStageDurations(MetricFamily<LatencyHistogram> stageDurations) {
+        this.stageDurations = stageDurations;
+        return this;
+    }
+
+    public void execute() throws TAException {
+        remaining = new CountDownLatch(stages.size());
+        for (Stage stage : stages.values()) {
+            if (stage.pending.get() == 0) {
+                stage.executor.execute(stage);
+            }
+        }
+        try {
+            remaining.await();
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new TAException(ErrorCode.ERROR, "Interrupted while waiting for commands to complete", e);
+        }
+        Throwable e = failure.get();
+        if (e instanceof TAException) {
+            throw (TAException) e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        if (e != null) {
+            throw new TAException(ErrorCode.ERROR, e.getMessage(), (Exception) e);
+        }
+    }
+
+    /**
+     * Skips the stages that have not started, interrupts the running ones
+     * and waits until all of them are done.
+     */
+    private void cancel() {
+        failure.compareAndSet(null, new TAException(ErrorCode.ERROR, "Cancelled"));
+        for (Stage stage : stages.values()) {
+            stage.interrupt();
+        }
+        boolean interrupted = true;
+        while (interrupted) {
+            try {
+                remaining.await();
+                interrupted = false;
+            } catch (InterruptedException e) {
+                log.debug("Still waiting for running commands after interrupt");
+            }
+        }
+    }
+
+    /**
+     *
+     * @return elapsed milliseconds for each stage that ran, in the order the stages were added
+     */
+    public Map<String, Long> getTimings() {
+        LinkedHashMap<String, Long> timings = new LinkedHashMap<>();
+        for (Stage stage : stages.values()) {
+            if (stage.elapsed >= 0) {
+                timings.put(stage.name, stage.elapsed);
+            }
+        }
+        return Collections.unmodifiableMap(timings);
+    }
+
+    private class Stage implements Runnable {
+        private final String name;
+        private final ICommand command;
+        private final ExecutorService executor;
+        private final AtomicInteger pending;
+        private final List<Stage> dependents = new ArrayList<>();
+        private volatile long elapsed = -1;
+        private Thread runner;
+
+        private Stage(String name, ICommand command, ExecutorService executor, int dependencies) {
+            this.name = name;
+            this.command = command;
+            this.executor = executor;
+            this.pending = new AtomicInteger(dependencies);
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (failure.get() == null) {
+                    long start = System.nanoTime();
+                    synchronized (this) {
+                        runner = Thread.currentThread();
+                    }
+                    try {
+                        command.execute();
+                    } catch (Exception | Error e) {
+                        log.debug("Stage {} failed: {}", name, e.getMessage());
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        synchronized (this) {
+                            runner = null;
+                            // an interrupt for this stage must not reach the next task on the pool thread
+                            Thread.interrupted();
+                        }
+                        long nanos = System.nanoTime() - start;
+                        elapsed = nanos / 1000000;
+                        if (stageDurations != null) {
+                            stageDurations.get(name).record(nanos);
+                        }
+                        log.debug("performance: {} took {} ms", name, elapsed);
+                    }
+                } else {
+                    log.debug("Skipping stage {} after earlier failure", name);
+                }
+                for (Stage dependent : dependents) {
+                    if (dependent.pending.decrementAndGet() == 0) {
+                        dependent.executor.execute(dependent);
+                    }
+                }
+            } finally {
+                remaining.countDown();
+            }
+        }
+
+        private synchronized void interrupt() {
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+    }
+
+    private static class StageThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private StageThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -5,11 +5,18 @@
 package com.intel.mountwilson.common;
 
 import com.intel.mountwilson.trustagent.datatype.IPAddress;
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
+import com.intel.mtwilson.trustagent.exec.ProcessResult;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
 import java.util.regex.Pattern;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
@@ -43,39 +50,30 @@ public class CommandUtil {
         
         log.debug("Command to be executed is :" + commandLine);
 
-        Process p;
-        if( envp == null ) {
-            p = Runtime.getRuntime().exec(commandLine);
+        // same tokenizing as Runtime.exec(String)
+        List<String> arguments = new ArrayList<>();
+        StringTokenizer tokens = new StringTokenizer(commandLine);
+        while (tokens.hasMoreTokens()) {
+            arguments.add(tokens.nextToken());
         }
-        else {
-            p = Runtime.getRuntime().exec(commandLine, envp);
+        // envp entries are added to the agent's environment instead of replacing it
+        Map<String, String> environment = new HashMap<>();
+        if( envp != null ) {
+            for (String variable : envp) {
+                int separator = variable.indexOf('=');
+                environment.put(variable.substring(0, separator), variable.substring(separator + 1));
+            }
         }
-        // read stdout
-        InputReader stdout = new InputReader(p.getInputStream());
-        Thread stdoutThread = new Thread(stdout);
-        stdoutThread.start();
-        // read stderr
-        InputReader stderr = new InputReader(p.getErrorStream());
-        Thread stderrThread = new Thread(stderr);
-        stderrThread.start();
+        ProcessResult processResult = ProcessExecutor.getInstance().execute(arguments, environment);
         CommandResult result = new CommandResult();
-        try {
-        // wait until the process exits
-        result.exitcode = p.waitFor();
-        // after the process exits the stdout and stderr threads will terminate
-        stdoutThread.join(); // throws InterruptedException
-        stderrThread.join(); // throws InterruptedException
-        }
-        catch(InterruptedException e) {
-            log.error("Interrupted", e);
-        }
+        result.exitcode = processResult.getExitCode();
         
-        log.debug("stdout:\n{}", stdout.getResult());
-        log.debug("stderr:\n{}", stderr.getResult());
+        log.debug("stdout:\n{}", processResult.getStdout());
+        log.debug("stderr:\n{}", processResult.getStderr());
 
         result.command = commandLine;
-        result.stdout = stdout.getResult();
-        result.stderr = stderr.getResult();
+        result.stdout = processResult.getStdout();
+        result.stderr = processResult.getStderr();
 
         if( result.exitcode != 0 ) {
             throw new TAException(ErrorCode.FATAL_ERROR, result.exitcode + ": Error while running command: " + commandLine);            
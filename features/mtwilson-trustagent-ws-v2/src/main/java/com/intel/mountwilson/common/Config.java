@@ -23,7 +23,6 @@ import org.slf4j.LoggerFactory;
 public class Config {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Config.class);
 
-    private static Configuration config = TAConfig.getConfiguration();
     private static Config instance = null;
     //private static String appPath = config.getString("app.path"); // System.getProperty("app.path",".");;
     private static Boolean debug;
@@ -50,7 +49,7 @@ public class Config {
     
     public static boolean isDebug() {
         if( debug == null ) {
-            debug =  config.getString("debug").equalsIgnoreCase("true");
+            debug =  TAConfig.getConfiguration().getString("debug").equalsIgnoreCase("true");
         }
         return debug;
     }
@@ -68,6 +67,7 @@ public class Config {
     }
     
     public String getProperty(String property){
+        Configuration config = TAConfig.getConfiguration(); // current snapshot of trustagent.properties
         if( config.containsKey(property) ) {
             return config.getString(property);
         }
@@ -6,8 +6,7 @@ package com.intel.mountwilson.common;
 
 import com.intel.dcsg.cpg.configuration.CommonsConfigurationAdapter;
 import com.intel.mtwilson.Folders;
-import com.intel.mtwilson.configuration.ConfigurationFactory;
-import com.intel.mtwilson.configuration.ConfigurationProvider;
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -40,14 +39,36 @@ import org.slf4j.LoggerFactory;
  */
 public class TAConfig {
 
-    private static final TAConfig global = new TAConfig();
-    public static final Configuration getConfiguration() { return global.getConfigurationInstance(); }
+    private static volatile TAConfig global;
     
+    /**
+     * The file settings come from the shared TrustagentConfiguration snapshot,
+     * so the returned configuration reflects changes to trustagent.properties
+     * without reading the file on every call.
+     */
+    public static final Configuration getConfiguration() {
+        TrustagentConfiguration snapshot;
+        try {
+            snapshot = TrustagentConfiguration.loadConfiguration();
+        }
+        catch(IOException e) {
+            throw new RuntimeException("Cannot load properties configuration", e);
+        }
+        TAConfig current = global;
+        if( current == null || current.snapshot != snapshot ) {
+            current = new TAConfig(snapshot);
+            global = current;
+        }
+        return current.getConfigurationInstance();
+    }
+    
+    private final TrustagentConfiguration snapshot;
     private final Configuration config;
     private Configuration getConfigurationInstance() { return config; }
     private Logger log = LoggerFactory.getLogger(getClass().getName());
     
-    private TAConfig() {
+    private TAConfig(TrustagentConfiguration snapshot) {
+        this.snapshot = snapshot;
         Properties defaults = new Properties();
 //        defaults.setProperty("app.path", MyFilesystem.getApplicationFilesystem().getApplicationPath());
         defaults.setProperty("debug", "false"); // allowed values: false, true (case insensitive)
@@ -67,7 +88,7 @@ public class TAConfig {
 //        defaults.setProperty("modules.folder", "modules"); 
 //        defaults.setProperty("modulesXml.filename", "measureLog.xml"); // only used from TADataContext.getMeasureLogXmlFile()
 //        defaults.setProperty("modulesScript.filename", "module_analysis.sh");        
-        config = gatherConfiguration(defaults);
+        config = gatherConfiguration(snapshot, defaults);
     }
     
     // for troubleshooting
@@ -79,15 +100,14 @@ public class TAConfig {
         }
     }
 
-    private Configuration gatherConfiguration(Properties defaults)  {
+    private Configuration gatherConfiguration(TrustagentConfiguration snapshot, Properties defaults)  {
         try {
         CompositeConfiguration composite = new CompositeConfiguration();
         
         // first priority is the configuration file
         File file = new File(Folders.configuration() + File.separator + "trustagent.properties");
         
-        ConfigurationProvider provider = ConfigurationFactory.createConfigurationProvider(file);
-        Configuration standard = new CommonsConfigurationAdapter(provider.load());
+        Configuration standard = new CommonsConfigurationAdapter(snapshot.getConf());
         
         dumpConfiguration(standard, "file:"+file.getAbsolutePath());
         composite.addConfiguration(standard);
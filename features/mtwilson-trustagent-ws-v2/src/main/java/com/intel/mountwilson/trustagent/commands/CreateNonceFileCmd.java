@@ -15,6 +15,7 @@ import com.intel.mountwilson.common.ErrorCode;
 import com.intel.mountwilson.common.ICommand;
 import com.intel.mountwilson.common.TAException;
 import com.intel.mountwilson.trustagent.data.TADataContext;
+import com.intel.mtwilson.trustagent.tpmmodules.Tpm;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -39,6 +40,16 @@ public class CreateNonceFileCmd implements ICommand {
 
     @Override
     public void execute() throws TAException  {
+        // only aikquote for TPM 1.2 reads the nonce from a file; tpm2_quote
+        // and tpmtool.exe receive it on the command line
+        if( context.getOsName() != null && context.getOsName().toLowerCase().contains("windows") ) {
+            log.debug("Nonce file not required on Windows");
+            return;
+        }
+        if( "2.0".equals(Tpm.getTpmVersion()) ) {
+            log.debug("Nonce file not required for TPM 2.0");
+            return;
+        }
         
         FileOutputStream stream = null;
         try {
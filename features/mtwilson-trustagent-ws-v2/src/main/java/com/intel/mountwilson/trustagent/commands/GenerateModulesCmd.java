@@ -8,19 +8,21 @@ import com.intel.dcsg.cpg.crypto.RandomUtil;
 import com.intel.mountwilson.common.ErrorCode;
 import com.intel.mountwilson.common.ICommand;
 import com.intel.mountwilson.common.TAException;
+import com.intel.mountwilson.trustagent.commands.eventlog.MeasureLogGenerator;
 import com.intel.mountwilson.trustagent.data.TADataContext;
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
 import com.intel.mtwilson.util.exec.EscapeUtil;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
+import com.intel.mtwilson.trustagent.exec.ProcessResult;
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.Map;
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.io.FileUtils;
 
@@ -49,37 +51,25 @@ public class GenerateModulesCmd implements ICommand {
     }
 
     /**
-     * calls OAT script prepares XML from measureLog
+     * writes measureLog.xml from the TCG event log if it does not exist yet,
+     * and reads the modules from it
      *
      * @author skaja
      */
     private void getXmlFromMeasureLog() throws TAException, IOException {
 		String osName = System.getProperty("os.name");
 		if (!osName.toLowerCase().contains("windows")) {
-			log.debug("About to run the command: " + context.getMeasureLogLaunchScript());
-			long startTime = System.currentTimeMillis();
 			String outputPath = context.getMeasureLogXmlFile().getAbsolutePath();
 			log.info("Module output file: {}", String.format("OUTFILE=%s", outputPath));
                         File outputFile = new File(outputPath);
-                        if (!outputFile.exists()) {
-                            Map<String, String> variables = new HashMap<>();
-                            variables.put("OUTFILE", EscapeUtil.doubleQuoteEscapeShellArgument(outputPath));
-                            CommandLine command = new CommandLine(EscapeUtil.doubleQuoteEscapeShellArgument(context.getMeasureLogLaunchScript().getAbsolutePath()));
-                            Result result = ExecUtil.execute(command, variables);
-                            if (result.getExitCode() != 0) {
-                                log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
-                                throw new TAException(ErrorCode.ERROR, result.getStderr());
+                        synchronized (GenerateModulesCmd.class) {
+                            if (!outputFile.exists()) {
+                                createMeasureLog(outputFile);
                             }
-                            log.debug("command stdout: {}", result.getStdout());
-                            
-                            long endTime = System.currentTimeMillis();
-                            log.debug("measureLog.xml is created from txt-stat in Duration MilliSeconds {}", (endTime - startTime));
                         }
 			if( outputFile.exists() ) {
-                            String content = FileUtils.readFileToString(outputFile);
-                            log.debug("Content of the XML file before getting modules: " + content);
-                            
-                            getModulesFromMeasureLogXml(content);
+                            // the encoded modules are kept in memory until measureLog.xml changes
+                            context.setModules(MeasureLogModules.getEncodedModules(outputFile));
                             //outputFile.delete();  //why?
                         } else {
                             throw new TAException(ErrorCode.BAD_REQUEST, "Cannot read module log");
@@ -102,6 +92,58 @@ public class GenerateModulesCmd implements ICommand {
 		}
     }
 
+    /**
+     * Parses the TCG event log in Java, which takes milliseconds. The
+     * module_analysis.sh script, which reads the txt-stat output, is only
+     * run when the event log has no TXT events, for example when the kernel
+     * does not include the tboot events, and measure.log.script.fallback is
+     * true.
+     */
+    private void createMeasureLog(File outputFile) throws TAException, IOException {
+        long startTime = System.currentTimeMillis();
+        TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+        File eventLog = new File(configuration.getMeasureLogEventLog());
+        String xml = null;
+        try {
+            xml = new MeasureLogGenerator(new File(configuration.getMeasureLogTcbMeasurementBin()), new File(configuration.getMeasureLogTcbMeasurementSha256())).generate(eventLog);
+        } catch (IOException e) {
+            log.warn("Cannot read event log {}: {}", eventLog.getAbsolutePath(), e.getMessage());
+        }
+        if (xml == null && configuration.isMeasureLogScriptFallback()) {
+            log.info("No TXT events in {}, running {}", eventLog.getAbsolutePath(), context.getMeasureLogLaunchScript());
+            runMeasureLogScript(outputFile, configuration);
+        } else {
+            if (xml == null) {
+                xml = MeasureLogGenerator.notMeasured();
+            }
+            // written to a temporary file first so a concurrent reader never sees a partial measure log
+            Path temporary = Files.createTempFile(outputFile.getParentFile().toPath(), "measureLog", ".tmp");
+            try {
+                Files.write(temporary, xml.getBytes("UTF-8"));
+                Files.move(temporary, outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+        long endTime = System.currentTimeMillis();
+        log.debug("measureLog.xml is created in Duration MilliSeconds {}", (endTime - startTime));
+    }
+
+    private void runMeasureLogScript(File outputFile, TrustagentConfiguration configuration) throws TAException, IOException {
+        log.debug("About to run the command: " + context.getMeasureLogLaunchScript());
+        Map<String, String> variables = new HashMap<>();
+        variables.put("OUTFILE", EscapeUtil.doubleQuoteEscapeShellArgument(outputFile.getAbsolutePath()));
+        // module_analysis.sh reads the measurement.bin file from this variable despite its name
+        variables.put("INFILE_TCB_MEASUREMENT_SHA256", configuration.getMeasureLogTcbMeasurementBin());
+        CommandLine command = new CommandLine(EscapeUtil.doubleQuoteEscapeShellArgument(context.getMeasureLogLaunchScript().getAbsolutePath()));
+        ProcessResult result = ProcessExecutor.getInstance().execute(command, variables);
+        if (result.getExitCode() != 0) {
+            log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
+            throw new TAException(ErrorCode.ERROR, result.getStderr());
+        }
+        log.debug("command stdout: {}", result.getStdout());
+    }
+
     /**
      * Obtains <modules> tag under <txt> and add the string to TADataContext
      *
@@ -111,21 +153,14 @@ public class GenerateModulesCmd implements ICommand {
         try {
 
             // Since the output from the script will have lot of details and we are interested in just the module section, we will
-            // strip out the remaining data,
-            Pattern PATTERN = Pattern.compile("(<modules>.*</modules>)");
-            Matcher m = PATTERN.matcher(xmlInput);
-            while (m.find()) {
-                xmlInput = m.group(1);
-            }
-            // removes any white space characters from the xml string
-            String moduleInfo = xmlInput.replaceAll(">\\s*<", "><");
+            // strip out the remaining data and any white space between the tags
+            String moduleInfo = MeasureLogModules.extractModules(xmlInput);
             
-            log.debug("Module information : " + moduleInfo);
+            log.debug("Module information : {}", moduleInfo);
             
             // If we have XML data, we we will have issues mapping the response to the ClientRequestType using JaxB unmarshaller. So,
             // we will encode the string and send it.
-            moduleInfo = Base64.encodeBase64String(moduleInfo.getBytes());
-            context.setModules(moduleInfo);
+            context.setModules(MeasureLogModules.encode(moduleInfo));
             
 
         } catch (Exception e) {
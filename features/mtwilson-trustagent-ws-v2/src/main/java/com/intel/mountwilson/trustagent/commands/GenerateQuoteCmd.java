@@ -14,13 +14,18 @@ import com.intel.mountwilson.trustagent.data.TADataContext;
 import com.intel.mtwilson.Folders;
 import com.intel.mtwilson.trustagent.TrustagentConfiguration;
 import com.intel.mtwilson.trustagent.tpmmodules.Tpm;
+import com.intel.mtwilson.trustagent.tpmmodules.Tpm2Client;
+import com.intel.mtwilson.trustagent.tpmmodules.TpmScheduler;
 import com.intel.mtwilson.util.exec.EscapeUtil;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
+import com.intel.mtwilson.trustagent.exec.ProcessResult;
+import gov.niarl.his.privacyca.TpmModule;
 import gov.niarl.his.privacyca.TpmUtils;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
 import org.apache.commons.exec.CommandLine;
@@ -41,6 +46,7 @@ public class GenerateQuoteCmd implements ICommand {
     private Pattern PCR_LIST_SSV = Pattern.compile("^[0-9][0-9 ]*$");
     
     private TADataContext context;
+    private Map<String, byte[]> pcrLists;
 
     //using this variable to indicate if the AIK loaded to TPM. if not, load it; otherwise, skip loading
     private static boolean isAIKImported = false;
@@ -49,6 +55,16 @@ public class GenerateQuoteCmd implements ICommand {
         this.context = context;
     }
     
+    /**
+     * 
+     * @param context
+     * @param pcrLists TPM 2.0 PCR values already read by other quotes in the same batch, by PCR selection; new reads are added to it
+     */
+    public GenerateQuoteCmd(TADataContext context, Map<String, byte[]> pcrLists) {
+        this.context = context;
+        this.pcrLists = pcrLists;
+    }
+    
     protected static byte[] hexStringToByteArray(String s) {
         int len = s.length();
             
@@ -73,8 +89,31 @@ public class GenerateQuoteCmd implements ICommand {
         return returnStr;
     }
     
+    /**
+     * The quote is generated on the TPM scheduler at quote priority, so it
+     * waits its turn with other TPM commands instead of running in parallel
+     * with them.
+     * 
+     * @throws TAException 
+     */
     @Override
     public void execute() throws TAException {
+        try {
+            TpmScheduler.getInstance().execute(TpmScheduler.Priority.QUOTE, new Callable<Void>() {
+                @Override
+                public Void call() throws TAException {
+                    generateQuote();
+                    return null;
+                }
+            });
+        } catch (TAException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TAException(ErrorCode.COMMAND_ERROR, "Error while generating quote", e);
+        }
+    }
+    
+    private void generateQuote() throws TAException {
         String identityAuthKey = context.getIdentityAuthKey();
         String selectedPcrs = context.getSelectedPCRs();
         
@@ -174,18 +213,36 @@ public class GenerateQuoteCmd implements ICommand {
 
                     /* 1st: get pcrs - tpm2_listpcrs -g 0x4 -o pcrs.out
                      *      This commmand returns specified PCR bank pcr values (all 24 pcrs in the bank)
+                     *      In a batch, quotes with the same selection use the values read by the first one
                     */
-                    CommandLine command1 = new CommandLine("tpm2_listpcrs");
-                    command1.addArgument("-L");
-                    command1.addArgument(quoteAlgWithPcrs);
-                    command1.addArgument("-o");
-                    command1.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getPcrsFileName()));
-                    Result result1 = ExecUtil.execute(command1);
-                    if (result1.getExitCode() != 0) {
-                        log.error("Error running command [{}]: {}", command1.getExecutable(), result1.getStderr());
-                        throw new TAException(ErrorCode.ERROR, result1.getStderr());
+                    Tpm2Client tpm2Client = Tpm.getTpm2Client(); // null when tpm.transport is tools
+                    byte [] pcrs = pcrLists == null ? null : pcrLists.get(quoteAlgWithPcrs);
+                    if (pcrs == null && tpm2Client != null) {
+                        pcrs = tpm2Client.readPcrs(quoteAlgWithPcrs);
+                        if (pcrLists != null) {
+                            pcrLists.put(quoteAlgWithPcrs, pcrs);
+                        }
+                    } else if (pcrs == null) {
+                        CommandLine command1 = new CommandLine("tpm2_listpcrs");
+                        command1.addArgument("-L");
+                        command1.addArgument(quoteAlgWithPcrs);
+                        command1.addArgument("-o");
+                        command1.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getPcrsFileName()));
+                        ProcessResult result1 = ProcessExecutor.getInstance().execute(command1);
+                        if (result1.getExitCode() != 0) {
+                            log.error("Error running command [{}]: {}", command1.getExecutable(), result1.getStderr());
+                            throw new TAException(ErrorCode.ERROR, result1.getStderr());
+                        }
+                        log.debug("tpm2_listpcrs stdout: {}", result1.getStdout());
+                        try (InputStream in = new FileResource(new File(context.getPcrsFileName())).getInputStream()) {
+                            pcrs = IOUtils.toByteArray(in);
+                        }
+                        if (pcrLists != null) {
+                            pcrLists.put(quoteAlgWithPcrs, pcrs);
+                        }
+                    } else {
+                        log.debug("Using PCR values already read for {}", quoteAlgWithPcrs);
                     }
-                    log.debug("tpm2_listpcrs stdout: {}", result1.getStdout());
     
                     /* 2nd: get quote - tpm2_quote -k 0x80000001 -P abc123 -g 0x4 -l 16,17,18 -o outFile001 -X
                      * this command returns two structures together
@@ -193,39 +250,40 @@ public class GenerateQuoteCmd implements ICommand {
                         * signature over quoted information
                     */
                     TrustagentConfiguration TAconfig = TrustagentConfiguration.loadConfiguration();
-                    CommandLine command = new CommandLine("tpm2_quote");
-                    command.addArgument("-k");
-                    command.addArgument(TAconfig.getAikHandle());
-                    command.addArgument("-P");
-	            command.addArgument(identityAuthKey);
-                    command.addArgument("-L");
-                    command.addArgument(quoteAlgWithPcrs);
-                    command.addArgument("-q");
-                    command.addArgument(TpmUtils.byteArrayToHexString(nonce));
-                    //command.addArgument("-l");
-                    //command.addArgument(selectedPcrs.replaceAll("\\s+", ","));
-                    command.addArguments("-o");
-                    command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getQuoteFileName()));
-                    command.addArguments("-X");   
-                    //command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getNonceFileName()));
-                    //command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getAikBlobFileName()));
-                    Result result = ExecUtil.execute(command);
-                    if (result.getExitCode() != 0) {
-	                log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
-	                throw new TAException(ErrorCode.ERROR, result.getStderr());
-	            }
-	            log.debug("tpm2_quote stdout: {}", result.getStdout());
-	            log.debug("Create the quote {} ", context.getQuoteFileName());
+                    byte [] quoteResult;
+                    if (tpm2Client != null) {
+                        quoteResult = tpm2Client.quote(Tpm2Client.parseHandle(TAconfig.getAikHandle()), TpmUtils.hexStringToByteArray(identityAuthKey), nonce, quoteAlgWithPcrs);
+                    } else {
+                        CommandLine command = new CommandLine("tpm2_quote");
+                        command.addArgument("-k");
+                        command.addArgument(TAconfig.getAikHandle());
+                        command.addArgument("-P");
+	                command.addArgument(identityAuthKey);
+                        command.addArgument("-L");
+                        command.addArgument(quoteAlgWithPcrs);
+                        command.addArgument("-q");
+                        command.addArgument(TpmUtils.byteArrayToHexString(nonce));
+                        //command.addArgument("-l");
+                        //command.addArgument(selectedPcrs.replaceAll("\\s+", ","));
+                        command.addArguments("-o");
+                        command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getQuoteFileName()));
+                        command.addArguments("-X");   
+                        //command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getNonceFileName()));
+                        //command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getAikBlobFileName()));
+                        ProcessResult result = ProcessExecutor.getInstance().execute(command);
+                        if (result.getExitCode() != 0) {
+	                    log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
+	                    throw new TAException(ErrorCode.ERROR, result.getStderr());
+	                }
+	                log.debug("tpm2_quote stdout: {}", result.getStdout());
+	                log.debug("Create the quote {} ", context.getQuoteFileName());
+                    
+                        try (InputStream in = new FileResource(new File(context.getQuoteFileName())).getInputStream()) {
+	                    quoteResult = IOUtils.toByteArray(in);
+	                }
+                    }
                     
                     // 3rd: concatate the two output together and set the tpm quote return
-	            byte [] pcrs;
-                    byte [] quoteResult;
-                    try (InputStream in = new FileResource(new File(context.getPcrsFileName())).getInputStream()) {
-	                pcrs = IOUtils.toByteArray(in);
-	            }
-                    try (InputStream in = new FileResource(new File(context.getQuoteFileName())).getInputStream()) {
-	                quoteResult = IOUtils.toByteArray(in);
-	            }
                     //log.debug("pcrs: {}", pcrs.toString());
                     //log.debug("quote result: {}", quoteResult.toString());
                     
@@ -236,6 +294,8 @@ public class GenerateQuoteCmd implements ICommand {
                     
                 } catch (IOException ex) {
                     java.util.logging.Logger.getLogger(GenerateQuoteCmd.class.getName()).log(Level.SEVERE, null, ex);
+                } catch (TpmModule.TpmModuleException ex) {
+                    throw new TAException(ErrorCode.ERROR, "Error while generating quote", ex);
                 }
             } else {
                 try {   
@@ -247,7 +307,7 @@ public class GenerateQuoteCmd implements ICommand {
                         command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getAikBlobFileName()));
                         command.addArguments(selectedPcrs.split("\\s+"));
                         command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getQuoteFileName()));
-                        Result result = ExecUtil.execute(command);
+                        ProcessResult result = ProcessExecutor.getInstance().execute(command);
                         if (result.getExitCode() != 0) {
                             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
                             throw new TAException(ErrorCode.ERROR, result.getStderr());
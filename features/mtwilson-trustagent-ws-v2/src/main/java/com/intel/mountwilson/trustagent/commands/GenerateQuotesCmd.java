@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands;
+
+import com.intel.mountwilson.common.ErrorCode;
+import com.intel.mountwilson.common.ICommand;
+import com.intel.mountwilson.common.TAException;
+import com.intel.mountwilson.trustagent.data.TADataContext;
+import com.intel.mtwilson.trustagent.tpmmodules.TpmScheduler;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Generates the quotes of a batch back to back in a single TPM scheduler
+ * slot, so other TPM commands do not run between them. On TPM 2.0, PCR
+ * values are read once for each distinct PCR bank and PCR selection.
+ *
+ * The quotes run one at a time, so the contexts may share a workspace.
+ */
+public class GenerateQuotesCmd implements ICommand {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(GenerateQuotesCmd.class);
+    private final List<TADataContext> contexts;
+
+    public GenerateQuotesCmd(List<TADataContext> contexts) {
+        this.contexts = contexts;
+    }
+
+    @Override
+    public void execute() throws TAException {
+        try {
+            TpmScheduler.getInstance().execute(TpmScheduler.Priority.QUOTE, new Callable<Void>() {
+                @Override
+                public Void call() throws TAException {
+                    Map<String, byte[]> pcrLists = new HashMap<>();
+                    for (TADataContext context : contexts) {
+                        // these run inline since we are already on the scheduler thread
+                        new CreateNonceFileCmd(context).execute();
+                        new GenerateQuoteCmd(context, pcrLists).execute();
+                    }
+                    log.debug("Generated {} quotes, read PCRs for {} selections", contexts.size(), pcrLists.size());
+                    return null;
+                }
+            });
+        } catch (TAException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TAException(ErrorCode.COMMAND_ERROR, "Error while generating quotes", e);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands;
+
+import com.intel.mtwilson.trustagent.metrics.Counter;
+import com.intel.mtwilson.trustagent.metrics.MetricRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Builds the eventLog sent with a quote from measureLog.xml and keeps the
+ * base64-encoded result in memory.
+ *
+ * The measure log is written once when the agent starts, so instead of
+ * reading and searching the whole file on every quote the encoded result
+ * is reused until the file's modification time or size changes.
+ *
+ * The result is the same as the original
+ * {@code (<modules>.*</modules>)} search followed by
+ * {@code replaceAll(">\\s*<", "><")}: the pattern has no DOTALL flag, so
+ * it only finds a modules element that is on one line, as in the Windows
+ * measure log. module_analysis.sh and MeasureLogGenerator write one element
+ * per line, so for them the whole measureLog document is sent with the
+ * whitespace between tags removed, which is what the attestation service
+ * has always received. The search and the whitespace removal are done in
+ * one pass each without regular expressions.
+ */
+public class MeasureLogModules {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(MeasureLogModules.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Pattern MODULES_PATTERN = Pattern.compile("(<modules>.*</modules>)");
+    private static final String MODULES_START = "<modules>";
+    private static final String MODULES_END = "</modules>";
+    private static final Counter hits = MetricRegistry.getInstance().counter("trustagent_cache_requests_total", "Cache lookups by cache and result", "cache", "measure_log_modules", "result", "hit");
+    private static final Counter misses = MetricRegistry.getInstance().counter("trustagent_cache_requests_total", "Cache lookups by cache and result", "cache", "measure_log_modules", "result", "miss");
+    private static volatile Snapshot snapshot;
+
+    private static class Snapshot {
+        private final String path;
+        private final long lastModified;
+        private final long size;
+        private final String encodedModules;
+
+        private Snapshot(File file, long lastModified, long size, String encodedModules) {
+            this.path = file.getAbsolutePath();
+            this.lastModified = lastModified;
+            this.size = size;
+            this.encodedModules = encodedModules;
+        }
+
+        private boolean matches(File file) {
+            return path.equals(file.getAbsolutePath()) && lastModified == file.lastModified() && size == file.length();
+        }
+    }
+
+    /**
+     *
+     * @param measureLogXml
+     * @return base64-encoded event log from the file, from memory if the file has not changed
+     * @throws IOException
+     */
+    public static String getEncodedModules(File measureLogXml) throws IOException {
+        Snapshot current = snapshot;
+        if (current != null && current.matches(measureLogXml)) {
+            hits.inc();
+            return current.encodedModules;
+        }
+        synchronized (Snapshot.class) {
+            current = snapshot;
+            if (current != null && current.matches(measureLogXml)) {
+                hits.inc();
+                return current.encodedModules;
+            }
+            misses.inc();
+            // attributes are read before the content so a concurrent rewrite makes the next quote read it again
+            long lastModified = measureLogXml.lastModified();
+            long size = measureLogXml.length();
+            long start = System.currentTimeMillis();
+            String modules = extractModules(measureLogXml);
+            String encoded = encode(modules);
+            log.debug("Extracted {} characters of event log from {} ({} bytes) in {} ms", modules.length(), measureLogXml.getAbsolutePath(), size, System.currentTimeMillis() - start);
+            snapshot = new Snapshot(measureLogXml, lastModified, size, encoded);
+            return encoded;
+        }
+    }
+
+    public static String encode(String modules) {
+        return Base64.encodeBase64String(modules.getBytes(UTF8));
+    }
+
+    public static String extractModules(File measureLogXml) throws IOException {
+        return extractModules(FileUtils.readFileToString(measureLogXml, UTF8));
+    }
+
+    /**
+     *
+     * @param measureLogXml
+     * @return the last modules element that is on one line, or else the whole document, without whitespace between tags
+     */
+    public static String extractModules(String measureLogXml) {
+        String modules = findModulesOnOneLine(measureLogXml);
+        return removeWhitespaceBetweenTags(modules == null ? measureLogXml : modules);
+    }
+
+    /**
+     * The original implementation, kept to check that extractModules gives
+     * the same result.
+     */
+    static String extractModulesWithPattern(String xmlInput) {
+        Matcher m = MODULES_PATTERN.matcher(xmlInput);
+        while (m.find()) {
+            xmlInput = m.group(1);
+        }
+        return xmlInput.replaceAll(">\\s*<", "><");
+    }
+
+    /**
+     * Same as the last match of {@code (<modules>.*</modules>)}: on each line
+     * the match runs from the first start tag to the last end tag.
+     *
+     * @return the modules element, or null if no line has both tags
+     */
+    static String findModulesOnOneLine(String xml) {
+        String modules = null;
+        int from = 0;
+        int start;
+        while ((start = xml.indexOf(MODULES_START, from)) >= 0) {
+            int lineEnd = start;
+            while (lineEnd < xml.length() && !isLineTerminator(xml.charAt(lineEnd))) {
+                lineEnd++;
+            }
+            for (int end = lineEnd - MODULES_END.length(); end >= start + MODULES_START.length(); end--) {
+                if (xml.startsWith(MODULES_END, end)) {
+                    modules = xml.substring(start, end + MODULES_END.length());
+                    break;
+                }
+            }
+            from = lineEnd;
+        }
+        return modules;
+    }
+
+    /**
+     * The characters that end a line for {@code .} in a pattern without the
+     * DOTALL or UNIX_LINES flags.
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Same as {@code replaceAll(">\\s*<", "><")}.
+     */
+    static String removeWhitespaceBetweenTags(String xml) {
+        StringBuilder out = new StringBuilder(xml.length());
+        int i = 0;
+        while (i < xml.length()) {
+            char c = xml.charAt(i++);
+            out.append(c);
+            if (c == '>') {
+                int next = i;
+                while (next < xml.length() && isWhitespace(xml.charAt(next))) {
+                    next++;
+                }
+                if (next < xml.length() && xml.charAt(next) == '<') {
+                    i = next;
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * The characters matched by {@code \s}.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -9,7 +9,11 @@ import com.intel.dcsg.cpg.xml.JAXB;
 import com.intel.mountwilson.common.ErrorCode;
 import com.intel.mountwilson.common.ICommand;
 import com.intel.mountwilson.common.TAException;
+import com.intel.mountwilson.trustagent.commands.measurement.TcbMeasurementEngine;
+import com.intel.mountwilson.trustagent.commands.measurement.TcbMeasurementWatcher;
+import com.intel.mountwilson.trustagent.commands.measurement.TcbMeasurementXml;
 import com.intel.mountwilson.trustagent.data.TADataContext;
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
 import com.intel.mtwilson.trustagent.measurement.TcbMeasurement;
 import java.io.File;
 import java.io.FileInputStream;
@@ -31,12 +35,28 @@ public class RetrieveTcbMeasurement implements ICommand {
     }
 
     /**
-     * Retrieves the measurement log from the TA node.
+     * Retrieves the measurement log from the TA node. When the manifest in
+     * tcb.measurement.manifest exists, the agent measures its entries
+     * itself, and with tcb.measurement.watch keeps the measurement current
+     * between quotes; otherwise it reads the measurement.xml written at boot.
      * 
      * @throws TAException 
      */
     @Override
     public void execute() throws TAException {
+        File manifestFile = null;
+        boolean watch = true;
+        try {
+            TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+            manifestFile = configuration.getTcbMeasurementManifestFile();
+            watch = configuration.isTcbMeasurementWatch();
+        } catch (IOException e) {
+            log.warn("Cannot load tcb measurement configuration: {}", e.getMessage());
+        }
+        if (manifestFile != null && manifestFile.exists()) {
+            measureManifest(manifestFile, watch);
+            return;
+        }
         File tcbMeasurementFile = context.getTcbMeasurementXmlFile();
         if (!context.getTcbMeasurementXmlFile().exists()) {
             log.warn("TCB measurement XML file not present at {}.", context.getTcbMeasurementXmlFile().getAbsolutePath());
@@ -72,4 +92,22 @@ public class RetrieveTcbMeasurement implements ICommand {
             throw new TAException(ErrorCode.BAD_REQUEST, "Invalid measurement.xml file. Cannot unmarshal/marshal object using jaxb.");
         }
     }
+
+    private void measureManifest(File manifestFile, boolean watch) throws TAException {
+        log.debug("Measuring the TCB manifest @ {}.", manifestFile.getAbsolutePath());
+        try {
+            TcbMeasurement measurement;
+            if (watch) {
+                measurement = TcbMeasurementWatcher.getInstance(manifestFile).getMeasurement();
+            } else {
+                try (InputStream in = new FileInputStream(manifestFile)) {
+                    measurement = TcbMeasurementEngine.getInstance().measure(TcbMeasurementXml.read(in));
+                }
+            }
+            context.setTcbMeasurement(TcbMeasurementXml.write(measurement));
+        } catch (IOException e) {
+            log.warn("Cannot measure the TCB manifest {}: {}", manifestFile.getAbsolutePath(), e.getMessage());
+            throw new TAException(ErrorCode.BAD_REQUEST, "Cannot measure the TCB manifest: " + e.getMessage());
+        }
+    }
 }
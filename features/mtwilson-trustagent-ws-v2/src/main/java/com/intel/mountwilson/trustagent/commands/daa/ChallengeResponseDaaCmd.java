@@ -8,8 +8,8 @@ import com.intel.mountwilson.common.ICommand;
 import com.intel.mountwilson.common.TAException;
 import com.intel.mountwilson.trustagent.data.TADataContext;
 import com.intel.mtwilson.util.exec.EscapeUtil;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
+import com.intel.mtwilson.trustagent.exec.ProcessResult;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -44,7 +44,7 @@ public class ChallengeResponseDaaCmd implements ICommand {
             command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getAikBlobFileName()));
             command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getDaaChallengeFileName()));
             command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getDaaResponseFileName()));
-            Result result = ExecUtil.execute(command);
+            ProcessResult result = ProcessExecutor.getInstance().execute(command);
             if (result.getExitCode() != 0) {
                 log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
                 throw new TAException(ErrorCode.ERROR, result.getStderr());
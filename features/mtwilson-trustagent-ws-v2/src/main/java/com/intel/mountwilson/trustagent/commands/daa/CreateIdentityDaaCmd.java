@@ -6,8 +6,8 @@ import com.intel.mountwilson.common.ICommand;
 import com.intel.mountwilson.common.TAException;
 import com.intel.mountwilson.trustagent.data.TADataContext;
 import com.intel.mtwilson.util.exec.EscapeUtil;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
+import com.intel.mtwilson.trustagent.exec.ProcessResult;
 import java.io.File;
 import java.io.InputStream;
 import org.apache.commons.exec.CommandLine;
@@ -40,7 +40,7 @@ public class CreateIdentityDaaCmd implements ICommand {
             String ekCertFileName = EscapeUtil.doubleQuoteEscapeShellArgument(context.getEKCertFileName());
             CommandLine command1 = new CommandLine("/opt/trustagent/bin/getcert");  // safe; no arguments involved in this command line
             command1.addArgument(ekCertFileName);
-            Result result1 = ExecUtil.execute(command1);
+            ProcessResult result1 = ProcessExecutor.getInstance().execute(command1);
             if (result1.getExitCode() != 0) {
                 log.error("Error running command [{}]: {}", command1.getExecutable(), result1.getStderr());
                 throw new TAException(ErrorCode.ERROR, result1.getStderr());
@@ -53,7 +53,7 @@ public class CreateIdentityDaaCmd implements ICommand {
             command2.addArgument(ekCertFileName);
             command2.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getAikCertFileName()));
             //command2.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getAikBlobFileName()));
-            Result result2 = ExecUtil.execute(command2);
+            ProcessResult result2 = ProcessExecutor.getInstance().execute(command2);
             if (result2.getExitCode() != 0) {
                 log.error("Error running command [{}]: {}", command2.getExecutable(), result2.getStderr());
                 throw new TAException(ErrorCode.ERROR, result2.getStderr());
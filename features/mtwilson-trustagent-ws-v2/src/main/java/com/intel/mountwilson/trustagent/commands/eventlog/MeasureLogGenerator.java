@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.eventlog;
+
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
+import com.intel.mtwilson.trustagent.exec.ProcessResult;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Writes measureLog.xml from the TXT and tboot events of a TCG binary event
+ * log, with the same structure module_analysis.sh and
+ * module_analysis_da.sh write from the txt-stat output.
+ *
+ * The PCR mapping event (0x401) selects the format. With the legacy
+ * mapping (TPM 1.2) the document has txtStatus 2, the SINIT to MLE data
+ * from the 0x402, 0x403 and 0x404 events, and one module for each tboot
+ * module event (0x501) named by its position. With the details and
+ * authorities mapping (TPM 1.2 DA and TPM 2.0) it has txtStatus 3 and one
+ * module for each TXT event in each PCR bank. Both add the tbootxm
+ * measurement when the agent has one.
+ *
+ * The SINIT to MLE data version and the EDX SENTER flags of the legacy
+ * format are not in the event log. They are read from the txt-stat output
+ * the same way module_analysis.sh reads them, and are empty if txt-stat
+ * cannot be run, as they are in the script output. The whole document is
+ * sent to the attestation service, as it is for the script output; see
+ * MeasureLogModules.
+ */
+public class MeasureLogGenerator {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(MeasureLogGenerator.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int EVTYPE_PCRMAPPING = 0x401;
+    private static final int EVTYPE_HASH_START = 0x402;
+    private static final int EVTYPE_COMBINED_HASH = 0x403;
+    private static final int EVTYPE_MLE_HASH = 0x404;
+    private static final int EVTYPE_TBOOT_MODULE = 0x501;
+    private static final String LEGACY_PCR_MAPPING = "00000000";
+    private static final String DA_PCR_MAPPING = "01000000";
+    private static final String BLANK2 = "  ";
+    private static final String BLANK4 = "    ";
+    private static final String BLANK6 = "      ";
+    private static final String BLANK8 = "        ";
+    private final File tcbMeasurementBin;
+    private final File tcbMeasurementSha256;
+
+    /**
+     *
+     * @param tcbMeasurementBin measurement file whose SHA1 is the tbootxm module of the legacy format, such as /var/log/trustagent/measurement.bin
+     * @param tcbMeasurementSha256 file with the hex SHA256 tbootxm measurement for the DA format, such as /var/log/trustagent/measurement.sha256
+     */
+    public MeasureLogGenerator(File tcbMeasurementBin, File tcbMeasurementSha256) {
+        this.tcbMeasurementBin = tcbMeasurementBin;
+        this.tcbMeasurementSha256 = tcbMeasurementSha256;
+    }
+
+    /**
+     *
+     * @param eventLogFile such as /sys/kernel/security/tpm0/binary_bios_measurements
+     * @return the measure log xml, or null if the event log has no TXT PCR mapping event
+     * @throws IOException if the event log cannot be read or is not valid
+     */
+    public String generate(File eventLogFile) throws IOException {
+        try (InputStream in = new FileInputStream(eventLogFile)) {
+            return generate(in);
+        }
+    }
+
+    public String generate(InputStream eventLog) throws IOException {
+        TcgEventLogReader reader = new TcgEventLogReader(eventLog);
+        List<TcgEvent> txtEvents = new ArrayList<>();
+        String pcrMapping = null;
+        TcgEvent event;
+        while ((event = reader.next()) != null) {
+            int type = event.getEventType();
+            if (type < 0x400 || type >= 0x600) {
+                continue;
+            }
+            txtEvents.add(event);
+            if (type == EVTYPE_PCRMAPPING && event.getEventData().length >= 4) {
+                pcrMapping = Hex.encodeHexString(Arrays.copyOf(event.getEventData(), 4));
+            }
+        }
+        log.debug("Event log has {} TXT events, PCR mapping {}", txtEvents.size(), pcrMapping);
+        if (LEGACY_PCR_MAPPING.equals(pcrMapping)) {
+            return legacy(txtEvents);
+        }
+        if (DA_PCR_MAPPING.equals(pcrMapping)) {
+            List<Integer> algorithms = new ArrayList<>();
+            for (Integer algorithm : reader.getAlgorithms()) {
+                algorithms.add(algorithm);
+            }
+            return detailsAndAuthorities(txtEvents, algorithms);
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @return the measure log of a host without a measured launch
+     */
+    public static String notMeasured() {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<measureLog>\n");
+        xml.append(BLANK2).append("<txt>\n");
+        element(xml, BLANK4, "txtStatus", "0");
+        xml.append(BLANK2).append("</txt>\n");
+        xml.append("</measureLog>\n");
+        return xml.toString();
+    }
+
+    private String legacy(List<TcgEvent> txtEvents) throws IOException {
+        String sinitHash = single(txtEvents, EVTYPE_HASH_START, false);
+        String combined = single(txtEvents, EVTYPE_COMBINED_HASH, true);
+        String mleHash = single(txtEvents, EVTYPE_MLE_HASH, false);
+        // biosAcmId, msegValid, stmHash, policyControl, lcpPolicyHash, osSinitDataCapabilities, processorSCRTMStatus
+        boolean hasCombined = combined != null && combined.length() >= 160;
+        String policyControl = hasCombined ? combined.substring(96, 104) : "";
+        String osSinitDataCapabilities = hasCombined && policyControl.charAt(6) == '1' ? combined.substring(144, 152) : "00000000";
+
+        StringBuilder xml = new StringBuilder();
+        xml.append("<measureLog>\n");
+        xml.append(BLANK2).append("<txt>\n");
+        element(xml, BLANK4, "txtStatus", "2");
+        element(xml, BLANK4, "osSinitDataCapabilities", osSinitDataCapabilities);
+        xml.append(BLANK4).append("<sinitMleData>\n");
+        String txtStat = readTxtStat();
+        element(xml, BLANK6, "version", sinitMleData(txtStat, "version"));
+        element(xml, BLANK6, "sinitHash", sinitHash == null ? "" : sinitHash);
+        element(xml, BLANK6, "mleHash", mleHash == null ? "" : mleHash);
+        element(xml, BLANK6, "biosAcmId", hasCombined ? combined.substring(0, 40) : "");
+        element(xml, BLANK6, "msegValid", hasCombined ? combined.substring(40, 56) : "");
+        element(xml, BLANK6, "stmHash", hasCombined ? combined.substring(56, 96) : "");
+        element(xml, BLANK6, "policyControl", policyControl);
+        element(xml, BLANK6, "lcpPolicyHash", hasCombined ? combined.substring(104, 144) : "");
+        element(xml, BLANK6, "processorSCRTMStatus", hasCombined ? combined.substring(152, 160) : "");
+        String edxSenterFlags = sinitMleData(txtStat, "edx_senter_flags");
+        element(xml, BLANK6, "edxSenterFlags", edxSenterFlags.startsWith("0x") ? edxSenterFlags.substring(2) : edxSenterFlags);
+        xml.append(BLANK4).append("</sinitMleData>\n");
+        xml.append(BLANK4).append("<modules>\n");
+        int position = 0;
+        for (TcgEvent event : txtEvents) {
+            if (event.getEventType() == EVTYPE_TBOOT_MODULE) {
+                position++;
+                module(xml, null, event.getPcrIndex(), legacyModuleName(position), event.getDigestHex(TcgEvent.TPM_ALG_SHA1));
+            }
+        }
+        if (tcbMeasurementBin != null && tcbMeasurementBin.isFile()) {
+            module(xml, null, 19, "tbootxm", DigestUtils.sha1Hex(FileUtils.readFileToByteArray(tcbMeasurementBin)));
+        }
+        xml.append(BLANK4).append("</modules>\n");
+        xml.append(BLANK2).append("</txt>\n");
+        xml.append("</measureLog>\n");
+        return xml.toString();
+    }
+
+    private String detailsAndAuthorities(List<TcgEvent> txtEvents, List<Integer> algorithms) throws IOException {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<measureLog>\n");
+        xml.append(BLANK2).append("<txt>\n");
+        element(xml, BLANK4, "txtStatus", "3");
+        xml.append(BLANK4).append("<modules>\n");
+        for (Integer algorithm : algorithms) {
+            for (TcgEvent event : txtEvents) {
+                if (event.getEventType() != EVTYPE_TBOOT_MODULE && event.getPcrIndex() != 255 && event.getDigest(algorithm) != null) {
+                    module(xml, TcgEvent.getBankName(algorithm), event.getPcrIndex(), eventName(event.getEventType()), event.getDigestHex(algorithm));
+                }
+            }
+        }
+        int position = 0;
+        for (TcgEvent event : txtEvents) {
+            if (event.getEventType() != EVTYPE_TBOOT_MODULE) {
+                continue;
+            }
+            for (Integer algorithm : algorithms) {
+                if (event.getDigest(algorithm) != null) {
+                    module(xml, TcgEvent.getBankName(algorithm), event.getPcrIndex(), daModuleName(position), event.getDigestHex(algorithm));
+                }
+            }
+            position++;
+        }
+        if (tcbMeasurementSha256 != null && tcbMeasurementSha256.isFile()) {
+            module(xml, "SHA256", 19, "tbootxm", FileUtils.readFileToString(tcbMeasurementSha256, UTF8).trim());
+        }
+        xml.append(BLANK4).append("</modules>\n");
+        xml.append(BLANK2).append("</txt>\n");
+        xml.append("</measureLog>\n");
+        return xml.toString();
+    }
+
+    /**
+     * Runs txt-stat with sudo, as module_analysis.sh does.
+     *
+     * @return the txt-stat output, or null if txt-stat is not installed or fails
+     */
+    String readTxtStat() {
+        File txtStat = findTxtStat();
+        if (txtStat == null) {
+            log.warn("Cannot find txt-stat, the SINIT to MLE data version and EDX SENTER flags are empty");
+            return null;
+        }
+        try {
+            ProcessResult result = ProcessExecutor.getInstance().execute(Arrays.asList("sudo", "-n", txtStat.getAbsolutePath()), Collections.<String, String>emptyMap());
+            if (result.getExitCode() != 0) {
+                log.warn("txt-stat failed with exit code {}, the SINIT to MLE data version and EDX SENTER flags are empty: {}", result.getExitCode(), result.getStderr());
+                return null;
+            }
+            return result.getStdout();
+        } catch (IOException e) {
+            log.warn("Cannot run txt-stat, the SINIT to MLE data version and EDX SENTER flags are empty: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static File findTxtStat() {
+        List<String> directories = new ArrayList<>();
+        String path = System.getenv("PATH");
+        if (path != null) {
+            directories.addAll(Arrays.asList(path.split(File.pathSeparator)));
+        }
+        directories.add("/usr/sbin");
+        for (String directory : directories) {
+            File txtStat = new File(directory, "txt-stat");
+            if (txtStat.isFile()) {
+                return txtStat;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds a field of the sinit_mle_data section of the txt-stat output
+     * like the get_value2 function of module_analysis.sh: the third
+     * colon separated part of the first line naming the field after the
+     * line naming sinit_mle_data, without spaces or tabs.
+     *
+     * @param txtStat txt-stat output, or null
+     * @param name such as version or edx_senter_flags
+     * @return the value, or an empty string if it is not found
+     */
+    static String sinitMleData(String txtStat, String name) {
+        if (txtStat == null) {
+            return "";
+        }
+        Pattern section = Pattern.compile("\\bsinit_mle_data\\b");
+        Pattern field = Pattern.compile("\\b" + Pattern.quote(name) + "\\b");
+        boolean found = false;
+        for (String line : txtStat.split("\n")) {
+            if (!found) {
+                found = section.matcher(line).find();
+            } else if (field.matcher(line).find()) {
+                String[] parts = line.split(":", -1);
+                return parts.length > 2 ? parts[2].replaceAll("[ \t]", "") : "";
+            }
+        }
+        return "";
+    }
+
+    /**
+     *
+     * @return the SHA1 digest, or the event data if data is true, of the only event of the type, or null if there is not exactly one
+     */
+    private static String single(List<TcgEvent> txtEvents, int type, boolean data) {
+        TcgEvent found = null;
+        for (TcgEvent event : txtEvents) {
+            if (event.getEventType() == type) {
+                if (found != null) {
+                    return null;
+                }
+                found = event;
+            }
+        }
+        if (found == null) {
+            return null;
+        }
+        return data ? Hex.encodeHexString(found.getEventData()) : found.getDigestHex(TcgEvent.TPM_ALG_SHA1);
+    }
+
+    /**
+     *
+     * @param position of the tboot module event, starting at 1
+     */
+    private static String legacyModuleName(int position) {
+        switch (position) {
+            case 1:
+                return "tb_policy";
+            case 2:
+                return "vmlinuz";
+            case 3:
+                return "initrd";
+            case 4:
+                return "asset-tag";
+            case 5:
+                return "tbootxm";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     *
+     * @param position of the tboot module event, starting at 0
+     */
+    private static String daModuleName(int position) {
+        switch (position) {
+            case 0:
+            case 1:
+                return "tb_policy";
+            case 2:
+                return "vmlinuz";
+            case 3:
+                return "initrd";
+            case 4:
+                return "asset-tag";
+            default:
+                return "0x501";
+        }
+    }
+
+    private static String eventName(int type) {
+        switch (type) {
+            case 0x401: return "PCR_MAPPING";
+            case 0x402: return "HASH_START";
+            case 0x403: return "COMBINED_HASH";
+            case 0x404: return "MLE_HASH";
+            case 0x40a: return "BIOSAC_REG_DATA";
+            case 0x40b: return "CPU_SCRTM_STAT";
+            case 0x40c: return "LCP_CONTROL_HASH";
+            case 0x40d: return "ELEMENTS_HASH";
+            case 0x40e: return "STM_HASH";
+            case 0x40f: return "OSSINITDATA_CAP_HASH";
+            case 0x410: return "SINIT_PUBKEY_HASH";
+            case 0x411: return "LCP_HASH";
+            case 0x412: return "LCP_DETAILS_HASH";
+            case 0x413: return "LCP_AUTHORITIES_HASH";
+            case 0x414: return "NV_INFO_HASH";
+            case 0x4ff: return "CAP_VALUE";
+            default: return String.format("0x%x", type);
+        }
+    }
+
+    /**
+     *
+     * @param pcrBank or null to leave out the pcrBank element, as the legacy format does
+     * @param name or null to leave out the name element, as the legacy format does after the fifth module
+     */
+    private static void module(StringBuilder xml, String pcrBank, int pcrNumber, String name, String value) {
+        xml.append(BLANK6).append("<module>\n");
+        if (pcrBank != null) {
+            element(xml, BLANK8, "pcrBank", pcrBank);
+        }
+        element(xml, BLANK8, "pcrNumber", String.valueOf(pcrNumber));
+        if (name != null) {
+            element(xml, BLANK8, "name", name);
+        }
+        element(xml, BLANK8, "value", value);
+        xml.append(BLANK6).append("</module>\n");
+    }
+
+    private static void element(StringBuilder xml, String indent, String name, String value) {
+        xml.append(indent).append('<').append(name).append('>').append(value).append("</").append(name).append(">\n");
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.eventlog;
+
+import java.util.Collections;
+import java.util.Map;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * One entry of a TCG binary event log. In the SHA1 log format every event
+ * has one SHA1 digest; in the crypto agile format of TPM 2.0 it has one
+ * digest for each PCR bank listed in the Spec ID event.
+ */
+public class TcgEvent {
+    public static final int EV_NO_ACTION = 0x3;
+    public static final int TPM_ALG_SHA1 = 0x4;
+    public static final int TPM_ALG_SHA256 = 0xB;
+    public static final int TPM_ALG_SHA384 = 0xC;
+    public static final int TPM_ALG_SHA512 = 0xD;
+    public static final int TPM_ALG_SM3_256 = 0x12;
+    private final long offset;
+    private final int sequence;
+    private final int pcrIndex;
+    private final int eventType;
+    private final Map<Integer, byte[]> digests;
+    private final byte[] eventData;
+
+    /**
+     *
+     * @param offset byte offset of the event in the log
+     * @param sequence position of the event in the log, starting at 0
+     * @param pcrIndex
+     * @param eventType
+     * @param digests digest of each algorithm id, in log order
+     * @param eventData
+     */
+    public TcgEvent(long offset, int sequence, int pcrIndex, int eventType, Map<Integer, byte[]> digests, byte[] eventData) {
+        this.offset = offset;
+        this.sequence = sequence;
+        this.pcrIndex = pcrIndex;
+        this.eventType = eventType;
+        this.digests = Collections.unmodifiableMap(digests);
+        this.eventData = eventData;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public int getPcrIndex() {
+        return pcrIndex;
+    }
+
+    public int getEventType() {
+        return eventType;
+    }
+
+    public Map<Integer, byte[]> getDigests() {
+        return digests;
+    }
+
+    /**
+     *
+     * @param algorithmId such as TPM_ALG_SHA1
+     * @return the digest, or null if the event has no digest for the algorithm
+     */
+    public byte[] getDigest(int algorithmId) {
+        return digests.get(algorithmId);
+    }
+
+    public String getDigestHex(int algorithmId) {
+        byte[] digest = digests.get(algorithmId);
+        return digest == null ? null : Hex.encodeHexString(digest);
+    }
+
+    public byte[] getEventData() {
+        return eventData;
+    }
+
+    /**
+     *
+     * @param algorithmId
+     * @return the PCR bank name used in the measure log, such as SHA1 or SHA256, or the decimal id of an unknown algorithm
+     */
+    public static String getBankName(int algorithmId) {
+        switch (algorithmId) {
+            case TPM_ALG_SHA1:
+                return "SHA1";
+            case TPM_ALG_SHA256:
+                return "SHA256";
+            case TPM_ALG_SHA384:
+                return "SHA384";
+            case TPM_ALG_SHA512:
+                return "SHA512";
+            case TPM_ALG_SM3_256:
+                return "SM3_256";
+            default:
+                return String.valueOf(algorithmId);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("event %d pcr %d type 0x%x", sequence, pcrIndex, eventType);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.eventlog;
+
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps the events of the TCG event log in memory so a verifier can ask
+ * for the entries after the ones it already has instead of downloading the
+ * whole log with every quote.
+ *
+ * The kernel only appends to the log, so refresh opens the log at the byte
+ * offset after the last complete event and parses only what was added. An
+ * event that is still being written is read again on the next refresh.
+ *
+ * For each PCR in each bank the index also keeps the running digest, which
+ * starts at zero (or at the startup locality for PCR 0) and is extended
+ * with the digest of every event of that PCR except EV_NO_ACTION events,
+ * like the TPM does. The running digests before the first entry a
+ * verifier asks for must match the ones it computed from the entries it
+ * already has.
+ */
+public class TcgEventLogIndex {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TcgEventLogIndex.class);
+    private static final byte[] STARTUP_LOCALITY_SIGNATURE = "StartupLocality\0".getBytes(Charset.forName("US-ASCII"));
+    private static final int CHECKPOINT_INTERVAL = 256;
+    private static TcgEventLogIndex instance;
+    private final File file;
+    private final ArrayList<TcgEvent> events = new ArrayList<>();
+    // running digest of the event's PCR in each bank after the event, null when the event is not extended
+    private final ArrayList<Map<Integer, byte[]>> extended = new ArrayList<>();
+    // running digests after every CHECKPOINT_INTERVAL events, so looking them up does not replay the whole log
+    private final ArrayList<Map<Integer, Map<Integer, byte[]>>> checkpoints = new ArrayList<>();
+    private final TreeMap<Integer, Map<Integer, byte[]>> current = new TreeMap<>(); // pcr index -> algorithm id -> running digest
+    private final Map<Integer, Integer> startupLocality = new HashMap<>(); // pcr index -> locality
+    private Map<Integer, Integer> digestSizes;
+    private long nextOffset;
+
+    /**
+     *
+     * @param file the binary event log, usually /sys/kernel/security/tpm0/binary_bios_measurements
+     */
+    public TcgEventLogIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     *
+     * @return the index of the event log configured in measure.log.event.log
+     */
+    public static synchronized TcgEventLogIndex getInstance() {
+        if (instance == null) {
+            String eventLog = "/sys/kernel/security/tpm0/binary_bios_measurements";
+            try {
+                eventLog = TrustagentConfiguration.loadConfiguration().getMeasureLogEventLog();
+            } catch (IOException e) {
+                log.warn("Cannot load event log configuration, using defaults: {}", e.getMessage());
+            }
+            instance = new TcgEventLogIndex(new File(eventLog));
+        }
+        return instance;
+    }
+
+    /**
+     * Reads the events appended to the log since the last refresh.
+     *
+     * @return number of new events
+     * @throws IOException if the log cannot be read or an event is not valid
+     */
+    public synchronized int refresh() throws IOException {
+        int before = events.size();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.position(nextOffset);
+            TcgEventLogReader reader = new TcgEventLogReader(Channels.newInputStream(channel), nextOffset, events.size(), digestSizes);
+            try {
+                TcgEvent event;
+                while ((event = reader.next()) != null) {
+                    if (events.isEmpty()) {
+                        digestSizes = reader.getDigestSizes();
+                    }
+                    add(event);
+                    nextOffset = reader.getOffset();
+                }
+            } catch (EOFException e) {
+                log.debug("Event log {} ends inside an event, reading it on the next refresh: {}", file.getAbsolutePath(), e.getMessage());
+            }
+        }
+        if (events.size() > before) {
+            log.debug("Indexed events {} to {} of {}", before, events.size() - 1, file.getAbsolutePath());
+        }
+        return events.size() - before;
+    }
+
+    private void add(TcgEvent event) {
+        if (events.size() % CHECKPOINT_INTERVAL == 0) {
+            checkpoints.add(new HashMap<>(current));
+        }
+        events.add(event);
+        if (event.getEventType() == TcgEvent.EV_NO_ACTION) {
+            byte[] data = event.getEventData();
+            if (data.length > STARTUP_LOCALITY_SIGNATURE.length && Arrays.equals(STARTUP_LOCALITY_SIGNATURE, Arrays.copyOf(data, STARTUP_LOCALITY_SIGNATURE.length))) {
+                startupLocality.put(event.getPcrIndex(), data[STARTUP_LOCALITY_SIGNATURE.length] & 0xff);
+            }
+            extended.add(null);
+            return;
+        }
+        Map<Integer, byte[]> previous = current.get(event.getPcrIndex());
+        Map<Integer, byte[]> values = new LinkedHashMap<>();
+        for (Map.Entry<Integer, byte[]> digest : event.getDigests().entrySet()) {
+            MessageDigest hash = messageDigest(digest.getKey());
+            if (hash == null) {
+                continue;
+            }
+            byte[] value = previous == null ? null : previous.get(digest.getKey());
+            hash.update(value == null ? resetValue(event.getPcrIndex(), digest.getValue().length) : value);
+            hash.update(digest.getValue());
+            values.put(digest.getKey(), hash.digest());
+        }
+        extended.add(values);
+        current.put(event.getPcrIndex(), values);
+    }
+
+    private byte[] resetValue(int pcrIndex, int size) {
+        byte[] value = new byte[size];
+        Integer locality = startupLocality.get(pcrIndex);
+        if (locality != null) {
+            value[size - 1] = (byte) locality.intValue();
+        }
+        return value;
+    }
+
+    private static MessageDigest messageDigest(int algorithmId) {
+        String name;
+        switch (algorithmId) {
+            case TcgEvent.TPM_ALG_SHA1:
+                name = "SHA-1";
+                break;
+            case TcgEvent.TPM_ALG_SHA256:
+                name = "SHA-256";
+                break;
+            case TcgEvent.TPM_ALG_SHA384:
+                name = "SHA-384";
+                break;
+            case TcgEvent.TPM_ALG_SHA512:
+                name = "SHA-512";
+                break;
+            default:
+                return null;
+        }
+        try {
+            return MessageDigest.getInstance(name);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(name + " is not available", e);
+        }
+    }
+
+    /**
+     *
+     * @return number of events in the index
+     */
+    public synchronized int size() {
+        return events.size();
+    }
+
+    /**
+     *
+     * @return byte offset after the last event in the index
+     */
+    public synchronized long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     *
+     * @param offset byte offset in the log
+     * @return sequence number of the event at the offset, the number of events if offset is the end of the index, or -1 if no event starts at the offset
+     */
+    public synchronized int sequenceAt(long offset) {
+        if (offset == nextOffset) {
+            return events.size();
+        }
+        int low = 0;
+        int high = events.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleOffset = events.get(middle).getOffset();
+            if (middleOffset < offset) {
+                low = middle + 1;
+            } else if (middleOffset > offset) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param from sequence number of the first event, at most size()
+     * @return the events from the sequence number to the end of the index
+     */
+    public synchronized List<TcgEvent> getEvents(int from) {
+        return new ArrayList<>(events.subList(from, events.size()));
+    }
+
+    /**
+     *
+     * @param sequence number of events to include, at most size()
+     * @return running digest of each PCR index in each bank after those events, by PCR index and then algorithm id; PCRs without events are not included
+     */
+    public synchronized Map<Integer, Map<Integer, byte[]>> runningDigests(int sequence) {
+        if (sequence == events.size()) {
+            return new TreeMap<>(current);
+        }
+        int checkpoint = sequence / CHECKPOINT_INTERVAL;
+        TreeMap<Integer, Map<Integer, byte[]>> pcrs = new TreeMap<>(checkpoints.get(checkpoint));
+        for (int i = checkpoint * CHECKPOINT_INTERVAL; i < sequence; i++) {
+            Map<Integer, byte[]> values = extended.get(i);
+            if (values != null) {
+                pcrs.put(events.get(i).getPcrIndex(), values);
+            }
+        }
+        return pcrs;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.eventlog;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads a TCG binary event log, such as
+ * /sys/kernel/security/tpm0/binary_bios_measurements, one event at a time.
+ *
+ * Both formats are supported. A SHA1 log (TPM 1.2) is a sequence of
+ * TCG_PCR_EVENT structures. A crypto agile log (TPM 2.0) starts with one
+ * TCG_PCR_EVENT whose data is the Spec ID event, which lists the digest
+ * size of each algorithm; every following event is a TCG_PCR_EVENT2 with a
+ * digest for each of those algorithms. All integers are little endian.
+ */
+public class TcgEventLogReader implements Closeable {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] SPEC_ID_SIGNATURE = "Spec ID Event03\0".getBytes(ASCII);
+    private static final int SHA1_DIGEST_SIZE = 20;
+    /** larger events are not expected in a boot log and mean the log is corrupt */
+    private static final int MAX_EVENT_DATA_SIZE = 1024 * 1024;
+    private final InputStream in;
+    private final byte[] int32 = new byte[4];
+    private long offset;
+    private int sequence;
+    private Map<Integer, Integer> digestSizes;
+
+    /**
+     *
+     * @param in the log, positioned at its first event
+     */
+    public TcgEventLogReader(InputStream in) {
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+    }
+
+    /**
+     * Continues a log after the events that were already read, for example
+     * when the kernel appended events since then.
+     *
+     * @param in the log, positioned at offset
+     * @param offset byte offset of the next event
+     * @param sequence sequence number of the next event
+     * @param digestSizes digest size of each algorithm id from getDigestSizes, or null for a SHA1 log
+     */
+    public TcgEventLogReader(InputStream in, long offset, int sequence, Map<Integer, Integer> digestSizes) {
+        this(in);
+        this.offset = offset;
+        this.sequence = sequence;
+        this.digestSizes = digestSizes;
+    }
+
+    /**
+     *
+     * @return the next event, or null at the end of the log
+     * @throws EOFException if the log ends inside an event
+     * @throws IOException if an event is not valid
+     */
+    public TcgEvent next() throws IOException {
+        long eventOffset = offset;
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        offset++;
+        int pcrIndex = first | readUnsignedByte() << 8 | readUnsignedByte() << 16 | readUnsignedByte() << 24;
+        int eventType = readInt32();
+        Map<Integer, byte[]> digests = new LinkedHashMap<>();
+        if (digestSizes == null) {
+            digests.put(TcgEvent.TPM_ALG_SHA1, readBytes(SHA1_DIGEST_SIZE));
+        } else {
+            int count = readInt32();
+            if (count < 0 || count > digestSizes.size()) {
+                throw new IOException(String.format("Event %d at offset %d has %d digests", sequence, eventOffset, count));
+            }
+            for (int i = 0; i < count; i++) {
+                int algorithmId = readUnsignedByte() | readUnsignedByte() << 8;
+                Integer size = digestSizes.get(algorithmId);
+                if (size == null) {
+                    throw new IOException(String.format("Event %d at offset %d has a digest of unknown algorithm 0x%x", sequence, eventOffset, algorithmId));
+                }
+                digests.put(algorithmId, readBytes(size));
+            }
+        }
+        int eventSize = readInt32();
+        if (eventSize < 0 || eventSize > MAX_EVENT_DATA_SIZE) {
+            throw new IOException(String.format("Event %d at offset %d has data size %d", sequence, eventOffset, eventSize & 0xffffffffL));
+        }
+        byte[] eventData = readBytes(eventSize);
+        if (sequence == 0 && eventType == TcgEvent.EV_NO_ACTION && isSpecIdEvent(eventData)) {
+            digestSizes = parseSpecIdEvent(eventData);
+        }
+        return new TcgEvent(eventOffset, sequence++, pcrIndex, eventType, digests, eventData);
+    }
+
+    /**
+     *
+     * @return true if the log is in the crypto agile format, known after the first event is read
+     */
+    public boolean isCryptoAgile() {
+        return digestSizes != null;
+    }
+
+    /**
+     *
+     * @return the algorithm ids of the PCR banks in the log, in Spec ID event order
+     */
+    public Iterable<Integer> getAlgorithms() {
+        if (digestSizes == null) {
+            return Collections.singletonList(TcgEvent.TPM_ALG_SHA1);
+        }
+        return digestSizes.keySet();
+    }
+
+    /**
+     *
+     * @return digest size of each algorithm id in Spec ID event order, or null for a SHA1 log
+     */
+    public Map<Integer, Integer> getDigestSizes() {
+        return digestSizes == null ? null : Collections.unmodifiableMap(digestSizes);
+    }
+
+    /**
+     *
+     * @return number of bytes read so far, which is the offset of the next event
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static boolean isSpecIdEvent(byte[] eventData) {
+        return eventData.length >= SPEC_ID_SIGNATURE.length
+                && Arrays.equals(SPEC_ID_SIGNATURE, Arrays.copyOf(eventData, SPEC_ID_SIGNATURE.length));
+    }
+
+    /**
+     * TCG_EfiSpecIDEventStruct: signature[16], platformClass, specVersionMinor,
+     * specVersionMajor, specErrata, uintnSize, numberOfAlgorithms and then
+     * numberOfAlgorithms pairs of algorithmId and digestSize.
+     */
+    private Map<Integer, Integer> parseSpecIdEvent(byte[] eventData) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(eventData).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            buffer.position(SPEC_ID_SIGNATURE.length + 4 + 4);
+            int count = buffer.getInt();
+            if (count <= 0 || count > 16) {
+                throw new IOException("Spec ID event lists " + count + " algorithms");
+            }
+            Map<Integer, Integer> sizes = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                int algorithmId = buffer.getShort() & 0xffff;
+                int digestSize = buffer.getShort() & 0xffff;
+                sizes.put(algorithmId, digestSize);
+            }
+            return sizes;
+        } catch (RuntimeException e) {
+            throw new IOException("Spec ID event is truncated", e);
+        }
+    }
+
+    private int readUnsignedByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException(String.format("Event log ends inside event %d at offset %d", sequence, offset));
+        }
+        offset++;
+        return b;
+    }
+
+    private int readInt32() throws IOException {
+        readFully(int32);
+        return (int32[0] & 0xff) | (int32[1] & 0xff) << 8 | (int32[2] & 0xff) << 16 | (int32[3] & 0xff) << 24;
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        readFully(bytes);
+        return bytes;
+    }
+
+    private void readFully(byte[] bytes) throws IOException {
+        int read = 0;
+        while (read < bytes.length) {
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n < 0) {
+                throw new EOFException(String.format("Event log ends inside event %d at offset %d", sequence, offset));
+            }
+            read += n;
+            offset += n;
+        }
+    }
+}
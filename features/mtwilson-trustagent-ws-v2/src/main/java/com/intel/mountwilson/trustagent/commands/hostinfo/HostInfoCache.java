@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.hostinfo;
+
+import com.intel.mountwilson.common.ICommand;
+import com.intel.mountwilson.common.TAException;
+import com.intel.mountwilson.trustagent.data.TADataContext;
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.model.HostInfo;
+import com.intel.mtwilson.trustagent.tpmmodules.Tpm;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Keeps the host information in memory so /host does not collect it on
+ * every request. The first request collects it, and after that it is
+ * collected again in the background every host.info.refresh seconds, so a
+ * request never waits for a refresh.
+ *
+ * Each snapshot has an ETag computed from its content. When a refresh finds
+ * the same content the previous snapshot is kept, with its timestamp and
+ * ETag, so clients can use If-None-Match to skip unchanged host information.
+ */
+public class HostInfoCache {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(HostInfoCache.class);
+    private static HostInfoCache instance;
+    private final long refreshSeconds;
+    private final long probeTimeoutMillis;
+    private final Object collectLock = new Object();
+    private volatile Snapshot snapshot;
+
+    public HostInfoCache(long refreshSeconds, long probeTimeoutMillis) {
+        this.refreshSeconds = refreshSeconds;
+        this.probeTimeoutMillis = probeTimeoutMillis;
+    }
+
+    public static synchronized HostInfoCache getInstance() {
+        if (instance == null) {
+            long refreshSeconds = 300;
+            long probeTimeoutMillis = 10000;
+            try {
+                TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+                refreshSeconds = configuration.getHostInfoRefresh();
+                probeTimeoutMillis = configuration.getHostInfoProbeTimeout();
+            } catch (IOException e) {
+                log.warn("Cannot load host info configuration, using defaults: {}", e.getMessage());
+            }
+            log.debug("Host info refresh {} seconds probe timeout {} ms", refreshSeconds, probeTimeoutMillis);
+            instance = new HostInfoCache(refreshSeconds, probeTimeoutMillis);
+        }
+        return instance;
+    }
+
+    /**
+     *
+     * @return the current host information, collected now if this is the first request
+     * @throws TAException if the host information was never collected and cannot be collected now
+     */
+    public Snapshot get() throws TAException {
+        Snapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (collectLock) {
+            if (snapshot == null) {
+                snapshot = collect(null);
+                startRefresh();
+            }
+            return snapshot;
+        }
+    }
+
+    private void startRefresh() {
+        if (refreshSeconds <= 0) {
+            return;
+        }
+        ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "host-info-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    private void refresh() {
+        try {
+            Snapshot next = collect(snapshot);
+            if (next != snapshot) {
+                log.info("Host information changed");
+                snapshot = next;
+            }
+        } catch (TAException | RuntimeException e) {
+            // the previous host information is still the best we have
+            log.warn("Cannot refresh host information: {}", e.getMessage());
+        }
+    }
+
+    /**
+     *
+     * @param previous snapshot to keep if the content has not changed, may be null
+     */
+    private Snapshot collect(Snapshot previous) throws TAException {
+        TADataContext context = new TADataContext();
+        ICommand cmd;
+        String osName = System.getProperty("os.name");
+        if (osName.toLowerCase().contains("windows")) {
+            cmd = new HostInfoCmdWin(context);
+        } else {
+            cmd = new HostInfoCmd(context, probeTimeoutMillis);
+        }
+        cmd.execute();
+        HostInfo host = new HostInfo();
+        host.timestamp = System.currentTimeMillis();
+//        host.clientIp = CommandUtil.getHostIpAddress();
+        host.errorCode = context.getErrorCode().name();
+        host.errorMessage = context.getErrorCode().getMessage();
+        host.osName = context.getOsName();
+        host.osVersion = context.getOsVersion();
+        host.biosOem = context.getBiosOem();
+        host.biosVersion = context.getBiosVersion();
+        host.vmmName = context.getVmmName();
+        host.vmmVersion = context.getVmmVersion();
+        host.processorInfo = context.getProcessorInfo();
+        host.hardwareUuid = context.getHostUUID();
+        host.tpmVersion = Tpm.getTpmVersion();
+        host.pcrBanks = Tpm.getpcrBanks();
+        String etag = etagOf(host);
+        if (previous != null && previous.etag.equals(etag)) {
+            return previous;
+        }
+        return new Snapshot(host, etag);
+    }
+
+    /**
+     * The timestamp is not part of the ETag because it changes on every
+     * refresh.
+     */
+    static String etagOf(HostInfo host) {
+        String[] fields = new String[] { host.errorCode, host.errorMessage, host.osName, host.osVersion, host.biosOem, host.biosVersion,
+            host.vmmName, host.vmmVersion, host.processorInfo, host.hardwareUuid, host.tpmVersion, host.pcrBanks };
+        StringBuilder content = new StringBuilder();
+        for (String field : fields) {
+            // the length prefix keeps a null distinct from an empty value and from the next field
+            content.append(field == null ? -1 : field.length()).append(':').append(field == null ? "" : field).append('\n');
+        }
+        return DigestUtils.sha256Hex(content.toString());
+    }
+
+    public static class Snapshot {
+        private final HostInfo hostInfo;
+        private final String etag;
+
+        private Snapshot(HostInfo hostInfo, String etag) {
+            this.hostInfo = hostInfo;
+            this.etag = etag;
+        }
+
+        public HostInfo getHostInfo() {
+            return hostInfo;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+    }
+}
@@ -8,46 +8,100 @@ import com.intel.mountwilson.common.ErrorCode;
 import com.intel.mountwilson.common.ICommand;
 import com.intel.mountwilson.common.TAException;
 import com.intel.mountwilson.trustagent.data.TADataContext;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.Folders;
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
+import com.intel.mtwilson.trustagent.exec.ProcessResult;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import org.apache.commons.exec.CommandLine;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
 
 /**
+ * Collects the host information by reading files instead of running
+ * commands. The output of lsb_release, dmidecode, docker and virsh that
+ * "tagent update-system-info" cached in var/system-info is used when it is
+ * available, so the reported values are the same as before. Otherwise, or
+ * when the cached output is empty or has no value, as when dmidecode or
+ * lsb_release failed while it was cached, the information is read from
+ * /etc/os-release, /sys/class/dmi/id and /proc/cpuinfo. When the output of
+ * docker and virsh is not cached they are run at the same time with a
+ * timeout.
  *
  * @author dsmagadx
  */
 public class HostInfoCmd implements ICommand {
 
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(HostInfoCmd.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long DEFAULT_PROBE_TIMEOUT = 10000;
+    private static final ExecutorService probeExecutor = Executors.newCachedThreadPool(new ProbeThreadFactory());
+    // bits of the CPUID leaf 1 EDX register, as named in /proc/cpuinfo; bits 10 and 20 are reserved
+    private static final List<String> CPUID_EDX_FLAGS = Arrays.asList(
+            "fpu", "vme", "de", "pse", "tsc", "msr", "pae", "mce", "cx8", "apic", null, "sep", "mtrr", "pge", "mca", "cmov",
+            "pat", "pse36", "pn", "clflush", null, "dts", "acpi", "mmx", "fxsr", "sse", "sse2", "ss", "ht", "tm", "ia64", "pbe");
 
     TADataContext context = null;
+    private final File root;
+    private final File systemInfo;
+    private final long probeTimeoutMillis;
 
     public HostInfoCmd(TADataContext context) {
+        this(context, DEFAULT_PROBE_TIMEOUT);
+    }
+
+    public HostInfoCmd(TADataContext context, long probeTimeoutMillis) {
+        this(context, new File("/"), new File(Folders.application() + File.separator + "var" + File.separator + "system-info"), probeTimeoutMillis);
+    }
+
+    /**
+     *
+     * @param context
+     * @param root directory that contains etc, sys and proc
+     * @param systemInfo directory with the output cached by tagent update-system-info
+     * @param probeTimeoutMillis how long to wait for docker and virsh when their output is not cached
+     */
+    public HostInfoCmd(TADataContext context, File root, File systemInfo, long probeTimeoutMillis) {
         this.context = context;
+        this.root = root;
+        this.systemInfo = systemInfo;
+        this.probeTimeoutMillis = probeTimeoutMillis;
     }
 
     @Override
     public void execute() throws TAException {
         try {
-
+            long start = System.currentTimeMillis();
             getOsAndVersion();
+            boolean xenserver = context.getOsName() != null && context.getOsName().toLowerCase().contains("xenserver");
+            // the probes are started first because they may have to run a command
+            Future<String> docker = xenserver ? null : probe("docker.version", "docker", "-v");
+            Future<String> virsh = xenserver ? null : probe("virsh.version", "virsh", "version");
             getBiosAndVersion();
-            if (context.getOsName() != null && context.getOsName().toLowerCase().contains("xenserver")) {
+            // Retrieve the processor information as well.
+            getProcessorInfo();
+            getHostUUID();
+            if (xenserver) {
                 context.setVmmName(context.getOsName());
                 context.setVmmVersion(context.getOsVersion());
-                log.debug("VMM Name: " + context.getVmmName());
-                log.debug("VMM Version: " + context.getVmmVersion());
-
             } else {
-                getVmmAndVersion();
-
+                getVmmAndVersion(docker, virsh);
             }
-            // Retrieve the processor information as well.
-            getProcessorInfo();
-            getHostUUID();
+            log.debug("VMM Name: " + context.getVmmName());
+            log.debug("VMM Version: " + context.getVmmVersion());
+            log.debug("performance: host info collected in {} ms", System.currentTimeMillis() - start);
         } catch (TAException | IOException ex) {
             log.debug("Error while getting OS details", ex);
             throw new TAException(ErrorCode.ERROR, "Error while getting OS details.", ex);
@@ -55,239 +109,269 @@ public class HostInfoCmd implements ICommand {
 
     }
 
+    /**
+     *
+     * @param name of the file in var/system-info
+     * @return the content of the file, or null if it does not exist or cannot be read
+     */
+    private String readSystemInfo(String name) throws IOException {
+        return read(new File(systemInfo, name));
+    }
+
+    /**
+     *
+     * @param path relative to the root, for example sys/class/dmi/id/bios_vendor
+     * @return the content of the file, or null if it does not exist or cannot be read
+     */
+    private String readSystemFile(String path) throws IOException {
+        return read(new File(root, path));
+    }
+
+    private String read(File file) throws IOException {
+        if (!file.isFile() || !file.canRead()) {
+            return null;
+        }
+        return FileUtils.readFileToString(file, UTF8);
+    }
+
+    private void getOsAndVersion() throws TAException, IOException {
+        String lsbRelease = readSystemInfo("lsb_release");
+        if (lsbRelease == null || !parseLsbRelease(lsbRelease)) {
+            String osRelease = readSystemFile("etc/os-release");
+            if (osRelease == null) {
+                osRelease = readSystemFile("usr/lib/os-release");
+            }
+            if (osRelease != null) {
+                Map<String, String> properties = parseOsRelease(osRelease);
+                context.setOsName(properties.get("NAME"));
+                context.setOsVersion(properties.get("VERSION_ID"));
+            } else if (lsbRelease == null) {
+                throw new TAException(ErrorCode.ERROR, "Cannot read lsb_release or os-release");
+            }
+        }
+        log.debug("OS Name: " + context.getOsName());
+        log.debug("OS Version: " + context.getOsVersion());
+    }
+
     /*
-     Sample response of "lsb_release -a" 
+     Sample response of "lsb_release -a"
      No LSB modules are available.
      Distributor ID: Ubuntu
      Description:    Ubuntu 11.10
      Release:        11.10
      Codename:       oneiric
      */
-    private void getOsAndVersion() throws TAException, IOException {
-        CommandLine command = new CommandLine("/opt/trustagent/bin/tagent");
-        command.addArgument("system-info");
-        command.addArgument("lsb_release -a", false);
-        Result result = ExecUtil.execute(command);
-        if (result.getExitCode() != 0) {
-            log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
-            throw new TAException(ErrorCode.ERROR, result.getStderr());
-        }
-        log.debug("command stdout: {}", result.getStdout());
-        if (result.getStdout() != null) {
-            String[] resultArray = result.getStdout().split("\n");
-            for (String str : resultArray) {
-                String[] parts = str.split(":");
-
-                if (parts != null && parts.length > 1) {
-                    if (parts[0].trim().equalsIgnoreCase("Distributor ID")) {
-                        if (parts[1] != null) {
-                            context.setOsName(parts[1].trim());
-                        }
-                    } else if (parts[0].trim().equalsIgnoreCase("Release")) {
-                        if (parts[1] != null) {
-                            context.setOsVersion(parts[1].trim());
-                        }
+    private boolean parseLsbRelease(String output) {
+        String osName = null;
+        String osVersion = null;
+        String[] resultArray = output.split("\n");
+        for (String str : resultArray) {
+            String[] parts = str.split(":");
 
-                    }
+            if (parts.length > 1) {
+                if (parts[0].trim().equalsIgnoreCase("Distributor ID")) {
+                    osName = parts[1].trim();
+                } else if (parts[0].trim().equalsIgnoreCase("Release")) {
+                    osVersion = parts[1].trim();
                 }
             }
-            log.debug("OS Name: " + context.getOsName());
-            log.debug("OS Version: " + context.getOsVersion());
-        } else {
-            log.error("Error executing the lsb_release command to retrieve the OS details");
         }
-
+        if (osName == null || osName.isEmpty()) {
+            log.debug("No Distributor ID in the cached lsb_release output");
+            return false;
+        }
+        context.setOsName(osName);
+        context.setOsVersion(osVersion);
+        return true;
     }
 
-//    private String trim(String text) {
-//        if( text == null ) { return null; }
-//        return text.trim();
-//    }
+    /*
+     Sample content of /etc/os-release
+     NAME="Ubuntu"
+     VERSION="16.04.2 LTS (Xenial Xerus)"
+     ID=ubuntu
+     VERSION_ID="16.04"
+     */
+    static Map<String, String> parseOsRelease(String content) {
+        HashMap<String, String> properties = new HashMap<>();
+        for (String line : content.split("\n")) {
+            line = line.trim();
+            int equals = line.indexOf('=');
+            if (line.startsWith("#") || equals < 1) {
+                continue;
+            }
+            String value = line.substring(equals + 1).trim();
+            if (value.length() > 1 && (value.charAt(0) == '"' || value.charAt(0) == '\'') && value.charAt(value.length() - 1) == value.charAt(0)) {
+                value = value.substring(1, value.length() - 1).replace("\\\"", "\"").replace("\\\\", "\\");
+            }
+            properties.put(line.substring(0, equals).trim(), value);
+        }
+        return properties;
+    }
 
     /*
      * Sample response of dmidecode -s bios-vendor -> Intel Corp. Sample
      * response of dmidecode -s bios-vendor -> S5500.86B.01.00.0060.090920111354
      */
     private void getBiosAndVersion() throws TAException, IOException {
-        CommandLine command1 = new CommandLine("/opt/trustagent/bin/tagent");
-        command1.addArgument("system-info");
-        command1.addArgument("dmidecode");
-        command1.addArgument("-s bios-vendor", false);
-        Result result1 = ExecUtil.execute(command1);
-        if (result1.getExitCode() != 0) {
-            log.error("Error running command [{}]: {}", command1.getExecutable(), result1.getStderr());
-            throw new TAException(ErrorCode.ERROR, result1.getStderr());
-        }
-        log.debug("command stdout: {}", result1.getStdout());
-        if (result1 == null || result1.getStdout() == null) {
-            throw new IOException("Command \"dmidecode -s bios-vendor\" gave a null response");
-        }
-        List<String> resultList = Arrays.asList(result1.getStdout().split("\n"));
-        if (resultList != null && resultList.size() > 0) {
-            for (String data : resultList) {
-                if (data.trim().startsWith("#")) // ignore the comments
-                {
-                    continue;
-                }
-                context.setBiosOem(data.trim());
-                break;
-            }
-        }
+        context.setBiosOem(readDmiString("dmidecode.bios-vendor", "bios_vendor"));
         log.debug("Bios OEM: " + context.getBiosOem());
+        context.setBiosVersion(readDmiString("dmidecode.bios-version", "bios_version"));
+        log.debug("Bios Version: " + context.getBiosVersion());
+    }
 
-        CommandLine command2 = new CommandLine("/opt/trustagent/bin/tagent");
-        command2.addArgument("system-info");
-        command2.addArgument("dmidecode");
-        command2.addArgument("-s bios-version", false);
-        Result result2 = ExecUtil.execute(command2);
-        if (result2.getExitCode() != 0) {
-            log.error("Error running command [{}]: {}", command2.getExecutable(), result2.getStderr());
-            throw new TAException(ErrorCode.ERROR, result2.getStderr());
-        }
-        log.debug("command stdout: {}", result2.getStdout());
-        if (result2 == null || result2.getStdout() == null) {
-            throw new IOException("Command \"dmidecode -s bios-version\" gave a null response");
-        }
-        resultList = Arrays.asList(result2.getStdout().split("\n"));
-        if (resultList != null && resultList.size() > 0) {
-            for (String data : resultList) {
-                if (data.trim().startsWith("#")) // ignore the comments
-                {
-                    continue;
-                }
-                context.setBiosVersion(data.trim());
-                break;
+    /**
+     *
+     * @param cached name of the dmidecode -s output in var/system-info
+     * @param attribute name of the same value in /sys/class/dmi/id
+     * @return the cached value, or the value in sysfs if the cached output is missing or empty
+     * @throws IOException if neither file can be read
+     */
+    private String readDmiString(String cached, String attribute) throws IOException {
+        String output = readSystemInfo(cached);
+        String value = output == null ? null : firstLine(output);
+        if (value == null || value.isEmpty()) {
+            String sysfs = readSystemFile("sys/class/dmi/id/" + attribute);
+            if (sysfs != null) {
+                value = firstLine(sysfs);
+            } else if (output == null) {
+                throw new IOException("Cannot read " + cached + " or " + attribute);
             }
         }
-        log.debug("Bios Version: " + context.getBiosVersion());
+        return value;
     }
-    /*
-     * Sample response of "virsh version" command: 
-     * root@mwdevubuk02h:~# virsh version 
-     * Compiled against library: libvir 0.9.2 
-     * Using library: libvir 0.9.2 
-     * Using API: QEMU 0.9.2 
-     * Running hypervisor: QEMU 0.14.1
-     */
-
-    private void getVmmAndVersion() throws TAException, IOException {
-        Result result;
-        result = null;
-        CommandLine dockerCommand = new CommandLine("/opt/trustagent/bin/tagent");
-        dockerCommand.addArgument("system-info");
-        dockerCommand.addArgument("docker version", false);
-        result = ExecUtil.execute(dockerCommand);
-        if (result == null || result.getExitCode() != 0 || result.getStdout() == null || result.getStdout().isEmpty()) {
-            // If Docker is not installed the exitcode is 127
-            log.info("Error running command [{}]", dockerCommand.getExecutable());
-            log.info("Docker might not be installed or the docker version command returned a null response. Will check for the hypervisor installed.");
-        } else {
-            // Sample output would be
-            // Docker version 1.9.1, build a34a1d5
-            String cmdOutput = result.getStdout();
-            log.debug("getVmmAndVersion: output of docker -v command is {}.", cmdOutput);
-            String[] resultArray = cmdOutput.split("\n");
-            if (resultArray.length > 0) {
-                if (resultArray[0].startsWith("Docker")) {
-                    String[] versionInfo = resultArray[0].split(" ");
-                    if (versionInfo[0] != null) {
-                        context.setVmmName(versionInfo[0]);
-                    }
-                    if (versionInfo[2] != null) {
-                        context.setVmmVersion(versionInfo[2].substring(0, versionInfo[2].length() - 1)); // to remove the comma character
-                    }
-                    log.debug("VMM Name: " + context.getVmmName());
-                    log.debug("VMM Version: " + context.getVmmVersion());
 
-                    return;
-                }
+    /**
+     *
+     * @return the first line that is not a comment, trimmed, or null if there is none
+     */
+    static String firstLine(String output) {
+        for (String data : output.split("\n")) {
+            if (data.trim().startsWith("#")) { // ignore the comments
+                continue;
             }
-            log.debug("command stdout: {}", result.getStdout());
+            return data.trim();
         }
-        /* catch (TAException | IOException ex) {
-            log.error("getVmmAndVersion: Error while running virsh command. {}", ex.getMessage());
-            if (ex.getMessage().contains("error=2, No such file or directory")) {
-                context.setVmmName("Host_No_VMM");
-                context.setVmmVersion("0.0");
-                return;
-            } else {
-                log.error("getVmmAndVersion: Unexpected error encountered while running virsh command on system that does not support VMM.");
+        return null;
+    }
+
+    /**
+     * Returns the cached output of a command, or runs the command on another
+     * thread if the output is not cached.
+     */
+    private Future<String> probe(String cached, final String executable, final String argument) throws IOException {
+        final String output = readSystemInfo(cached);
+        return probeExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (output != null) {
+                    return output;
+                }
+                ProcessResult result = ProcessExecutor.getInstance().execute(Arrays.asList(executable, argument), new HashMap<String, String>(), probeTimeoutMillis);
+                if (result.getExitCode() != 0) {
+                    log.debug("{} {} exit code {}: {}", executable, argument, result.getExitCode(), result.getStderr());
+                    return "";
+                }
+                return result.getStdout();
             }
+        });
+    }
+
+    /**
+     *
+     * @return the output of the probe, or an empty string if the command is not installed, failed, or timed out
+     */
+    private String await(Future<String> probe, String name) throws TAException {
+        try {
+            String output = probe.get(probeTimeoutMillis, TimeUnit.MILLISECONDS);
+            return output == null ? "" : output;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TAException(ErrorCode.ERROR, "Interrupted while waiting for " + name, e);
+        } catch (ExecutionException e) {
+            log.info("Cannot run {}: {}", name, e.getCause().getMessage());
+            return "";
+        } catch (TimeoutException e) {
+            // a hung docker daemon should not prevent reporting the hypervisor
+            log.warn("Timeout running {}", name);
+            probe.cancel(true);
+            return "";
         }
-        */
+    }
 
-        CommandLine command = new CommandLine("/opt/trustagent/bin/tagent");
-        command.addArgument("system-info");
-        command.addArgument("virsh version", false);
-        result = ExecUtil.execute(command);
-        if (result.getExitCode() != 0) {
-            log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
-            throw new TAException(ErrorCode.ERROR, result.getStderr());
+    /*
+     * Sample response of "virsh version" command:
+     * root@mwdevubuk02h:~# virsh version
+     * Compiled against library: libvir 0.9.2
+     * Using library: libvir 0.9.2
+     * Using API: QEMU 0.9.2
+     * Running hypervisor: QEMU 0.14.1
+     */
+    private void getVmmAndVersion(Future<String> dockerProbe, Future<String> virshProbe) throws TAException {
+        String docker = await(dockerProbe, "docker -v");
+        // Sample output would be
+        // Docker version 1.9.1, build a34a1d5
+        log.debug("getVmmAndVersion: output of docker -v command is {}.", docker);
+        String[] dockerVersion = parseDockerVersion(docker);
+        if (dockerVersion != null) {
+            virshProbe.cancel(true);
+            context.setVmmName(dockerVersion[0]);
+            context.setVmmVersion(dockerVersion[1]);
+            return;
         }
+        log.info("Docker might not be installed or the docker version command returned a null response. Will check for the hypervisor installed.");
 
-        if (result == null || result.getStdout() == null || result.getStdout().isEmpty()) {
-            log.info("getVmmAndVersion: empty virsh version file, assuming no VMM installed");
+        String virsh = await(virshProbe, "virsh version");
+        log.debug("getVmmAndVersion: output of virsh version command is {}.", virsh);
+        String[] virshVersion = parseVirshVersion(virsh);
+        if (virshVersion == null) {
+            // For cases where VMM is not installed, we would hardcode the VMM name and version as below. This is needed
+            // for supporting hosts without VMM
+            log.info("getVmmAndVersion: no hypervisor in virsh version output, assuming no VMM installed");
             context.setVmmName("Host_No_VMM");
             context.setVmmVersion("0.0");
             return;
-            
-            //throw new TAException(ErrorCode.ERROR, "Not able to get VMM name and version.");
         }
+        context.setVmmName(virshVersion[0]);
+        context.setVmmVersion(virshVersion[1]);
+    }
 
-        if (result.getStdout() != null) {
-            String cmdOutput = result.getStdout();
-            log.debug("getVmmAndVersion: output of virsh version command is {}.", cmdOutput);
-            String[] resultArray = cmdOutput.split("\n");
-
-            //String[] result = "The program 'virsh' is currently not installed. You can install it by typing:\n apt-get install libvirt-bin".split("\n");
-            // For hosts where VMM is not installed, the output of the above command would look something like
-            // The program 'virsh' is currently not installed. You can install it by typing:
-            // apt-get install libvirt-bin 
-            // and 
-            // for hosts where VMM is installed the output would be
-            // Compiled against library: libvir 0.1.7
-            // Using library: libvir 0.1.7
-            // Using API: Xen 3.0.1
-            // Running hypervisor: Xen 3.0.0
-            // For cases where VMM is not installed, we would hardcode the VMM name and version as below. This is needed
-            // for supporting hosts without VMM
-            if (resultArray.length > 0) {
-                String virshCmdSupport = resultArray[0];
-                if (virshCmdSupport.startsWith("The program 'virsh' is currently not installed")) {
-                    context.setVmmName("Host_No_VMM");
-                    context.setVmmVersion("0.0");
-                    //throw new TAException(ErrorCode.ERROR, "The program 'virsh' is currently not installed");
-                } else {
-                    for (String str : resultArray) {
-                        String[] parts = str.split(":");
+    /**
+     *
+     * @param output of docker -v, for example: Docker version 1.9.1, build a34a1d5
+     * @return the name and version, or null if the output is not a docker version
+     */
+    static String[] parseDockerVersion(String output) {
+        String line = output.split("\n")[0];
+        if (!line.startsWith("Docker")) {
+            return null;
+        }
+        String[] versionInfo = line.split(" ");
+        if (versionInfo.length < 3) {
+            return null;
+        }
+        String version = versionInfo[2].endsWith(",") ? versionInfo[2].substring(0, versionInfo[2].length() - 1) : versionInfo[2]; // to remove the comma character
+        return new String[] { versionInfo[0], version };
+    }
 
-                        if (parts != null && parts.length > 1) {
-                            if (parts[0].trim().equalsIgnoreCase("Running hypervisor")) {
-                                if (parts[1] != null) {
-                                    String[] subParts = parts[1].trim().split(" ");
-                                    if (subParts[0] != null) {
-                                        context.setVmmName(subParts[0]);
-                                    }
-                                    if (subParts[1] != null) {
-                                        context.setVmmVersion(subParts[1]);
-                                    }
-                                }
-                            }
-                        }
-                        log.debug("VMM Name: " + context.getVmmName());
-                        log.debug("VMM Version: " + context.getVmmVersion());
-                    }
-                    if (context.getVmmName() == null) {
-                        context.setVmmName("Host_No_VMM");
-                        context.setVmmVersion("0.0");
-                    }
+    /**
+     * For hosts where VMM is not installed the output is empty, or looks
+     * something like: The program 'virsh' is currently not installed.
+     *
+     * @param output of virsh version
+     * @return the name and version of the running hypervisor, or null if there is none
+     */
+    static String[] parseVirshVersion(String output) {
+        for (String str : output.split("\n")) {
+            String[] parts = str.split(":");
+            if (parts.length > 1 && parts[0].trim().equalsIgnoreCase("Running hypervisor")) {
+                String[] subParts = parts[1].trim().split(" ");
+                if (subParts.length > 1) {
+                    return new String[] { subParts[0], subParts[1] };
                 }
-            } else {
-                log.error("Unable to execute virsh command to retrieve the hypervisor details");
             }
-        } else {
-            log.error("Error executing the virsh version command to retrieve the hypervisor details.");
         }
+        return null;
     }
 
     /**
@@ -298,45 +382,100 @@ public class HostInfoCmd implements ICommand {
      * @throws IOException
      */
     private void getProcessorInfo() throws TAException, IOException {
-        CommandLine command = new CommandLine("/opt/trustagent/bin/tagent");
-        command.addArgument("system-info");
-        command.addArgument("dmidecode");
-        command.addArgument("--type processor", false);
-        Result result = ExecUtil.execute(command);
-        if (result.getExitCode() != 0) {
-            log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
-            throw new TAException(ErrorCode.ERROR, result.getStderr());
+        String dmidecode = readSystemInfo("dmidecode.processor");
+        String processorInfo = dmidecode == null ? null : parseProcessorId(dmidecode);
+        if (processorInfo == null) {
+            String cpuinfo = readSystemFile("proc/cpuinfo");
+            processorInfo = cpuinfo == null ? null : processorIdFromCpuinfo(cpuinfo);
         }
-        log.debug("command stdout: {}", result.getStdout());
-
-        if (result.getStdout() != null) {
-            String[] resultArray = result.getStdout().split("\n");
-            String processorInfo = "";
+        if (processorInfo == null) {
+            log.error("Error retrieving the processor information");
+            processorInfo = "";
+        }
+        log.debug("Processor Information " + processorInfo);
+        context.setProcessorInfo(processorInfo);
+    }
 
-            // Sample output would look like below for a 2 CPU system. We will extract the processor info between CPU and the @ sign
-            //Processor Information
-            //Socket Designation: CPU1
-            //Type: Central Processor
-            //Family: Xeon
-            //Manufacturer: Intel(R) Corporation
-            //ID: C2 06 02 00 FF FB EB BF -- This is the CPU ID
-            //Signature: Type 0, Family 6, Model 44, Stepping 2
-            for (String entry : resultArray) {
-                if (entry != null && !entry.isEmpty() && entry.trim().startsWith("ID:")) {
-                    String[] parts = entry.trim().split(":");
-                    if (parts != null && parts.length > 1) {
-                        processorInfo = parts[1];
-                        break;
-                    }
+    /*
+     * Sample output would look like below for a 2 CPU system. We will extract the processor info between CPU and the @ sign
+     * Processor Information
+     * Socket Designation: CPU1
+     * Type: Central Processor
+     * Family: Xeon
+     * Manufacturer: Intel(R) Corporation
+     * ID: C2 06 02 00 FF FB EB BF -- This is the CPU ID
+     * Signature: Type 0, Family 6, Model 44, Stepping 2
+     */
+    static String parseProcessorId(String dmidecode) {
+        for (String entry : dmidecode.split("\n")) {
+            if (entry.trim().startsWith("ID:")) {
+                String[] parts = entry.trim().split(":");
+                if (parts.length > 1) {
+                    return parts[1];
                 }
             }
+        }
+        return null;
+    }
 
-            log.debug("Processor Information " + processorInfo);
-            context.setProcessorInfo(processorInfo);
-            log.debug("Context is being set with processor info: " + context.getProcessorInfo());
+    /**
+     * Computes the processor ID that dmidecode reports, which is the CPUID
+     * leaf 1 EAX and EDX registers in little-endian order, from the family,
+     * model, stepping and flags of the first processor in /proc/cpuinfo.
+     *
+     * @param cpuinfo
+     * @return the processor ID in the same format as parseProcessorId, or null if cpuinfo does not describe an x86 processor
+     */
+    static String processorIdFromCpuinfo(String cpuinfo) {
+        HashMap<String, String> processor = new HashMap<>();
+        for (String line : cpuinfo.split("\n")) {
+            if (line.trim().isEmpty() && !processor.isEmpty()) {
+                break;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                processor.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+        if (!processor.containsKey("cpu family") || !processor.containsKey("model") || !processor.containsKey("stepping") || !processor.containsKey("flags")) {
+            return null;
+        }
+        int family;
+        int model;
+        int stepping;
+        try {
+            family = Integer.parseInt(processor.get("cpu family"));
+            model = Integer.parseInt(processor.get("model"));
+            stepping = Integer.parseInt(processor.get("stepping"));
+        } catch (NumberFormatException e) {
+            log.debug("Unexpected processor signature in cpuinfo: {}", e.getMessage());
+            return null;
+        }
+        int eax = stepping & 0xF;
+        if (family == 6 || family >= 15) {
+            eax |= (model & 0xF) << 4 | ((model >> 4) & 0xF) << 16;
         } else {
-            log.error("Error retrieving the processor information");
+            eax |= (model & 0xF) << 4;
         }
+        eax |= Math.min(family, 15) << 8;
+        if (family >= 15) {
+            eax |= ((family - 15) & 0xFF) << 20;
+        }
+        int edx = 0;
+        List<String> flags = Arrays.asList(processor.get("flags").split("\\s+"));
+        for (int bit = 0; bit < CPUID_EDX_FLAGS.size(); bit++) {
+            String flag = CPUID_EDX_FLAGS.get(bit);
+            if (flag != null && flags.contains(flag)) {
+                edx |= 1 << bit;
+            }
+        }
+        StringBuilder id = new StringBuilder();
+        for (int register : new int[] { eax, edx }) {
+            for (int i = 0; i < 4; i++) {
+                id.append(String.format(" %02X", register >>> (8 * i) & 0xFF));
+            }
+        }
+        return id.toString();
     }
 
     /**
@@ -346,32 +485,21 @@ public class HostInfoCmd implements ICommand {
      * @throws IOException
      */
     public void getHostUUID() throws TAException, IOException {
-        CommandLine command = new CommandLine("/opt/trustagent/bin/tagent");
-        command.addArgument("system-info");
-        command.addArgument("dmidecode");
-        command.addArgument("-s system-uuid", false);
-        Result result = ExecUtil.execute(command);
-        if (result.getExitCode() != 0) {
-            log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
-            throw new TAException(ErrorCode.ERROR, result.getStderr());
-        }
-        log.debug("command stdout: {}", result.getStdout());
-
         // sample output would look like: 4235D571-8542-FFD3-5BFE-6D9DAC874C84
-        if (result == null || result.getStdout() == null) {
-            throw new IOException("Command \"dmidecode -s system-uuid\" gave a null response");
-        }
-        List<String> resultList = Arrays.asList(result.getStdout().split("\n"));
-        if (resultList != null && resultList.size() > 0) {
-            for (String data : resultList) {
-                if (data.trim().startsWith("#")) { // ignore the comments
-                    continue;
-                }
-                context.setHostUUID(data.trim());
-                break;
-            }
-        }
-
+        // sysfs has the same value in lower case
+        String uuid = readDmiString("dmidecode.system-uuid", "product_uuid");
+        context.setHostUUID(uuid == null ? null : uuid.toUpperCase());
         log.info("Context set with host UUID info: " + context.getHostUUID());
     }
+
+    private static class ProbeThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "host-info-probe-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
@@ -10,8 +10,8 @@ import com.intel.mountwilson.common.ICommand;
 import com.intel.mountwilson.common.TAException;
 import com.intel.mountwilson.trustagent.data.TADataContext;
 import com.intel.mtwilson.Folders;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.trustagent.exec.ProcessExecutor;
+import com.intel.mtwilson.trustagent.exec.ProcessResult;
 import java.io.File;
 import java.io.IOException;
 import java.util.logging.Level;
@@ -83,7 +83,7 @@ public class HostInfoCmdWin implements ICommand {
         command.addArgument("os");
         command.addArgument("get");
         command.addArgument("version", false);
-        Result result = ExecUtil.execute(command);
+        ProcessResult result = ProcessExecutor.getInstance().execute(command);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TAException(ErrorCode.ERROR, result.getStderr());
@@ -108,7 +108,7 @@ public class HostInfoCmdWin implements ICommand {
         command.addArgument("os");
         command.addArgument("get");
         command.addArgument("caption", false);
-        Result result = ExecUtil.execute(command);
+        ProcessResult result = ProcessExecutor.getInstance().execute(command);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TAException(ErrorCode.ERROR, result.getStderr());
@@ -134,7 +134,7 @@ public class HostInfoCmdWin implements ICommand {
         command.addArgument("WIN32_ServerFeature");
         command.addArgument("get");
         command.addArgument("ID", false);
-        Result result = ExecUtil.execute(command);
+        ProcessResult result = ProcessExecutor.getInstance().execute(command);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TAException(ErrorCode.ERROR, result.getStderr());
@@ -167,7 +167,7 @@ public class HostInfoCmdWin implements ICommand {
         command.addArgument("get");
         command.addArgument("version", false);
         
-        Result result = ExecUtil.execute(command);
+        ProcessResult result = ProcessExecutor.getInstance().execute(command);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TAException(ErrorCode.ERROR, result.getStderr());
@@ -196,7 +196,7 @@ public class HostInfoCmdWin implements ICommand {
         command.addArgument("/c");
         command.addArgument(getVerCMD, false);
 
-        Result result = ExecUtil.execute(command);
+        ProcessResult result = ProcessExecutor.getInstance().execute(command);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TAException(ErrorCode.ERROR, result.getStderr());
@@ -250,7 +250,7 @@ public class HostInfoCmdWin implements ICommand {
         command.addArgument("bios");
         command.addArgument("get");
         command.addArgument("smbiosbiosversion", false);
-        Result result = ExecUtil.execute(command);
+        ProcessResult result = ProcessExecutor.getInstance().execute(command);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TAException(ErrorCode.ERROR, result.getStderr());
@@ -274,7 +274,7 @@ public class HostInfoCmdWin implements ICommand {
         command.addArgument("bios");
         command.addArgument("get");
         command.addArgument("manufacturer", false);
-        Result result = ExecUtil.execute(command);
+        ProcessResult result = ProcessExecutor.getInstance().execute(command);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TAException(ErrorCode.ERROR, result.getStderr());
@@ -323,7 +323,7 @@ public class HostInfoCmdWin implements ICommand {
         command.addArgument("cpu");
         command.addArgument("get");
         command.addArgument("ProcessorId", false);
-        Result result = ExecUtil.execute(command);
+        ProcessResult result = ProcessExecutor.getInstance().execute(command);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TAException(ErrorCode.ERROR, result.getStderr());
@@ -365,7 +365,7 @@ public class HostInfoCmdWin implements ICommand {
         command.addArgument("Win32_ComputerSystemProduct");
         command.addArgument("get");
         command.addArgument("uuid", false);
-        Result result = ExecUtil.execute(command);
+        ProcessResult result = ProcessExecutor.getInstance().execute(command);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TAException(ErrorCode.ERROR, result.getStderr());
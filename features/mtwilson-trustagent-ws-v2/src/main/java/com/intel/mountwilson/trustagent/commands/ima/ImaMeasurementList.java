@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.ima;
+
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the kernel IMA runtime measurement list,
+ * /sys/kernel/security/ima/binary_runtime_measurements, so a quote can
+ * include only the entries the verifier does not have yet.
+ *
+ * The list only grows, so each refresh opens it at the offset after the
+ * last complete entry and reads only the new entries. The index keeps the
+ * byte offset of every entry and the PCR 10 aggregate before every
+ * CHECKPOINT_INTERVAL entries, and no entry content. After the first
+ * request the list is refreshed in the background every ima.refresh
+ * seconds, so a request reads at most the entries of the last few seconds
+ * before it reads its delta.
+ *
+ * Each entry is the PCR index, the SHA1 template digest, the template name
+ * length and name, and the template data length and data, with integers in
+ * the byte order of the host (little endian on the platforms the agent
+ * supports). The legacy "ima" template has a fixed layout instead of the
+ * data length. The aggregate is the SHA1 PCR 10 value the entries produce;
+ * the kernel extends a violation, whose template digest is zero, as all
+ * ones.
+ */
+public class ImaMeasurementList {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ImaMeasurementList.class);
+    public static final int IMA_PCR = 10;
+    private static final int DIGEST_SIZE = 20;
+    private static final int CHECKPOINT_INTERVAL = 1024;
+    private static final int MAX_TEMPLATE_NAME_SIZE = 255;
+    private static final int MAX_TEMPLATE_DATA_SIZE = 16 * 1024 * 1024;
+    private static final byte[] VIOLATION = new byte[DIGEST_SIZE];
+    private static final byte[] VIOLATION_EXTEND = new byte[DIGEST_SIZE];
+    private static ImaMeasurementList instance;
+    private final File file;
+    private long[] offsets = new long[CHECKPOINT_INTERVAL];
+    private int count;
+    private long nextOffset;
+    // PCR 10 aggregate before entry i * CHECKPOINT_INTERVAL
+    private final ArrayList<byte[]> checkpoints = new ArrayList<>();
+    private byte[] aggregate = new byte[DIGEST_SIZE];
+    private ScheduledExecutorService refresher;
+
+    static {
+        Arrays.fill(VIOLATION_EXTEND, (byte) 0xff);
+    }
+
+    /**
+     * The PCR and template digest of the entry that was read last.
+     */
+    private static class Entry {
+        private int pcrIndex;
+        private final byte[] templateDigest = new byte[DIGEST_SIZE];
+        private byte[] skip = new byte[256];
+    }
+
+    /**
+     * The entries of the list from a sequence number to the end, and the
+     * PCR 10 aggregates before and after them.
+     */
+    public static class Delta {
+        private final int from;
+        private final int next;
+        private final byte[] entries;
+        private final byte[] previousAggregate;
+        private final byte[] aggregate;
+
+        private Delta(int from, int next, byte[] entries, byte[] previousAggregate, byte[] aggregate) {
+            this.from = from;
+            this.next = next;
+            this.entries = entries;
+            this.previousAggregate = previousAggregate;
+            this.aggregate = aggregate;
+        }
+
+        /**
+         *
+         * @return sequence number of the first entry
+         */
+        public int getFrom() {
+            return from;
+        }
+
+        /**
+         *
+         * @return sequence number after the last entry, which is the number of entries in the list
+         */
+        public int getNext() {
+            return next;
+        }
+
+        /**
+         *
+         * @return the entries in the binary format of the kernel list
+         */
+        public byte[] getEntries() {
+            return entries;
+        }
+
+        /**
+         *
+         * @return PCR 10 aggregate of the entries before the first one
+         */
+        public byte[] getPreviousAggregate() {
+            return previousAggregate;
+        }
+
+        /**
+         *
+         * @return PCR 10 aggregate of the entries up to the last one
+         */
+        public byte[] getAggregate() {
+            return aggregate;
+        }
+    }
+
+    /**
+     *
+     * @param file the binary IMA runtime measurement list
+     */
+    public ImaMeasurementList(File file) {
+        this.file = file;
+    }
+
+    public static synchronized ImaMeasurementList getInstance() {
+        if (instance == null) {
+            String measurementList = "/sys/kernel/security/ima/binary_runtime_measurements";
+            long refreshSeconds = 5;
+            try {
+                TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+                measurementList = configuration.getImaMeasurementList();
+                refreshSeconds = configuration.getImaRefresh();
+            } catch (IOException e) {
+                log.warn("Cannot load IMA configuration, using defaults: {}", e.getMessage());
+            }
+            log.debug("IMA measurement list {} refresh {} seconds", measurementList, refreshSeconds);
+            instance = new ImaMeasurementList(new File(measurementList));
+            instance.startRefresh(refreshSeconds);
+        }
+        return instance;
+    }
+
+    private void startRefresh(long refreshSeconds) {
+        if (refreshSeconds <= 0) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ima-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (IOException | RuntimeException e) {
+                    // a quote that asks for the entries reports the error
+                    log.debug("Cannot read IMA measurement list {}: {}", file.getAbsolutePath(), e.getMessage());
+                }
+            }
+        }, 0, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reads the entries appended to the list since the last refresh. An
+     * entry that is cut off at the end is read again on the next refresh.
+     *
+     * @return number of new entries
+     * @throws IOException if the list cannot be read or an entry is not valid
+     */
+    public synchronized int refresh() throws IOException {
+        int before = count;
+        Entry entry = new Entry();
+        MessageDigest sha1 = sha1();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.position(nextOffset);
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024);
+            try {
+                int length;
+                while ((length = readEntry(in, entry, count)) > 0) {
+                    if (count % CHECKPOINT_INTERVAL == 0) {
+                        checkpoints.add(aggregate);
+                    }
+                    if (count == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                    }
+                    offsets[count++] = nextOffset;
+                    nextOffset += length;
+                    if (entry.pcrIndex == IMA_PCR) {
+                        aggregate = extend(sha1, aggregate, entry.templateDigest);
+                    }
+                }
+            } catch (EOFException e) {
+                log.debug("IMA measurement list ends inside entry {}, reading it on the next refresh", count);
+            }
+        }
+        if (count > before) {
+            log.debug("Indexed IMA entries {} to {}", before, count - 1);
+        }
+        return count - before;
+    }
+
+    /**
+     * Refreshes the index with the latest entries and returns the entries
+     * from the sequence number to the end. Only the returned entries and at
+     * most CHECKPOINT_INTERVAL entries before them are read from the list.
+     *
+     * @param since sequence number of the first entry; when it is larger than the number of entries, for example after a reboot, the whole list is returned
+     * @return the entries from since to the end
+     * @throws IOException if the list cannot be read
+     */
+    public Delta read(int since) throws IOException {
+        refresh();
+        int from, next;
+        long checkpointOffset, fromOffset, end;
+        byte[] checkpointAggregate, currentAggregate;
+        synchronized (this) {
+            from = since < 0 || since > count ? 0 : since;
+            next = count;
+            end = nextOffset;
+            currentAggregate = aggregate;
+            if (from == count) {
+                return new Delta(from, next, new byte[0], currentAggregate, currentAggregate);
+            }
+            int checkpoint = from / CHECKPOINT_INTERVAL;
+            checkpointOffset = offsets[checkpoint * CHECKPOINT_INTERVAL];
+            checkpointAggregate = checkpoints.get(checkpoint);
+            fromOffset = offsets[from];
+        }
+        // the list is append only, so the indexed range does not change while it is read
+        byte[] content = new byte[(int) (end - checkpointOffset)];
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.position(checkpointOffset);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("IMA measurement list is shorter than indexed");
+                }
+            }
+        }
+        int prefix = (int) (fromOffset - checkpointOffset);
+        byte[] previousAggregate = checkpointAggregate;
+        InputStream in = new ByteArrayInputStream(content, 0, prefix);
+        Entry entry = new Entry();
+        MessageDigest sha1 = sha1();
+        while (readEntry(in, entry, from) > 0) {
+            if (entry.pcrIndex == IMA_PCR) {
+                previousAggregate = extend(sha1, previousAggregate, entry.templateDigest);
+            }
+        }
+        return new Delta(from, next, Arrays.copyOfRange(content, prefix, content.length), previousAggregate, currentAggregate);
+    }
+
+    /**
+     *
+     * @return number of entries in the index
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     *
+     * @return PCR 10 aggregate of the entries in the index
+     */
+    public synchronized byte[] getAggregate() {
+        return aggregate.clone();
+    }
+
+    /**
+     * Stops the background refresh.
+     */
+    public void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads one entry and keeps only its PCR and template digest.
+     *
+     * @param entry receives the PCR and template digest
+     * @param sequence of the entry, for error messages
+     * @return length of the entry in bytes, or 0 at the end of the list
+     * @throws EOFException if the list ends inside the entry
+     */
+    private static int readEntry(InputStream in, Entry entry, int sequence) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return 0;
+        }
+        entry.pcrIndex = first | readUnsignedByte(in) << 8 | readUnsignedByte(in) << 16 | readUnsignedByte(in) << 24;
+        readFully(in, entry.templateDigest, DIGEST_SIZE);
+        int nameLength = readInt32(in);
+        if (nameLength <= 0 || nameLength > MAX_TEMPLATE_NAME_SIZE) {
+            throw new IOException("IMA entry " + sequence + " has template name length " + nameLength);
+        }
+        byte[] name = new byte[nameLength];
+        readFully(in, name, nameLength);
+        int length = 4 + DIGEST_SIZE + 4 + nameLength;
+        int dataLength;
+        if (nameLength == 3 && name[0] == 'i' && name[1] == 'm' && name[2] == 'a') {
+            // file digest followed by the length and the file name
+            skip(in, entry, DIGEST_SIZE);
+            dataLength = readInt32(in);
+            length += DIGEST_SIZE + 4;
+        } else {
+            dataLength = readInt32(in);
+            length += 4;
+        }
+        if (dataLength < 0 || dataLength > MAX_TEMPLATE_DATA_SIZE) {
+            throw new IOException("IMA entry " + sequence + " has template data length " + (dataLength & 0xffffffffL));
+        }
+        skip(in, entry, dataLength);
+        return length + dataLength;
+    }
+
+    private static byte[] extend(MessageDigest sha1, byte[] pcr, byte[] digest) {
+        sha1.update(pcr);
+        sha1.update(Arrays.equals(digest, VIOLATION) ? VIOLATION_EXTEND : digest);
+        return sha1.digest();
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    private static int readUnsignedByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("IMA measurement list ends inside an entry");
+        }
+        return b;
+    }
+
+    private static int readInt32(InputStream in) throws IOException {
+        return readUnsignedByte(in) | readUnsignedByte(in) << 8 | readUnsignedByte(in) << 16 | readUnsignedByte(in) << 24;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(bytes, read, length - read);
+            if (n < 0) {
+                throw new EOFException("IMA measurement list ends inside an entry");
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * Reads and discards the template data. InputStream.skip is not used
+     * because a channel stream skips by the file size, which securityfs
+     * reports as 0.
+     */
+    private static void skip(InputStream in, Entry entry, int length) throws IOException {
+        if (entry.skip.length < length) {
+            entry.skip = new byte[Math.min(Math.max(length, entry.skip.length * 2), MAX_TEMPLATE_DATA_SIZE)];
+        }
+        readFully(in, entry.skip, length);
+    }
+}
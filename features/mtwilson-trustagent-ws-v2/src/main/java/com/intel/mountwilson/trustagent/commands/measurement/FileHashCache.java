@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.measurement;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the digest of each measured file by device, inode, size,
+ * modification time and change time, so a file that did not change is
+ * not hashed again. The change time is set by the kernel on every write or
+ * attribute change and cannot be set back by a user, so a file with the
+ * same key has the same content, as long as its times were older than the
+ * timestamp granularity when it was read. A file written again within the
+ * same timestamp keeps its key, so like git's racy-clean rule the digest of
+ * a file with a more recent time is not kept; see isRacy.
+ *
+ * The cache is saved as text, one file per line, with only the files of
+ * the last measurement. It needs the unix file attribute view; where it is
+ * not available, such as on Windows, every file is hashed.
+ */
+public class FileHashCache {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(FileHashCache.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * File times are only as precise as the file system stores them, whole
+     * seconds on ext3, and come from a clock that advances in ticks.
+     */
+    static final long TIMESTAMP_GRANULARITY_MILLIS = 2000;
+    private final File file;
+    private final ConcurrentHashMap<Key, String> digests = new ConcurrentHashMap<>();
+    private final Set<Key> used = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+    private volatile boolean changed;
+
+    /**
+     * Identifies one version of a file's content for one digest algorithm.
+     */
+    public static class Key {
+        private final String algorithm;
+        private final long device;
+        private final long inode;
+        private final long size;
+        private final long modified;
+        private final long changed;
+
+        public Key(String algorithm, long device, long inode, long size, long modified, long changed) {
+            this.algorithm = algorithm;
+            this.device = device;
+            this.inode = inode;
+            this.size = size;
+            this.modified = modified;
+            this.changed = changed;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return device == other.device && inode == other.inode && size == other.size
+                    && modified == other.modified && changed == other.changed && algorithm.equals(other.algorithm);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = algorithm.hashCode();
+            hash = 31 * hash + (int) (device ^ (device >>> 32));
+            hash = 31 * hash + (int) (inode ^ (inode >>> 32));
+            hash = 31 * hash + (int) (size ^ (size >>> 32));
+            hash = 31 * hash + (int) (modified ^ (modified >>> 32));
+            return 31 * hash + (int) (changed ^ (changed >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return algorithm + " " + device + " " + inode + " " + size + " " + modified + " " + changed;
+        }
+    }
+
+    /**
+     *
+     * @param file where the cache is saved, or null to keep it in memory only
+     */
+    public FileHashCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     *
+     * @param path a regular file, symbolic links are followed
+     * @param algorithm digest algorithm the key is for
+     * @return the key of the current content of the file, or null if the unix file attributes are not available
+     * @throws IOException if the file does not exist or its attributes cannot be read
+     */
+    public static Key keyOf(Path path, String algorithm) throws IOException {
+        Map<String, Object> attributes;
+        try {
+            attributes = Files.readAttributes(path, "unix:dev,ino,size,lastModifiedTime,ctime");
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return null;
+        }
+        return new Key(algorithm, (Long) attributes.get("dev"), (Long) attributes.get("ino"), (Long) attributes.get("size"),
+                ((FileTime) attributes.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS), ((FileTime) attributes.get("ctime")).to(TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     *
+     * @param key of the file, taken after readMillis
+     * @param readMillis when the file started to be read
+     * @return true if the modification or change time is within the timestamp granularity of readMillis, so the file could be written again without changing its key and its digest must not be cached
+     */
+    public static boolean isRacy(Key key, long readMillis) {
+        long settled = TimeUnit.MILLISECONDS.toNanos(readMillis - TIMESTAMP_GRANULARITY_MILLIS);
+        return key.modified >= settled || key.changed >= settled;
+    }
+
+    /**
+     *
+     * @param key
+     * @return the hex digest of the file content, or null if it is not in the cache
+     */
+    public String get(Key key) {
+        String digest = digests.get(key);
+        if (digest != null) {
+            used.add(key);
+        }
+        return digest;
+    }
+
+    public void put(Key key, String digest) {
+        if (!digest.equals(digests.put(key, digest))) {
+            changed = true;
+        }
+        used.add(key);
+    }
+
+    public int size() {
+        return digests.size();
+    }
+
+    /**
+     * Reads the saved cache. Lines that cannot be parsed are ignored.
+     *
+     * @throws IOException if the file exists but cannot be read
+     */
+    public void load() throws IOException {
+        if (file == null) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length != 7) {
+                    continue;
+                }
+                try {
+                    Key key = new Key(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4]), Long.parseLong(fields[5]));
+                    digests.put(key, fields[6]);
+                } catch (NumberFormatException e) {
+                    log.debug("Ignoring file hash cache line: {}", line);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            log.debug("No file hash cache at {}", file.getAbsolutePath());
+        }
+        log.debug("Loaded {} file digests from {}", digests.size(), file.getAbsolutePath());
+    }
+
+    /**
+     * Saves the digests used since the last save and forgets the others,
+     * if anything changed.
+     *
+     * @throws IOException if the cache cannot be written
+     */
+    public synchronized void save() throws IOException {
+        if (!changed && used.size() == digests.size()) {
+            used.clear();
+            return;
+        }
+        digests.keySet().retainAll(used);
+        used.clear();
+        write();
+    }
+
+    /**
+     * Saves the digests added since the last save and keeps all the others,
+     * for a caller that only hashes the files that changed, so the files it
+     * did not look at stay in the cache.
+     *
+     * @throws IOException if the cache cannot be written
+     */
+    public synchronized void saveChanges() throws IOException {
+        if (changed) {
+            write();
+        }
+    }
+
+    private void write() throws IOException {
+        changed = false;
+        if (file == null) {
+            return;
+        }
+        // written to a temporary file first so a crash never leaves a partial cache
+        Path temporary = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName(), ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary, UTF8)) {
+                for (Map.Entry<Key, String> entry : digests.entrySet()) {
+                    writer.write(entry.getKey().toString());
+                    writer.write(' ');
+                    writer.write(entry.getValue());
+                    writer.newLine();
+                }
+            }
+            Files.move(temporary, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        log.debug("Saved {} file digests to {}", digests.size(), file.getAbsolutePath());
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.measurement;
+
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.measurement.DirectoryMeasurementEntry;
+import com.intel.mtwilson.trustagent.measurement.FileMeasurementEntry;
+import com.intel.mtwilson.trustagent.measurement.MeasurementEntry;
+import com.intel.mtwilson.trustagent.measurement.TcbMeasurement;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Measures the files and directories of a manifest, so the agent does not
+ * depend on a measurement.xml written at boot.
+ *
+ * Each entry is measured by a task in a fork-join pool. A file is hashed
+ * with memory-mapped reads when it is large and with a buffered read when
+ * it is small, and its digest is kept in a FileHashCache so a file that
+ * did not change since the last measurement is not read again.
+ *
+ * A directory is measured like tboot-xm does: the digest of the names of
+ * the files under it that are not directories, as find prints them, that
+ * match the Include pattern and do not match the Exclude pattern, sorted
+ * and each followed by a newline. Symbolic links are not followed.
+ */
+public class TcbMeasurementEngine {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TcbMeasurementEngine.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long MAPPED_READ_THRESHOLD = 256 * 1024;
+    private static final long MAPPED_READ_WINDOW = 64 * 1024 * 1024;
+    private static final int BUFFERED_READ_SIZE = 64 * 1024;
+    private static TcbMeasurementEngine instance;
+    private final ForkJoinPool pool;
+    private final FileHashCache cache;
+
+    /**
+     *
+     * @param parallelism number of threads that hash files
+     * @param cache digests of files measured before
+     */
+    public TcbMeasurementEngine(int parallelism, FileHashCache cache) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        this.cache = cache;
+    }
+
+    /**
+     *
+     * @return the engine configured with tcb.measurement.parallelism, with the cache saved in the agent's var directory
+     */
+    public static synchronized TcbMeasurementEngine getInstance() {
+        if (instance == null) {
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            File cacheFile = null;
+            try {
+                TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+                parallelism = configuration.getTcbMeasurementParallelism();
+                cacheFile = configuration.getTcbMeasurementCacheFile();
+            } catch (IOException e) {
+                log.warn("Cannot load tcb measurement configuration, using defaults: {}", e.getMessage());
+            }
+            FileHashCache cache = new FileHashCache(cacheFile);
+            try {
+                cache.load();
+            } catch (IOException e) {
+                log.warn("Cannot load file hash cache, measuring every file: {}", e.getMessage());
+            }
+            instance = new TcbMeasurementEngine(parallelism, cache);
+        }
+        return instance;
+    }
+
+    /**
+     *
+     * @param digestAlg sha1, sha256, sha384 or sha512 as in the manifest, or null for sha256
+     * @return the name of the algorithm for MessageDigest
+     * @throws IOException if the algorithm is not supported
+     */
+    public static String algorithm(String digestAlg) throws IOException {
+        if (digestAlg == null || digestAlg.isEmpty()) {
+            return "SHA-256";
+        }
+        switch (digestAlg.toLowerCase().replace("-", "")) {
+            case "sha1":
+                return "SHA-1";
+            case "sha256":
+                return "SHA-256";
+            case "sha384":
+                return "SHA-384";
+            case "sha512":
+                return "SHA-512";
+            default:
+                throw new IOException("Unsupported measurement digest algorithm: " + digestAlg);
+        }
+    }
+
+    static MessageDigest messageDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " is not available", e);
+        }
+    }
+
+    /**
+     * Measures every entry of the manifest and saves the cache.
+     *
+     * @param manifest files and directories to measure
+     * @return a new TcbMeasurement with the same entries and their digests; a file that does not exist has no value
+     * @throws IOException if the algorithm is not supported or a file or directory cannot be read
+     */
+    public synchronized TcbMeasurement measure(TcbMeasurement manifest) throws IOException {
+        final String algorithm = algorithm(manifest.getDigestAlg());
+        List<MeasurementEntry> entries = manifest.getMeasurements() == null ? Collections.<MeasurementEntry>emptyList() : manifest.getMeasurements();
+        final List<MeasureTask> tasks = new ArrayList<>(entries.size());
+        for (MeasurementEntry entry : entries) {
+            if (entry instanceof DirectoryMeasurementEntry) {
+                tasks.add(new MeasureDirectoryTask((DirectoryMeasurementEntry) entry, algorithm));
+            } else if (entry instanceof FileMeasurementEntry) {
+                tasks.add(new MeasureFileTask((FileMeasurementEntry) entry, algorithm));
+            }
+        }
+        long start = System.currentTimeMillis();
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ForkJoinTask.invokeAll(tasks);
+            }
+        });
+        TcbMeasurement measurement = new TcbMeasurement();
+        measurement.setDigestAlg(manifest.getDigestAlg() == null ? "sha256" : manifest.getDigestAlg());
+        List<MeasurementEntry> measured = new ArrayList<>(tasks.size());
+        for (MeasureTask task : tasks) {
+            if (task.error != null) {
+                throw task.error;
+            }
+            measured.add(task.result);
+        }
+        measurement.setMeasurements(measured);
+        log.debug("Measured {} entries in {} ms", measured.size(), System.currentTimeMillis() - start);
+        try {
+            cache.save();
+        } catch (IOException e) {
+            log.warn("Cannot save file hash cache: {}", e.getMessage());
+        }
+        return measurement;
+    }
+
+    /**
+     * Saves the digests of the files hashed with hashFile since the cache
+     * was last saved, without forgetting the others.
+     */
+    public void saveCache() {
+        try {
+            cache.saveChanges();
+        } catch (IOException e) {
+            log.warn("Cannot save file hash cache: {}", e.getMessage());
+        }
+    }
+
+    /**
+     *
+     * @param path file to hash, symbolic links are followed
+     * @param algorithm name of the MessageDigest algorithm
+     * @return hex digest of the file content, from the cache if the file did not change since it was hashed
+     * @throws IOException if the file does not exist or cannot be read
+     */
+    public String hashFile(Path path, String algorithm) throws IOException {
+        long start = System.currentTimeMillis();
+        FileHashCache.Key key = FileHashCache.keyOf(path, algorithm);
+        if (key != null) {
+            String digest = cache.get(key);
+            if (digest != null) {
+                return digest;
+            }
+        }
+        String digest = Hex.encodeHexString(hash(path, messageDigest(algorithm)));
+        // a file that changed while it was read, or could change without a new key, is hashed again next time
+        if (key != null && !FileHashCache.isRacy(key, start) && key.equals(FileHashCache.keyOf(path, algorithm))) {
+            cache.put(key, digest);
+        }
+        return digest;
+    }
+
+    static byte[] hash(Path path, MessageDigest messageDigest) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAPPED_READ_THRESHOLD) {
+                for (long position = 0; position < size; position += MAPPED_READ_WINDOW) {
+                    messageDigest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_READ_WINDOW, size - position)));
+                }
+            } else {
+                // files in /proc and /sys report a size of zero, so read to the end
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFERED_READ_SIZE);
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    messageDigest.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        return messageDigest.digest();
+    }
+
+    /**
+     *
+     * @param entry directory with optional Include and Exclude patterns
+     * @return names of the files under the directory that are measured, as find prints them, sorted
+     * @throws IOException if the directory cannot be read
+     */
+    static List<String> listDirectory(DirectoryMeasurementEntry entry) throws IOException {
+        final Pattern include = pattern(entry.getInclude());
+        final Pattern exclude = pattern(entry.getExclude());
+        final String prefix = entry.getPath().endsWith("/") ? entry.getPath() : entry.getPath() + "/";
+        final List<String> names = new ArrayList<>();
+        final Path rootPath = Paths.get(entry.getPath());
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = prefix + rootPath.relativize(file).toString().replace(File.separatorChar, '/');
+                if (matches(name, include, exclude)) {
+                    names.add(name);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(names);
+        return names;
+    }
+
+    static boolean matches(String name, Pattern include, Pattern exclude) {
+        return (include == null || include.matcher(name).find()) && (exclude == null || !exclude.matcher(name).find());
+    }
+
+    static Pattern pattern(String regex) throws IOException {
+        if (regex == null || regex.isEmpty()) {
+            return null;
+        }
+        try {
+            return Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            throw new IOException("Invalid measurement pattern: " + regex, e);
+        }
+    }
+
+    static String hashNames(List<String> names, String algorithm) {
+        MessageDigest messageDigest = messageDigest(algorithm);
+        for (String name : names) {
+            messageDigest.update(name.getBytes(UTF8));
+            messageDigest.update((byte) '\n');
+        }
+        return Hex.encodeHexString(messageDigest.digest());
+    }
+
+    private abstract static class MeasureTask extends RecursiveAction {
+        protected final String algorithm;
+        protected MeasurementEntry result;
+        protected IOException error;
+
+        MeasureTask(String algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        protected abstract MeasurementEntry measure() throws IOException;
+
+        @Override
+        protected void compute() {
+            try {
+                result = measure();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    private class MeasureFileTask extends MeasureTask {
+        private final FileMeasurementEntry entry;
+
+        MeasureFileTask(FileMeasurementEntry entry, String algorithm) {
+            super(algorithm);
+            this.entry = entry;
+        }
+
+        @Override
+        protected MeasurementEntry measure() throws IOException {
+            FileMeasurementEntry measured = new FileMeasurementEntry();
+            measured.setPath(entry.getPath());
+            try {
+                measured.setValue(hashFile(Paths.get(entry.getPath()), algorithm));
+            } catch (NoSuchFileException e) {
+                log.warn("Measured file does not exist: {}", entry.getPath());
+            }
+            return measured;
+        }
+    }
+
+    private static class MeasureDirectoryTask extends MeasureTask {
+        private final DirectoryMeasurementEntry entry;
+
+        MeasureDirectoryTask(DirectoryMeasurementEntry entry, String algorithm) {
+            super(algorithm);
+            this.entry = entry;
+        }
+
+        @Override
+        protected MeasurementEntry measure() throws IOException {
+            DirectoryMeasurementEntry measured = new DirectoryMeasurementEntry();
+            measured.setPath(entry.getPath());
+            measured.setInclude(entry.getInclude());
+            measured.setExclude(entry.getExclude());
+            try {
+                measured.setValue(hashNames(listDirectory(entry), algorithm));
+            } catch (NoSuchFileException e) {
+                log.warn("Measured directory does not exist: {}", entry.getPath());
+            }
+            return measured;
+        }
+    }
+}
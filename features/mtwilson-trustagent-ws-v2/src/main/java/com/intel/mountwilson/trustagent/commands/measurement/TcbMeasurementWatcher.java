@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.measurement;
+
+import com.intel.mtwilson.trustagent.measurement.DirectoryMeasurementEntry;
+import com.intel.mtwilson.trustagent.measurement.FileMeasurementEntry;
+import com.intel.mtwilson.trustagent.measurement.MeasurementEntry;
+import com.intel.mtwilson.trustagent.measurement.TcbMeasurement;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Keeps the measurement of a manifest current with file system watches,
+ * so a quote does not walk the measured directories or stat the measured
+ * files.
+ *
+ * The parent directory of every measured file and every directory under
+ * a measured directory is registered with a WatchService, which uses
+ * inotify on Linux. A file is hashed again, through the engine's cache,
+ * the next time the measurement is read after an event for it.
+ *
+ * Each measured directory is kept as a tree with one node per directory
+ * that holds the names of its files and subdirectories. An event only
+ * updates the node of the directory it happened in, and the digest of the
+ * measured directory is computed again from the tree in memory, in the
+ * same order TcbMeasurementEngine sorts the names, only when a node under
+ * it changed. When events were lost the watcher lists again only the
+ * directory whose watch overflowed. When a directory cannot be watched,
+ * for example because the inotify watch limit was reached, that entry is
+ * measured with a full walk every time instead.
+ */
+public class TcbMeasurementWatcher implements Closeable {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TcbMeasurementWatcher.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static TcbMeasurementWatcher instance;
+    private static File instanceManifestFile;
+    private static long instanceManifestModified;
+    private final TcbMeasurementEngine engine;
+    private final String digestAlg;
+    private final String algorithm;
+    private final List<EntryState> entries = new ArrayList<>();
+    private final Map<WatchKey, Watched> watched = new HashMap<>();
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Measured files and directory nodes in one watched directory.
+     */
+    private static class Watched {
+        private final Path directory;
+        private final List<FileState> files = new ArrayList<>();
+        private final List<Node> nodes = new ArrayList<>();
+
+        Watched(Path directory) {
+            this.directory = directory;
+        }
+    }
+
+    private abstract static class EntryState {
+        protected String value;
+        protected boolean dirty = true;
+        protected boolean watched = true;
+    }
+
+    private static class FileState extends EntryState {
+        private final FileMeasurementEntry entry;
+        private final Path path;
+
+        FileState(FileMeasurementEntry entry) {
+            this.entry = entry;
+            this.path = Paths.get(entry.getPath());
+        }
+    }
+
+    private static class DirectoryState extends EntryState {
+        private final DirectoryMeasurementEntry entry;
+        private final Pattern include;
+        private final Pattern exclude;
+        private Node root;
+
+        DirectoryState(DirectoryMeasurementEntry entry) throws IOException {
+            this.entry = entry;
+            this.include = TcbMeasurementEngine.pattern(entry.getInclude());
+            this.exclude = TcbMeasurementEngine.pattern(entry.getExclude());
+        }
+    }
+
+    /**
+     * A directory under a measured directory.
+     */
+    private static class Node {
+        private final DirectoryState state;
+        private final Path path;
+        private final String prefix; // the name of the directory as find prints it, with a trailing slash
+        // file name -> null, subdirectory name with a trailing slash -> node; sorted like the full names
+        private final TreeMap<String, Node> children = new TreeMap<>();
+        private WatchKey key;
+
+        Node(DirectoryState state, Path path, String prefix) {
+            this.state = state;
+            this.path = path;
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     * Registers the watches and measures every entry of the manifest.
+     *
+     * @param manifest files and directories to measure
+     * @param engine hashes the files
+     * @throws IOException if the manifest is not valid or a measured file or directory cannot be read
+     */
+    public TcbMeasurementWatcher(TcbMeasurement manifest, TcbMeasurementEngine engine) throws IOException {
+        this.engine = engine;
+        this.digestAlg = manifest.getDigestAlg() == null ? "sha256" : manifest.getDigestAlg();
+        this.algorithm = TcbMeasurementEngine.algorithm(manifest.getDigestAlg());
+        this.watchService = FileSystems.getDefault().newWatchService();
+        try {
+            List<MeasurementEntry> files = new ArrayList<>();
+            if (manifest.getMeasurements() != null) {
+                for (MeasurementEntry entry : manifest.getMeasurements()) {
+                    if (entry instanceof DirectoryMeasurementEntry) {
+                        DirectoryState state = new DirectoryState((DirectoryMeasurementEntry) entry);
+                        watchDirectoryEntry(state);
+                        entries.add(state);
+                    } else if (entry instanceof FileMeasurementEntry) {
+                        FileState state = new FileState((FileMeasurementEntry) entry);
+                        watchFileEntry(state);
+                        entries.add(state);
+                        files.add(entry);
+                    }
+                }
+            }
+            // the first measurement of the files uses the engine's pool; the watches are already registered so no change is missed
+            TcbMeasurement filesManifest = new TcbMeasurement();
+            filesManifest.setDigestAlg(manifest.getDigestAlg());
+            filesManifest.setMeasurements(files);
+            List<MeasurementEntry> measured = engine.measure(filesManifest).getMeasurements();
+            int i = 0;
+            for (EntryState state : entries) {
+                if (state instanceof FileState) {
+                    state.value = measured.get(i++).getValue();
+                    state.dirty = !state.watched;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            watchService.close();
+            throw e;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processEvents();
+            }
+        }, "tcb-measurement-watch");
+        thread.setDaemon(true);
+        thread.start();
+        log.debug("Watching {} directories for {} measured entries", watched.size(), entries.size());
+    }
+
+    /**
+     * Returns the watcher for the manifest, creating it the first time and
+     * again when the manifest file is modified.
+     *
+     * @param manifestFile manifest in the tboot-xm or measurement.xml format
+     * @return the watcher of the manifest
+     * @throws IOException if the manifest cannot be read or measured
+     */
+    public static synchronized TcbMeasurementWatcher getInstance(File manifestFile) throws IOException {
+        if (instance != null && manifestFile.equals(instanceManifestFile) && manifestFile.lastModified() == instanceManifestModified) {
+            return instance;
+        }
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+        long modified = manifestFile.lastModified();
+        TcbMeasurement manifest;
+        try (InputStream in = new FileInputStream(manifestFile)) {
+            manifest = TcbMeasurementXml.read(in);
+        }
+        instance = new TcbMeasurementWatcher(manifest, TcbMeasurementEngine.getInstance());
+        instanceManifestFile = manifestFile;
+        instanceManifestModified = modified;
+        return instance;
+    }
+
+    private WatchKey register(Path directory) throws IOException {
+        WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        if (!directory.equals(key.watchable())) {
+            // the same inode was watched under the name it had before it was moved
+            Watched stale = watched.remove(key);
+            key.cancel();
+            if (stale != null) {
+                invalidate(stale);
+                for (Node node : stale.nodes) {
+                    node.state.watched = false;
+                }
+            }
+            key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        return key;
+    }
+
+    private Watched watched(WatchKey key, Path directory) {
+        Watched entry = watched.get(key);
+        if (entry == null) {
+            entry = new Watched(directory);
+            watched.put(key, entry);
+        }
+        return entry;
+    }
+
+    private void watchFileEntry(FileState state) {
+        if (Files.isSymbolicLink(state.path)) {
+            // changes to the target are not reported in the link's directory
+            state.watched = false;
+            return;
+        }
+        Path parent = state.path.getParent();
+        try {
+            watched(register(parent), parent).files.add(state);
+        } catch (IOException e) {
+            log.warn("Cannot watch {}, hashing it for every measurement: {}", state.path, e.getMessage());
+            state.watched = false;
+        }
+    }
+
+    private void watchDirectoryEntry(DirectoryState state) throws IOException {
+        String path = state.entry.getPath();
+        state.root = new Node(state, Paths.get(path), path.endsWith("/") ? path : path + "/");
+        try {
+            scan(state.root);
+        } catch (NoSuchFileException e) {
+            log.warn("Measured directory does not exist, listing it for every measurement: {}", path);
+            state.watched = false;
+        }
+    }
+
+    /**
+     * Watches the directory of the node and adds its files and
+     * subdirectories, and their subdirectories.
+     */
+    private void scan(Node node) throws IOException {
+        if (node.state.watched) {
+            try {
+                node.key = register(node.path);
+                watched(node.key, node.path).nodes.add(node);
+            } catch (NoSuchFileException e) {
+                throw e;
+            } catch (IOException e) {
+                log.warn("Cannot watch {}, listing {} for every measurement: {}", node.path, node.state.entry.getPath(), e.getMessage());
+                node.state.watched = false;
+            }
+        }
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(node.path)) {
+            for (Path child : children) {
+                update(node, child.getFileName().toString());
+            }
+        }
+    }
+
+    /**
+     * Brings one name in the node's directory up to date.
+     */
+    private void update(Node node, String name) throws IOException {
+        Path path = node.path.resolve(name);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+        if (attributes == null || !attributes.isDirectory()) {
+            remove(node.children.remove(name + "/"));
+        }
+        if (attributes == null || attributes.isDirectory()) {
+            node.children.remove(name);
+        }
+        if (attributes != null && attributes.isDirectory() && !node.children.containsKey(name + "/")) {
+            Node child = new Node(node.state, path, node.prefix + name + "/");
+            node.children.put(name + "/", child);
+            try {
+                scan(child);
+            } catch (NoSuchFileException e) {
+                remove(node.children.remove(name + "/"));
+            }
+        } else if (attributes != null && !attributes.isDirectory() && TcbMeasurementEngine.matches(node.prefix + name, node.state.include, node.state.exclude)) {
+            node.children.put(name, null);
+        }
+        node.state.dirty = true;
+    }
+
+    /**
+     * Stops watching the directories of a node that was removed.
+     */
+    private void remove(Node node) {
+        if (node == null) {
+            return;
+        }
+        for (Node child : node.children.values()) {
+            remove(child);
+        }
+        if (node.key != null) {
+            Watched entry = watched.get(node.key);
+            if (entry != null) {
+                entry.nodes.remove(node);
+                if (entry.nodes.isEmpty() && entry.files.isEmpty()) {
+                    watched.remove(node.key);
+                    node.key.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the directory again after the watch lost events; only this
+     * directory, because its subdirectories have their own watches.
+     */
+    private void rescan(Node node) throws IOException {
+        Set<String> names = new HashSet<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(node.path)) {
+            for (Path child : children) {
+                names.add(child.getFileName().toString());
+            }
+        } catch (NoSuchFileException e) {
+            log.debug("Directory {} was removed before it was listed again", node.path);
+        }
+        // names that are gone are updated too, which removes them
+        for (String name : node.children.keySet()) {
+            names.add(name.endsWith("/") ? name.substring(0, name.length() - 1) : name);
+        }
+        for (String name : names) {
+            update(node, name);
+        }
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            synchronized (this) {
+                process(key);
+            }
+        }
+    }
+
+    /**
+     * Processes the keys that were signalled but not taken yet, so a
+     * measurement includes every change made before it was requested.
+     */
+    private void processPending() throws IOException {
+        try {
+            WatchKey key;
+            while ((key = watchService.poll()) != null) {
+                process(key);
+            }
+        } catch (ClosedWatchServiceException e) {
+            throw new IOException("TCB measurement watcher is closed", e);
+        }
+    }
+
+    private void process(WatchKey key) {
+        Watched entry = watched.get(key);
+        if (entry != null) {
+            process(entry, key);
+        }
+        if (!key.reset()) {
+            invalidate(watched.remove(key));
+        }
+    }
+
+    private void process(Watched entry, WatchKey key) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            try {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    log.debug("Events lost for {}, listing it again", entry.directory);
+                    for (FileState file : entry.files) {
+                        file.dirty = true;
+                    }
+                    for (Node node : new ArrayList<>(entry.nodes)) {
+                        rescan(node);
+                    }
+                    continue;
+                }
+                Path name = (Path) event.context();
+                Path path = entry.directory.resolve(name);
+                for (FileState file : entry.files) {
+                    if (file.path.equals(path)) {
+                        file.dirty = true;
+                    }
+                }
+                for (Node node : new ArrayList<>(entry.nodes)) {
+                    update(node, name.toString());
+                }
+            } catch (IOException e) {
+                log.warn("Cannot update measurement after change in {}, listing it for every measurement: {}", entry.directory, e.getMessage());
+                for (Node node : entry.nodes) {
+                    node.state.watched = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * The watched directory was removed or can no longer be watched.
+     */
+    private void invalidate(Watched entry) {
+        if (entry == null) {
+            return;
+        }
+        for (FileState file : entry.files) {
+            file.watched = false;
+        }
+        for (Node node : entry.nodes) {
+            node.key = null;
+            if (node == node.state.root) {
+                node.state.watched = false;
+            }
+        }
+    }
+
+    /**
+     * Processes the pending events, hashes the files that changed since the
+     * last call, saving their digests in the engine's cache, and computes
+     * the digest of the directories in which names were added or removed.
+     *
+     * @return the current measurement of the manifest
+     * @throws IOException if the watcher is closed or a measured file or directory cannot be read
+     */
+    public synchronized TcbMeasurement getMeasurement() throws IOException {
+        processPending();
+        boolean hashed = false;
+        List<MeasurementEntry> measured = new ArrayList<>(entries.size());
+        for (EntryState state : entries) {
+            if (state instanceof FileState) {
+                FileState file = (FileState) state;
+                if (file.dirty) {
+                    try {
+                        file.value = engine.hashFile(file.path, algorithm);
+                    } catch (NoSuchFileException e) {
+                        log.warn("Measured file does not exist: {}", file.path);
+                        file.value = null;
+                    }
+                    file.dirty = !file.watched;
+                    hashed = true;
+                }
+                FileMeasurementEntry entry = new FileMeasurementEntry();
+                entry.setPath(file.entry.getPath());
+                entry.setValue(file.value);
+                measured.add(entry);
+            } else {
+                DirectoryState dir = (DirectoryState) state;
+                if (!dir.watched) {
+                    try {
+                        dir.value = TcbMeasurementEngine.hashNames(TcbMeasurementEngine.listDirectory(dir.entry), algorithm);
+                    } catch (NoSuchFileException e) {
+                        log.warn("Measured directory does not exist: {}", dir.entry.getPath());
+                        dir.value = null;
+                    }
+                } else if (dir.dirty) {
+                    MessageDigest messageDigest = TcbMeasurementEngine.messageDigest(algorithm);
+                    digest(dir.root, messageDigest);
+                    dir.value = Hex.encodeHexString(messageDigest.digest());
+                    dir.dirty = false;
+                }
+                DirectoryMeasurementEntry entry = new DirectoryMeasurementEntry();
+                entry.setPath(dir.entry.getPath());
+                entry.setInclude(dir.entry.getInclude());
+                entry.setExclude(dir.entry.getExclude());
+                entry.setValue(dir.value);
+                measured.add(entry);
+            }
+        }
+        if (hashed) {
+            engine.saveCache();
+        }
+        TcbMeasurement measurement = new TcbMeasurement();
+        measurement.setDigestAlg(digestAlg);
+        measurement.setMeasurements(measured);
+        return measurement;
+    }
+
+    private static void digest(Node node, MessageDigest messageDigest) {
+        for (Map.Entry<String, Node> child : node.children.entrySet()) {
+            if (child.getValue() == null) {
+                messageDigest.update((node.prefix + child.getKey()).getBytes(UTF8));
+                messageDigest.update((byte) '\n');
+            } else {
+                digest(child.getValue(), messageDigest);
+            }
+        }
+    }
+
+    /**
+     * Stops the watches.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+}
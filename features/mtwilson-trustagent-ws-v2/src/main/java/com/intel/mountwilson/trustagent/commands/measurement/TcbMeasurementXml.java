@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.measurement;
+
+import com.intel.mtwilson.trustagent.measurement.DirectoryMeasurementEntry;
+import com.intel.mtwilson.trustagent.measurement.FileMeasurementEntry;
+import com.intel.mtwilson.trustagent.measurement.MeasurementEntry;
+import com.intel.mtwilson.trustagent.measurement.TcbMeasurement;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Reads a measurement manifest into a TcbMeasurement and writes a
+ * TcbMeasurement in the measurement.xml format the attestation service
+ * verifies, the mtwilson:trustdirector:measurements:1.1 namespace with
+ * Measurements, File and Dir elements.
+ *
+ * The reader only looks at local names, so it accepts the tboot-xm
+ * manifest, whose root element is Manifest in its own namespace, as well
+ * as a measurement.xml; values in the input are ignored.
+ */
+public class TcbMeasurementXml {
+    public static final String MEASUREMENTS_NAMESPACE = "mtwilson:trustdirector:measurements:1.1";
+    private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+    private static final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     *
+     * @param in manifest or measurement.xml
+     * @return the entries of the manifest without values
+     * @throws IOException if the manifest is not well formed or an entry has no Path
+     */
+    public static TcbMeasurement read(InputStream in) throws IOException {
+        TcbMeasurement manifest = new TcbMeasurement();
+        List<MeasurementEntry> entries = new ArrayList<>();
+        try {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+            try {
+                boolean root = true;
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    if (root) {
+                        manifest.setDigestAlg(reader.getAttributeValue(null, "DigestAlg"));
+                        root = false;
+                    } else if ("File".equals(reader.getLocalName())) {
+                        FileMeasurementEntry file = new FileMeasurementEntry();
+                        file.setPath(path(reader));
+                        entries.add(file);
+                    } else if ("Dir".equals(reader.getLocalName())) {
+                        DirectoryMeasurementEntry dir = new DirectoryMeasurementEntry();
+                        dir.setPath(path(reader));
+                        dir.setInclude(reader.getAttributeValue(null, "Include"));
+                        dir.setExclude(reader.getAttributeValue(null, "Exclude"));
+                        entries.add(dir);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid measurement manifest: " + e.getMessage(), e);
+        }
+        manifest.setMeasurements(entries);
+        return manifest;
+    }
+
+    private static String path(XMLStreamReader reader) throws IOException {
+        String path = reader.getAttributeValue(null, "Path");
+        if (path == null || path.isEmpty()) {
+            throw new IOException("Measurement manifest " + reader.getLocalName() + " element at line " + reader.getLocation().getLineNumber() + " has no Path");
+        }
+        return path;
+    }
+
+    /**
+     *
+     * @param measurement
+     * @return measurement.xml with the value of each entry
+     */
+    public static String write(TcbMeasurement measurement) {
+        StringWriter xml = new StringWriter();
+        try {
+            XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(xml);
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement("Measurements");
+            writer.writeDefaultNamespace(MEASUREMENTS_NAMESPACE);
+            if (measurement.getDigestAlg() != null) {
+                writer.writeAttribute("DigestAlg", measurement.getDigestAlg());
+            }
+            for (MeasurementEntry entry : measurement.getMeasurements()) {
+                if (entry instanceof DirectoryMeasurementEntry) {
+                    DirectoryMeasurementEntry dir = (DirectoryMeasurementEntry) entry;
+                    writer.writeStartElement("Dir");
+                    writer.writeAttribute("Path", dir.getPath());
+                    if (dir.getInclude() != null) {
+                        writer.writeAttribute("Include", dir.getInclude());
+                    }
+                    if (dir.getExclude() != null) {
+                        writer.writeAttribute("Exclude", dir.getExclude());
+                    }
+                } else {
+                    writer.writeStartElement("File");
+                    writer.writeAttribute("Path", ((FileMeasurementEntry) entry).getPath());
+                }
+                if (entry.getValue() != null) {
+                    writer.writeCharacters(entry.getValue());
+                }
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Cannot write measurement xml", e);
+        }
+        return xml.toString();
+    }
+}
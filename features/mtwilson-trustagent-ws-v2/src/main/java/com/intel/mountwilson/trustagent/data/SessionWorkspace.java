@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.data;
+
+import com.intel.mtwilson.Folders;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * A private directory for the temporary files of a single request, such as
+ * the nonce, quote, and pcrs files that are exchanged with the TPM tools.
+ *
+ * The directory is created with Files.createTempDirectory so its name is
+ * unique even when many requests start at the same time, and it is deleted
+ * in-process by close(). When /dev/shm is available the directory is created
+ * there so the files never reach the disk; otherwise it is created under
+ * the trust agent repository folder.
+ *
+ * /dev/shm is writable by every user, so its trustagent folder is only used
+ * when the agent created it or it is a directory owned by the agent user
+ * that other users cannot access. Otherwise a local user could create it
+ * first, or replace it with a symbolic link, and read or swap the files.
+ */
+public class SessionWorkspace implements Closeable {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SessionWorkspace.class);
+    private static final String PREFIX = "session-";
+    private static final Set<PosixFilePermission> OWNER_PERMISSIONS = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE);
+    private final Path directory;
+
+    private SessionWorkspace(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Creates a new workspace in the default location.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static SessionWorkspace create() throws IOException {
+        return create(getDefaultBaseDirectory());
+    }
+
+    public static SessionWorkspace create(File baseDirectory) throws IOException {
+        Path base = baseDirectory.toPath();
+        Files.createDirectories(base);
+        Path directory;
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            FileAttribute<?> ownerOnly = PosixFilePermissions.asFileAttribute(OWNER_PERMISSIONS);
+            directory = Files.createTempDirectory(base, PREFIX, ownerOnly);
+        } else {
+            directory = Files.createTempDirectory(base, PREFIX);
+        }
+        log.debug("Created session workspace {}", directory);
+        return new SessionWorkspace(directory);
+    }
+
+    /**
+     * Uses a trustagent folder on the /dev/shm tmpfs when it is available,
+     * otherwise the repository folder which was used for session data before.
+     */
+    private static File getDefaultBaseDirectory() {
+        return getBaseDirectory(new File("/dev/shm"), new File(Folders.repository()));
+    }
+
+    static File getBaseDirectory(File shm, File fallback) {
+        if (shm.isDirectory() && shm.canWrite()) {
+            Path base = new File(shm, "trustagent").toPath();
+            try {
+                if (isPrivateDirectory(base)) {
+                    return base.toFile();
+                }
+            } catch (IOException e) {
+                log.warn("Cannot use {} for session workspaces: {}", base, e.getMessage());
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * Creates the directory with permissions for the agent user only if it
+     * does not exist yet.
+     *
+     * @param directory
+     * @return true if the directory is not a symbolic link, is owned by the agent user, and its group and other users have no permissions
+     * @throws IOException if the directory cannot be created or its attributes cannot be read
+     */
+    private static boolean isPrivateDirectory(Path directory) throws IOException {
+        if (!directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return false;
+        }
+        try {
+            Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(OWNER_PERMISSIONS));
+        } catch (FileAlreadyExistsException e) {
+            log.debug("Checking existing session workspace folder {}", directory);
+        }
+        PosixFileAttributes attributes = Files.readAttributes(directory, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attributes.isDirectory()) {
+            log.warn("Not using {} for session workspaces because it is {}", directory, attributes.isSymbolicLink() ? "a symbolic link" : "not a directory");
+            return false;
+        }
+        UserPrincipal user = directory.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        if (!user.equals(attributes.owner())) {
+            log.warn("Not using {} for session workspaces because it is owned by {}", directory, attributes.owner().getName());
+            return false;
+        }
+        if (!OWNER_PERMISSIONS.containsAll(attributes.permissions())) {
+            log.warn("Not using {} for session workspaces because its permissions are {}", directory, PosixFilePermissions.toString(attributes.permissions()));
+            return false;
+        }
+        return true;
+    }
+
+    public String getId() {
+        return directory.getFileName().toString().substring(PREFIX.length());
+    }
+
+    public File getDirectory() {
+        return directory.toFile();
+    }
+
+    public String getFileName(String name) {
+        return directory.resolve(name).toString();
+    }
+
+    public boolean exists() {
+        return Files.isDirectory(directory);
+    }
+
+    /**
+     * Deletes the workspace and any files in it. The TPM tools only create
+     * plain files in the workspace so the directory is not searched
+     * recursively.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+        log.debug("Deleted session workspace {}", directory);
+    }
+}
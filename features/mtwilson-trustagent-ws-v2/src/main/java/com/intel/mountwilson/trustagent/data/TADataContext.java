@@ -4,7 +4,6 @@
  */
 package com.intel.mountwilson.trustagent.data;
 
-import com.intel.dcsg.cpg.crypto.RandomUtil;
 import java.io.File;
 
 import com.intel.mountwilson.common.Config;
@@ -44,7 +43,7 @@ public class TADataContext {
     private String ipaddress;  // localhost ip address
     private String assetTagHash = null;
     private TpmQuoteResponse tpmQuoteResponse;
-    private String sessionId;
+    private SessionWorkspace workspace;
     private String tcbMeasurement;
     private String selectedPcrBanks;
 
@@ -57,11 +56,41 @@ public class TADataContext {
     }
     
     public String getSessionId() {
-        if( sessionId == null ) {
-            sessionId = RandomUtil.randomHexString(4);
-            log.debug("Generated session id {}", sessionId);
+        return getWorkspace().getId();
+    }
+    
+    /**
+     * The workspace is created on first use and must be deleted by the
+     * caller with deleteWorkspace() when the request is done.
+     * 
+     * @return the temporary file workspace for this request
+     */
+    public synchronized SessionWorkspace getWorkspace() {
+        if( workspace == null ) {
+            try {
+                workspace = SessionWorkspace.create();
+            }
+            catch(IOException e) {
+                throw new IllegalStateException("Cannot create session workspace", e);
+            }
+        }
+        return workspace;
+    }
+    
+    public synchronized void setWorkspace(SessionWorkspace workspace) {
+        this.workspace = workspace;
+    }
+    
+    /**
+     * Deletes the temporary files of this request, if any were created.
+     * 
+     * @throws IOException 
+     */
+    public synchronized void deleteWorkspace() throws IOException {
+        if( workspace != null ) {
+            workspace.close();
+            workspace = null;
         }
-        return sessionId;
     }
     
     public String getBiosOem() {
@@ -97,7 +126,7 @@ public class TADataContext {
     }
 
     public String getNonceFileName() {
-        return getDataFolder() + File.separator + "nonce"; // like /opt/trustagent/var/nonce   
+        return getWorkspace().getFileName("nonce");
     }
 
     public String getResponseXML() {
@@ -148,11 +177,11 @@ public class TADataContext {
 
     
     public String getQuoteFileName() {
-        return getDataFolder() + File.separator + "aikquote";
+        return getWorkspace().getFileName("aikquote");
     }
     
     public String getPcrsFileName() {
-        return getDataFolder() + File.separator + "pcrs";
+        return getWorkspace().getFileName("pcrs");
     }
 
     public String getAikBlobFileName() {
@@ -181,18 +210,8 @@ public class TADataContext {
     }
 
     public String getDataFolder() {
-        String path = Folders.repository() + File.separator + getSessionId();
-        File dir = new File(path);
-        if( !dir.exists() ) {
-            if( dir.mkdirs() ) {
-                log.debug("Created session data folder {}", path);
-            }
-            else {
-                log.error("Error creating data folder {}", path);
-            }
-        }
         //return Config.getHomeFolder() + File.separator + Config.getInstance().getProperty("data.folder") + File.separator;
-        return path;
+        return getWorkspace().getDirectory().getAbsolutePath();
     }
 
     public void setAIKCertificate(String certBytes) {
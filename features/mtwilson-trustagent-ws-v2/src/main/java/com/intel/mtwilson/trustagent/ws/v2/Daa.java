@@ -34,7 +34,12 @@ public class Daa {
         }
         TADataContext context = new TADataContext();
         context.setDaaChallenge(daaChallenge.getChallenge());
-        new ChallengeResponseDaaCmd(context).execute();
+        try {
+            new ChallengeResponseDaaCmd(context).execute();
+        }
+        finally {
+            context.deleteWorkspace();
+        }
         DaaResponse daaResponse = new DaaResponse();
         daaResponse.setResponse(context.getDaaResponse());
         return daaResponse; 
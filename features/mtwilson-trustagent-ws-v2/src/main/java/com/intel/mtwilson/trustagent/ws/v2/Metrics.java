@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.launcher.ws.ext.V2;
+import com.intel.mtwilson.trustagent.metrics.MetricRegistry;
+import com.intel.mtwilson.trustagent.metrics.PrometheusWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+/**
+ * Reports the trust agent metrics in the Prometheus text format: request,
+ * TPM command and quote stage latencies, the TPM queue, external
+ * processes, cache hit rates and the web server thread pool.
+ */
+@V2
+@Path("/metrics")
+public class Metrics {
+
+    @GET
+    @Produces("text/plain")
+    public Response getMetrics() throws IOException {
+        StringWriter out = new StringWriter();
+        MetricRegistry.getInstance().write(out);
+        return Response.ok(out.toString()).type(PrometheusWriter.CONTENT_TYPE).build();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.launcher.ws.ext.V2;
+import com.intel.mtwilson.trustagent.metrics.Counter;
+import com.intel.mtwilson.trustagent.metrics.LatencyHistogram;
+import com.intel.mtwilson.trustagent.metrics.MetricFamily;
+import com.intel.mtwilson.trustagent.metrics.MetricRegistry;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Records the duration of every request in
+ * trustagent_http_request_duration_seconds, labeled with the resource
+ * method that handled it, and counts the requests that ended with a server
+ * error.
+ */
+@V2
+@Provider
+public class RequestMetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+    private static final String START_PROPERTY = RequestMetricsFilter.class.getName() + ".start";
+    private static final String UNMATCHED = "unmatched";
+    private static final MetricFamily<LatencyHistogram> durations = MetricRegistry.getInstance().histograms("trustagent_http_request_duration_seconds", "Time to handle requests by resource method", "resource");
+    private static final MetricFamily<Counter> errors = MetricRegistry.getInstance().counters("trustagent_http_request_errors_total", "Requests that ended with a server error by resource method", "resource");
+    private static final ConcurrentHashMap<Method, String> resourceNames = new ConcurrentHashMap<>();
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    @Override
+    public void filter(ContainerRequestContext request) throws IOException {
+        request.setProperty(START_PROPERTY, System.nanoTime());
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+        Object start = request.getProperty(START_PROPERTY);
+        if (!(start instanceof Long)) {
+            return;
+        }
+        String resource = resourceName();
+        durations.get(resource).record(System.nanoTime() - (Long) start);
+        if (response.getStatus() >= 500) {
+            errors.get(resource).inc();
+        }
+    }
+
+    /**
+     * The label is the class and method name instead of the path so request
+     * parameters in the path do not create a new metric for each value.
+     */
+    private String resourceName() {
+        Method method = resourceInfo == null ? null : resourceInfo.getResourceMethod();
+        if (method == null) {
+            return UNMATCHED;
+        }
+        String name = resourceNames.get(method);
+        if (name == null) {
+            name = method.getDeclaringClass().getSimpleName() + "." + method.getName();
+            resourceNames.putIfAbsent(method, name);
+        }
+        return name;
+    }
+}
@@ -5,11 +5,13 @@
 package com.intel.mtwilson.trustagent.ws.v2;
 
 import com.intel.dcsg.cpg.net.IPv4Address;
+import com.intel.mountwilson.common.CommandGraph;
 import com.intel.mountwilson.common.TAException;
 import com.intel.mountwilson.trustagent.commands.BuildQuoteXMLCmd;
 import com.intel.mountwilson.trustagent.commands.CreateNonceFileCmd;
 import com.intel.mountwilson.trustagent.commands.GenerateModulesCmd;
 import com.intel.mountwilson.trustagent.commands.GenerateQuoteCmd;
+import com.intel.mountwilson.trustagent.commands.GenerateQuotesCmd;
 import com.intel.mountwilson.trustagent.commands.ReadIdentityCmd;
 import com.intel.mountwilson.trustagent.data.TADataContext;
 import com.intel.mtwilson.launcher.ws.ext.V2;
@@ -17,18 +19,32 @@ import com.intel.dcsg.cpg.crypto.Sha1Digest;
 import com.intel.mountwilson.common.ErrorCode;
 import com.intel.mountwilson.trustagent.commands.ReadAssetTag;
 import com.intel.mountwilson.trustagent.commands.RetrieveTcbMeasurement;
+import com.intel.mountwilson.trustagent.commands.eventlog.TcgEvent;
+import com.intel.mountwilson.trustagent.commands.eventlog.TcgEventLogIndex;
+import com.intel.mountwilson.trustagent.commands.ima.ImaMeasurementList;
 import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.metrics.Counter;
+import com.intel.mtwilson.trustagent.metrics.LatencyHistogram;
+import com.intel.mtwilson.trustagent.metrics.MetricFamily;
+import com.intel.mtwilson.trustagent.metrics.MetricRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
+import com.intel.mtwilson.trustagent.model.TrustagentCbor;
+import com.intel.mtwilson.trustagent.model.TpmEventLogDigest;
+import com.intel.mtwilson.trustagent.model.TpmEventLogEntry;
+import com.intel.mtwilson.trustagent.model.TpmEventLogResponse;
 import com.intel.mtwilson.trustagent.model.TpmQuoteRequest;
+import com.intel.mtwilson.trustagent.model.TpmQuoteRequestCollection;
 import com.intel.mtwilson.trustagent.model.TpmQuoteResponse;
-import com.intel.mtwilson.util.exec.EscapeUtil;
-import java.io.File;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.trustagent.model.TpmQuoteResponseCollection;
 import gov.niarl.his.privacyca.TpmModule;
 import java.io.IOException;
 import java.util.logging.Level;
@@ -39,9 +55,7 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.exec.CommandLine;
 import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 
 /**
@@ -52,8 +66,40 @@ import org.apache.commons.lang3.StringUtils;
 @Path("/tpm")
 public class Tpm {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm.class);
-    private long t0 = System.currentTimeMillis();
+    private static final LastDigest eventLogDigest = new LastDigest("event_log_digest");
+    private static final LastDigest tcbMeasurementDigest = new LastDigest("tcb_measurement_digest");
+    private static final MetricFamily<LatencyHistogram> quoteStageDurations = MetricRegistry.getInstance().histograms("trustagent_quote_stage_duration_seconds", "Time each stage of a tpm quote took", "stage");
     
+    /**
+     * Remembers the digest of the last content it was given, so the same
+     * event log or tcb measurement is not hashed again on every quote.
+     */
+    private static class LastDigest {
+        private final Counter hits;
+        private final Counter misses;
+        private volatile String[] last; // content, digest
+        
+        private LastDigest(String cache) {
+            MetricRegistry registry = MetricRegistry.getInstance();
+            hits = registry.counter("trustagent_cache_requests_total", "Cache lookups by cache and result", "cache", cache, "result", "hit");
+            misses = registry.counter("trustagent_cache_requests_total", "Cache lookups by cache and result", "cache", cache, "result", "miss");
+        }
+        
+        private String of(String content) {
+            if (content == null) {
+                return null;
+            }
+            String[] current = last;
+            if (current != null && current[0].equals(content)) {
+                hits.inc();
+                return current[1];
+            }
+            misses.inc();
+            String digest = TpmQuoteResponse.digestOf(content);
+            last = new String[] { content, digest };
+            return digest;
+        }
+    }
 
     /*
     @POST
@@ -65,34 +111,146 @@ public class Tpm {
     }
     */
     
-    private void logPerformance(String message) {
-        long t1 = System.currentTimeMillis();
-        log.debug("performance: after {} ms: {}", t1-t0, message);
-        t0 = t1;
+    @POST
+    @Path("/quote")
+    @Consumes({MediaType.APPLICATION_XML,MediaType.APPLICATION_JSON})
+    @Produces({MediaType.APPLICATION_XML,MediaType.APPLICATION_JSON,TrustagentCbor.APPLICATION_CBOR})
+    public TpmQuoteResponse tpmQuote(TpmQuoteRequest tpmQuoteRequest, @Context HttpServletRequest request) throws IOException, TAException {
+        TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+        extendNonceWithIpAddress(tpmQuoteRequest, configuration, request);
+          
+        /* If it is Windows host, Here we read Geotag from nvram index 0x40000010 and do sha1(nonce | geotag) and use the result as the nonce for TPM quote
+           As of now, we still keep the same geotag provisioning mechanism by writing it to TPM. there are other approaches as well, but not in implementation.
+        */  
+        byte[] assetTagHash = readAssetTag(configuration);
+        extendNonceWithAssetTag(tpmQuoteRequest, assetTagHash);
+
+        TADataContext context = createQuoteContext(tpmQuoteRequest); // when we call getSessionId it will create a new random one
+
+        // the nonce file and quote depend on each other but not on the identity,
+        // module and tcb measurement reads, so those run at the same time
+        CommandGraph stages = new CommandGraph().setStageDurations(quoteStageDurations);
+        stages.add("CreateNonceFileCmd", new CreateNonceFileCmd(context)); // FileUtils.write to file nonce (binary)
+        stages.add("ReadIdentityCmd", new ReadIdentityCmd(context));  // trustagentrepository.getaikcertificate
+        stages.add("GenerateModulesCmd", new GenerateModulesCmd(context)); // String moduleXml = getXmlFromMeasureLog(configuration);
+        stages.add("RetrieveTcbMeasurement", new RetrieveTcbMeasurement(context)); //does nothing if measurement.xml does not exist
+        stages.addTpm("GenerateQuoteCmd", new GenerateQuoteCmd(context), "CreateNonceFileCmd");
+        stages.add("BuildQuoteXMLCmd", new BuildQuoteXMLCmd(context), "ReadIdentityCmd", "GenerateModulesCmd", "RetrieveTcbMeasurement", "GenerateQuoteCmd");
+        TpmQuoteResponse response;
+        try {
+            stages.execute();
+            
+            // return context.getResponseXML();
+            response = context.getTpmQuoteResponse();
+        }
+        finally {
+            log.debug("performance: tpm quote stages {}", stages.getTimings());
+            // delete temporary session files, also when the quote failed
+            context.deleteWorkspace();
+        }
+
+        completeResponse(response, tpmQuoteRequest, assetTagHash);
+        return response;
+    }
+    
+    /**
+     * The quotes of a batch run back to back in one TPM scheduler slot, so
+     * the size of a batch has its own limit instead of tpm.queue.max, which
+     * limits how many operations wait for the TPM.
+     * 
+     * @param quoteRequests
+     * @param max tpm.quote.batch.max
+     * @throws WebApplicationException with status 400 if there are no quote requests or more than max
+     */
+    static void checkBatchSize(List<TpmQuoteRequest> quoteRequests, int max) {
+        if (quoteRequests.isEmpty() || quoteRequests.size() > max) {
+            log.debug("Batch of {} quote requests, maximum is {}", quoteRequests.size(), max);
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).header("Error", "tpm.quotes requires 1 to " + max + " quote requests").build());
+        }
     }
     
+    /**
+     * Generates several quotes in one request, for example one for each PCR
+     * bank or for each tenant nonce. The AIK certificate, event log and TCB
+     * measurement are read once for the whole batch, the quotes are generated
+     * back to back in one TPM scheduler slot, and on TPM 2.0 the PCR values
+     * are read once for each distinct selection.
+     * 
+     * Input and output are a tpm_quote_request_collection and a
+     * tpm_quote_response_collection with the quotes in the same order. Each
+     * request is handled like a request to /tpm/quote, including the IP
+     * address and asset tag nonce extensions. The batch fails if any quote
+     * fails.
+     * 
+     * @param tpmQuoteRequests at least one and at most tpm.quote.batch.max quote requests
+     * @param request
+     * @return the quotes in request order
+     * @throws IOException
+     * @throws TAException 
+     */
     @POST
-    @Path("/quote")
+    @Path("/quotes")
     @Consumes({MediaType.APPLICATION_XML,MediaType.APPLICATION_JSON})
     @Produces({MediaType.APPLICATION_XML,MediaType.APPLICATION_JSON})
-    public TpmQuoteResponse tpmQuote(TpmQuoteRequest tpmQuoteRequest, @Context HttpServletRequest request) throws IOException, TAException {
-        logPerformance("inside tpmQuote");
-        /**
-         * issue #1038 we will hash this ip address together with the input
-         * nonce to produce the quote nonce; mtwilson server will do the same
-         * thing; this prevents a MITM "quote relay" attack where an attacker
-         * can accept quote requests at host A, forward them to trusted host B,
-         * and then reply with host B's quote to the challenger (same nonce etc)
-         * because with this fix mtwilson is hashing host A's ip address into
-         * the nonce on its end, and host B is hashing its ip address into the
-         * nonce (here), so the quote will fail the challenger's verification
-         * because of the different nonces; Attacker will also not be able to
-         * cheat by hashing host B's ip address into the nonce because host B
-         * will again has its ip address so it will be double-hashed and fail
-         * verification
-         */
+    public TpmQuoteResponseCollection tpmQuotes(TpmQuoteRequestCollection tpmQuoteRequests, @Context HttpServletRequest request) throws IOException, TAException {
         TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
-        logPerformance("TrustagentConfiguration.loadConfiguration()");
+        List<TpmQuoteRequest> quoteRequests = tpmQuoteRequests.getQuotes();
+        checkBatchSize(quoteRequests, configuration.getTpmQuoteBatchMax());
+        byte[] assetTagHash = readAssetTag(configuration);
+        
+        // the quotes run one at a time so they share a workspace, and the
+        // nonce-independent content is read once into the shared context
+        TADataContext shared = new TADataContext();
+        List<TADataContext> contexts = new ArrayList<>();
+        CommandGraph stages = new CommandGraph().setStageDurations(quoteStageDurations);
+        try {
+            for (TpmQuoteRequest quoteRequest : quoteRequests) {
+                extendNonceWithIpAddress(quoteRequest, configuration, request);
+                extendNonceWithAssetTag(quoteRequest, assetTagHash);
+                TADataContext context = createQuoteContext(quoteRequest);
+                context.setWorkspace(shared.getWorkspace());
+                contexts.add(context);
+            }
+            stages.add("ReadIdentityCmd", new ReadIdentityCmd(shared));
+            stages.add("GenerateModulesCmd", new GenerateModulesCmd(shared));
+            stages.add("RetrieveTcbMeasurement", new RetrieveTcbMeasurement(shared));
+            stages.addTpm("GenerateQuotesCmd", new GenerateQuotesCmd(contexts));
+            stages.execute();
+            
+            TpmQuoteResponseCollection responses = new TpmQuoteResponseCollection();
+            for (int i = 0; i < contexts.size(); i++) {
+                TADataContext context = contexts.get(i);
+                context.setAIKCertificate(shared.getAIKCertificate());
+                context.setModules(shared.getModules());
+                context.setTcbMeasurement(shared.getTcbMeasurement());
+                new BuildQuoteXMLCmd(context).execute();
+                TpmQuoteResponse response = context.getTpmQuoteResponse();
+                completeResponse(response, quoteRequests.get(i), assetTagHash);
+                responses.getQuotes().add(response);
+            }
+            return responses;
+        }
+        finally {
+            log.debug("performance: {} tpm quotes stages {}", contexts.size(), stages.getTimings());
+            shared.deleteWorkspace();
+        }
+    }
+    
+    /**
+     * issue #1038 we will hash this ip address together with the input
+     * nonce to produce the quote nonce; mtwilson server will do the same
+     * thing; this prevents a MITM "quote relay" attack where an attacker
+     * can accept quote requests at host A, forward them to trusted host B,
+     * and then reply with host B's quote to the challenger (same nonce etc)
+     * because with this fix mtwilson is hashing host A's ip address into
+     * the nonce on its end, and host B is hashing its ip address into the
+     * nonce (here), so the quote will fail the challenger's verification
+     * because of the different nonces; Attacker will also not be able to
+     * cheat by hashing host B's ip address into the nonce because host B
+     * will again has its ip address so it will be double-hashed and fail
+     * verification
+     */
+    private void extendNonceWithIpAddress(TpmQuoteRequest tpmQuoteRequest, TrustagentConfiguration configuration, HttpServletRequest request) {
         if( configuration.isTpmQuoteWithIpAddress() ) {
             if( IPv4Address.isValid(request.getLocalAddr()) ) {
                 IPv4Address ipv4 = new IPv4Address(request.getLocalAddr());
@@ -104,8 +262,34 @@ public class Tpm {
                 throw new WebApplicationException(Response.serverError().header("Error", "tpm.quote.ipv4 enabled but local address not IPv4").build());
             }
         }
-          
-        TADataContext context = new TADataContext(); // when we call getSessionId it will create a new random one
+    }
+    
+    /**
+     * 
+     * @return the asset tag hash, or null if the asset tag is not provisioned
+     */
+    private byte[] readAssetTag(TrustagentConfiguration configuration) throws IOException {
+        byte[] ownerAuth = configuration.getTpmOwnerSecret();
+        try {
+            byte[] assetTagHash = com.intel.mtwilson.trustagent.tpmmodules.Tpm.getModule().readAssetTag(ownerAuth);
+            log.debug("Asset Tag is: {}", assetTagHash);
+            return assetTagHash;
+        } catch (TpmModule.TpmModuleException ex) {
+            log.debug("Could not read Asset Tag from TPM");
+            log.debug("Asset Tag is not provisioned");
+            return null;
+        }
+    }
+    
+    private void extendNonceWithAssetTag(TpmQuoteRequest tpmQuoteRequest, byte[] assetTagHash) {
+        if (assetTagHash != null) {
+            byte[] extendedNoncewithAssetTag = Sha1Digest.digestOf(tpmQuoteRequest.getNonce()).extend(assetTagHash).toByteArray();
+            tpmQuoteRequest.setNonce(extendedNoncewithAssetTag);
+        }
+    }
+    
+    private TADataContext createQuoteContext(TpmQuoteRequest tpmQuoteRequest) {
+        TADataContext context = new TADataContext();
         String osName = System.getProperty("os.name");
         context.setOsName(osName);
         
@@ -114,76 +298,128 @@ public class Tpm {
             context.setSelectedPcrBanks("SHA1");
         else
             context.setSelectedPcrBanks(tpmQuoteRequest.getPcrbanks());
-
-        /* If it is Windows host, Here we read Geotag from nvram index 0x40000010 and do sha1(nonce | geotag) and use the result as the nonce for TPM quote
-           As of now, we still keep the same geotag provisioning mechanism by writing it to TPM. there are other approaches as well, but not in implementation.
-        */  
-        boolean isTagProvisioned = false;        
-        byte[] ownerAuth = configuration.getTpmOwnerSecret();
-        byte[] assetTagHash = null;
-        try {
-            assetTagHash = com.intel.mtwilson.trustagent.tpmmodules.Tpm.getModule().readAssetTag(ownerAuth);
-            log.debug("Asset Tag is: {}", assetTagHash);
-            byte[] extendedNoncewithAssetTag = Sha1Digest.digestOf(tpmQuoteRequest.getNonce()).extend(assetTagHash).toByteArray();
-            tpmQuoteRequest.setNonce(extendedNoncewithAssetTag);
-            isTagProvisioned = true;
-        } catch (TpmModule.TpmModuleException ex) {
-            log.debug("Could not read Asset Tag from TPM");
-            log.debug("Asset Tag is not provisioned");
-        }               
-
+        
         context.setNonce(Base64.encodeBase64String(tpmQuoteRequest.getNonce()));
         context.setSelectedPCRs(joinIntegers(tpmQuoteRequest.getPcrs(), ' '));
-
-        logPerformance("new TADataContext()");
-        new CreateNonceFileCmd(context).execute(); // FileUtils.write to file nonce (binary)
-        logPerformance("CreateNonceFileCmd");
-        new ReadIdentityCmd(context).execute();  // trustagentrepository.getaikcertificate
-        logPerformance("ReadIdentityCmd");
-
-        // Get the module information
-        new GenerateModulesCmd(context).execute(); // String moduleXml = getXmlFromMeasureLog(configuration);
-        logPerformance("GenerateModulesCmd");
-        new RetrieveTcbMeasurement(context).execute(); //does nothing if measurement.xml does not exist
-        logPerformance("RetrieveTcbMeasurement");
+        return context;
+    }
     
-        new GenerateQuoteCmd(context).execute();
-        logPerformance("GenerateQuoteCmd");
-        new BuildQuoteXMLCmd(context).execute();
-        logPerformance("BuildQuoteXMLCmd");
-            
-        // return context.getResponseXML();
-        TpmQuoteResponse response = context.getTpmQuoteResponse();
-        logPerformance("context.getTpmQuoteResponse()");
-
+    private void completeResponse(TpmQuoteResponse response, TpmQuoteRequest tpmQuoteRequest, byte[] assetTagHash) {
         //assetTag 
         //#6560: Null pointer dereference of 'response' where null is returned from a method
         if (response != null){
-            response.isTagProvisioned = isTagProvisioned;
-            if (isTagProvisioned) 
+            response.isTagProvisioned = assetTagHash != null;
+            if (response.isTagProvisioned) 
                 response.assetTag = assetTagHash;
+            
+            // the event log and tcb measurement rarely change, so they are left out when the client already has them
+            response.eventLogDigest = eventLogDigest.of(response.eventLog);
+            response.tcbMeasurementDigest = tcbMeasurementDigest.of(response.tcbMeasurement);
+            if (response.eventLogDigest != null && response.eventLogDigest.equalsIgnoreCase(tpmQuoteRequest.getEventLogDigest())) {
+                response.eventLog = null;
+            }
+            if (response.tcbMeasurementDigest != null && response.tcbMeasurementDigest.equalsIgnoreCase(tpmQuoteRequest.getTcbMeasurementDigest())) {
+                response.tcbMeasurement = null;
+            }
+            if (tpmQuoteRequest.getImaSince() != null) {
+                addImaMeasurements(response, tpmQuoteRequest.getImaSince());
+            }
         }
-
-        // delete temporary session directory
-        if (!osName.toLowerCase().contains("windows")) {
-            CommandLine command = new CommandLine("rm");
-            command.addArgument("-rf");
-            command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getDataFolder()));
-            Result result = ExecUtil.execute(command);
-            logPerformance("ExecUtil.execute(command)");
-            if (result.getExitCode() != 0) {
-                log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
-                throw new TAException(ErrorCode.ERROR, result.getStderr());
+    }
+    
+    /**
+     * Adds the IMA entries after the ones the client has. This runs after
+     * the quote, so the entries include every measurement extended into
+     * PCR 10 before the quote; the client replays them up to the quoted
+     * value and keeps any later ones for the next quote.
+     */
+    private void addImaMeasurements(TpmQuoteResponse response, int imaSince) {
+        try {
+            ImaMeasurementList.Delta delta = ImaMeasurementList.getInstance().read(imaSince);
+            response.imaFrom = delta.getFrom();
+            response.imaNext = delta.getNext();
+            response.imaLog = delta.getEntries();
+            response.imaPreviousAggregate = Hex.encodeHexString(delta.getPreviousAggregate());
+            response.imaAggregate = Hex.encodeHexString(delta.getAggregate());
+        } catch (IOException e) {
+            // the quote is still useful without the IMA entries
+            log.warn("Cannot read IMA measurement list: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * Returns the entries of the TCG binary event log from a sequence number
+     * or byte offset to the end, so a verifier that polls the host downloads
+     * only the entries it does not have yet. The log is parsed once and the
+     * index is extended with the events the kernel appended since the
+     * previous request.
+     * 
+     * The response has the running digest of each PCR before the first
+     * entry and after the last one. A verifier checks that the previous
+     * digests match the ones it computed from its entries, and asks for the
+     * log from 0 when they do not, for example after the host rebooted.
+     * 
+     * @param from sequence number of the first entry, default 0
+     * @param offset byte offset of the first entry, instead of from
+     * @return the entries in log order
+     * @throws IOException if the event log cannot be read
+     */
+    @GET
+    @Path("/event-log")
+    @Produces({MediaType.APPLICATION_XML,MediaType.APPLICATION_JSON})
+    public TpmEventLogResponse tpmEventLog(@QueryParam("from") Integer from, @QueryParam("offset") Long offset) throws IOException {
+        if (from != null && offset != null) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).header("Error", "tpm.event-log accepts from or offset, not both").build());
+        }
+        TcgEventLogIndex index = TcgEventLogIndex.getInstance();
+        index.refresh();
+        int first;
+        if (offset != null) {
+            first = index.sequenceAt(offset);
+            if (first < 0) {
+                log.debug("No event starts at offset {}, log length is {}", offset, index.getNextOffset());
+                throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).header("Error", "tpm.event-log offset is not the start of an event").build());
             }
-            log.debug("command stdout: {}", result.getStdout());
         } else {
-            // we should use more neutral ways to delete the folder
-            FileUtils.forceDelete(new File(context.getDataFolder())); 
+            first = from == null ? 0 : from;
+        }
+        List<TcgEvent> events;
+        TpmEventLogResponse response = new TpmEventLogResponse();
+        synchronized (index) { // the same view of the index for the range check and the digests
+            if (first < 0 || first > index.size()) {
+                log.debug("Event log from {}, log has {} events", first, index.size());
+                throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).header("Error", "tpm.event-log from must be 0 to " + index.size()).build());
+            }
+            events = index.getEvents(first);
+            response.setFrom(first);
+            response.setNext(index.size());
+            response.setNextOffset(index.getNextOffset());
+            addRunningDigests(response.getPreviousPcrs(), index.runningDigests(first));
+            addRunningDigests(response.getPcrs(), index.runningDigests(index.size()));
+        }
+        for (TcgEvent event : events) {
+            TpmEventLogEntry entry = new TpmEventLogEntry();
+            entry.setSequence(event.getSequence());
+            entry.setOffset(event.getOffset());
+            entry.setPcrIndex(event.getPcrIndex());
+            entry.setEventType(event.getEventType());
+            entry.setEventData(event.getEventData());
+            for (Map.Entry<Integer, byte[]> digest : event.getDigests().entrySet()) {
+                entry.getDigests().add(new TpmEventLogDigest(TcgEvent.getBankName(digest.getKey()), null, Hex.encodeHexString(digest.getValue())));
+            }
+            response.getEntries().add(entry);
         }
-        logPerformance("before return response");
         return response;
     }
     
+    private void addRunningDigests(List<TpmEventLogDigest> digests, Map<Integer, Map<Integer, byte[]>> pcrs) {
+        for (Map.Entry<Integer, Map<Integer, byte[]>> pcr : pcrs.entrySet()) {
+            for (Map.Entry<Integer, byte[]> value : pcr.getValue().entrySet()) {
+                digests.add(new TpmEventLogDigest(TcgEvent.getBankName(value.getKey()), pcr.getKey(), Hex.encodeHexString(value.getValue())));
+            }
+        }
+    }
+    
     private String joinIntegers(int[] pcrs, char separator) {
         String[] array = new String[pcrs.length];
         for(int i=0; i<pcrs.length; i++) {
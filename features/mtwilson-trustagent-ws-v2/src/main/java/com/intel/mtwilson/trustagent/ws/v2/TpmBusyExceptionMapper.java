@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.launcher.ws.ext.V2;
+import com.intel.mtwilson.trustagent.tpmmodules.TpmBusyException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Tells the client to try again later when the TPM queue is full, instead
+ * of reporting a server error.
+ */
+@V2
+@Provider
+public class TpmBusyExceptionMapper implements ExceptionMapper<TpmBusyException> {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmBusyExceptionMapper.class);
+
+    @Override
+    public Response toResponse(TpmBusyException exception) {
+        log.warn("TPM busy: {}", exception.getMessage());
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", String.valueOf(exception.getRetryAfterSeconds()))
+                .header("Error", exception.getMessage())
+                .build();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.trustagent.model.VMQuoteResponse;
+import java.io.File;
+
+/**
+ * The files of a VM attestation report as written by vRTM. It is
+ * serialized by VMQuoteReportMessageBodyWriter with the same representation
+ * as VMQuoteResponse, but the file content is copied to the response as it
+ * is written instead of being loaded into memory first.
+ */
+public class VMQuoteReport {
+    private final File vmQuote;
+    private final File vmTrustPolicy;
+    private final File vmMeasurements;
+    private final VMQuoteResponse.QuoteType vmQuoteType;
+
+    public VMQuoteReport(File vmQuote, File vmTrustPolicy, File vmMeasurements, VMQuoteResponse.QuoteType vmQuoteType) {
+        this.vmQuote = vmQuote;
+        this.vmTrustPolicy = vmTrustPolicy;
+        this.vmMeasurements = vmMeasurements;
+        this.vmQuoteType = vmQuoteType;
+    }
+
+    public File getVmQuote() {
+        return vmQuote;
+    }
+
+    public File getVmTrustPolicy() {
+        return vmTrustPolicy;
+    }
+
+    public File getVmMeasurements() {
+        return vmMeasurements;
+    }
+
+    public VMQuoteResponse.QuoteType getVmQuoteType() {
+        return vmQuoteType;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.launcher.ws.ext.V2;
+import com.intel.mtwilson.trustagent.model.CborWriter;
+import com.intel.mtwilson.trustagent.model.TrustagentCbor;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Writes a VMQuoteReport as the json or cbor representation of
+ * VMQuoteResponse, copying each file to the response as it goes so memory
+ * use does not depend on the size of the files.
+ *
+ * For cbor the file content is sent as is with FileChannel.transferTo,
+ * which avoids copying through the heap when the container gives us a
+ * channel-backed stream and otherwise copies through a small fixed buffer.
+ * For json the content is base64-encoded a chunk at a time.
+ */
+@V2
+@Provider
+@Produces({MediaType.APPLICATION_JSON, TrustagentCbor.APPLICATION_CBOR})
+public class VMQuoteReportMessageBodyWriter implements MessageBodyWriter<VMQuoteReport> {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int BASE64_CHUNK = 3 * 16 * 1024; // multiple of 3 so only the last chunk is padded
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type == VMQuoteReport.class;
+    }
+
+    @Override
+    public long getSize(VMQuoteReport t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(VMQuoteReport t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType, MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException, WebApplicationException {
+        if (mediaType.isCompatible(MediaType.valueOf(TrustagentCbor.APPLICATION_CBOR))) {
+            writeCbor(t, entityStream);
+        } else {
+            writeJson(t, entityStream);
+        }
+        entityStream.flush();
+    }
+
+    private void writeCbor(VMQuoteReport report, OutputStream out) throws IOException {
+        CborWriter cbor = new CborWriter(out);
+        WritableByteChannel channel = Channels.newChannel(out);
+        cbor.writeMapHeader(report.getVmQuoteType() == null ? 3 : 4);
+        writeCborFile(cbor, channel, "vm_quote", report.getVmQuote());
+        writeCborFile(cbor, channel, "vm_trust_policy", report.getVmTrustPolicy());
+        writeCborFile(cbor, channel, "vm_measurements", report.getVmMeasurements());
+        if (report.getVmQuoteType() != null) {
+            cbor.write("vm_quote_type");
+            cbor.write(report.getVmQuoteType().name());
+        }
+    }
+
+    private void writeCborFile(CborWriter cbor, WritableByteChannel target, String key, File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+            long size = channel.size();
+            cbor.write(key);
+            cbor.writeByteStringHeader(size);
+            long position = 0;
+            while (position < size) {
+                long count = channel.transferTo(position, size - position, target);
+                if (count <= 0) {
+                    // the length was already sent, so the response cannot be completed
+                    throw new IOException("File was truncated while sending: " + file.getAbsolutePath());
+                }
+                position += count;
+            }
+        }
+    }
+
+    private void writeJson(VMQuoteReport report, OutputStream out) throws IOException {
+        out.write('{');
+        writeJsonFields(report, out);
+        out.write('}');
+    }
+
+    /**
+     * Writes the members of the json object without the enclosing braces,
+     * so VMQuoteReportStream can put the vm_instance_id in front of them.
+     */
+    static void writeJsonFields(VMQuoteReport report, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BASE64_CHUNK];
+        out.write("\"vm_quote\":\"".getBytes(ASCII));
+        writeBase64File(report.getVmQuote(), buffer, out);
+        out.write("\",\"vm_trust_policy\":\"".getBytes(ASCII));
+        writeBase64File(report.getVmTrustPolicy(), buffer, out);
+        out.write("\",\"vm_measurements\":\"".getBytes(ASCII));
+        writeBase64File(report.getVmMeasurements(), buffer, out);
+        if (report.getVmQuoteType() == null) {
+            out.write("\",\"vm_quote_type\":null".getBytes(ASCII));
+        } else {
+            out.write(("\",\"vm_quote_type\":\"" + report.getVmQuoteType().name() + "\"").getBytes(ASCII));
+        }
+    }
+
+    private static void writeBase64File(File file, byte[] buffer, OutputStream out) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            int length;
+            do {
+                length = readChunk(in, buffer);
+                if (length > 0) {
+                    out.write(Base64.encodeBase64(length == buffer.length ? buffer : Arrays.copyOf(buffer, length)));
+                }
+            } while (length == buffer.length);
+        }
+    }
+
+    /**
+     * Fills the buffer unless the end of the file is reached first, so that
+     * every chunk but the last is a multiple of 3 bytes.
+     */
+    private static int readChunk(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int count = in.read(buffer, offset, buffer.length - offset);
+            if (count < 0) {
+                break;
+            }
+            offset += count;
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * The response of the /vrtm/reports batch resource. Each report is written
+ * and flushed as soon as its rpcore call completes, so the client can start
+ * on the first reports while rpcore is still working on the others. The
+ * json is a vm_quote_response_collection with the reports in completion
+ * order:
+ *
+ * <pre>
+ * {"vms":[{"vm_instance_id":"...","vm_quote":"...","vm_trust_policy":"...","vm_measurements":"...","vm_quote_type":"XML_DSIG"},
+ *         {"vm_instance_id":"...","error_message":"..."}]}
+ * </pre>
+ */
+public class VMQuoteReportStream implements StreamingOutput {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final int size;
+    private final BlockingQueue<Entry> completed = new LinkedBlockingQueue<>();
+
+    /**
+     *
+     * @param size number of reports that will be added
+     */
+    public VMQuoteReportStream(int size) {
+        this.size = size;
+    }
+
+    public void add(String vmInstanceId, VMQuoteReport report) {
+        completed.add(new Entry(vmInstanceId, report, null));
+    }
+
+    public void addError(String vmInstanceId, String errorMessage) {
+        completed.add(new Entry(vmInstanceId, null, errorMessage));
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException, WebApplicationException {
+        out.write("{\"vms\":[".getBytes(UTF8));
+        for (int i = 0; i < size; i++) {
+            Entry entry;
+            try {
+                // every rpcore call completes, at the latest when the read timeout expires
+                entry = completed.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for VM attestation reports", e);
+            }
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write("{\"vm_instance_id\":".getBytes(UTF8));
+            writeString(entry.vmInstanceId, out);
+            if (entry.report != null) {
+                out.write(',');
+                VMQuoteReportMessageBodyWriter.writeJsonFields(entry.report, out);
+            } else {
+                out.write(",\"error_message\":".getBytes(UTF8));
+                writeString(entry.errorMessage, out);
+            }
+            out.write('}');
+            out.flush();
+        }
+        out.write("]}".getBytes(UTF8));
+        out.flush();
+    }
+
+    private static void writeString(String value, OutputStream out) throws IOException {
+        if (value == null) {
+            out.write("null".getBytes(UTF8));
+            return;
+        }
+        out.write('"');
+        out.write(JsonStringEncoder.getInstance().quoteAsUTF8(value));
+        out.write('"');
+    }
+
+    private static class Entry {
+        private final String vmInstanceId;
+        private final VMQuoteReport report;
+        private final String errorMessage;
+
+        private Entry(String vmInstanceId, VMQuoteReport report, String errorMessage) {
+            this.vmInstanceId = vmInstanceId;
+            this.report = report;
+            this.errorMessage = errorMessage;
+        }
+    }
+}
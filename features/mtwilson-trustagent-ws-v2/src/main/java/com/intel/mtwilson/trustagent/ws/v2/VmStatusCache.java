@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.metrics.Counter;
+import com.intel.mtwilson.trustagent.metrics.Gauge;
+import com.intel.mtwilson.trustagent.metrics.MetricRegistry;
+import java.io.IOException;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the trust status that rpcore reported for each VM so /vrtm/status
+ * can answer from memory. The status of a VM only changes when it is
+ * launched or measured again, and both write to its directory under the
+ * nova instances directory, so a watch on that directory removes the
+ * cached status of a VM as soon as its files change. The TTL limits how
+ * long a status is used when a change is not seen, for example when the
+ * watch could not be set up.
+ *
+ * A false status, which is also what rpcore reports for an unknown VM, is
+ * kept for the shorter negative TTL so a VM that is still starting is
+ * asked again soon. Failed calls are not cached.
+ */
+public class VmStatusCache {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(VmStatusCache.class);
+    private static final Counter hits = MetricRegistry.getInstance().counter("trustagent_cache_requests_total", "Cache lookups by cache and result", "cache", "vm_status", "result", "hit");
+    private static final Counter misses = MetricRegistry.getInstance().counter("trustagent_cache_requests_total", "Cache lookups by cache and result", "cache", "vm_status", "result", "miss");
+    private static final Counter invalidations = MetricRegistry.getInstance().counter("trustagent_cache_invalidations_total", "Cache entries removed because the cached data changed", "cache", "vm_status");
+    private static final int MAX_ENTRIES = 10000;
+    private static VmStatusCache instance;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private volatile WatchService watchService;
+
+    private static class Entry {
+        private final boolean trustStatus;
+        private final long expires;
+
+        private Entry(boolean trustStatus, long expires) {
+            this.trustStatus = trustStatus;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     *
+     * @param ttlMillis how long a true status is used, or 0 to disable the cache
+     * @param negativeTtlMillis how long a false status is used, or 0 to not cache it
+     */
+    public VmStatusCache(long ttlMillis, long negativeTtlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+    }
+
+    public static synchronized VmStatusCache getInstance() {
+        if (instance == null) {
+            long ttlSeconds = 60, negativeTtlSeconds = 5;
+            String instancesDirectory = "/var/lib/nova/instances";
+            try {
+                TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+                ttlSeconds = configuration.getVrtmStatusCacheTtl();
+                negativeTtlSeconds = configuration.getVrtmStatusCacheNegativeTtl();
+                instancesDirectory = configuration.getVrtmInstancesDirectory();
+            } catch (IOException e) {
+                log.warn("Cannot load vrtm status cache configuration, using defaults: {}", e.getMessage());
+            }
+            log.debug("VM status cache ttl {} seconds negative ttl {} seconds", ttlSeconds, negativeTtlSeconds);
+            instance = new VmStatusCache(TimeUnit.SECONDS.toMillis(ttlSeconds), TimeUnit.SECONDS.toMillis(negativeTtlSeconds));
+            if (ttlSeconds > 0) {
+                instance.watch(Paths.get(instancesDirectory));
+            }
+            final VmStatusCache cache = instance;
+            MetricRegistry.getInstance().gauge("trustagent_cache_entries", "Number of entries in a cache", new Gauge() {
+                @Override
+                public long getValue() {
+                    return cache.size();
+                }
+            }, "cache", "vm_status");
+        }
+        return instance;
+    }
+
+    /**
+     *
+     * @param vmInstanceId
+     * @return the cached trust status, or null if it is not cached or expired
+     */
+    public Boolean get(String vmInstanceId) {
+        Entry entry = vmInstanceId == null ? null : entries.get(vmInstanceId);
+        if (entry != null && entry.expires - now() > 0) {
+            hits.inc();
+            return entry.trustStatus;
+        }
+        misses.inc();
+        return null;
+    }
+
+    /**
+     * Wraps the handler of an rpcore status call so its result is cached.
+     * A result is dropped if the cache was invalidated while the call was in
+     * flight, because rpcore may have answered before the change.
+     *
+     * @param vmInstanceId
+     * @param handler receives the result after it is cached
+     * @return the handler to pass to the rpcore call
+     */
+    public CompletionHandler<Boolean, Void> update(final String vmInstanceId, final CompletionHandler<Boolean, Void> handler) {
+        final long callGeneration = generation.get();
+        return new CompletionHandler<Boolean, Void>() {
+            @Override
+            public void completed(Boolean trustStatus, Void attachment) {
+                if (trustStatus != null && vmInstanceId != null) {
+                    put(vmInstanceId, trustStatus, callGeneration);
+                }
+                handler.completed(trustStatus, attachment);
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                handler.failed(exc, attachment);
+            }
+        };
+    }
+
+    void put(String vmInstanceId, boolean trustStatus, long callGeneration) {
+        long ttl = trustStatus ? ttlMillis : negativeTtlMillis;
+        if (ttl <= 0) {
+            return;
+        }
+        if (entries.size() >= MAX_ENTRIES) {
+            removeExpired();
+        }
+        entries.put(vmInstanceId, new Entry(trustStatus, now() + ttl));
+        if (generation.get() != callGeneration) {
+            // an invalidation may have run between the check and the put
+            entries.remove(vmInstanceId);
+        }
+    }
+
+    public void invalidate(String vmInstanceId) {
+        generation.incrementAndGet();
+        if (entries.remove(vmInstanceId) != null) {
+            invalidations.inc();
+            log.debug("VM status cache cleared for {}", vmInstanceId);
+        }
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        entries.clear();
+        invalidations.inc();
+        log.debug("VM status cache cleared");
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private void removeExpired() {
+        long now = now();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().expires - now <= 0) {
+                it.remove();
+            }
+        }
+        if (entries.size() >= MAX_ENTRIES) {
+            log.debug("VM status cache is full");
+            entries.clear();
+        }
+    }
+
+    /**
+     * Watches the instances directory and each VM directory in it, and
+     * removes the cached status of a VM when its directory or any file in
+     * it is created, changed or deleted. When the directory does not exist
+     * the cache relies on the TTL alone.
+     *
+     * @param instancesDirectory such as /var/lib/nova/instances
+     */
+    void watch(final Path instancesDirectory) {
+        if (!Files.isDirectory(instancesDirectory)) {
+            log.debug("Not watching {}, it is not a directory", instancesDirectory);
+            return;
+        }
+        try {
+            final WatchService watcher = instancesDirectory.getFileSystem().newWatchService();
+            register(watcher, instancesDirectory);
+            try (DirectoryStream<Path> vms = Files.newDirectoryStream(instancesDirectory)) {
+                for (Path vm : vms) {
+                    if (Files.isDirectory(vm)) {
+                        register(watcher, vm);
+                    }
+                }
+            }
+            watchService = watcher;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    processEvents(watcher, instancesDirectory);
+                }
+            }, "vm-status-cache-watch");
+            thread.setDaemon(true);
+            thread.start();
+            log.debug("Watching {} for VM changes", instancesDirectory);
+        } catch (IOException e) {
+            log.warn("Cannot watch {}, cached VM status expires after the TTL only: {}", instancesDirectory, e.getMessage());
+        }
+    }
+
+    /**
+     * Stops watching the instances directory.
+     */
+    void close() throws IOException {
+        WatchService watcher = watchService;
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    private static void register(WatchService watcher, Path directory) throws IOException {
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    private void processEvents(WatchService watcher, Path instancesDirectory) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                log.debug("Stopped watching {}", instancesDirectory);
+                return;
+            }
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    invalidateAll();
+                    continue;
+                }
+                if (directory.equals(instancesDirectory)) {
+                    Path vm = instancesDirectory.resolve((Path) event.context());
+                    invalidate(vm.getFileName().toString());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(vm)) {
+                        try {
+                            register(watcher, vm);
+                        } catch (IOException e) {
+                            log.warn("Cannot watch {}: {}", vm, e.getMessage());
+                        }
+                    }
+                } else {
+                    invalidate(directory.getFileName().toString());
+                }
+            }
+            if (!key.reset() && directory.equals(instancesDirectory)) {
+                log.warn("Stopped watching {}, it is no longer accessible", instancesDirectory);
+                invalidateAll();
+                return;
+            }
+        }
+    }
+}
@@ -4,20 +4,32 @@
  */
 package com.intel.mtwilson.trustagent.ws.v2;
 
-import com.intel.mountwilson.common.TAException;
 import com.intel.mtwilson.launcher.ws.ext.V2;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
+import com.intel.mtwilson.trustagent.model.TrustagentCbor;
 import com.intel.mtwilson.trustagent.model.VMQuoteResponse;
 import com.intel.mtwilson.trustagent.model.VMAttestationRequest;
+import com.intel.mtwilson.trustagent.model.VMAttestationRequestCollection;
 import com.intel.mtwilson.trustagent.model.VMAttestationResponse;
-import com.intel.mtwilson.trustagent.vrtmclient.RPClient;
+import com.intel.mtwilson.trustagent.model.VMAttestationResponseCollection;
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.vrtmclient.AsyncRPClient;
 import java.io.File;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import java.io.IOException;
-import org.apache.commons.io.FileUtils;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Response;
 
 
 /**
@@ -35,62 +47,276 @@ public class Vrtm {
     private static final String measurementXMLFileName = "measurement.xml";
     private static final String trustPolicyFileName = "trustpolicy.xml";
     private static final String vmQuoteFileName = "signed_report.xml";
+    private static AsyncRPClient rpcoreClient;
+    
+    /**
+     * All vrtm requests share one client with a few persistent connections
+     * to rpcore. The request thread is released while rpcore works and the
+     * response is resumed when rpcore answers, so many VM status requests
+     * do not hold as many request threads.
+     */
+    private static synchronized AsyncRPClient getRpcoreClient() throws IOException {
+        if( rpcoreClient == null ) {
+            int connectTimeout = 5000, readTimeout = 30000, max = 8, pipelineDepth = 1, queueMax = 1000;
+            long idleTimeout = 60000, queueTimeout = 30000;
+            try {
+                TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+                connectTimeout = configuration.getVrtmConnectTimeout();
+                readTimeout = configuration.getVrtmReadTimeout();
+                max = configuration.getVrtmPoolMax();
+                pipelineDepth = configuration.getVrtmPipelineDepth();
+                idleTimeout = configuration.getVrtmPoolIdleTimeout();
+                queueMax = configuration.getVrtmQueueMax();
+                queueTimeout = configuration.getVrtmQueueTimeout();
+            }
+            catch(IOException e) {
+                log.warn("Cannot load vrtm configuration, using defaults: {}", e.getMessage());
+            }
+            rpcoreClient = new AsyncRPClient("127.0.0.1", 16005, connectTimeout, readTimeout, max, pipelineDepth, idleTimeout, queueMax, queueTimeout);
+        }
+        return rpcoreClient;
+    }
     
     @POST
     @Path("/status")
     @Produces({MediaType.APPLICATION_JSON,MediaType.APPLICATION_XML})
     @Consumes({MediaType.APPLICATION_JSON,MediaType.APPLICATION_XML})
-    public VMAttestationResponse getVMAttestationStatus(VMAttestationRequest vmAttestationRequest) throws TAException, IOException {
-        
-        String vmInstanceId = vmAttestationRequest.getVmInstanceId();
-        VMAttestationResponse vmAttestationResponse = new VMAttestationResponse();        
-
-        RPClient rpcInstance = new RPClient("127.0.0.1", 16005); // create instance of RPClient
-        boolean vmstatus = rpcInstance.getVmStatus(vmInstanceId);    // send tcBuffer to rpcore 
-        rpcInstance.close();   // close RPClient
-        
-        //set report
-        vmAttestationResponse.setVmInstanceId(vmInstanceId);
-        vmAttestationResponse.setTrustStatus(vmstatus);
+    public void getVMAttestationStatus(VMAttestationRequest vmAttestationRequest, @Suspended final AsyncResponse asyncResponse) {
         
-        return vmAttestationResponse;
+        final String vmInstanceId = vmAttestationRequest.getVmInstanceId();
+        VmStatusCache cache = VmStatusCache.getInstance();
+        Boolean cachedStatus = cache.get(vmInstanceId);
+        if (cachedStatus != null) {
+            asyncResponse.resume(statusResponse(vmInstanceId, cachedStatus));
+            return;
+        }
+        AsyncRPClient rpcInstance;
+        try {
+            rpcInstance = getRpcoreClient();
+        } catch (IOException e) {
+            asyncResponse.resume(e);
+            return;
+        }
+        rpcInstance.getVmStatus(vmInstanceId, cache.update(vmInstanceId, new CompletionHandler<Boolean, Void>() {
+            @Override
+            public void completed(Boolean vmstatus, Void attachment) {
+                //set report
+                asyncResponse.resume(statusResponse(vmInstanceId, vmstatus));
+            }
 
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                log.error("Error getting status of VM {}: {}", vmInstanceId, exc.getMessage());
+                asyncResponse.resume(exc);
+            }
+        }));
     }
 	
     @POST
     @Path("/report")
-    @Produces({MediaType.APPLICATION_JSON})
+    @Produces({MediaType.APPLICATION_JSON,TrustagentCbor.APPLICATION_CBOR})
     @Consumes({MediaType.APPLICATION_JSON,MediaType.APPLICATION_XML})
-    public VMQuoteResponse getVMAttestationReport(VMAttestationRequest vmAttestationRequest) {
+    public void getVMAttestationReport(VMAttestationRequest vmAttestationRequest, @Suspended final AsyncResponse asyncResponse) {
+        String vmInstanceId = vmAttestationRequest.getVmInstanceId();
+        String nonce = vmAttestationRequest.getNonce();
+        AsyncRPClient rpcInstance;
         try {
+            rpcInstance = getRpcoreClient();
+        } catch (IOException ex) {
+            log.error("Error during reading of VM quote information. {}", ex.getMessage());
+            asyncResponse.resume((Object) null);
+            return;
+        }
+        
+        // Call into the vRTM API and get the path information
+        rpcInstance.getVMAttestationReportPath(vmInstanceId, nonce, new CompletionHandler<String, Void>() {
+            @Override
+            public void completed(String instanceFolderPath, Void attachment) {
+                try {
+                    asyncResponse.resume(readReport(instanceFolderPath));
+                } catch (IOException ex) {
+                    log.error("Error during reading of VM quote information. {}", ex.getMessage());
+                    asyncResponse.resume((Object) null);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                log.error("Error during reading of VM quote information. {}", exc.getMessage());
+                //throw new WebApplicationException(ex);
+                asyncResponse.resume((Object) null);
+            }
+        });
+    }
+    
+    /**
+     * Gets the trust status of several VMs in one request. The rpcore calls
+     * run with at most vrtm.batch.parallelism of them in flight, and the
+     * request thread is released while they run. VMs whose status is cached
+     * are answered without a call.
+     * 
+     * Input is a vm_attestation_request_collection, output is a
+     * vm_attestation_response_collection with the VMs in request order. When
+     * the status of a VM cannot be determined its entry has trust_status
+     * false and an error_message, and the other entries are not affected.
+     * 
+     * @param vmAttestationRequests at least one and at most vrtm.batch.max VMs
+     * @param asyncResponse
+     * @throws IOException 
+     */
+    @POST
+    @Path("/statuses")
+    @Produces({MediaType.APPLICATION_JSON,MediaType.APPLICATION_XML})
+    @Consumes({MediaType.APPLICATION_JSON,MediaType.APPLICATION_XML})
+    public void getVMAttestationStatuses(VMAttestationRequestCollection vmAttestationRequests, @Suspended final AsyncResponse asyncResponse) throws IOException {
+        TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+        List<VMAttestationRequest> requests = checkBatch(vmAttestationRequests, configuration);
+        final VmStatusCache cache = VmStatusCache.getInstance();
+        final VMAttestationResponse[] responses = new VMAttestationResponse[requests.size()];
+        final List<VMAttestationRequest> uncached = new ArrayList<>();
+        final List<Integer> uncachedIndexes = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            String vmInstanceId = requests.get(i).getVmInstanceId();
+            Boolean cachedStatus = cache.get(vmInstanceId);
+            if (cachedStatus == null) {
+                uncached.add(requests.get(i));
+                uncachedIndexes.add(i);
+            } else {
+                responses[i] = statusResponse(vmInstanceId, cachedStatus);
+            }
+        }
+        if (uncached.isEmpty()) {
+            asyncResponse.resume(statusCollection(responses));
+            return;
+        }
+        final AsyncRPClient rpcInstance = getRpcoreClient();
+        final AtomicInteger remaining = new AtomicInteger(uncached.size());
+        new VrtmFanOut<Boolean>(uncached) {
+            @Override
+            protected void send(VMAttestationRequest request, CompletionHandler<Boolean, Void> handler) {
+                rpcInstance.getVmStatus(request.getVmInstanceId(), cache.update(request.getVmInstanceId(), handler));
+            }
+
+            @Override
+            protected void completed(int index, Boolean vmstatus) {
+                done(index, statusResponse(uncached.get(index).getVmInstanceId(), vmstatus));
+            }
+
+            @Override
+            protected void failed(int index, Throwable exc) {
+                String vmInstanceId = uncached.get(index).getVmInstanceId();
+                log.error("Error getting status of VM {}: {}", vmInstanceId, exc.getMessage());
+                VMAttestationResponse vmAttestationResponse = new VMAttestationResponse();
+                vmAttestationResponse.setVmInstanceId(vmInstanceId);
+                vmAttestationResponse.setTrustStatus(false);
+                vmAttestationResponse.setErrorMessage(errorMessage(exc));
+                done(index, vmAttestationResponse);
+            }
             
-            String vmInstanceId = vmAttestationRequest.getVmInstanceId();
-            String nonce = vmAttestationRequest.getNonce();
-            
-            // Call into the vRTM API and get the path information
-            RPClient rpcInstance = new RPClient("127.0.0.1", 16005);
-            String instanceFolderPath = rpcInstance.getVMAttestationReportPath(vmInstanceId, nonce);
-            rpcInstance.close();
-            
-            if (instanceFolderPath == null || instanceFolderPath.isEmpty()) {
-                String errorInfo = "Error during retrieval of the instance path. Please verify the input parameters.";
-                log.error (errorInfo);
-                return null;
-                //throw new WebApplicationException(Response.serverError().header("Error", errorInfo).build());
+            private void done(int index, VMAttestationResponse vmAttestationResponse) {
+                responses[uncachedIndexes.get(index)] = vmAttestationResponse;
+                if (remaining.decrementAndGet() == 0) {
+                    asyncResponse.resume(statusCollection(responses));
+                }
             }
-                
-            VMQuoteResponse vmQuoteResponse = new VMQuoteResponse();
-            vmQuoteResponse.setVmMeasurements(FileUtils.readFileToByteArray(new File(String.format("%s%s", instanceFolderPath, measurementXMLFileName))));
-            vmQuoteResponse.setVmTrustPolicy(FileUtils.readFileToByteArray(new File(String.format("%s%s", instanceFolderPath, trustPolicyFileName))));
-            vmQuoteResponse.setVmQuote(FileUtils.readFileToByteArray(new File(String.format("%s%s", instanceFolderPath, vmQuoteFileName))));
-            vmQuoteResponse.setVmQuoteType(VMQuoteResponse.QuoteType.XML_DSIG);
-            return vmQuoteResponse;
+        }.start(configuration.getVrtmBatchParallelism());
+    }
+    
+    /**
+     * Gets the attestation reports of several VMs in one request. The rpcore
+     * calls run with at most vrtm.batch.parallelism of them in flight, and
+     * each report is streamed to the client as soon as it is ready, so the
+     * response is in completion order and each entry has its
+     * vm_instance_id. An entry for a VM whose report cannot be read has an
+     * error_message instead of the report. Only json is produced.
+     * 
+     * @param vmAttestationRequests at least one and at most vrtm.batch.max VMs, each with a nonce
+     * @return a vm_quote_response_collection written as the reports complete
+     * @throws IOException 
+     */
+    @POST
+    @Path("/reports")
+    @Produces({MediaType.APPLICATION_JSON})
+    @Consumes({MediaType.APPLICATION_JSON,MediaType.APPLICATION_XML})
+    public VMQuoteReportStream getVMAttestationReports(VMAttestationRequestCollection vmAttestationRequests) throws IOException {
+        TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+        final List<VMAttestationRequest> requests = checkBatch(vmAttestationRequests, configuration);
+        final AsyncRPClient rpcInstance = getRpcoreClient();
+        final VMQuoteReportStream stream = new VMQuoteReportStream(requests.size());
+        new VrtmFanOut<String>(requests) {
+            @Override
+            protected void send(VMAttestationRequest request, CompletionHandler<String, Void> handler) {
+                rpcInstance.getVMAttestationReportPath(request.getVmInstanceId(), request.getNonce(), handler);
+            }
+
+            @Override
+            protected void completed(int index, String instanceFolderPath) {
+                String vmInstanceId = requests.get(index).getVmInstanceId();
+                try {
+                    stream.add(vmInstanceId, readReport(instanceFolderPath));
+                } catch (IOException ex) {
+                    log.error("Error during reading of VM quote information for {}. {}", vmInstanceId, ex.getMessage());
+                    stream.addError(vmInstanceId, ex.getMessage());
+                }
+            }
+
+            @Override
+            protected void failed(int index, Throwable exc) {
+                String vmInstanceId = requests.get(index).getVmInstanceId();
+                log.error("Error during reading of VM quote information for {}. {}", vmInstanceId, exc.getMessage());
+                stream.addError(vmInstanceId, errorMessage(exc));
+            }
+        }.start(configuration.getVrtmBatchParallelism());
+        return stream;
+    }
+    
+    private static List<VMAttestationRequest> checkBatch(VMAttestationRequestCollection vmAttestationRequests, TrustagentConfiguration configuration) {
+        List<VMAttestationRequest> requests = vmAttestationRequests == null ? Collections.<VMAttestationRequest>emptyList() : vmAttestationRequests.getVms();
+        if (requests.isEmpty() || requests.size() > configuration.getVrtmBatchMax()) {
+            log.debug("Batch of {} VM requests, maximum is {}", requests.size(), configuration.getVrtmBatchMax());
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).header("Error", "vrtm batch requires 1 to " + configuration.getVrtmBatchMax() + " VMs").build());
+        }
+        return requests;
+    }
+    
+    private static VMAttestationResponse statusResponse(String vmInstanceId, boolean vmstatus) {
+        VMAttestationResponse vmAttestationResponse = new VMAttestationResponse();
+        vmAttestationResponse.setVmInstanceId(vmInstanceId);
+        vmAttestationResponse.setTrustStatus(vmstatus);
+        return vmAttestationResponse;
+    }
+    
+    private static VMAttestationResponseCollection statusCollection(VMAttestationResponse[] responses) {
+        VMAttestationResponseCollection collection = new VMAttestationResponseCollection();
+        collection.getVms().addAll(Arrays.asList(responses));
+        return collection;
+    }
+    
+    private static String errorMessage(Throwable exc) {
+        return exc.getMessage() == null ? exc.getClass().getSimpleName() : exc.getMessage();
+    }
+    
+    /**
+     * 
+     * @param instanceFolderPath from vRTM
+     * @return the report files
+     * @throws IOException if the path is empty or the files cannot be read
+     */
+    private static VMQuoteReport readReport(String instanceFolderPath) throws IOException {
+        if (instanceFolderPath == null || instanceFolderPath.isEmpty()) {
+            throw new IOException("Error during retrieval of the instance path. Please verify the input parameters.");
+        }
             
-        } catch (IOException ex) {
-            log.error("Error during reading of VM quote information. {}", ex.getMessage());
-            //throw new WebApplicationException(ex);
+        // the files are copied to the response by VMQuoteReportMessageBodyWriter instead of being read into memory here
+        File vmMeasurements = new File(String.format("%s%s", instanceFolderPath, measurementXMLFileName));
+        File vmTrustPolicy = new File(String.format("%s%s", instanceFolderPath, trustPolicyFileName));
+        File vmQuote = new File(String.format("%s%s", instanceFolderPath, vmQuoteFileName));
+        for (File file : new File[] { vmMeasurements, vmTrustPolicy, vmQuote }) {
+            if (!file.isFile() || !file.canRead()) {
+                throw new IOException("Cannot read " + file.getAbsolutePath());
+            }
         }
-        return null;
+        return new VMQuoteReport(vmQuote, vmTrustPolicy, vmMeasurements, VMQuoteResponse.QuoteType.XML_DSIG);
     }	
 
 /*    @POST
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.trustagent.model.VMAttestationRequest;
+import java.nio.channels.CompletionHandler;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the rpcore calls for a batch of VMs with at most a fixed number of
+ * them in flight, so one large batch does not fill the rpcore connections
+ * and delay every other vrtm request. When a call completes the next one is
+ * sent. Each result is reported with the index of its request, so a failed
+ * call does not affect the others.
+ *
+ * A handler may be called before send returns, for example when the client
+ * rejects the call right away. The next call is then sent by the loop in
+ * sendNext instead of from the handler, so a batch of calls that all fail
+ * at once does not grow the stack.
+ */
+abstract class VrtmFanOut<T> {
+    private static final int SENDING = 0;
+    private static final int SENT = 1;
+    private static final int DONE_WHILE_SENDING = 2;
+    private final List<VMAttestationRequest> requests;
+    private final AtomicInteger next = new AtomicInteger();
+
+    VrtmFanOut(List<VMAttestationRequest> requests) {
+        this.requests = requests;
+    }
+
+    void start(int parallelism) {
+        int count = Math.min(Math.max(1, parallelism), requests.size());
+        for (int i = 0; i < count; i++) {
+            sendNext();
+        }
+    }
+
+    private void sendNext() {
+        while (true) {
+            int index = next.getAndIncrement();
+            if (index >= requests.size()) {
+                return;
+            }
+            Call call = new Call(index);
+            try {
+                send(requests.get(index), call);
+            } catch (RuntimeException e) {
+                // for example a request without vm_instance_id
+                call.failed(e, null);
+            }
+            if (call.state.compareAndSet(SENDING, SENT)) {
+                return; // the handler will send the next call
+            }
+        }
+    }
+
+    private class Call implements CompletionHandler<T, Void> {
+        private final int index;
+        private final AtomicInteger state = new AtomicInteger(SENDING);
+
+        private Call(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void completed(T result, Void attachment) {
+            try {
+                VrtmFanOut.this.completed(index, result);
+            } finally {
+                done();
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            try {
+                VrtmFanOut.this.failed(index, exc);
+            } finally {
+                done();
+            }
+        }
+
+        private void done() {
+            if (!state.compareAndSet(SENDING, DONE_WHILE_SENDING)) {
+                sendNext();
+            }
+        }
+    }
+
+    /**
+     * Starts the call for one request. The handler must be called exactly
+     * once.
+     */
+    protected abstract void send(VMAttestationRequest request, CompletionHandler<T, Void> handler);
+
+    protected abstract void completed(int index, T result);
+
+    protected abstract void failed(int index, Throwable exc);
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.common;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CommandGraphTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CommandGraphTest.class);
+
+    private static class SleepCmd implements ICommand {
+        private final String name;
+        private final long millis;
+        private final List<String> completed;
+
+        SleepCmd(String name, long millis, List<String> completed) {
+            this.name = name;
+            this.millis = millis;
+            this.completed = completed;
+        }
+
+        @Override
+        public void execute() throws TAException {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                throw new TAException(ErrorCode.ERROR, "interrupted", e);
+            }
+            completed.add(name);
+        }
+    }
+
+    @Test
+    public void testIndependentStagesRunConcurrently() throws TAException {
+        List<String> completed = new CopyOnWriteArrayList<>();
+        CommandGraph graph = new CommandGraph();
+        graph.add("a", new SleepCmd("a", 200, completed));
+        graph.add("b", new SleepCmd("b", 200, completed));
+        graph.add("c", new SleepCmd("c", 200, completed));
+        graph.add("d", new SleepCmd("d", 10, completed), "a", "b", "c");
+        long start = System.currentTimeMillis();
+        graph.execute();
+        long elapsed = System.currentTimeMillis() - start;
+        log.debug("elapsed {} ms timings {}", elapsed, graph.getTimings());
+        assertEquals(4, completed.size());
+        assertEquals("d", completed.get(3));
+        assertTrue(elapsed < 550);
+        assertEquals(4, graph.getTimings().size());
+    }
+
+    @Test
+    public void testFailureSkipsDependents() {
+        List<String> completed = new CopyOnWriteArrayList<>();
+        CommandGraph graph = new CommandGraph();
+        graph.add("fail", new ICommand() {
+            @Override
+            public void execute() throws TAException {
+                throw new TAException(ErrorCode.COMMAND_ERROR, "expected");
+            }
+        });
+        graph.add("independent", new SleepCmd("independent", 50, completed));
+        graph.add("dependent", new SleepCmd("dependent", 10, completed), "fail");
+        try {
+            graph.execute();
+            fail("expected TAException");
+        } catch (TAException e) {
+            assertEquals(ErrorCode.COMMAND_ERROR, e.getErrorCode());
+        }
+        assertFalse(completed.contains("dependent"));
+        assertFalse(graph.getTimings().containsKey("dependent"));
+    }
+
+    @Test
+    public void testTpmStagesUseTheirOwnExecutor() throws TAException {
+        // with one thread for each kind of stage, the tpm stage waiting for the other stage would deadlock a shared pool
+        final CountDownLatch released = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ExecutorService tpmExecutor = Executors.newSingleThreadExecutor();
+        try {
+            CommandGraph graph = new CommandGraph(executor, tpmExecutor);
+            graph.addTpm("tpm", new ICommand() {
+                @Override
+                public void execute() throws TAException {
+                    try {
+                        if (!released.await(5, TimeUnit.SECONDS)) {
+                            throw new TAException(ErrorCode.ERROR, "other stage did not run");
+                        }
+                    } catch (InterruptedException e) {
+                        throw new TAException(ErrorCode.ERROR, "interrupted", e);
+                    }
+                }
+            });
+            graph.add("other", new ICommand() {
+                @Override
+                public void execute() throws TAException {
+                    released.countDown();
+                }
+            });
+            graph.execute();
+        } finally {
+            executor.shutdown();
+            tpmExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void testInterruptWaitsForRunningStages() throws Exception {
+        final List<String> completed = new CopyOnWriteArrayList<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CommandGraph graph = new CommandGraph();
+        // ignores interrupts, like a command blocked in native code
+        graph.add("uninterruptible", new ICommand() {
+            @Override
+            public void execute() throws TAException {
+                started.countDown();
+                long end = System.currentTimeMillis() + 300;
+                while (System.currentTimeMillis() < end) {
+                    Thread.yield();
+                }
+                completed.add("uninterruptible");
+            }
+        });
+        graph.add("interruptible", new SleepCmd("interruptible", 10000, completed));
+        graph.add("dependent", new SleepCmd("dependent", 10, completed), "uninterruptible");
+        final List<String> completedWhenReturned = new CopyOnWriteArrayList<>();
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    graph.execute();
+                } catch (TAException e) {
+                    completedWhenReturned.addAll(completed);
+                    completedWhenReturned.add(Thread.currentThread().isInterrupted() ? "interrupted" : "not interrupted");
+                }
+            }
+        });
+        caller.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        long start = System.currentTimeMillis();
+        caller.interrupt();
+        caller.join(5000);
+        log.debug("execute returned {} ms after interrupt", System.currentTimeMillis() - start);
+        assertEquals(Arrays.asList("uninterruptible", "interrupted"), completedWhenReturned);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertFalse(graph.getTimings().containsKey("dependent"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownDependency() {
+        new CommandGraph().add("a", new SleepCmd("a", 0, Collections.<String>emptyList()), "missing");
+    }
+}
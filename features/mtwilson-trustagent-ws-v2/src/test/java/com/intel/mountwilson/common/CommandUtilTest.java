@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.common;
+
+import java.io.File;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * These tests use env, so they only run where /usr/bin/env is available.
+ */
+public class CommandUtilTest {
+
+    @Test
+    public void testEnvironmentIsAddedToInheritedEnvironment() throws Exception {
+        Assume.assumeTrue(new File("/usr/bin/env").canExecute());
+        Assume.assumeNotNull(System.getenv("PATH"));
+        CommandResult result = CommandUtil.runCommand("/usr/bin/env", new String[] { "COMMAND_UTIL_TEST=a=b" });
+        assertEquals(0, result.getExitcode());
+        assertTrue(result.getStdout().contains("COMMAND_UTIL_TEST=a=b\n"));
+        assertTrue(result.getStdout().contains("PATH=" + System.getenv("PATH") + "\n"));
+    }
+
+    @Test
+    public void testArgumentsAreSplitOnWhitespace() throws Exception {
+        Assume.assumeTrue(new File("/usr/bin/env").canExecute());
+        CommandResult result = CommandUtil.runCommand("/usr/bin/env  COMMAND_UTIL_TEST=1\tCOMMAND_UTIL_OTHER=2");
+        assertTrue(result.getStdout().contains("COMMAND_UTIL_TEST=1\n"));
+        assertTrue(result.getStdout().contains("COMMAND_UTIL_OTHER=2\n"));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures building the quote event log from a measureLog.xml written one
+ * element per line like the script output, with 10,000 modules (about 2 MB)
+ * and 50,000 modules (about 10 MB):
+ * - pattern reads the file and applies the original regular expressions,
+ *   which is what every quote used to do
+ * - extract reads the file and uses the single pass search
+ * - cached returns the encoded event log kept in memory after checking the
+ *   file attributes, which is what a quote costs now
+ *
+ * Run after mvn test-compile with:
+ * java -cp target/test-classes:target/classes:(test classpath) com.intel.mountwilson.trustagent.commands.MeasureLogModulesBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MeasureLogModulesBenchmark {
+    @Param({"10000", "50000"})
+    public int moduleCount;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void createMeasureLog() throws IOException {
+        file = File.createTempFile("measureLog", ".xml");
+        FileUtils.writeStringToFile(file, MeasureLogModulesTest.createMeasureLog(moduleCount), "UTF-8");
+        MeasureLogModules.getEncodedModules(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteMeasureLog() {
+        file.delete();
+    }
+
+    @Benchmark
+    public String pattern() throws IOException {
+        return MeasureLogModules.encode(MeasureLogModules.extractModulesWithPattern(FileUtils.readFileToString(file, "UTF-8")));
+    }
+
+    @Benchmark
+    public String extract() throws IOException {
+        return MeasureLogModules.encode(MeasureLogModules.extractModules(file));
+    }
+
+    @Benchmark
+    public String cached() throws IOException {
+        return MeasureLogModules.getEncodedModules(file);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(MeasureLogModulesBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
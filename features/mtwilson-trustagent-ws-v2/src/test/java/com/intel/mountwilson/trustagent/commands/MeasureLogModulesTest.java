@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MeasureLogModulesTest {
+
+    /**
+     * measureLog.xml as written by module_analysis.sh on a TPM 1.2 host,
+     * one element per line.
+     */
+    private String scriptOutput() throws IOException {
+        return IOUtils.toString(getClass().getResourceAsStream("/measureLog.xml"), "UTF-8");
+    }
+
+    static String createMeasureLog(int moduleCount) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<measureLog>\n  <txt>\n    <txtStatus>3</txtStatus>\n    <modules>\n");
+        for (int i = 0; i < moduleCount; i++) {
+            xml.append("      <module>\n");
+            xml.append("        <pcrBank>SHA256</pcrBank>\n");
+            xml.append("        <pcrNumber>").append(17 + (i % 3)).append("</pcrNumber>\n");
+            xml.append("        <name>module_").append(i).append("</name>\n");
+            xml.append("        <value>").append(String.format("%064x", i)).append("</value>\n");
+            xml.append("      </module>\n");
+        }
+        xml.append("    </modules>\n  </txt>\n</measureLog>\n");
+        return xml.toString();
+    }
+
+    /**
+     * The script writes the modules element over several lines, so the
+     * whole document is sent without the whitespace between tags.
+     */
+    @Test
+    public void testScriptOutput() throws IOException {
+        String xml = scriptOutput();
+        String eventLog = MeasureLogModules.extractModules(xml);
+        assertEquals(MeasureLogModules.extractModulesWithPattern(xml), eventLog);
+        assertTrue(eventLog.startsWith("<measureLog><txt><txtStatus>2</txtStatus><osSinitDataCapabilities>"));
+        assertTrue(eventLog.contains("<modules><module><pcrNumber>17</pcrNumber><name>tb_policy</name>"));
+        assertTrue(eventLog.endsWith("</modules></txt></measureLog>\n"));
+    }
+
+    @Test
+    public void testWindowsMeasurement() {
+        String content = "<measureLog><txt><modules><module><pcrBank>SHA1</pcrBank><pcrNumber>14</pcrNumber><name>tbootxm</name><value>abc</value></module></modules></txt></measureLog>";
+        assertEquals("<modules><module><pcrBank>SHA1</pcrBank><pcrNumber>14</pcrNumber><name>tbootxm</name><value>abc</value></module></modules>", MeasureLogModules.extractModules(content));
+        assertEquals(MeasureLogModules.extractModulesWithPattern(content), MeasureLogModules.extractModules(content));
+    }
+
+    @Test
+    public void testSameResultAsPattern() {
+        String[] inputs = new String[]{
+            "",
+            "no tags at all",
+            "<a> \t<b>x</b>  y <c/>\r\n<d>",
+            "<modules></modules>",
+            "<modules>\n</modules>",
+            "<modules>a</modules> <modules>b</modules>\n<modules>c</modules>",
+            "<modules>a</modules>\n<modules>b\r</modules>",
+            "x</modules><modules>y",
+            "<modules>a\u2028</modules><modules>b</modules>",
+            "garbage <modules><module><name>a</name></module></modules> <unclosed>",
+            "<a>\u000B\f<b>  </b>>  <"
+        };
+        for (String input : inputs) {
+            assertEquals(input, MeasureLogModules.extractModulesWithPattern(input), MeasureLogModules.extractModules(input));
+        }
+        String large = createMeasureLog(1000);
+        assertEquals(MeasureLogModules.extractModulesWithPattern(large), MeasureLogModules.extractModules(large));
+    }
+
+    @Test
+    public void testCacheFollowsFile() throws IOException {
+        File file = File.createTempFile("measureLog", ".xml");
+        try {
+            FileUtils.writeStringToFile(file, createMeasureLog(2), "UTF-8");
+            String first = MeasureLogModules.getEncodedModules(file);
+            assertSame(first, MeasureLogModules.getEncodedModules(file));
+            FileUtils.writeStringToFile(file, createMeasureLog(3), "UTF-8");
+            String second = MeasureLogModules.getEncodedModules(file);
+            assertFalse(first.equals(second));
+            assertTrue(new String(Base64.decodeBase64(second), "UTF-8").contains("<name>module_2</name>"));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.eventlog;
+
+import com.intel.mountwilson.trustagent.commands.MeasureLogModules;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Builds small event logs in both formats and checks the measure log
+ * written from them.
+ *
+ * The tboot-1.7 and tboot-1.8 resources in eventlog are the txt-stat
+ * output of a legacy TPM 1.2 launch with each tboot version, the binary
+ * event log with the same events, and the measureLog.xml module_analysis.sh
+ * writes from the txt-stat output with a measurement.bin containing
+ * {@code <measurements/>}.
+ */
+public class MeasureLogGeneratorTest {
+
+    /**
+     *
+     * @param txtStat the txt-stat output the generator reads instead of running txt-stat, or null
+     */
+    private static MeasureLogGenerator generator(File tcbMeasurementBin, File tcbMeasurementSha256, final String txtStat) {
+        return new MeasureLogGenerator(tcbMeasurementBin, tcbMeasurementSha256) {
+            @Override
+            String readTxtStat() {
+                return txtStat;
+            }
+        };
+    }
+
+    private static String resource(String name) throws IOException {
+        return IOUtils.toString(MeasureLogGeneratorTest.class.getResourceAsStream("/eventlog/" + name), "UTF-8");
+    }
+
+    static byte[] digest(int size, int fill) {
+        byte[] digest = new byte[size];
+        Arrays.fill(digest, (byte) fill);
+        return digest;
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** TCG_PCR_EVENT with a SHA1 digest */
+    static void sha1Event(ByteArrayOutputStream log, int pcr, int type, byte[] digest, byte[] data) {
+        ByteBuffer event = buffer(32 + data.length);
+        event.putInt(pcr).putInt(type).put(digest).putInt(data.length).put(data);
+        log.write(event.array(), 0, event.position());
+    }
+
+    /** TCG_PCR_EVENT2 with a SHA1 and a SHA256 digest */
+    static void agileEvent(ByteArrayOutputStream log, int pcr, int type, int fill, byte[] data) {
+        ByteBuffer event = buffer(4 + 4 + 4 + 2 + 20 + 2 + 32 + 4 + data.length);
+        event.putInt(pcr).putInt(type).putInt(2);
+        event.putShort((short) TcgEvent.TPM_ALG_SHA1).put(digest(20, fill));
+        event.putShort((short) TcgEvent.TPM_ALG_SHA256).put(digest(32, fill));
+        event.putInt(data.length).put(data);
+        log.write(event.array(), 0, event.position());
+    }
+
+    private static byte[] specIdEvent() throws IOException {
+        ByteBuffer data = buffer(64);
+        data.put("Spec ID Event03\0".getBytes("US-ASCII"));
+        data.putInt(0).put((byte) 0).put((byte) 2).put((byte) 0).put((byte) 2);
+        data.putInt(2);
+        data.putShort((short) TcgEvent.TPM_ALG_SHA1).putShort((short) 20);
+        data.putShort((short) TcgEvent.TPM_ALG_SHA256).putShort((short) 32);
+        data.put((byte) 0);
+        return Arrays.copyOf(data.array(), data.position());
+    }
+
+    private static byte[] pcrMapping(int mapping) {
+        return buffer(4).putInt(mapping).array();
+    }
+
+    static ByteArrayOutputStream agileLog() throws IOException {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        sha1Event(log, 0, TcgEvent.EV_NO_ACTION, new byte[20], specIdEvent());
+        agileEvent(log, 0, 0x8, 0x01, "CRTM version".getBytes("UTF-8")); // EV_S_CRTM_VERSION is not a TXT event
+        agileEvent(log, 17, 0x401, 0x02, pcrMapping(1));
+        agileEvent(log, 17, 0x402, 0x03, new byte[0]);
+        agileEvent(log, 255, 0x4ff, 0x04, new byte[0]);
+        agileEvent(log, 17, 0x501, 0x05, new byte[0]);
+        agileEvent(log, 17, 0x501, 0x06, new byte[0]);
+        agileEvent(log, 18, 0x501, 0x07, new byte[0]);
+        return log;
+    }
+
+    @Test
+    public void testReadCryptoAgileLog() throws Exception {
+        TcgEventLogReader reader = new TcgEventLogReader(new ByteArrayInputStream(agileLog().toByteArray()));
+        TcgEvent specId = reader.next();
+        assertEquals(TcgEvent.EV_NO_ACTION, specId.getEventType());
+        assertTrue(reader.isCryptoAgile());
+        TcgEvent crtm = reader.next();
+        assertEquals(1, crtm.getSequence());
+        assertEquals(32 + specId.getEventData().length, crtm.getOffset());
+        assertEquals("0101010101010101010101010101010101010101", crtm.getDigestHex(TcgEvent.TPM_ALG_SHA1));
+        assertEquals(32, crtm.getDigest(TcgEvent.TPM_ALG_SHA256).length);
+        int count = 2;
+        while (reader.next() != null) {
+            count++;
+        }
+        assertEquals(8, count);
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncatedEvent() throws Exception {
+        byte[] log = agileLog().toByteArray();
+        TcgEventLogReader reader = new TcgEventLogReader(new ByteArrayInputStream(Arrays.copyOf(log, log.length - 10)));
+        while (reader.next() != null) {
+        }
+    }
+
+    @Test
+    public void testDetailsAndAuthoritiesMapping() throws Exception {
+        File sha256 = File.createTempFile("measurement", ".sha256");
+        try {
+            Files.write(sha256.toPath(), "ab01\n".getBytes("UTF-8"));
+            String xml = new MeasureLogGenerator(null, sha256).generate(new ByteArrayInputStream(agileLog().toByteArray()));
+            assertTrue(xml.contains("<txtStatus>3</txtStatus>"));
+            String eventLog = MeasureLogModules.extractModules(xml);
+            String sha1 = "<pcrBank>SHA1</pcrBank><pcrNumber>17</pcrNumber>";
+            String sha256Bank = "<pcrBank>SHA256</pcrBank><pcrNumber>17</pcrNumber>";
+            assertEquals("<measureLog><txt><txtStatus>3</txtStatus><modules>"
+                    + "<module>" + sha1 + "<name>PCR_MAPPING</name><value>0202020202020202020202020202020202020202</value></module>"
+                    + "<module>" + sha1 + "<name>HASH_START</name><value>0303030303030303030303030303030303030303</value></module>"
+                    + "<module>" + sha256Bank + "<name>PCR_MAPPING</name><value>" + hex(32, "02") + "</value></module>"
+                    + "<module>" + sha256Bank + "<name>HASH_START</name><value>" + hex(32, "03") + "</value></module>"
+                    + "<module>" + sha1 + "<name>tb_policy</name><value>" + hex(20, "05") + "</value></module>"
+                    + "<module>" + sha256Bank + "<name>tb_policy</name><value>" + hex(32, "05") + "</value></module>"
+                    + "<module>" + sha1 + "<name>tb_policy</name><value>" + hex(20, "06") + "</value></module>"
+                    + "<module>" + sha256Bank + "<name>tb_policy</name><value>" + hex(32, "06") + "</value></module>"
+                    + "<module><pcrBank>SHA1</pcrBank><pcrNumber>18</pcrNumber><name>vmlinuz</name><value>" + hex(20, "07") + "</value></module>"
+                    + "<module><pcrBank>SHA256</pcrBank><pcrNumber>18</pcrNumber><name>vmlinuz</name><value>" + hex(32, "07") + "</value></module>"
+                    + "<module><pcrBank>SHA256</pcrBank><pcrNumber>19</pcrNumber><name>tbootxm</name><value>ab01</value></module>"
+                    + "</modules></txt></measureLog>\n", eventLog);
+        } finally {
+            sha256.delete();
+        }
+    }
+
+    @Test
+    public void testLegacyMapping() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        sha1Event(log, 0, 0x8, digest(20, 0x01), new byte[0]);
+        sha1Event(log, 17, 0x401, digest(20, 0x02), pcrMapping(0));
+        sha1Event(log, 17, 0x402, digest(20, 0x03), new byte[0]);
+        // biosAcmId, msegValid, stmHash, policyControl with the second bit set, lcpPolicyHash, osSinitDataCapabilities, processorSCRTMStatus
+        ByteBuffer combined = buffer(80);
+        combined.put(digest(20, 0x11)).put(digest(8, 0x00)).put(digest(20, 0x22)).putInt(0x10000000).put(digest(20, 0x33)).putInt(0x44444444).putInt(0x01000000);
+        sha1Event(log, 17, 0x403, digest(20, 0x04), combined.array());
+        sha1Event(log, 18, 0x404, digest(20, 0x05), new byte[0]);
+        sha1Event(log, 17, 0x501, digest(20, 0x06), new byte[0]);
+        sha1Event(log, 18, 0x501, digest(20, 0x07), new byte[0]);
+        sha1Event(log, 19, 0x501, digest(20, 0x08), new byte[0]);
+        File bin = File.createTempFile("measurement", ".bin");
+        try {
+            Files.write(bin.toPath(), "<measurements/>".getBytes("UTF-8"));
+            String xml = generator(bin, null, null).generate(new ByteArrayInputStream(log.toByteArray()));
+            assertTrue(xml.contains("    <txtStatus>2</txtStatus>\n"));
+            assertTrue(xml.contains("<version></version>"));
+            assertTrue(xml.contains("<edxSenterFlags></edxSenterFlags>"));
+            assertTrue(xml.contains("<osSinitDataCapabilities>44444444</osSinitDataCapabilities>"));
+            assertTrue(xml.contains("<sinitHash>" + hex(20, "03") + "</sinitHash>"));
+            assertTrue(xml.contains("<mleHash>" + hex(20, "05") + "</mleHash>"));
+            assertTrue(xml.contains("<biosAcmId>" + hex(20, "11") + "</biosAcmId>"));
+            assertTrue(xml.contains("<policyControl>00000010</policyControl>"));
+            assertTrue(xml.contains("<lcpPolicyHash>" + hex(20, "33") + "</lcpPolicyHash>"));
+            assertTrue(MeasureLogModules.extractModules(xml).endsWith("<modules>"
+                    + "<module><pcrNumber>17</pcrNumber><name>tb_policy</name><value>" + hex(20, "06") + "</value></module>"
+                    + "<module><pcrNumber>18</pcrNumber><name>vmlinuz</name><value>" + hex(20, "07") + "</value></module>"
+                    + "<module><pcrNumber>19</pcrNumber><name>initrd</name><value>" + hex(20, "08") + "</value></module>"
+                    // sha1 of <measurements/>
+                    + "<module><pcrNumber>19</pcrNumber><name>tbootxm</name><value>" + DigestUtils.sha1Hex("<measurements/>") + "</value></module>"
+                    + "</modules></txt></measureLog>\n"));
+        } finally {
+            bin.delete();
+        }
+    }
+
+    private void assertSameAsScript(String tboot) throws Exception {
+        File bin = File.createTempFile("measurement", ".bin");
+        try (InputStream eventLog = getClass().getResourceAsStream("/eventlog/" + tboot + "-binary_bios_measurements")) {
+            Files.write(bin.toPath(), "<measurements/>".getBytes("UTF-8"));
+            String xml = generator(bin, null, resource(tboot + "-txt-stat.txt")).generate(eventLog);
+            assertEquals(resource(tboot + "-measureLog.xml"), xml);
+        } finally {
+            bin.delete();
+        }
+    }
+
+    @Test
+    public void testSameAsScriptForTboot17() throws Exception {
+        assertSameAsScript("tboot-1.7");
+    }
+
+    @Test
+    public void testSameAsScriptForTboot18() throws Exception {
+        assertSameAsScript("tboot-1.8");
+    }
+
+    @Test
+    public void testSinitMleData() throws Exception {
+        String txtStat = resource("tboot-1.8-txt-stat.txt");
+        assertEquals("9", MeasureLogGenerator.sinitMleData(txtStat, "version"));
+        assertEquals("0x00000020", MeasureLogGenerator.sinitMleData(txtStat, "edx_senter_flags"));
+        assertEquals("", MeasureLogGenerator.sinitMleData(txtStat, "missing"));
+        assertEquals("", MeasureLogGenerator.sinitMleData(null, "version"));
+    }
+
+    @Test
+    public void testNoTxtEvents() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        sha1Event(log, 0, 0x8, digest(20, 0x01), new byte[0]);
+        sha1Event(log, 4, 0x80000003, digest(20, 0x02), "bootx64.efi".getBytes("UTF-8"));
+        assertNull(new MeasureLogGenerator(null, null).generate(new ByteArrayInputStream(log.toByteArray())));
+        assertTrue(MeasureLogGenerator.notMeasured().contains("<txtStatus>0</txtStatus>"));
+    }
+
+    private static String hex(int size, String fill) {
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            hex.append(fill);
+        }
+        return hex.toString();
+    }
+}
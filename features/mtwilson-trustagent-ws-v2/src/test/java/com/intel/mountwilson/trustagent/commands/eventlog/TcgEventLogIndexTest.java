@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.eventlog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Appends to an event log file between refreshes and checks the index and
+ * its running PCR digests.
+ */
+public class TcgEventLogIndexTest {
+
+    private static byte[] extend(String algorithm, byte[] value, byte[] digest) throws Exception {
+        MessageDigest hash = MessageDigest.getInstance(algorithm);
+        hash.update(value);
+        hash.update(digest);
+        return hash.digest();
+    }
+
+    @Test
+    public void testAppendedEvents() throws Exception {
+        byte[] log = MeasureLogGeneratorTest.agileLog().toByteArray();
+        File file = File.createTempFile("binary_bios_measurements", null);
+        try {
+            // the kernel is still writing the last event
+            Files.write(file.toPath(), Arrays.copyOf(log, log.length - 10));
+            TcgEventLogIndex index = new TcgEventLogIndex(file);
+            assertEquals(7, index.refresh());
+            assertEquals(0, index.refresh());
+            long lastOffset = index.getNextOffset();
+            ByteArrayOutputStream appended = new ByteArrayOutputStream();
+            appended.write(log, log.length - 10, 10);
+            MeasureLogGeneratorTest.agileEvent(appended, 17, 0x501, 0x08, new byte[0]);
+            Files.write(file.toPath(), appended.toByteArray(), StandardOpenOption.APPEND);
+            assertEquals(2, index.refresh());
+            assertEquals(9, index.size());
+            assertEquals(7, index.sequenceAt(lastOffset));
+            assertEquals(-1, index.sequenceAt(lastOffset + 1));
+            assertEquals(9, index.sequenceAt(index.getNextOffset()));
+            assertEquals(8, index.getEvents(8).get(0).getSequence());
+
+            // pcr 17 was extended by the events with fill 02, 03, 05, 06 and 08
+            byte[] pcr17 = new byte[32];
+            for (int fill : new int[] { 0x02, 0x03, 0x05, 0x06 }) {
+                pcr17 = extend("SHA-256", pcr17, MeasureLogGeneratorTest.digest(32, fill));
+            }
+            assertArrayEquals(pcr17, index.runningDigests(8).get(17).get(TcgEvent.TPM_ALG_SHA256));
+            pcr17 = extend("SHA-256", pcr17, MeasureLogGeneratorTest.digest(32, 0x08));
+            Map<Integer, Map<Integer, byte[]>> pcrs = index.runningDigests(9);
+            assertArrayEquals(pcr17, pcrs.get(17).get(TcgEvent.TPM_ALG_SHA256));
+            assertEquals(20, pcrs.get(17).get(TcgEvent.TPM_ALG_SHA1).length);
+            assertArrayEquals(new Integer[] { 0, 17, 18, 255 }, pcrs.keySet().toArray(new Integer[0]));
+            assertArrayEquals(new Integer[] { 0 }, index.runningDigests(2).keySet().toArray(new Integer[0]));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRunningDigestsAcrossCheckpoints() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        MeasureLogGeneratorTest.sha1Event(log, 0, TcgEvent.EV_NO_ACTION, new byte[20], "StartupLocality\0\3".getBytes("US-ASCII"));
+        for (int i = 1; i < 600; i++) {
+            MeasureLogGeneratorTest.sha1Event(log, i % 3, 0xd, MeasureLogGeneratorTest.digest(20, i), new byte[0]);
+        }
+        File file = File.createTempFile("binary_bios_measurements", null);
+        try {
+            Files.write(file.toPath(), log.toByteArray());
+            TcgEventLogIndex index = new TcgEventLogIndex(file);
+            assertEquals(600, index.refresh());
+            Map<Integer, byte[]> expected = new HashMap<>();
+            byte[] startup = new byte[20];
+            startup[19] = 3;
+            expected.put(0, startup);
+            expected.put(1, new byte[20]);
+            expected.put(2, new byte[20]);
+            for (int i = 1; i < 600; i++) {
+                expected.put(i % 3, extend("SHA-1", expected.get(i % 3), MeasureLogGeneratorTest.digest(20, i)));
+                if (i == 1 || i == 255 || i == 256 || i == 257 || i == 512 || i == 599) {
+                    Map<Integer, Map<Integer, byte[]>> pcrs = index.runningDigests(i + 1);
+                    for (int pcr = 0; pcr <= Math.min(i, 2); pcr++) {
+                        if (pcr == 0 && i < 3) {
+                            continue;
+                        }
+                        assertArrayEquals("pcr " + pcr + " after event " + i, expected.get(pcr), pcrs.get(pcr).get(TcgEvent.TPM_ALG_SHA1));
+                    }
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
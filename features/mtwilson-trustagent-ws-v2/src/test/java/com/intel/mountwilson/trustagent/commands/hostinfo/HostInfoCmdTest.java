@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.hostinfo;
+
+import com.intel.mountwilson.trustagent.data.TADataContext;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HostInfoCmdTest {
+    private static final String CPUINFO = "processor\t: 0\n"
+            + "vendor_id\t: GenuineIntel\n"
+            + "cpu family\t: 6\n"
+            + "model\t\t: 44\n"
+            + "model name\t: Intel(R) Xeon(R) CPU           X5670  @ 2.93GHz\n"
+            + "stepping\t: 2\n"
+            + "flags\t\t: fpu vme de pse tsc msr pae mce cx8 apic sep mtrr pge mca cmov pat pse36 clflush dts acpi mmx fxsr sse sse2 ss ht tm pbe syscall nx lm\n"
+            + "\n"
+            + "processor\t: 1\n"
+            + "cpu family\t: 15\n";
+
+    @Test
+    public void testProcessorIdFromCpuinfo() {
+        // same as dmidecode on this processor: ID: C2 06 02 00 FF FB EB BF
+        assertEquals(" C2 06 02 00 FF FB EB BF", HostInfoCmd.processorIdFromCpuinfo(CPUINFO));
+        assertEquals(HostInfoCmd.parseProcessorId("Processor Information\n\tID: C2 06 02 00 FF FB EB BF\n"), HostInfoCmd.processorIdFromCpuinfo(CPUINFO));
+        assertNull(HostInfoCmd.processorIdFromCpuinfo("processor\t: 0\nBogoMIPS\t: 100.00\nFeatures\t: fp asimd\n"));
+    }
+
+    @Test
+    public void testParseOsRelease() {
+        Map<String, String> properties = HostInfoCmd.parseOsRelease("NAME=\"Red Hat Enterprise Linux Server\"\n# comment\nID=rhel\nVERSION_ID='7.3'\n");
+        assertEquals("Red Hat Enterprise Linux Server", properties.get("NAME"));
+        assertEquals("rhel", properties.get("ID"));
+        assertEquals("7.3", properties.get("VERSION_ID"));
+    }
+
+    @Test
+    public void testParseVmmVersion() {
+        assertArrayEquals(new String[] { "Docker", "1.9.1" }, HostInfoCmd.parseDockerVersion("Docker version 1.9.1, build a34a1d5\n"));
+        assertNull(HostInfoCmd.parseDockerVersion("bash: docker: command not found\n"));
+        assertArrayEquals(new String[] { "QEMU", "0.14.1" }, HostInfoCmd.parseVirshVersion("Compiled against library: libvir 0.9.2\nUsing library: libvir 0.9.2\nUsing API: QEMU 0.9.2\nRunning hypervisor: QEMU 0.14.1\n"));
+        assertNull(HostInfoCmd.parseVirshVersion(""));
+    }
+
+    @Test
+    public void testExecuteWithCachedSystemInfo() throws Exception {
+        File root = createTempDirectory();
+        File systemInfo = new File(root, "system-info");
+        try {
+            write(systemInfo, "lsb_release", "No LSB modules are available.\nDistributor ID:\tUbuntu\nDescription:\tUbuntu 16.04.2 LTS\nRelease:\t16.04\nCodename:\txenial\n");
+            write(systemInfo, "dmidecode.bios-vendor", "# SMBIOS entry point at 0x000f0000\nIntel Corp.\n");
+            write(systemInfo, "dmidecode.bios-version", "S5500.86B.01.00.0060.090920111354\n");
+            write(systemInfo, "dmidecode.system-uuid", "4235D571-8542-FFD3-5BFE-6D9DAC874C84\n");
+            write(systemInfo, "dmidecode.processor", "Processor Information\n\tSocket Designation: CPU1\n\tID: C2 06 02 00 FF FB EB BF\n");
+            write(systemInfo, "docker.version", "bash: docker: command not found\n");
+            write(systemInfo, "virsh.version", "");
+            TADataContext context = new TADataContext();
+            new HostInfoCmd(context, root, systemInfo, 1000).execute();
+            assertEquals("Ubuntu", context.getOsName());
+            assertEquals("16.04", context.getOsVersion());
+            assertEquals("Intel Corp.", context.getBiosOem());
+            assertEquals("S5500.86B.01.00.0060.090920111354", context.getBiosVersion());
+            assertEquals("4235D571-8542-FFD3-5BFE-6D9DAC874C84", context.getHostUUID());
+            assertEquals(" C2 06 02 00 FF FB EB BF", context.getProcessorInfo());
+            assertEquals("Host_No_VMM", context.getVmmName());
+            assertEquals("0.0", context.getVmmVersion());
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testExecuteWithSystemFiles() throws Exception {
+        File root = createTempDirectory();
+        File systemInfo = new File(root, "system-info");
+        try {
+            write(new File(root, "etc"), "os-release", "NAME=\"Ubuntu\"\nVERSION=\"16.04.2 LTS (Xenial Xerus)\"\nVERSION_ID=\"16.04\"\n");
+            write(new File(root, "sys/class/dmi/id"), "bios_vendor", "Intel Corp.\n");
+            write(new File(root, "sys/class/dmi/id"), "bios_version", "S5500.86B.01.00.0060.090920111354\n");
+            write(new File(root, "sys/class/dmi/id"), "product_uuid", "4235d571-8542-ffd3-5bfe-6d9dac874c84\n");
+            write(new File(root, "proc"), "cpuinfo", CPUINFO);
+            write(systemInfo, "docker.version", "Docker version 1.9.1, build a34a1d5\n");
+            TADataContext context = new TADataContext();
+            new HostInfoCmd(context, root, systemInfo, 1000).execute();
+            assertEquals("Ubuntu", context.getOsName());
+            assertEquals("16.04", context.getOsVersion());
+            assertEquals("Intel Corp.", context.getBiosOem());
+            assertEquals("4235D571-8542-FFD3-5BFE-6D9DAC874C84", context.getHostUUID());
+            assertEquals(" C2 06 02 00 FF FB EB BF", context.getProcessorInfo());
+            assertEquals("Docker", context.getVmmName());
+            assertEquals("1.9.1", context.getVmmVersion());
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testExecuteWithEmptySystemInfo() throws Exception {
+        File root = createTempDirectory();
+        File systemInfo = new File(root, "system-info");
+        try {
+            // tagent update-system-info creates every file even when the command fails
+            write(systemInfo, "lsb_release", "No LSB modules are available.\n");
+            write(systemInfo, "dmidecode.bios-vendor", "");
+            write(systemInfo, "dmidecode.bios-version", "");
+            write(systemInfo, "dmidecode.system-uuid", "");
+            write(systemInfo, "dmidecode.processor", "");
+            write(systemInfo, "docker.version", "");
+            write(systemInfo, "virsh.version", "");
+            write(new File(root, "etc"), "os-release", "NAME=\"Ubuntu\"\nVERSION_ID=\"16.04\"\n");
+            write(new File(root, "sys/class/dmi/id"), "bios_vendor", "Intel Corp.\n");
+            write(new File(root, "sys/class/dmi/id"), "bios_version", "S5500.86B.01.00.0060.090920111354\n");
+            write(new File(root, "sys/class/dmi/id"), "product_uuid", "4235d571-8542-ffd3-5bfe-6d9dac874c84\n");
+            write(new File(root, "proc"), "cpuinfo", CPUINFO);
+            TADataContext context = new TADataContext();
+            new HostInfoCmd(context, root, systemInfo, 1000).execute();
+            assertEquals("Ubuntu", context.getOsName());
+            assertEquals("16.04", context.getOsVersion());
+            assertEquals("Intel Corp.", context.getBiosOem());
+            assertEquals("S5500.86B.01.00.0060.090920111354", context.getBiosVersion());
+            assertEquals("4235D571-8542-FFD3-5BFE-6D9DAC874C84", context.getHostUUID());
+            assertEquals(" C2 06 02 00 FF FB EB BF", context.getProcessorInfo());
+            assertEquals("Host_No_VMM", context.getVmmName());
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    private File createTempDirectory() throws IOException {
+        File directory = File.createTempFile("hostinfo", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Cannot create " + directory.getAbsolutePath());
+        }
+        return directory;
+    }
+
+    private void write(File directory, String name, String content) throws IOException {
+        FileUtils.writeStringToFile(new File(directory, name), content, "UTF-8");
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.ima;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the IMA measurement list index on a synthetic list of 100,000
+ * ima-ng entries, about the size of the list on a busy host:
+ * - indexFullList indexes the whole list, which happens once, and is also
+ *   the cost of every quote if the list were read again each time
+ * - deltaOf100 reads the last 100 entries and their previous aggregate
+ *   from the index, which is what a quote with ima_since costs
+ * - refreshAfterAppend reads 100 entries appended since the last refresh
+ *
+ * Run after mvn test-compile with:
+ * java -cp target/test-classes:target/classes:(test classpath) com.intel.mountwilson.trustagent.commands.ima.ImaMeasurementListBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImaMeasurementListBenchmark {
+    private static final int ENTRIES = 100000;
+    private static final int APPENDED = 100;
+    private File file;
+    private ImaMeasurementList index;
+    private byte[] appended;
+    private int length;
+
+    @Setup(Level.Trial)
+    public void createList() throws Exception {
+        ImaMeasurementListTest.SyntheticList list = new ImaMeasurementListTest.SyntheticList();
+        for (int i = 0; i < ENTRIES; i++) {
+            list.add(ImaMeasurementList.IMA_PCR, i);
+        }
+        length = list.out.size();
+        for (int i = ENTRIES; i < ENTRIES + APPENDED; i++) {
+            list.add(ImaMeasurementList.IMA_PCR, i);
+        }
+        byte[] bytes = list.out.toByteArray();
+        appended = Arrays.copyOfRange(bytes, length, bytes.length);
+        file = File.createTempFile("binary_runtime_measurements", null);
+        Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+        index = new ImaMeasurementList(file);
+        index.refresh();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteList() {
+        file.delete();
+    }
+
+    @Benchmark
+    public int indexFullList() throws IOException {
+        return new ImaMeasurementList(file).refresh();
+    }
+
+    @Benchmark
+    public ImaMeasurementList.Delta deltaOf100() throws IOException {
+        return index.read(index.size() - APPENDED);
+    }
+
+    /**
+     * A copy of the list that is indexed before each invocation and then
+     * has 100 entries appended.
+     */
+    @State(Scope.Thread)
+    public static class Appending {
+        private File file;
+        private ImaMeasurementList index;
+
+        @Setup(Level.Trial)
+        public void copyList(ImaMeasurementListBenchmark benchmark) throws IOException {
+            file = File.createTempFile("binary_runtime_measurements", null);
+            Files.copy(benchmark.file.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        @Setup(Level.Invocation)
+        public void indexList(ImaMeasurementListBenchmark benchmark) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(benchmark.length);
+            }
+            index = new ImaMeasurementList(file);
+            index.refresh();
+            Files.write(file.toPath(), benchmark.appended, StandardOpenOption.APPEND);
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteList() {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public int refreshAfterAppend(Appending appending) throws IOException {
+        return appending.index.refresh();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(ImaMeasurementListBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.ima;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Writes synthetic IMA measurement lists and checks the index, the deltas
+ * and the PCR 10 aggregates against a replay of the whole list.
+ */
+public class ImaMeasurementListTest {
+
+    /**
+     * A list in the kernel binary format, with the offset of each entry and
+     * the PCR 10 aggregate before each entry.
+     */
+    static class SyntheticList {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<Integer> offsets = new ArrayList<>();
+        final List<byte[]> aggregates = new ArrayList<>();
+        byte[] aggregate = new byte[20];
+
+        SyntheticList() {
+            aggregates.add(aggregate);
+        }
+
+        /** an ima-ng entry for a file, with a template digest derived from the sequence number */
+        void add(int pcr, int sequence) throws Exception {
+            byte[] templateDigest = MessageDigest.getInstance("SHA-1").digest(ByteBuffer.allocate(4).putInt(sequence).array());
+            byte[] fileDigest = Arrays.copyOf(templateDigest, 32);
+            byte[] name = ("/usr/lib/x86_64-linux-gnu/lib" + sequence + ".so\0").getBytes(Charset.forName("UTF-8"));
+            ByteBuffer data = buffer(4 + 7 + 32 + 4 + name.length);
+            data.putInt(7 + 32).put("sha256:".getBytes(Charset.forName("US-ASCII"))).put(fileDigest).putInt(name.length).put(name);
+            add(pcr, templateDigest, "ima-ng", data.array());
+        }
+
+        void add(int pcr, byte[] templateDigest, String template, byte[] data) throws Exception {
+            offsets.add(out.size());
+            byte[] name = template.getBytes(Charset.forName("US-ASCII"));
+            boolean legacy = template.equals("ima");
+            ByteBuffer entry = buffer(4 + 20 + 4 + name.length + (legacy ? 0 : 4) + data.length);
+            entry.putInt(pcr).put(templateDigest).putInt(name.length).put(name);
+            if (!legacy) {
+                entry.putInt(data.length);
+            }
+            entry.put(data);
+            out.write(entry.array());
+            if (pcr == ImaMeasurementList.IMA_PCR) {
+                byte[] extend = templateDigest.clone();
+                if (Arrays.equals(extend, new byte[20])) {
+                    Arrays.fill(extend, (byte) 0xff);
+                }
+                MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+                sha1.update(aggregate);
+                sha1.update(extend);
+                aggregate = sha1.digest();
+            }
+            aggregates.add(aggregate);
+        }
+
+        byte[] from(int sequence) {
+            byte[] bytes = out.toByteArray();
+            return Arrays.copyOfRange(bytes, sequence == offsets.size() ? bytes.length : offsets.get(sequence), bytes.length);
+        }
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test
+    public void testIncrementalRefreshAndDeltas() throws Exception {
+        SyntheticList list = new SyntheticList();
+        for (int i = 0; i < 3000; i++) {
+            list.add(ImaMeasurementList.IMA_PCR, i);
+        }
+        byte[] bytes = list.out.toByteArray();
+        File file = File.createTempFile("binary_runtime_measurements", null);
+        try {
+            // the last entry is cut off
+            Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 7));
+            ImaMeasurementList index = new ImaMeasurementList(file);
+            assertEquals(2999, index.refresh());
+            assertArrayEquals(list.aggregates.get(2999), index.getAggregate());
+            for (int i = 3000; i < 3005; i++) {
+                list.add(ImaMeasurementList.IMA_PCR, i);
+            }
+            byte[] appended = list.out.toByteArray();
+            Files.write(file.toPath(), Arrays.copyOfRange(appended, bytes.length - 7, appended.length), StandardOpenOption.APPEND);
+            assertEquals(6, index.refresh());
+            assertEquals(3005, index.size());
+            assertArrayEquals(list.aggregate, index.getAggregate());
+            for (int since : new int[] { 0, 1, 1023, 1024, 1025, 2047, 2999, 3004, 3005 }) {
+                ImaMeasurementList.Delta delta = index.read(since);
+                assertEquals(since, delta.getFrom());
+                assertEquals(3005, delta.getNext());
+                assertArrayEquals("entries since " + since, list.from(since), delta.getEntries());
+                assertArrayEquals("aggregate before " + since, list.aggregates.get(since), delta.getPreviousAggregate());
+                assertArrayEquals(list.aggregate, delta.getAggregate());
+            }
+            // the list is shorter than the client thinks, so the host rebooted
+            ImaMeasurementList.Delta delta = index.read(5000);
+            assertEquals(0, delta.getFrom());
+            assertArrayEquals(list.from(0), delta.getEntries());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLegacyTemplateViolationAndOtherPcr() throws Exception {
+        SyntheticList list = new SyntheticList();
+        byte[] boot = new byte[20];
+        Arrays.fill(boot, (byte) 0x5a);
+        // ima template: file digest, file name length and file name
+        ByteBuffer legacy = buffer(20 + 4 + 14);
+        legacy.put(boot).putInt(14).put("boot_aggregate".getBytes(Charset.forName("US-ASCII")));
+        list.add(ImaMeasurementList.IMA_PCR, boot, "ima", legacy.array());
+        list.add(ImaMeasurementList.IMA_PCR, new byte[20], "ima-ng", new byte[40]); // violation
+        list.add(11, boot, "ima-ng", new byte[40]);
+        list.add(ImaMeasurementList.IMA_PCR, 1);
+        File file = File.createTempFile("binary_runtime_measurements", null);
+        try {
+            Files.write(file.toPath(), list.out.toByteArray());
+            ImaMeasurementList index = new ImaMeasurementList(file);
+            assertEquals(4, index.refresh());
+            assertArrayEquals(list.aggregate, index.getAggregate());
+            ImaMeasurementList.Delta delta = index.read(3);
+            assertArrayEquals(list.aggregates.get(3), delta.getPreviousAggregate());
+            assertArrayEquals(list.aggregates.get(2), delta.getPreviousAggregate());
+            assertArrayEquals(list.from(3), delta.getEntries());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.measurement;
+
+import com.intel.mtwilson.trustagent.measurement.TcbMeasurement;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Measures a small tree in a temporary directory.
+ */
+public class TcbMeasurementEngineTest {
+
+    private static TcbMeasurement manifest(File root) throws IOException {
+        String xml = "<Manifest xmlns=\"lib:wml:manifests:1.0\" DigestAlg=\"sha256\">"
+                + "<File Path=\"" + root + "/small.txt\"/>"
+                + "<File Path=\"" + root + "/large.bin\"/>"
+                + "<File Path=\"" + root + "/missing.txt\"/>"
+                + "<Dir Path=\"" + root + "\" Include=\"\\.txt$\" Exclude=\"skip\"/>"
+                + "</Manifest>";
+        return TcbMeasurementXml.read(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    private static File tree() throws IOException {
+        File root = Files.createTempDirectory("tcb").toFile();
+        Files.write(new File(root, "small.txt").toPath(), "small".getBytes("UTF-8"));
+        byte[] large = new byte[300 * 1024];
+        Arrays.fill(large, (byte) 0x5a);
+        Files.write(new File(root, "large.bin").toPath(), large);
+        new File(root, "sub").mkdir();
+        Files.write(new File(root, "sub/nested.txt").toPath(), new byte[0]);
+        Files.write(new File(root, "sub/skip.txt").toPath(), new byte[0]);
+        return root;
+    }
+
+    @Test
+    public void testMeasureManifest() throws Exception {
+        File root = tree();
+        try {
+            TcbMeasurement measurement = new TcbMeasurementEngine(2, new FileHashCache(null)).measure(manifest(root));
+            assertEquals("sha256", measurement.getDigestAlg());
+            assertEquals(DigestUtils.sha256Hex("small"), measurement.getMeasurements().get(0).getValue());
+            byte[] large = new byte[300 * 1024];
+            Arrays.fill(large, (byte) 0x5a);
+            assertEquals(DigestUtils.sha256Hex(large), measurement.getMeasurements().get(1).getValue());
+            assertNull(measurement.getMeasurements().get(2).getValue());
+            assertEquals(DigestUtils.sha256Hex(root + "/small.txt\n" + root + "/sub/nested.txt\n"), measurement.getMeasurements().get(3).getValue());
+            String xml = TcbMeasurementXml.write(measurement);
+            assertTrue(xml.contains("<Measurements xmlns=\"mtwilson:trustdirector:measurements:1.1\" DigestAlg=\"sha256\">"));
+            assertTrue(xml.contains("<File Path=\"" + root + "/small.txt\">" + DigestUtils.sha256Hex("small") + "</File>"));
+            assertTrue(xml.contains("<File Path=\"" + root + "/missing.txt\"></File>"));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        File root = tree();
+        try {
+            File cacheFile = new File(root, "cache");
+            Path small = new File(root, "small.txt").toPath();
+            FileHashCache.Key key = FileHashCache.keyOf(small, "SHA-256");
+            if (key == null) {
+                return; // no unix file attributes on this platform
+            }
+            FileHashCache cache = new FileHashCache(cacheFile);
+            cache.put(key, "cached");
+            TcbMeasurementEngine engine = new TcbMeasurementEngine(1, cache);
+            assertEquals("cached", engine.hashFile(small, "SHA-256"));
+            cache.save();
+            FileHashCache loaded = new FileHashCache(cacheFile);
+            loaded.load();
+            assertEquals("cached", loaded.get(key));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testSaveChangesKeepsOtherDigests() throws Exception {
+        File root = tree();
+        try {
+            File cacheFile = new File(root, "cache");
+            FileHashCache.Key old = new FileHashCache.Key("SHA-256", 1, 2, 3, 4, 5);
+            FileHashCache.Key changed = new FileHashCache.Key("SHA-256", 1, 6, 3, 4, 5);
+            FileHashCache cache = new FileHashCache(cacheFile);
+            cache.put(old, "old");
+            cache.save();
+            // a watcher only hashes the file that changed
+            cache.put(changed, "changed");
+            cache.saveChanges();
+            FileHashCache loaded = new FileHashCache(cacheFile);
+            loaded.load();
+            assertEquals("old", loaded.get(old));
+            assertEquals("changed", loaded.get(changed));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testRecentFileIsNotCached() throws Exception {
+        File root = tree();
+        try {
+            Path small = new File(root, "small.txt").toPath();
+            if (FileHashCache.keyOf(small, "SHA-256") == null) {
+                return; // no unix file attributes on this platform
+            }
+            FileHashCache cache = new FileHashCache(null);
+            TcbMeasurementEngine engine = new TcbMeasurementEngine(1, cache);
+            // the file was just written, so it could be written again within the same timestamp
+            assertEquals(DigestUtils.sha256Hex("small"), engine.hashFile(small, "SHA-256"));
+            assertEquals(0, cache.size());
+            // same size and modification time, and maybe the same change time on a file system with coarse timestamps
+            FileTime modified = Files.getLastModifiedTime(small);
+            Files.write(small, "SMALL".getBytes("UTF-8"));
+            Files.setLastModifiedTime(small, modified);
+            assertEquals(DigestUtils.sha256Hex("SMALL"), engine.hashFile(small, "SHA-256"));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testIsRacy() {
+        long now = System.currentTimeMillis();
+        long settled = TimeUnit.MILLISECONDS.toNanos(now - 10000);
+        long recent = TimeUnit.MILLISECONDS.toNanos(now - 500);
+        assertFalse(FileHashCache.isRacy(new FileHashCache.Key("SHA-256", 1, 2, 3, settled, settled), now));
+        assertTrue(FileHashCache.isRacy(new FileHashCache.Key("SHA-256", 1, 2, 3, recent, recent), now));
+        // a modification time set back does not hide a recent change
+        assertTrue(FileHashCache.isRacy(new FileHashCache.Key("SHA-256", 1, 2, 3, settled, recent), now));
+    }
+}
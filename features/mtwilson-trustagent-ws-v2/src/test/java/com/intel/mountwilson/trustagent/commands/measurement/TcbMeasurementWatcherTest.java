@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.measurement;
+
+import com.intel.mtwilson.trustagent.measurement.MeasurementEntry;
+import com.intel.mtwilson.trustagent.measurement.TcbMeasurement;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Changes a watched tree and checks that the live measurement matches a
+ * full measurement of the tree.
+ */
+public class TcbMeasurementWatcherTest {
+
+    private static TcbMeasurement manifest(File root) throws IOException {
+        String xml = "<Manifest xmlns=\"lib:wml:manifests:1.0\" DigestAlg=\"sha256\">"
+                + "<File Path=\"" + root + "/a/file.txt\"/>"
+                + "<Dir Path=\"" + root + "\" Exclude=\"skip\"/>"
+                + "<Dir Path=\"" + root + "/a\" Include=\"\\.txt$\"/>"
+                + "</Manifest>";
+        return TcbMeasurementXml.read(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    private static List<String> values(TcbMeasurement measurement) {
+        List<String> values = new ArrayList<>();
+        for (MeasurementEntry entry : measurement.getMeasurements()) {
+            values.add(entry.getValue());
+        }
+        return values;
+    }
+
+    /**
+     * getMeasurement processes the events that are pending, but the JDK
+     * reads them from inotify in a background thread, so this allows that
+     * thread a moment to catch up.
+     */
+    private static void assertCurrent(TcbMeasurementWatcher watcher, TcbMeasurement manifest) throws Exception {
+        List<String> expected = values(new TcbMeasurementEngine(1, new FileHashCache(null)).measure(manifest));
+        long deadline = System.currentTimeMillis() + 1000;
+        List<String> actual = values(watcher.getMeasurement());
+        while (!expected.equals(actual) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            actual = values(watcher.getMeasurement());
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testWatchChanges() throws Exception {
+        File root = Files.createTempDirectory("tcb").toFile();
+        try {
+            new File(root, "a/b").mkdirs();
+            Files.write(new File(root, "a/file.txt").toPath(), "one".getBytes("UTF-8"));
+            Files.write(new File(root, "a/b/nested.txt").toPath(), new byte[0]);
+            Files.write(new File(root, "a.txt").toPath(), new byte[0]);
+            TcbMeasurement manifest = manifest(root);
+            try (TcbMeasurementWatcher watcher = new TcbMeasurementWatcher(manifest, new TcbMeasurementEngine(2, new FileHashCache(null)))) {
+                assertCurrent(watcher, manifest);
+                assertEquals(DigestUtils.sha256Hex("one"), watcher.getMeasurement().getMeasurements().get(0).getValue());
+                // a changed file, a new file, a removed file and a new directory with files
+                Files.write(new File(root, "a/file.txt").toPath(), "two".getBytes("UTF-8"));
+                Files.write(new File(root, "a/b/new.txt").toPath(), new byte[0]);
+                Files.write(new File(root, "a/b/skip.txt").toPath(), new byte[0]);
+                Files.delete(new File(root, "a.txt").toPath());
+                new File(root, "a/c/d").mkdirs();
+                Files.write(new File(root, "a/c/d/deep.txt").toPath(), new byte[0]);
+                Files.write(new File(root, "a/c/other.bin").toPath(), new byte[0]);
+                assertCurrent(watcher, manifest);
+                assertEquals(DigestUtils.sha256Hex("two"), watcher.getMeasurement().getMeasurements().get(0).getValue());
+                // a moved directory and then a file in it
+                Files.move(new File(root, "a/c").toPath(), new File(root, "a/e").toPath());
+                assertCurrent(watcher, manifest);
+                Files.write(new File(root, "a/e/d/moved.txt").toPath(), new byte[0]);
+                assertCurrent(watcher, manifest);
+                FileUtils.deleteDirectory(new File(root, "a/b"));
+                assertCurrent(watcher, manifest);
+            }
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.data;
+
+import com.intel.dcsg.cpg.crypto.RandomUtil;
+import com.intel.mountwilson.common.ErrorCode;
+import com.intel.mountwilson.common.ICommand;
+import com.intel.mountwilson.common.TAException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SessionWorkspaceTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SessionWorkspaceTest.class);
+
+    /**
+     * Stands in for the TPM quote tools: reads the nonce file from the
+     * workspace, sleeps briefly, and writes a "quote" containing the nonce
+     * to the quote file, the same file exchange the real tools use.
+     */
+    private static class StubQuoteCmd implements ICommand {
+        private final TADataContext context;
+
+        StubQuoteCmd(TADataContext context) {
+            this.context = context;
+        }
+
+        @Override
+        public void execute() throws TAException {
+            try {
+                File nonceFile = new File(context.getNonceFileName());
+                FileUtils.writeByteArrayToFile(nonceFile, Base64.decodeBase64(context.getNonce()));
+                Thread.sleep(5);
+                byte[] nonce = FileUtils.readFileToByteArray(nonceFile);
+                File quoteFile = new File(context.getQuoteFileName());
+                FileUtils.writeByteArrayToFile(quoteFile, nonce);
+                FileUtils.writeByteArrayToFile(new File(context.getPcrsFileName()), new byte[20]);
+                context.setTpmQuote(FileUtils.readFileToByteArray(quoteFile));
+            } catch (IOException | InterruptedException e) {
+                throw new TAException(ErrorCode.ERROR, "Stub quote failed", e);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentQuotesDoNotShareOrLeakWorkspaces() throws Exception {
+        final File base = Files.createTempDirectory("workspace-test").toFile();
+        final Set<String> folders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        int quotes = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(64);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < quotes; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        byte[] nonce = RandomUtil.randomByteArray(20);
+                        TADataContext context = new TADataContext();
+                        context.setWorkspace(SessionWorkspace.create(base));
+                        context.setNonce(Base64.encodeBase64String(nonce));
+                        try {
+                            assertTrue("workspace shared", folders.add(context.getDataFolder()));
+                            new StubQuoteCmd(context).execute();
+                            return Arrays.equals(nonce, context.getTpmQuote());
+                        } finally {
+                            context.deleteWorkspace();
+                        }
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue("quote does not match its own nonce", result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(quotes, folders.size());
+        String[] leaked = base.list();
+        log.debug("{} quotes, leaked workspaces: {}", quotes, leaked == null ? 0 : leaked.length);
+        assertEquals(0, leaked.length);
+        base.delete();
+    }
+
+    @Test
+    public void testCloseDeletesFiles() throws IOException {
+        File base = Files.createTempDirectory("workspace-test").toFile();
+        SessionWorkspace workspace = SessionWorkspace.create(base);
+        FileUtils.writeStringToFile(new File(workspace.getFileName("nonce")), "test");
+        assertTrue(workspace.exists());
+        workspace.close();
+        assertFalse(workspace.exists());
+        assertEquals(0, base.list().length);
+        base.delete();
+    }
+
+    @Test
+    public void testPrivateShmDirectoryIsCreated() throws IOException {
+        Path shm = Files.createTempDirectory("shm-test");
+        Assume.assumeTrue(shm.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        File fallback = new File("fallback");
+        try {
+            File base = SessionWorkspace.getBaseDirectory(shm.toFile(), fallback);
+            assertEquals(shm.resolve("trustagent").toFile(), base);
+            assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(base.toPath())));
+            // the directory it created is used again
+            assertEquals(base, SessionWorkspace.getBaseDirectory(shm.toFile(), fallback));
+        } finally {
+            FileUtils.deleteDirectory(shm.toFile());
+        }
+    }
+
+    @Test
+    public void testPreExistingSharedShmDirectoryIsNotUsed() throws IOException {
+        Path shm = Files.createTempDirectory("shm-test");
+        Assume.assumeTrue(shm.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        File fallback = new File("fallback");
+        try {
+            Path existing = Files.createDirectory(shm.resolve("trustagent"));
+            Files.setPosixFilePermissions(existing, PosixFilePermissions.fromString("rwxrwxrwx"));
+            assertEquals(fallback, SessionWorkspace.getBaseDirectory(shm.toFile(), fallback));
+        } finally {
+            FileUtils.deleteDirectory(shm.toFile());
+        }
+    }
+
+    @Test
+    public void testSymbolicLinkShmDirectoryIsNotUsed() throws IOException {
+        Path shm = Files.createTempDirectory("shm-test");
+        Assume.assumeTrue(shm.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        File fallback = new File("fallback");
+        try {
+            // the target itself would be acceptable, but another user could change the link
+            Path target = Files.createDirectory(shm.resolve("target"), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            Files.createSymbolicLink(shm.resolve("trustagent"), target);
+            assertEquals(fallback, SessionWorkspace.getBaseDirectory(shm.toFile(), fallback));
+        } finally {
+            FileUtils.deleteDirectory(shm.toFile());
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.trustagent.model.TpmQuoteRequest;
+import java.util.ArrayList;
+import java.util.List;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TpmTest {
+    private static List<TpmQuoteRequest> batch(int size) {
+        List<TpmQuoteRequest> quoteRequests = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            quoteRequests.add(new TpmQuoteRequest());
+        }
+        return quoteRequests;
+    }
+
+    private static void assertRejected(List<TpmQuoteRequest> quoteRequests, int max) {
+        try {
+            Tpm.checkBatchSize(quoteRequests, max);
+            fail("Expected a batch of " + quoteRequests.size() + " to be rejected");
+        } catch (WebApplicationException e) {
+            assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), e.getResponse().getStatus());
+        }
+    }
+
+    @Test
+    public void testBatchAtLimitIsAccepted() {
+        Tpm.checkBatchSize(batch(1), 4);
+        Tpm.checkBatchSize(batch(4), 4);
+    }
+
+    @Test
+    public void testBatchOverLimitIsRejected() {
+        assertRejected(batch(5), 4);
+    }
+
+    @Test
+    public void testEmptyBatchIsRejected() {
+        assertRejected(batch(0), 4);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intel.mtwilson.trustagent.model.TrustagentCbor;
+import com.intel.mtwilson.trustagent.model.VMQuoteResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import javax.ws.rs.core.MediaType;
+import javax.xml.bind.DatatypeConverter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class VMQuoteReportMessageBodyWriterTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(VMQuoteReportMessageBodyWriterTest.class);
+
+    private File createFile(byte[] content) throws IOException {
+        File file = File.createTempFile("vmquote", ".xml");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        return file;
+    }
+
+    private byte[] write(VMQuoteReport report, MediaType mediaType) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new VMQuoteReportMessageBodyWriter().writeTo(report, VMQuoteReport.class, VMQuoteReport.class, new java.lang.annotation.Annotation[0], mediaType, null, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testJsonAndCbor() throws Exception {
+        // larger than one base64 chunk and not a multiple of 3
+        byte[] measurements = new byte[200001];
+        new Random(1).nextBytes(measurements);
+        byte[] trustPolicy = "<TrustPolicy/>".getBytes("UTF-8");
+        byte[] quote = new byte[0];
+        VMQuoteReport report = new VMQuoteReport(createFile(quote), createFile(trustPolicy), createFile(measurements), VMQuoteResponse.QuoteType.XML_DSIG);
+
+        byte[] json = write(report, MediaType.APPLICATION_JSON_TYPE);
+        Map<?, ?> map = new ObjectMapper().readValue(json, Map.class);
+        assertArrayEquals(quote, DatatypeConverter.parseBase64Binary((String) map.get("vm_quote")));
+        assertArrayEquals(trustPolicy, DatatypeConverter.parseBase64Binary((String) map.get("vm_trust_policy")));
+        assertArrayEquals(measurements, DatatypeConverter.parseBase64Binary((String) map.get("vm_measurements")));
+        assertEquals("XML_DSIG", map.get("vm_quote_type"));
+
+        byte[] cbor = write(report, MediaType.valueOf(TrustagentCbor.APPLICATION_CBOR));
+        VMQuoteResponse response = TrustagentCbor.read(VMQuoteResponse.class, new ByteArrayInputStream(cbor));
+        assertArrayEquals(quote, response.getVmQuote());
+        assertArrayEquals(trustPolicy, response.getVmTrustPolicy());
+        assertArrayEquals(measurements, response.getVmMeasurements());
+        assertEquals(VMQuoteResponse.QuoteType.XML_DSIG, response.getVmQuoteType());
+        log.debug("Measurements {} bytes, json {} bytes, cbor {} bytes", measurements.length, json.length, cbor.length);
+    }
+}
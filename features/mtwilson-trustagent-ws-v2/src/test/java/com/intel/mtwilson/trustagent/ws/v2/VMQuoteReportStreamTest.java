@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intel.mtwilson.trustagent.model.VMQuoteResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import javax.xml.bind.DatatypeConverter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class VMQuoteReportStreamTest {
+
+    private File createFile(String content) throws IOException {
+        File file = File.createTempFile("vmquote", ".xml");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes("UTF-8"));
+        }
+        return file;
+    }
+
+    @Test
+    public void testReportsAndErrorsInCompletionOrder() throws Exception {
+        final VMQuoteReportStream stream = new VMQuoteReportStream(3);
+        final VMQuoteReport report = new VMQuoteReport(createFile("<VMQuote/>"), createFile("<TrustPolicy/>"), createFile("<Measurements/>"), VMQuoteResponse.QuoteType.XML_DSIG);
+        stream.add("vm-2", report);
+        stream.addError("vm-\"1\"", "Cannot read /var/lib/nova/instances/vm-1/measurement.xml");
+        Thread late = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                stream.add("vm-3", report);
+            }
+        });
+        late.start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        stream.write(out);
+        late.join();
+
+        Map<?, ?> collection = new ObjectMapper().readValue(out.toByteArray(), Map.class);
+        List<?> vms = (List<?>) collection.get("vms");
+        assertEquals(3, vms.size());
+        Map<?, ?> first = (Map<?, ?>) vms.get(0);
+        assertEquals("vm-2", first.get("vm_instance_id"));
+        assertEquals("<TrustPolicy/>", new String(DatatypeConverter.parseBase64Binary((String) first.get("vm_trust_policy")), "UTF-8"));
+        assertEquals("XML_DSIG", first.get("vm_quote_type"));
+        Map<?, ?> second = (Map<?, ?>) vms.get(1);
+        assertEquals("vm-\"1\"", second.get("vm_instance_id"));
+        assertEquals("Cannot read /var/lib/nova/instances/vm-1/measurement.xml", second.get("error_message"));
+        assertNull(second.get("vm_quote"));
+        assertEquals("vm-3", ((Map<?, ?>) vms.get(2)).get("vm_instance_id"));
+    }
+}
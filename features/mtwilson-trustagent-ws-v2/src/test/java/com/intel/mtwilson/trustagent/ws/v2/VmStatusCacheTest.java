@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import java.io.IOException;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class VmStatusCacheTest {
+    private static final CompletionHandler<Boolean, Void> IGNORE = new CompletionHandler<Boolean, Void>() {
+        @Override
+        public void completed(Boolean result, Void attachment) {
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+        }
+    };
+
+    private static class ManualClockCache extends VmStatusCache {
+        private final AtomicLong time = new AtomicLong(1000);
+
+        private ManualClockCache(long ttlMillis, long negativeTtlMillis) {
+            super(ttlMillis, negativeTtlMillis);
+        }
+
+        @Override
+        long now() {
+            return time.get();
+        }
+    }
+
+    @Test
+    public void testTrustedAndUntrustedExpire() {
+        ManualClockCache cache = new ManualClockCache(60000, 5000);
+        assertNull(cache.get("vm-1"));
+        cache.update("vm-1", IGNORE).completed(true, null);
+        cache.update("vm-2", IGNORE).completed(false, null);
+        assertTrue(cache.get("vm-1"));
+        assertFalse(cache.get("vm-2"));
+        cache.time.addAndGet(5000);
+        assertTrue(cache.get("vm-1"));
+        assertNull(cache.get("vm-2"));
+        cache.time.addAndGet(55000);
+        assertNull(cache.get("vm-1"));
+    }
+
+    @Test
+    public void testFailedCallIsNotCached() {
+        ManualClockCache cache = new ManualClockCache(60000, 5000);
+        cache.update("vm-1", IGNORE).failed(new IOException("rpcore is not running"), null);
+        assertNull(cache.get("vm-1"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInvalidationDuringCallDropsResult() {
+        ManualClockCache cache = new ManualClockCache(60000, 5000);
+        CompletionHandler<Boolean, Void> inFlight = cache.update("vm-1", IGNORE);
+        cache.invalidate("vm-1");
+        inFlight.completed(true, null);
+        assertNull(cache.get("vm-1"));
+        cache.update("vm-1", IGNORE).completed(true, null);
+        assertTrue(cache.get("vm-1"));
+        cache.invalidateAll();
+        assertNull(cache.get("vm-1"));
+    }
+
+    @Test
+    public void testChangedInstanceDirectoryInvalidates() throws Exception {
+        Path instances = Files.createTempDirectory("instances");
+        Path vm = Files.createDirectory(instances.resolve("vm-1"));
+        VmStatusCache cache = new VmStatusCache(60000, 5000);
+        try {
+            cache.watch(instances);
+            cache.update("vm-1", IGNORE).completed(true, null);
+            cache.update("vm-2", IGNORE).completed(true, null);
+            Files.write(vm.resolve("measurement.xml"), "<measurements/>".getBytes("UTF-8"));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (cache.get("vm-1") != null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertNull(cache.get("vm-1"));
+            assertTrue(cache.get("vm-2"));
+        } finally {
+            cache.close();
+            Files.deleteIfExists(vm.resolve("measurement.xml"));
+            Files.deleteIfExists(vm);
+            Files.deleteIfExists(instances);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.trustagent.model.VMAttestationRequest;
+import java.io.IOException;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class VrtmFanOutTest {
+
+    private List<VMAttestationRequest> requests(int count) {
+        List<VMAttestationRequest> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            // every tenth request has no vm_instance_id and fails when it is sent
+            requests.add(new VMAttestationRequest(i % 10 == 9 ? null : "vm-" + i));
+        }
+        return requests;
+    }
+
+    @Test
+    public void testBoundedParallelismWithPartialFailures() throws Exception {
+        final int count = 100;
+        final ExecutorService rpcore = Executors.newFixedThreadPool(8);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicReferenceArray<String> results = new AtomicReferenceArray<>(count);
+        final CountDownLatch done = new CountDownLatch(count);
+        try {
+            new VrtmFanOut<String>(requests(count)) {
+                @Override
+                protected void send(final VMAttestationRequest request, final CompletionHandler<String, Void> handler) {
+                    final String id = request.getVmInstanceId().toUpperCase();
+                    int current = inFlight.incrementAndGet();
+                    int max;
+                    while (current > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, current)) {
+                    }
+                    rpcore.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                Thread.sleep(1);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            inFlight.decrementAndGet();
+                            if (id.endsWith("3")) {
+                                handler.failed(new IOException("rpcore error"), null);
+                            } else {
+                                handler.completed(id, null);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                protected void completed(int index, String result) {
+                    results.set(index, result);
+                    done.countDown();
+                }
+
+                @Override
+                protected void failed(int index, Throwable exc) {
+                    results.set(index, "error " + exc.getClass().getSimpleName());
+                    done.countDown();
+                }
+            }.start(4);
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            rpcore.shutdown();
+        }
+        assertTrue(maxInFlight.get() <= 4);
+        for (int i = 0; i < count; i++) {
+            if (i % 10 == 9) {
+                assertEquals("error NullPointerException", results.get(i));
+            } else if (i % 10 == 3) {
+                assertEquals("error IOException", results.get(i));
+            } else {
+                assertEquals("VM-" + i, results.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testSynchronousRejectionsDoNotRecurse() throws Exception {
+        // more than the largest vrtm.batch.max, each rejected before send returns as during an rpcore connect backoff
+        final int count = 100000;
+        final AtomicInteger failed = new AtomicInteger();
+        new VrtmFanOut<String>(requests(count)) {
+            @Override
+            protected void send(VMAttestationRequest request, CompletionHandler<String, Void> handler) {
+                handler.failed(new IOException("rpcore is unavailable"), null);
+            }
+
+            @Override
+            protected void completed(int index, String result) {
+                fail("expected every call to be rejected");
+            }
+
+            @Override
+            protected void failed(int index, Throwable exc) {
+                failed.incrementAndGet();
+            }
+        }.start(1);
+        assertEquals(count, failed.get());
+    }
+}
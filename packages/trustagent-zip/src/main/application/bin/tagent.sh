@@ -184,9 +184,9 @@ trustagent_start() {
         return 0
     fi
 
-    # regenerate Measurement log when trustagent is started
+    # regenerate Measurement log when trustagent is started; the agent writes
+    # it from the TCG event log when the first quote is requested
     rm -rf $TRUSTAGENT_HOME/var/measureLog.xml
-    $TRUSTAGENT_HOME/bin/module_analysis.sh
 
     # check if we need to use authbind or if we can start java directly
     prog="$JAVA_CMD"